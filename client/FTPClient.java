@@ -4,24 +4,97 @@
  * File: FTPClient.java
  * CNT6707 - Network Architecture and Client/Server Computing
  * Description: FTP server program
- *              Commands: GET, PUT, CD, LS, QUIT
- *              Transfer modes: TCP, UDP
+ *              Commands: GET, PUT, DELTA, CPUT, CD, LS, USER, QUIT
+ *              Transfer modes: TCP, UDP (datagram size negotiated per transfer by path MTU probing, up to 64 KB on
+ *                              JDK 19+ where the don't-fragment bit can be set; Ethernet-sized otherwise), and AUTO,
+ *                              which picks TCP, striped TCP or UDP per transfer from the file size and the path's
+ *                              measured RTT, loss and past goodput, and finishes a collapsing UDP download over TCP
+ *              Striped UDP: -Dftp.udp.stripes=n spreads each UDP transfer over n sockets with a thread each
+ *              Datagrams: versioned header with the session ID from READY; hellos let a server on a shared UDP port
+ *                         find each download stripe through NAT
+ *              Upload modes: FULL, DELTA (only blocks that differ from the server's copy, rsync-style),
+ *                            DEDUP (only content-defined chunks the server's chunk store does not have)
  *              Testing mode: GET/PUT performed NUM_TESTS times and average time/throughput is calculated
+ *              Synthetic data: synthetic/random/<size> and synthetic/zero/<size> are generated in memory as PUT sources,
+ *                              and GET of any synthetic/ path discards the data, so benchmarks need no disk
+ *              Benchmark: warmup + measured iterations over a matrix of files x GET/PUT x TCP/UDP x concurrency,
+ *                         with phase timings, percentiles and confidence intervals exported as CSV/JSON, and each cell
+ *                         appended with the run's label and environment to a JSON Lines result store
+ *              Background transfers: queued GET/PUT jobs and directory syncs run concurrently on their own
+ *                                    sessions, with priorities, pause/resume, cancel and automatic retry
+ *              Encryption: optional TLS on control and TCP data connections, AES-GCM on UDP datagrams (-Dftp.tls=true)
+ *              Read-ahead: files are read in large blocks on a background thread while the previous block is sent
+ *              Write-behind: UDP receivers queue data for a writer thread, so disk stalls do not overflow the socket buffer
+ *              Cluster: transfers redirected by a cluster node are repeated on a session with the node that owns the file
+ *              Swarm download: with -Dftp.swarm=host:port,... GET fetches verified chunks of a file from every mirror at once
+ *              Download cache: with -Dftp.cache=<dir> GETs keep a size-bounded LRU copy of each file with the server's version,
+ *                              and fetching it again is a conditional GET that the server answers with NOT_MODIFIED
+ *              Streamed upload: "java FTPClient <host> <port> [user] put - <file>" uploads standard input as it is produced,
+ *                               chunked over TCP or as datagrams over UDP (-Dftp.mode=udp), with a size and SHA-256 trailer
+ *              Flight Recorder: optional JFR events for UDP datagram batches (-Dftp.jfr=true)
  */
 
 import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.zip.CRC32;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Formatter;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 import java.util.logging.LogRecord;
 import java.util.logging.FileHandler;
 import java.util.logging.Logger;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
 
 /**
  * FTP client program that connects to an FTP server and allows the user to interact with the server using the following commands:
@@ -29,148 +102,570 @@ import java.util.logging.Logger;
  * 2) PUT <file> - Upload a file to the server
  * 3) CD <directory> - Change the current directory on the server
  * 4) LS - List the contents of the current directory on the server
- * 5) Switch transfer mode (TCP/UDP)
+ * 5) Switch transfer mode (TCP/UDP/AUTO)
  * 6) Enable testing mode (GET/PUT performed NUM_TESTS times and average time/throughput is calculated)
- * 7) QUIT - Disconnect from the server and exit the client
+ * 7) Switch upload mode (FULL/DELTA/DEDUP)
+ * 8) Background transfers - Queue GET/PUT jobs or sync a directory while the menu stays usable
+ * 9) Benchmark - Run a benchmark matrix and export the statistics as CSV/JSON
+ * 10) QUIT - Disconnect from the server and exit the client
  */
 public class FTPClient {
     static final Logger LOGGER = Logger.getLogger("FTPClient"); // Logger for logging to file
     static final int NUM_TESTS = 10;  // Number of tests for testing mode
     static boolean testingMode = false;  // Default to testing mode off
     static boolean udpMode = false;  // Default to TCP mode
+    static boolean autoMode = false;  // Pick the transport per transfer; udpMode then holds the last pick
+    static UploadMode uploadMode = UploadMode.FULL;  // Default to full uploads
     private static final int MTU = 1500;  // Maximum Transmission Unit (MTU) for Ethernet
     private static final int IP_OVERHEAD = 20; // 20 bytes for IP header
     private static final int TCP_OVERHEAD = 20; // 20 bytes for TCP header
     private static final int TCP_IP_OVERHEAD = IP_OVERHEAD + TCP_OVERHEAD; // Total TCP/IP overhead
     private static final int TCP_BUFFER_SIZE = MTU - TCP_IP_OVERHEAD; // Final payload size
     private static final int UDP_OVERHEAD = 8; // 8 bytes for UDP header
-    private static final int APPLICATION_OVERHEAD = Long.BYTES + Integer.BYTES; // 8 bytes for sequence + 4 bytes for CRC
+    private static final byte DATAGRAM_VERSION = 1; // Header version every datagram starts with (must match the server)
+    private static final int DATAGRAM_HEADER = 1 + Integer.BYTES + Long.BYTES; // 1 byte version + 4 bytes session ID + 8 bytes sequence
+    private static final int APPLICATION_OVERHEAD = DATAGRAM_HEADER + Integer.BYTES; // Datagram header + 4 bytes for CRC
     private static final int UDP_IP_OVERHEAD = IP_OVERHEAD + UDP_OVERHEAD; // Total UDP/IP overhead
-    private static final int UDP_IP_APPLICATION_OVERHEAD = UDP_IP_OVERHEAD + APPLICATION_OVERHEAD; // 8 bytes for sequence + 4 bytes for CRC
+    private static final int UDP_IP_APPLICATION_OVERHEAD = UDP_IP_OVERHEAD + APPLICATION_OVERHEAD; // Datagram header + 4 bytes for CRC
     private static final int UDP_BUFFER_SIZE = MTU - UDP_IP_APPLICATION_OVERHEAD; // Maximum UDP payload size
     private static final int TIMEOUT = 2000;  // Timeout in milliseconds
     private static final int PORT = 21;  // Default port number
-    private static final int UDP_RECV_BUFFER = 100000000; // 100MB buffer size for UDP
+    private static final int UDP_RECV_BUFFER = Integer.getInteger("ftp.udp.recvbuffer", 100000000);  // UDP receive buffer request (the kernel caps it at net.core.rmem_max)
     private static String serverIP;  // Server IP address
     private static int serverPort;  // Server port number
+    private static String userName;  // Optional user name for the server's rate accounting
+    private static final int BUSY_RETRIES = 5;  // How often to retry when the server answers BUSY
+    private static final int MAX_REDIRECTS = 3;  // Cluster redirects followed for one transfer command
+    private static final Map<String, NodeSession> nodeSessions = new HashMap<>();  // Menu sessions with the cluster nodes transfers were redirected to
+    private static final int TRANSFER_WORKERS = Math.max(1, Integer.getInteger("ftp.workers", 4));  // Background transfers that run at once
+    private static final int JOB_RETRIES = Integer.getInteger("ftp.retries", 3);  // Retries of a failed background transfer
+    private static final long JOB_RETRY_DELAY = 1000;  // First retry delay in milliseconds, doubled on each further retry
+    private static final int JOB_BUFFER_SIZE = 64 * 1024;  // Copy buffer for background transfers and benchmarks
+    private static final int BENCH_WARMUP = Integer.getInteger("ftp.bench.warmup", 2);  // Default warmup iterations per benchmark cell
+    private static final int BENCH_ITERATIONS = Integer.getInteger("ftp.bench.iterations", 10);  // Default measured iterations per benchmark cell
+    private static final String BENCH_STORE = System.getProperty("ftp.bench.store", "benchmarks.jsonl");  // Append-only result store, one line per cell ("" = none)
+    private static final List<String> remoteDirectory = new ArrayList<>();  // CD arguments that led to the current server directory
+    private static final TransferManager TRANSFERS = new TransferManager(TRANSFER_WORKERS);  // Background transfer engine
     private static final int UDP_DELAY = 0;  // Delay in milliseconds for UDP transfer
+    private static final long PROGRESS_INTERVAL = Math.max(10, Long.getLong("ftp.progress.interval", 100));  // Progress bar redraw period in milliseconds
+    private static final int DEFAULT_DATAGRAM_SIZE = MTU - UDP_IP_OVERHEAD;  // Datagram that fits one Ethernet frame
+    private static final int MAX_DATAGRAM_SIZE = Math.max(DEFAULT_DATAGRAM_SIZE, Math.min(65507,  // Largest IPv4 UDP payload
+            Integer.getInteger("ftp.udp.maxdatagram", 65507)));
+    private static final int[] PROBE_DATAGRAM_SIZES = {65507, 9000 - UDP_IP_OVERHEAD};  // Loopback limit, jumbo frame
+    private static final int STREAM_CHUNK_SIZE = 64 * 1024;  // Largest chunk of a streamed TCP upload (the server takes up to 1 MB)
+    private static final int PROBE_REPEATS = 2;  // Copies of each probe, so one lost probe does not shrink the size
+    private static final int PROBE_TIMEOUT = 250;  // How long to wait for probe acknowledgements, in milliseconds
+    private static final long PROBE_SEQUENCE = -2L;  // Sequence number marking a path MTU probe
+    private static final long PROBE_ACK_SEQUENCE = -3L;  // Sequence number marking a probe acknowledgement
+    private static final long HELLO_SEQUENCE = -4L;  // Sequence number marking a hello from a download stripe's socket
+    private static final boolean TLS = Boolean.getBoolean("ftp.tls");  // TLS on control and TCP data connections, AES-GCM on datagrams
+    private static final int GCM_KEY_LENGTH = 16;  // AES-128 key for encrypted datagrams
+    private static final int GCM_NONCE_LENGTH = 12;  // 4-byte salt + 8-byte sequence number
+    private static final int GCM_TAG_LENGTH = 16;  // Authentication tag that replaces the CRC32 on encrypted datagrams
+    private static final int UDP_SEND_BUFFER = 4 * 1024 * 1024;  // Send buffer for large datagrams
+    private static final int READ_AHEAD_BLOCK = (Math.max(4096, Integer.getInteger("ftp.readahead.block", 1024 * 1024)) + 4095) & ~4095;  // Read-ahead block, rounded up to whole pages
+    private static final int READ_AHEAD_DEPTH = Integer.getInteger("ftp.readahead.depth", 2);  // Read-ahead blocks per send (0 = read inline)
+    private static final int WRITE_BEHIND_BLOCK = 1024 * 1024;  // Block a UDP receiver's writes are coalesced into
+    private static final long WRITE_BEHIND_LIMIT = Long.getLong("ftp.writebehind.limit", 64L * 1024 * 1024);  // Received data queued for the disk before the receiver waits (0 = write inline)
+    private static final List<String> SWARM_MIRRORS = splitList(System.getProperty("ftp.swarm", ""));  // Servers besides the connected one that GET downloads from at once
+    private static final int SWARM_CHUNK_SIZE = Integer.getInteger("ftp.swarm.chunk", 4 * 1024 * 1024);  // Chunk of a swarm download fetched and verified as a unit
+    private static final int SWARM_MAX_FETCHERS = 2;  // Sources that may fetch one chunk at once near the end of a swarm download
+    private static final int SWARM_MAX_FAILURES = 3;  // Failures in a row after which a swarm source is dropped
+    private static final boolean JFR_EVENTS = Boolean.getBoolean("ftp.jfr");  // Emit JDK Flight Recorder events for received datagrams
+    private static final int JFR_DATAGRAM_BATCH = 1024;  // Datagrams counted into one DatagramBatch event
+    private static final long JFR_BATCH_NANOS = 100_000_000L;  // Longest a DatagramBatch event spans
+    private static final int UDP_STRIPES = Integer.getInteger("ftp.udp.stripes", 1);  // UDP sockets (and threads on each side) per transfer
+    private static final String INITIAL_MODE = System.getProperty("ftp.mode", "tcp");  // Transfer mode at startup: tcp, udp or auto
+    private static final String CACHE_DIR = System.getProperty("ftp.cache");  // Directory of the download cache (unset = no cache)
+    private static final long CACHE_LIMIT = Long.getLong("ftp.cache.size", 1024L * 1024 * 1024);  // Most bytes of file data the download cache keeps
+    private static DownloadCache downloadCache;  // Null without ftp.cache
+    private static final long AUTO_SMALL_FILE = Long.getLong("ftp.auto.small", 4L * 1024 * 1024);  // AUTO mode sends files smaller than this over TCP
+    private static final long AUTO_STRIPED_FILE = Long.getLong("ftp.auto.striped", 64L * 1024 * 1024);  // Smallest AUTO download split over several TCP connections
+    private static final int AUTO_TCP_STREAMS = Math.max(2, Integer.getInteger("ftp.auto.streams", 4));  // TCP connections of a striped AUTO download
+    private static final double AUTO_LONG_RTT = 20.0;  // Control round trip in ms above which one TCP connection cannot fill the path
+    private static final long AUTO_PROBE_INTERVAL = 60_000;  // How long a path measurement is trusted, in milliseconds
+    private static final int AUTO_PINGS = 5;  // Control round trips timed per probe
+    private static final int AUTO_PROBE_DATAGRAMS = 64;  // Datagrams echoed per probe to measure UDP round trip and loss
+    private static final int AUTO_ECHO_TIMEOUT = 1000;  // How long to wait for the echoes, in milliseconds (the server echoes for as long)
+    private static final double AUTO_GOODPUT_WEIGHT = 0.5;  // Weight of the newest transfer in a path's smoothed goodput
+    private static final long GOODPUT_SAMPLE = 250;  // Period in milliseconds at which a watched UDP download's goodput is sampled
+    private static final double GOODPUT_COLLAPSE = 0.1;  // Fraction of the best sample below which a sample counts as collapsed
+    private static final int GOODPUT_COLLAPSE_SAMPLES = 2;  // Collapsed samples in a row after which the download is abandoned
+    private static final int DELTA_STRONG_LENGTH = 16; // MD5 digest length for strong block signatures
+    private static final int DELTA_WINDOW_SIZE = 4 * 1024 * 1024; // Sliding window over the local file for delta encoding
+    private static final int DELTA_MAX_LITERAL = 64 * 1024; // Largest literal run sent in one token
+    private static final byte DELTA_END = 0; // Delta token: end of stream, followed by size and MD5 of the new file
+    private static final byte DELTA_LITERAL = 1; // Delta token: literal data, followed by length and bytes
+    private static final byte DELTA_MATCH = 2; // Delta token: block reference, followed by block index
+    private static final int CHUNK_MIN_SIZE = 2048; // Smallest content-defined chunk (must match the server)
+    private static final int CHUNK_MAX_SIZE = 65536; // Largest content-defined chunk (must match the server)
+    private static final long CHUNK_MASK = 0xFFF8000000000000L; // 13 hash bits must be zero for a boundary (~8KB average chunk)
+    private static final long CHUNK_GEAR_SEED = 0x4654504348554E4BL; // Seed for the gear table, shared with the server
+    private static final long SYNTHETIC_SEED = 0x53594E5448455449L; // Seed for synthetic random data, shared with the server
+    private static final long[] GEAR = gearTable(); // Per-byte random values for the gear rolling hash
 
-    @FunctionalInterface
-    interface QuadConsumer<A, B, C, D> {
-        void accept(A a, B b, C c, D d);
-    }
+    /**
+     * How PUT sends a file: the whole file, an rsync-style delta, or only chunks the server lacks.
+     */
+    enum UploadMode { FULL, DELTA, DEDUP }
 
     private static class PacketHandler extends Thread {
         private final DatagramSocket socket;
-        private final FileOutputStream fos;
-        private final long expectedFileSize;
+        private final Reassembler reassembly; // Shared by the handlers of every stripe of the transfer
+        private final int session; // Session ID every datagram of the transfer carries
         private final int timeout;
-        private final QuadConsumer<Long, Long, Integer, Long> transferDisplay; // Updated functional interface
-        private long totalBytesTransferred = 0; // For metrics
-        private long duration = 0; // For metrics
-        private volatile boolean transferActive = true;
-        private long bytesPerFile = 0;
-        private int runNumber = 0;
+        private DatagramCipher cipher; // Set for encrypted transfers
+        private DatagramBatchEvent batch; // Datagrams counted since the last JFR event, null when events are off
     
-        private PacketHandler(DatagramSocket socket, FileOutputStream fos, long expectedFileSize,
-                             QuadConsumer<Long, Long, Integer, Long> transferDisplay, int timeout, int runNumber) {
+        private PacketHandler(DatagramSocket socket, Reassembler reassembly, int session, int timeout) {
             this.socket = socket;
-            this.fos = fos;
-            this.expectedFileSize = expectedFileSize;
-            this.transferDisplay = transferDisplay;
+            this.reassembly = reassembly;
+            this.session = session;
             this.timeout = timeout;
-            this.bytesPerFile = expectedFileSize + UDP_IP_APPLICATION_OVERHEAD * (int)Math.ceil((double) expectedFileSize/UDP_BUFFER_SIZE);
-            this.runNumber = runNumber;
         }
     
         @Override
         public void run() {
-            long startTime = System.currentTimeMillis();
+            batch = DatagramBatchEvent.start(socket.getLocalPort());
             try {
-                long expectedSequence = 0;
-                Map<Long, byte[]> packetBuffer = new TreeMap<>(); // Buffer for out-of-order packets
-    
-                byte[] buffer = new byte[Long.BYTES + UDP_BUFFER_SIZE + Integer.BYTES];
+                byte[] buffer = new byte[MAX_DATAGRAM_SIZE];  // Room for the largest datagram the server may negotiate
     
-                while (transferActive && totalBytesTransferred < bytesPerFile) {
+                while (!reassembly.isDone()) {
                     DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                     try {
                         socket.receive(packet);
                     } catch (SocketTimeoutException e) {
-                        if (totalBytesTransferred >= bytesPerFile) {
+                        if (reassembly.isDone()) {
                             break; // All packets received
                         }
                         printAndLog("Timeout waiting for next packet. Aborting transfer.", true);
-                        transferActive = false;
+                        reassembly.abort();
                         return;
+                    } catch (SocketException e) {
+                        break; // Closed by the reassembler when another stripe completed or aborted the transfer
                     }
     
+                    if (packet.getLength() < DATAGRAM_HEADER) {
+                        if (socket.isClosed()) {
+                            break; // Woken by the reassembler closing the socket
+                        }
+                        continue; // Too short to carry a header
+                    }
+
                     ByteBuffer byteBuffer = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
                     byteBuffer.order(ByteOrder.BIG_ENDIAN);
+                    if (byteBuffer.get() != DATAGRAM_VERSION || byteBuffer.getInt() != session) {
+                        continue; // Another protocol version, or a stray datagram of an earlier transfer
+                    }
                     long sequenceNumber = byteBuffer.getLong();
     
                     if (sequenceNumber == -1L) {
-                        // End-of-file signal
-                        transferActive = false;
-                        break;
+                        // End-of-file signal; delayed or reordered data may still be on its way
+                        if (reassembly.isComplete()) {
+                            break;
+                        }
+                        continue;
+                    }
+
+                    if (sequenceNumber == PROBE_SEQUENCE) {
+                        acknowledgeProbe(socket, packet, byteBuffer, session);
+                        continue;
                     }
     
-                    int dataLength = packet.getLength() - Long.BYTES - Integer.BYTES;
+                    int dataLength = packet.getLength() - DATAGRAM_HEADER - (cipher != null ? GCM_TAG_LENGTH : Integer.BYTES);
                     if (dataLength <= 0) {
                         printAndLog("Invalid packet received. Skipping.", true);
                         continue;
                     }
+                    reassembly.dataArrived(sequenceNumber, dataLength);
+                    if (reassembly.isDuplicate(sequenceNumber)) {
+                        if (batch != null) {
+                            batch = batch.count(dataLength, -1);
+                        }
+                        continue;  // Already have this one
+                    }
     
                     byte[] data = new byte[dataLength];
-                    byteBuffer.get(data);
-                    int receivedChecksum = byteBuffer.getInt();
-    
-                    // Perform CRC validation
-                    CRC32 crc = new CRC32();
-                    crc.update(data, 0, dataLength);
-                    long calculatedChecksum = crc.getValue() & 0xFFFFFFFFL;
-                    if (calculatedChecksum != (receivedChecksum & 0xFFFFFFFFL)) {
-                        printAndLog("CRC mismatch for sequence " + sequenceNumber + ". Ignoring packet.", false);
-                        continue;
+                    int receivedChecksum = 0;
+                    if (cipher != null) {
+                        // Decrypt and authenticate; the GCM tag takes the place of the CRC
+                        if (cipher.open(sequenceNumber, packet.getData(), DATAGRAM_HEADER, packet.getLength() - DATAGRAM_HEADER, data, 0) != dataLength) {
+                            reassembly.crcFailure();  // Reported when the transfer ends
+                            if (batch != null) {
+                                batch.crcFailures++;
+                            }
+                            continue;
+                        }
+                    } else {
+                        byteBuffer.get(data);
+                        receivedChecksum = byteBuffer.getInt();
+
+                        // Perform CRC validation
+                        CRC32 crc = new CRC32();
+                        crc.update(data, 0, dataLength);
+                        long calculatedChecksum = crc.getValue() & 0xFFFFFFFFL;
+                        if (calculatedChecksum != (receivedChecksum & 0xFFFFFFFFL)) {
+                            reassembly.crcFailure();  // Reported when the transfer ends
+                            if (batch != null) {
+                                batch.crcFailures++;
+                            }
+                            continue;
+                        }
                     }
     
-                    // Add packet to buffer for reassembly
-                    packetBuffer.put(sequenceNumber, data);
-    
-                    // Process packets in order
-                    while (packetBuffer.containsKey(expectedSequence)) {
-                        byte[] nextData = packetBuffer.remove(expectedSequence);
-                        fos.write(nextData);
-                        totalBytesTransferred += (nextData.length + UDP_IP_APPLICATION_OVERHEAD); // data size + TCP Header + IP Header
-                        expectedSequence++;
-
-                        // Update the transfer display with sequence and CRC
-                        transferDisplay.accept(totalBytesTransferred, bytesPerFile, receivedChecksum, sequenceNumber);
+                    // Hand the packet over for reassembly, which writes it out once it is in order
+                    int waiting = reassembly.add(sequenceNumber, data, receivedChecksum);
+                    if (batch != null) {
+                        batch = batch.count(dataLength, waiting);
                     }
                 }
-    
-                fos.flush();
             } catch (IOException e) {
                 printAndLog("Error in packet handler: " + e.getMessage(), true);
+                reassembly.abort();
             } finally {
-                duration = System.currentTimeMillis() - startTime;
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    printAndLog("Error closing file: " + e.getMessage(), true);
+                socket.close();
+                if (batch != null) {
+                    batch.finish();
                 }
+            }
+        }
+
+        /**
+         * Expects encrypted datagrams, authenticated by their GCM tag instead of a CRC.
+         * @param cipher The transfer's cipher.
+         */
+        public void setCipher(DatagramCipher cipher) {
+            this.cipher = cipher;
+        }
+    }
+
+    /**
+     * JDK Flight Recorder event summing the datagrams one UDP stripe received over up to JFR_DATAGRAM_BATCH
+     * datagrams or JFR_BATCH_NANOS. Only emitted with -Dftp.jfr=true, and only recorded while a recording
+     * runs (e.g. -XX:StartFlightRecording=filename=client.jfr); otherwise no event is created.
+     */
+    @Name("ftp.client.DatagramBatch")
+    @Label("FTP Client Datagram Batch")
+    @Category({"FTP", "Client", "UDP"})
+    @Description("Datagrams one UDP stripe of a download received")
+    @StackTrace(false)
+    private static class DatagramBatchEvent extends Event {
+        @Label("Port")
+        int port;
+
+        @Label("Datagrams")
+        long datagrams;
+
+        @Label("Payload")
+        @DataAmount
+        long bytes;
+
+        @Label("Duplicates")
+        long duplicates;
+
+        @Label("CRC Failures")
+        @Description("Datagrams dropped for a bad CRC, or a bad GCM tag when encrypted")
+        long crcFailures;
+
+        @Label("Reorder Depth")
+        @Description("Most datagrams waiting for an earlier one after any datagram of the batch")
+        int reorderDepth;
+
+        private transient long started; // When the batch began, in System.nanoTime()
+
+        /**
+         * @return The started event, or null when JFR events are off.
+         */
+        private static DatagramBatchEvent start(int port) {
+            if (!JFR_EVENTS) {
+                return null;
+            }
+            DatagramBatchEvent event = new DatagramBatchEvent();
+            event.port = port;
+            event.started = System.nanoTime();
+            event.begin();
+            return event;
+        }
+
+        /**
+         * Counts a datagram.
+         * @param length Its payload length.
+         * @param waiting Datagrams left waiting for an earlier one, or -1 for a duplicate.
+         * @return The event to count the next datagram in, a new one once this batch is full.
+         */
+        private DatagramBatchEvent count(int length, int waiting) {
+            if (waiting < 0) {
+                duplicates++;
+            } else {
+                datagrams++;
+                bytes += length;
+                reorderDepth = Math.max(reorderDepth, waiting);
+            }
+            if (datagrams + duplicates < JFR_DATAGRAM_BATCH && System.nanoTime() - started < JFR_BATCH_NANOS) {
+                return this;
+            }
+            commit();
+            return start(port);
+        }
+
+        /**
+         * Commits the last batch of a stripe, unless it is empty.
+         */
+        private void finish() {
+            if (datagrams + duplicates + crcFailures > 0) {
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Puts the datagrams of one UDP download back in sequence order and writes them to the file.
+     * The PacketHandlers of a striped transfer, one per socket, all feed the same reassembler. Once the
+     * file is complete, or one of them gives up, it closes every socket so the others stop waiting.
+     */
+    private static class Reassembler {
+        private final OutputStream fos;
+        private final long expectedFileSize;
+        private final TransferProgress progress; // Counters read by the progress sampler
+        private final long startTime = System.currentTimeMillis();
+        private final Map<Long, byte[]> packetBuffer = new HashMap<>(); // Buffer for out-of-order packets
+        private final List<DatagramSocket> sockets = new ArrayList<>();
+        private long expectedSequence = 0;
+        private long totalBytesTransferred = 0; // For metrics
+        private volatile long payloadBytes = 0; // File data written so far
+        private long duration = 0; // For metrics
+        private volatile long firstDataNanos = 0; // When the first data datagram arrived, for time-to-first-byte
+        private volatile boolean aborted = false;
+        private boolean watched = false; // Abandon the transfer if its goodput collapses (AUTO mode)
+        private long sampleNanos = 0; // When the last goodput sample was taken
+        private long sampleBytes = 0; // payloadBytes at the last sample
+        private double bestGoodput = 0; // Best sample so far, in bytes/s
+        private int collapsedSamples = 0; // Samples in a row below GOODPUT_COLLAPSE of the best
+
+        private Reassembler(OutputStream fos, long expectedFileSize, TransferProgress progress) {
+            this.fos = fos;
+            this.expectedFileSize = expectedFileSize;
+            this.progress = progress;
+        }
+
+        private synchronized void addSocket(DatagramSocket socket) {
+            sockets.add(socket);
+        }
+
+        /**
+         * Notes a data datagram as soon as it arrives, before it is verified.
+         * @param sequenceNumber The datagram's sequence number.
+         * @param dataLength Its payload length.
+         */
+        private void dataArrived(long sequenceNumber, int dataLength) {
+            if (firstDataNanos == 0) {
+                firstDataNanos = System.nanoTime();
+            }
+            if (sequenceNumber == 0) {
+                // The first datagram carries the negotiated payload size, which sets the expected overhead
+                progress.setTotalBytes(expectedFileSize + UDP_IP_APPLICATION_OVERHEAD * (long) Math.ceil((double) expectedFileSize / dataLength));
+            }
+        }
+
+        /**
+         * Checks for a datagram that was already received, counting it as a retransmission.
+         * @param sequenceNumber The datagram's sequence number.
+         * @return True if it can be dropped.
+         */
+        private synchronized boolean isDuplicate(long sequenceNumber) {
+            if (sequenceNumber < expectedSequence || packetBuffer.containsKey(sequenceNumber)) {
+                progress.retransmit();
+                return true;
+            }
+            return false;
+        }
+
+        private void crcFailure() {
+            progress.crcFailure();
+        }
+
+        /**
+         * Takes a verified datagram and writes out every datagram that is now in order.
+         * @param sequenceNumber The datagram's sequence number.
+         * @param data Its payload.
+         * @param checksum Its CRC, shown by the progress display.
+         * @return How many datagrams are left waiting for an earlier one, or -1 if this one was a duplicate.
+         * @throws IOException If the file cannot be written.
+         */
+        private synchronized int add(long sequenceNumber, byte[] data, int checksum) throws IOException {
+            if (isDuplicate(sequenceNumber)) {
+                return -1; // Another stripe verified a copy first
+            }
+            packetBuffer.put(sequenceNumber, data);
+
+            // Process packets in order
+            byte[] nextData;
+            while ((nextData = packetBuffer.remove(expectedSequence)) != null) {
+                fos.write(nextData);
+                payloadBytes += nextData.length;
+                totalBytesTransferred += (nextData.length + UDP_IP_APPLICATION_OVERHEAD); // data size + UDP/IP and application headers
+                expectedSequence++;
+                progress.add(nextData.length + UDP_IP_APPLICATION_OVERHEAD);
+            }
+            progress.update(sequenceNumber, checksum);
+            if (isComplete()) {
+                closeSockets();
+            }
+            return packetBuffer.size();
+        }
+
+        private boolean isComplete() {
+            return payloadBytes >= expectedFileSize;
+        }
+
+        private boolean isDone() {
+            return aborted || isComplete();
+        }
+
+        /**
+         * Gives up on the transfer and stops every stripe.
+         */
+        private void abort() {
+            aborted = true;
+            closeSockets();
+        }
+
+        /**
+         * Lets collapsed() abandon the transfer when its goodput collapses.
+         */
+        private void watchGoodput() {
+            watched = true;
+        }
+
+        /**
+         * Samples the in-order goodput once per GOODPUT_SAMPLE. Without retransmission one lost datagram stalls the
+         * file until TIMEOUT, so a watched transfer whose goodput stays below GOODPUT_COLLAPSE of its best sample for
+         * GOODPUT_COLLAPSE_SAMPLES samples in a row is aborted, and what has been written so far can be kept.
+         * Called from the thread waiting for the PacketHandlers.
+         * @return True if the transfer was aborted.
+         */
+        private boolean collapsed() {
+            long now = System.nanoTime();
+            if (!watched || isDone() || now - sampleNanos < GOODPUT_SAMPLE * 1_000_000) {
+                return false;
+            }
+            long bytes = payloadBytes;
+            if (sampleNanos != 0) {
+                double goodput = (bytes - sampleBytes) * 1e9 / (now - sampleNanos);
+                bestGoodput = Math.max(bestGoodput, goodput);
+                collapsedSamples = goodput < bestGoodput * GOODPUT_COLLAPSE ? collapsedSamples + 1 : 0;
+            }
+            sampleNanos = now;
+            sampleBytes = bytes;
+            if (collapsedSamples < GOODPUT_COLLAPSE_SAMPLES) {
+                return false;
+            }
+            printAndLog(String.format(Locale.ROOT, "\nUDP goodput collapsed below %.0f KB/s (best %.0f KB/s) after %d of %d bytes, abandoning UDP",
+                    bestGoodput * GOODPUT_COLLAPSE / 1024, bestGoodput / 1024, bytes, expectedFileSize), true);
+            abort();
+            return true;
+        }
+
+        private synchronized void closeSockets() {
+            for (DatagramSocket socket : sockets) {
                 socket.close();
             }
         }
-    
+
+        /**
+         * Closes the file once every PacketHandler has stopped.
+         */
+        private void close() {
+            duration = System.currentTimeMillis() - startTime;
+            try {
+                fos.close();
+            } catch (IOException e) {
+                printAndLog("Error closing file: " + e.getMessage(), true);
+            }
+        }
+
         public long getTotalBytesTransferred() {
             return totalBytesTransferred;
         }
-    
+
         public long getDuration() {
             return duration;
         }
-    }    
+
+        public long getPayloadBytes() {
+            return payloadBytes;
+        }
+
+        public long getFirstDataNanos() {
+            return firstDataNanos;
+        }
+
+        /**
+         * @return How the write-behind stage kept up, or null if the data was written inline.
+         */
+        public String getWriteReport() {
+            return fos instanceof WriteBehindOutputStream ? ((WriteBehindOutputStream) fos).describe() : null;
+        }
+    }
+
+    /**
+     * Receives a UDP transfer with one PacketHandler thread per socket, all feeding the same reassembler,
+     * and closes the file once every thread has stopped.
+     * @param sockets One socket per stripe.
+     * @param reassembly Puts the stripes' datagrams back in order.
+     * @param cipher The transfer's cipher, or null for plaintext datagrams.
+     * @param session The session ID from the server's READY; datagrams carrying another are dropped.
+     * @throws IOException If a stripe's cipher cannot be set up.
+     * @throws InterruptedException If interrupted while waiting; the transfer is aborted.
+     */
+    private static void receiveStripes(List<DatagramSocket> sockets, Reassembler reassembly, DatagramCipher cipher, int session)
+            throws IOException, InterruptedException {
+        List<PacketHandler> handlers = new ArrayList<>();
+        for (DatagramSocket socket : sockets) {
+            reassembly.addSocket(socket);
+            PacketHandler handler = new PacketHandler(socket, reassembly, session, TIMEOUT);
+            handler.setCipher(cipher != null ? cipher.copy() : null); // Each thread needs its own Cipher
+            handlers.add(handler);
+        }
+        try {
+            for (PacketHandler handler : handlers) {
+                handler.start();
+            }
+            for (PacketHandler handler : handlers) {
+                while (handler.isAlive()) {
+                    handler.join(GOODPUT_SAMPLE);
+                    reassembly.collapsed();
+                }
+            }
+        } catch (InterruptedException e) {
+            reassembly.abort();
+            throw e;
+        } finally {
+            reassembly.close();
+        }
+    }
+
+    /**
+     * Opens the UDP sockets a download is received on, one per stripe.
+     * @param count The number of stripes.
+     * @return The sockets.
+     * @throws SocketException If a socket cannot be opened.
+     */
+    private static List<DatagramSocket> openStripeSockets(int count) throws SocketException {
+        List<DatagramSocket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                DatagramSocket socket = new DatagramSocket();
+                sockets.add(socket);
+                socket.setSoTimeout(TIMEOUT); // Set timeout for receiving packets
+                socket.setReceiveBufferSize(UDP_RECV_BUFFER); // Set buffer size
+            }
+        } catch (SocketException e) {
+            sockets.forEach(DatagramSocket::close);
+            throw e;
+        }
+        return sockets;
+    }
 
     public static void main(String[] args) throws IOException {
         LogToFile.logToFile(LOGGER, "FTPClient.log"); // Log to file
@@ -181,27 +676,62 @@ public class FTPClient {
         String javaVersion = System.getProperty("java.version");
         printAndLog("Java version: " + javaVersion, true);
 
-        if (args.length == 2) {
+        // Batch upload instead of the menu: ... put - <remote file>, streaming standard input
+        int batch = args.length >= 5 && args[args.length - 3].equals("put") && args[args.length - 2].equals("-") ? args.length - 3 : -1;
+        String batchName = batch >= 0 ? args[args.length - 1] : null;
+        if (batch >= 0) {
+            args = Arrays.copyOf(args, batch);
+        }
+        if (args.length == 2 || args.length == 3) {
             printAndLog("Connecting to " + args[0] + " on port " + args[1], true);
-        } else if (args.length == 1) {
+        } else if (args.length == 1 && batch < 0) {
             printAndLog("Attempting to connect to " + args[0] + " on default port (" + PORT + ")", true);
         } else {
-            printAndLog("Usage: java FTPClient <hostname> <port number>", true);
+            printAndLog("Usage: java FTPClient <hostname> <port number> [user] [put - <remote file>]", true);
             System.exit(1);
         }
+        udpMode = INITIAL_MODE.equals("udp");
+        autoMode = INITIAL_MODE.equals("auto");
 
         serverIP = args[0];
-        serverPort = args.length == 2 ? Integer.parseInt(args[1]) : PORT;
+        serverPort = args.length >= 2 ? Integer.parseInt(args[1]) : PORT;
+        userName = args.length == 3 ? args[2] : null;
+        if (CACHE_DIR != null) {
+            try {
+                downloadCache = DownloadCache.open(new File(CACHE_DIR), CACHE_LIMIT);
+                printAndLog("Download cache: " + downloadCache.describe(), true);
+            } catch (IOException e) {
+                printAndLog("Download cache disabled: " + e.getMessage(), true);
+            }
+        }
 
+        int exitCode = 1;  // Of a batch upload
         try (
-            Socket ftpSocket = new Socket(serverIP, serverPort);
-            PrintWriter out = new PrintWriter(ftpSocket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(ftpSocket.getInputStream()));
+            NodeSession home = new NodeSession(serverIP, serverPort, openControlConnection(serverIP, serverPort));
             BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in))
         ) {
             printAndLog("Connection successful to " + serverIP + ":" + serverPort, true);
+            PrintWriter out = home.out;
+            BufferedReader in = home.in;
+
+            if (userName != null) {
+                out.println("USER " + userName);
+                printAndLog(in.readLine(), true);
+            }
+            if (UDP_STRIPES > 1) {
+                out.println("STRIPES " + UDP_STRIPES);
+                printAndLog(in.readLine(), true);
+            }
+            home.setUdp(udpMode);  // As -Dftp.mode asked
 
-            menu(out, in, stdIn);
+            if (batchName != null) {
+                boolean stored = sendStream(System.in, batchName, home);
+                out.println("QUIT");
+                printAndLog(in.readLine(), false);
+                exitCode = stored ? 0 : 1;
+            } else {
+                menu(home, stdIn);
+            }
 
         } catch (UnknownHostException e) {
             // If the host is not found, log the error and exit
@@ -214,32 +744,250 @@ public class FTPClient {
             e.printStackTrace();
             System.exit(1);
         }
+        if (batchName != null) {
+            System.exit(exitCode);
+        }
+    }
+
+    /**
+     * Opens a control connection and waits for the server to admit the session.
+     * If the server is busy, waits the time it asks for and tries again, up to BUSY_RETRIES times.
+     * @param host The server host.
+     * @param port The server control port.
+     * @return The admitted control connection.
+     * @throws IOException If the connection fails or the server stays busy.
+     */
+    private static Socket openControlConnection(String host, int port) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Socket socket = TLS ? SSLSocketFactory.getDefault().createSocket(host, port) : new Socket(host, port);
+            socket.setTcpNoDelay(TLS); // Handshake flights are small writes that Nagle would hold for a delayed ACK
+            String greeting = readLine(socket.getInputStream());  // Unbuffered, so no command replies are consumed
+            if (greeting != null && greeting.startsWith("WELCOME")) {
+                return socket;
+            }
+            socket.close();
+            if (greeting == null || !greeting.startsWith("BUSY") || attempt >= BUSY_RETRIES) {
+                throw new IOException("Server refused the session: " + greeting);
+            }
+            waitForRetry(greeting);
+        }
+    }
+
+    /**
+     * Connects to a data port the server opened for one transfer.
+     * Under TLS the handshake is keyed to the control connection's host and port,
+     * so it resumes the control session instead of running a full handshake per transfer.
+     * @param host The server host.
+     * @param controlPort The server's control port.
+     * @param port The server's data port.
+     * @return The connected data socket.
+     * @throws IOException If the connection or handshake fails.
+     */
+    private static Socket openDataConnection(String host, int controlPort, int port) throws IOException {
+        if (!TLS) {
+            return new Socket(host, port);
+        }
+        Socket socket = new Socket(host, port) {
+            @Override
+            public int getPort() {
+                return controlPort; // The TLS session cache looks sessions up by the peer port
+            }
+        };
+        socket.setTcpNoDelay(true);
+        try {
+            SSLSocket tlsSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(socket, host, controlPort, true);
+            tlsSocket.setUseClientMode(true);
+            tlsSocket.startHandshake();
+            return tlsSocket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a transfer command, retrying after the delay the server asks for while it answers BUSY.
+     * @param command The command line to send.
+     * @param out The PrintWriter for sending commands to the server.
+     * @param in The BufferedReader for reading responses from the server.
+     * @return The server's final response.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static String requestTransfer(String command, PrintWriter out, BufferedReader in) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            out.println(command);
+            out.flush();
+            String response = in.readLine();
+            if (response == null || !response.startsWith("BUSY") || attempt >= BUSY_RETRIES) {
+                return response;
+            }
+            waitForRetry(response);
+        }
+    }
+
+    /**
+     * Sleeps for the retry delay of a "BUSY <ms> <reason>" reply.
+     * @param busyResponse The BUSY reply.
+     */
+    private static void waitForRetry(String busyResponse) {
+        String[] parts = busyResponse.split(" ", 3);
+        long delay = parts.length > 1 ? Long.parseLong(parts[1]) : 1000;
+        printAndLog("Server busy" + (parts.length > 2 ? " (" + parts[2] + ")" : "") + ", retrying in " + delay + " ms", true);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param response A server reply.
+     * @return The host:port of the cluster node a "REDIRECT <host:port>" reply points to, or null for any other reply.
+     */
+    private static String redirectTarget(String response) {
+        return response != null && response.startsWith("REDIRECT ") ? response.substring("REDIRECT ".length()).trim() : null;
+    }
+
+    /**
+     * Returns the menu's session with a cluster node, opening it on the first redirect there.
+     * @param node The node's host:port.
+     * @return The session, in the menu's directory and transfer mode.
+     * @throws IOException If the node cannot be reached.
+     */
+    private static NodeSession nodeSession(String node) throws IOException {
+        NodeSession session = nodeSessions.get(node);
+        if (session == null) {
+            session = NodeSession.open(node, remoteDirectory, udpMode);
+            nodeSessions.put(node, session);
+            printAndLog("Opened session with cluster node " + node, false);
+        }
+        session.setUdp(udpMode);
+        return session;
+    }
+
+    /**
+     * Sends a command on the menu's session with a cluster node a REDIRECT pointed to.
+     * @param session The node's session.
+     * @param command The command line.
+     * @return The node's reply.
+     * @throws IOException If the session has died, which the menu answers by dropping its node sessions.
+     */
+    private static String requestOnNode(NodeSession session, String command) throws IOException {
+        String response = requestTransfer(command, session.out, session.in);
+        if (response == null) {
+            throw new IOException("Cluster node " + session.host + ":" + session.port + " closed the session");
+        }
+        return response;
+    }
+
+    /**
+     * Forgets the menu's sessions with other cluster nodes after a transfer failed, without the QUIT handshake,
+     * since a failed session may be dead or out of step. They are reopened on the next redirect.
+     */
+    private static void dropNodeSessions() {
+        for (NodeSession session : nodeSessions.values()) {
+            try {
+                session.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+        nodeSessions.clear();
+    }
+
+    /**
+     * Ends the menu's sessions with other cluster nodes, waiting for each to finish storing uploads.
+     */
+    private static void closeNodeSessions() {
+        for (NodeSession session : nodeSessions.values()) {
+            try (NodeSession closing = session) {
+                closing.out.println("QUIT");
+                closing.in.readLine();
+            } catch (IOException e) {
+                printAndLog("Error closing session with " + session.host + ":" + session.port + ": " + e.getMessage(), false);
+            }
+        }
+        nodeSessions.clear();
+    }
+
+    /**
+     * Reports a menu transfer that failed, e.g. because the cluster node it was redirected to is unreachable,
+     * and drops the node sessions, which may have died with it. The menu carries on with the next command.
+     * @param e The failure.
+     */
+    private static void transferFailed(IOException e) {
+        printAndLog("Error: " + e.getMessage(), true);
+        dropNodeSessions();
+    }
+
+    /**
+     * Reads one line byte by byte from a stream, without buffering past the end of the line.
+     * @param in The stream to read from.
+     * @return The line, or null if the stream ended first.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return b == -1 && line.size() == 0 ? null : line.toString();
     }
 
     /**
      * Menu system for user interaction
-     * @param out The PrintWriter for sending commands to the server
-     * @param in The BufferedReader for reading responses from the server
+     * @param home The session with the server the client connected to
      * @param stdIn The BufferedReader for reading user input
      * @throws IOException If an I/O error occurs while reading user input
      */
-    private static void menu(PrintWriter out, BufferedReader in, BufferedReader stdIn) throws IOException {
+    private static void menu(NodeSession home, BufferedReader stdIn) throws IOException {
+        PrintWriter out = home.out;
+        BufferedReader in = home.in;
         while (true) {
-            String transferModeMenu = "Toggle Transfer Mode ("+ (!udpMode ? "[" : "") + "TCP" + (!udpMode ? "]" : "") + "/" + (udpMode ? "[" : "") + "UDP" + (udpMode ? "]" : "") + ")";
+            boolean tcp = !autoMode && !udpMode;
+            boolean udp = !autoMode && udpMode;
+            String transferModeMenu = "Toggle Transfer Mode ("+ (tcp ? "[" : "") + "TCP" + (tcp ? "]" : "") + "/" + (udp ? "[" : "") + "UDP" + (udp ? "]" : "")
+                    + "/" + (autoMode ? "[" : "") + "AUTO" + (autoMode ? "]" : "") + ")";
             String testingModeMenu = "Toggle Testing Mode (" + (testingMode ? "[" : "") + "ON" + (testingMode ? "]" : "") + "/" + (!testingMode ? "[" : "") + "OFF" + (!testingMode ? "]" : "") + ")";
-            System.out.printf("\nFTP Client Menu:\n1) GET\n2) PUT\n3) CD\n4) LS\n5) %s\n6) %s\n7) QUIT\n", transferModeMenu, testingModeMenu);
+            StringBuilder uploadModeMenu = new StringBuilder("Toggle Upload Mode (");
+            for (UploadMode mode : UploadMode.values()) {
+                uploadModeMenu.append(mode.ordinal() > 0 ? "/" : "").append(mode == uploadMode ? "[" + mode + "]" : mode.toString());
+            }
+            uploadModeMenu.append(")");
+            System.out.printf("\nFTP Client Menu:\n1) GET\n2) PUT\n3) CD\n4) LS\n5) %s\n6) %s\n7) %s\n8) Background Transfers (%d active)\n9) Benchmark\n10) QUIT\n", transferModeMenu, testingModeMenu, uploadModeMenu, TRANSFERS.activeCount());
             System.out.print("Enter choice: ");
             String choice = stdIn.readLine();
             switch (choice) {
                 case "1":
                     System.out.print("Enter file name to download: ");
                     String getFileName = stdIn.readLine();
-                    receiveFile(getFileName, out, in);
+                    try {
+                        if (!SWARM_MIRRORS.isEmpty()) {
+                            SwarmDownload.download(getFileName, SWARM_MIRRORS);  // Chunks come from every server that has the file
+                        } else if (autoMode) {
+                            AutoTransport.get(getFileName, home);
+                        } else {
+                            receiveFile(getFileName, home);
+                        }
+                    } catch (IOException e) {
+                        transferFailed(e);
+                    }
                     break;
                 case "2":
                     System.out.print("Enter file name to upload: ");
                     String putFileName = stdIn.readLine();
-                    sendFile(putFileName, out, in);
+                    try {
+                        if (autoMode) {
+                            AutoTransport.put(putFileName, home);
+                        } else {
+                            upload(putFileName, home);
+                        }
+                    } catch (IOException e) {
+                        transferFailed(e);
+                    }
                     break;
                 case "3":
                     System.out.print("Enter directory to change to: ");
@@ -247,6 +995,10 @@ public class FTPClient {
                     out.println("CD " + dirName);
                     String cdResponse = in.readLine();
                     printAndLog(cdResponse, true);
+                    if (cdResponse.startsWith("Changed directory")) {
+                        remoteDirectory.add(dirName);  // Replayed by background transfers on their own sessions
+                        closeNodeSessions();  // Reopened in the new directory when next redirected to
+                    }
                     if (!cdResponse.startsWith("Error")) {
                         // Run LS after CD to list directory contents if directory change is successful
                         out.println("LS");
@@ -264,15 +1016,35 @@ public class FTPClient {
                     }
                     break;
                 case "5":
-                    udpMode = !udpMode;
-                    out.println("MODE");
-                    printAndLog("Transfer mode switched to " + (udpMode ? "UDP" : "TCP"), true);
+                    if (autoMode) {
+                        autoMode = false;
+                        udpMode = false;
+                    } else if (udpMode) {
+                        autoMode = true;
+                        udpMode = false;  // Until AUTO picks a transport
+                    } else {
+                        udpMode = true;
+                    }
+                    home.setUdp(udpMode);
+                    printAndLog("Transfer mode switched to " + (autoMode ? "AUTO" : udpMode ? "UDP" : "TCP"), true);
                     break;
                 case "6":
                     testingMode = !testingMode;
                     printAndLog("Testing mode " + (testingMode ? "enabled" : "disabled"), true);
                     break;
                 case "7":
+                    uploadMode = UploadMode.values()[(uploadMode.ordinal() + 1) % UploadMode.values().length];
+                    printAndLog("Upload mode switched to " + uploadMode, true);
+                    break;
+                case "8":
+                    backgroundMenu(out, in, stdIn);
+                    break;
+                case "9":
+                    benchmarkMenu(stdIn);
+                    break;
+                case "10":
+                    TRANSFERS.awaitCompletion();
+                    closeNodeSessions();
                     out.println("QUIT");
                     printAndLog(in.readLine(), false);
                     return;
@@ -284,19 +1056,242 @@ public class FTPClient {
     }
 
     /**
-     * Handles the file receiving for the GET command.
-     * @param fileName The name of the file to download.
-     * @param out The PrintWriter for sending commands to the server.
-     * @param in The BufferedReader for reading responses from the server.
-     * @throws IOException If an I/O error occurs while receiving the file.
+     * Menu for background transfers. Jobs run on their own sessions, so this returns to the main menu
+     * straight away and LS/CD/GET/PUT keep working while the jobs move data.
+     * @param out The PrintWriter for sending commands to the server
+     * @param in The BufferedReader for reading responses from the server
+     * @param stdIn The BufferedReader for reading user input
+     * @throws IOException If an I/O error occurs while reading user input
+     */
+    private static void backgroundMenu(PrintWriter out, BufferedReader in, BufferedReader stdIn) throws IOException {
+        while (true) {
+            System.out.printf("\nBackground Transfers (%d workers):\n1) Queue GET\n2) Queue PUT\n3) Sync local directory to server\n4) Sync server directory to local directory\n5) List jobs\n6) Pause/Resume job\n7) Cancel job\n8) Back\n", TRANSFER_WORKERS);
+            System.out.print("Enter choice: ");
+            String choice = stdIn.readLine();
+            if (choice == null) {
+                return;
+            }
+            switch (choice) {
+                case "1": {
+                    System.out.print("Enter file name to download: ");
+                    String fileName = stdIn.readLine();
+                    TRANSFERS.submit(false, new File(fileName), fileName, -1, readPriority(stdIn), remoteDirectory);
+                    break;
+                }
+                case "2": {
+                    System.out.print("Enter file name to upload: ");
+                    String fileName = stdIn.readLine();
+                    File file = new File(fileName);
+                    if (SyntheticData.parse(fileName) == null && !file.isFile()) {
+                        printAndLog("Error: " + fileName + " is not a file.", true);
+                        break;
+                    }
+                    String remoteName = SyntheticData.isSink(fileName) ? fileName : file.getName();  // Keep synthetic paths whole
+                    TRANSFERS.submit(true, file, remoteName, localLength(fileName), readPriority(stdIn), remoteDirectory);
+                    break;
+                }
+                case "3": {
+                    System.out.print("Enter local directory to upload: ");
+                    File dir = new File(stdIn.readLine());
+                    File[] files = dir.listFiles(File::isFile);
+                    if (files == null) {
+                        printAndLog("Error: " + dir + " is not a directory.", true);
+                        break;
+                    }
+                    int priority = readPriority(stdIn);
+                    Arrays.sort(files, (f1, f2) -> Long.compare(f1.length(), f2.length()));  // Small files finish first
+                    for (File file : files) {
+                        TRANSFERS.submit(true, file, file.getName(), file.length(), priority, remoteDirectory);
+                    }
+                    printAndLog("Queued " + files.length + " uploads from " + dir, true);
+                    break;
+                }
+                case "4": {
+                    System.out.print("Enter local directory to download into: ");
+                    File dir = new File(stdIn.readLine());
+                    if (!dir.isDirectory() && !dir.mkdirs()) {
+                        printAndLog("Error: cannot create " + dir, true);
+                        break;
+                    }
+                    int priority = readPriority(stdIn);
+                    Map<String, Long> files = listRemoteFiles(out, in);
+                    List<Map.Entry<String, Long>> bySize = new ArrayList<>(files.entrySet());
+                    bySize.sort(Map.Entry.comparingByValue());  // Small files finish first
+                    for (Map.Entry<String, Long> entry : bySize) {
+                        TRANSFERS.submit(false, new File(dir, entry.getKey()), entry.getKey(), entry.getValue(), priority, remoteDirectory);
+                    }
+                    printAndLog("Queued " + files.size() + " downloads into " + dir, true);
+                    break;
+                }
+                case "5":
+                    TRANSFERS.list();
+                    break;
+                case "6": {
+                    TransferManager.Job job = TRANSFERS.get(readJobId(stdIn));
+                    if (job == null) {
+                        printAndLog("No such job.", true);
+                    } else if (!job.togglePause()) {
+                        printAndLog("Job #" + job.id + " has already finished.", true);
+                    }
+                    break;
+                }
+                case "7": {
+                    TransferManager.Job job = TRANSFERS.get(readJobId(stdIn));
+                    if (job == null) {
+                        printAndLog("No such job.", true);
+                    } else if (!job.cancel()) {
+                        printAndLog("Job #" + job.id + " has already finished.", true);
+                    }
+                    break;
+                }
+                case "8":
+                    return;
+                default:
+                    System.out.println("Invalid option.");
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Asks for a benchmark matrix and runs it. Blank answers take the defaults shown.
+     * @param stdIn The BufferedReader for reading user input
+     * @throws IOException If an I/O error occurs
+     */
+    private static void benchmarkMenu(BufferedReader stdIn) throws IOException {
+        List<String> files = splitList(prompt(stdIn, "Files, comma-separated (server files for GET, local files for PUT)", ""));
+        if (files.isEmpty()) {
+            printAndLog("No files given.", true);
+            return;
+        }
+        List<String> operations = splitList(prompt(stdIn, "Operations", "GET").toUpperCase());
+        List<String> modes = splitList(prompt(stdIn, "Transfer modes", "TCP").toUpperCase());
+        List<Integer> concurrency = new ArrayList<>();
+        try {
+            for (String level : splitList(prompt(stdIn, "Concurrent clients (offered load)", "1"))) {
+                concurrency.add(Math.max(1, Integer.parseInt(level)));
+            }
+            int warmup = Integer.parseInt(prompt(stdIn, "Warmup iterations", Integer.toString(BENCH_WARMUP)));
+            int iterations = Math.max(1, Integer.parseInt(prompt(stdIn, "Measured iterations", Integer.toString(BENCH_ITERATIONS))));
+            String output = prompt(stdIn, "Output file prefix", "benchmark");
+            String label = prompt(stdIn, "Run label (build or configuration)", "default");
+            for (String operation : operations) {
+                if (!operation.equals("GET") && !operation.equals("PUT")) {
+                    printAndLog("Unknown operation: " + operation, true);
+                    return;
+                }
+            }
+            for (String mode : modes) {
+                if (!mode.equals("TCP") && !mode.equals("UDP")) {
+                    printAndLog("Unknown transfer mode: " + mode, true);
+                    return;
+                }
+            }
+            new Benchmark(files, operations, modes, concurrency, warmup, iterations, output, label).run();
+        } catch (NumberFormatException e) {
+            printAndLog("Invalid number: " + e.getMessage(), true);
+        }
+    }
+
+    /**
+     * Prints a question with its default and reads the answer.
+     * @return The answer, or the default if it was blank.
+     */
+    private static String prompt(BufferedReader stdIn, String question, String defaultValue) throws IOException {
+        System.out.print(question + (defaultValue.isEmpty() ? "" : " [" + defaultValue + "]") + ": ");
+        String line = stdIn.readLine();
+        return line == null || line.isBlank() ? defaultValue : line.trim();
+    }
+
+    /**
+     * Splits a comma-separated answer, dropping blanks.
+     */
+    private static List<String> splitList(String value) {
+        List<String> items = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.isBlank()) {
+                items.add(item.trim());
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Asks for a job priority; a blank answer means the default of 0.
+     * @param stdIn The BufferedReader for reading user input
+     * @return The priority (higher runs first).
+     * @throws IOException If an I/O error occurs while reading user input
+     */
+    private static int readPriority(BufferedReader stdIn) throws IOException {
+        System.out.print("Enter priority (higher runs first, default 0): ");
+        String line = stdIn.readLine();
+        try {
+            return line == null || line.isBlank() ? 0 : Integer.parseInt(line.trim());
+        } catch (NumberFormatException e) {
+            printAndLog("Invalid priority, using 0.", true);
+            return 0;
+        }
+    }
+
+    /**
+     * Asks for a job number.
+     * @param stdIn The BufferedReader for reading user input
+     * @return The job number, or -1 if the answer is not a number.
+     * @throws IOException If an I/O error occurs while reading user input
+     */
+    private static int readJobId(BufferedReader stdIn) throws IOException {
+        System.out.print("Enter job number: ");
+        String line = stdIn.readLine();
+        try {
+            return Integer.parseInt(line.trim().replace("#", ""));
+        } catch (NumberFormatException | NullPointerException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Lists the regular files in the server's current directory with LS.
+     * @param out The PrintWriter for sending commands to the server
+     * @param in The BufferedReader for reading responses from the server
+     * @return File names and sizes.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static Map<String, Long> listRemoteFiles(PrintWriter out, BufferedReader in) throws IOException {
+        Map<String, Long> files = new TreeMap<>();
+        out.println("LS");
+        String line;
+        while ((line = in.readLine()) != null && !line.equals("EOF")) {
+            // File rows are "  <name padded to 50> <size> bytes"; directories end in <DIR>
+            String row = line.stripTrailing();
+            if (!line.startsWith("  ") || !row.endsWith(" bytes")) {
+                continue;
+            }
+            row = row.substring(0, row.length() - " bytes".length());
+            int split = row.lastIndexOf(' ');
+            try {
+                files.put(row.substring(0, split).trim(), Long.parseLong(row.substring(split + 1)));
+            } catch (NumberFormatException e) {
+                // Header or unexpected row
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Handles the file receiving for the GET command.
+     * @param fileName The name of the file to download.
+     * @param session The session to send the command on; a cluster node may redirect it to the node that owns the file.
+     * @return True if the file was transferred, false if the server refused it or the cached copy was current.
+     * @throws IOException If an I/O error occurs while receiving the file.
      */
-    private static void receiveFile(String fileName, PrintWriter out, BufferedReader in) throws IOException {
+    private static boolean receiveFile(String fileName, NodeSession session) throws IOException {
         long totalDuration = 0;  // Accumulate transfer times
         long totalBytesTransferred = 0;  // Accumulate bytes transferred
         int numRuns = testingMode ? NUM_TESTS : 1;
         long fileSize = 0;
         long bytesPerFile = 0;
         boolean transferSuccess = false;  // Flag to indicate if transfer was successful
+        boolean cacheable = downloadCache != null && !testingMode && !SyntheticData.isSink(fileName);  // Testing mode measures transfers
     
         for (int i = 0; i < numRuns; i++) {
             if (i > 0) {
@@ -307,74 +1302,111 @@ public class FTPClient {
                 System.out.println("Starting run " + (i + 1) + " of " + numRuns + " for " + fileName + " transfer.");
             }
     
-            out.println("GET " + fileName);  // Send GET command to the server
-            out.flush();
-            String serverResponse = in.readLine();
+            DownloadCache.Entry cached = cacheable ? downloadCache.lookup(cacheKey(session, fileName)) : null;
+            String serverResponse = requestTransfer(getCommand(fileName, cached), session.out, session.in);  // Send GET command to the server
+            for (int hops = 0; redirectTarget(serverResponse) != null && hops < MAX_REDIRECTS; hops++) {
+                session = nodeSession(redirectTarget(serverResponse));  // The node that owns the file
+                cached = cacheable ? downloadCache.lookup(cacheKey(session, fileName)) : null;
+                serverResponse = requestOnNode(session, getCommand(fileName, cached));
+            }
+
+            if (cached != null && serverResponse != null && serverResponse.startsWith("NOT_MODIFIED")) {
+                // The cached copy is the server's current version
+                long startTime = System.currentTimeMillis();
+                boolean copied = downloadCache.restore(cached, new File(fileName));
+                printAndLog("GET of " + fileName + ": not modified on the server, " + (copied ? "copied " + cached.length + " bytes from the cache in "
+                        + (System.currentTimeMillis() - startTime) + " ms" : "local copy already matches the cache"), true);
+                break;
+            }
     
             if (serverResponse != null && serverResponse.startsWith("READY")) {
                 transferSuccess = true;  // Transfer is going to happen
                 String[] readyResponse = serverResponse.split(" ");
-                int port = Integer.parseInt(readyResponse[1]); // Server's transfer port
+                int port = parsePorts(readyResponse[1])[0]; // Server's transfer port (the first stripe's for UDP)
                 fileSize = Long.parseLong(readyResponse[2]);  // File size from server
+                boolean complete = false;  // Whether every byte arrived, so the file can be cached
     
                 if (!udpMode) {
                     // TCP Mode
-                    try (Socket transferSocket = new Socket(serverIP, port);
+                    bytesPerFile = fileSize + TCP_IP_OVERHEAD * (int)Math.ceil((double) fileSize/TCP_BUFFER_SIZE);  // Total bytes to transfer
+                    try (Socket transferSocket = session.openDataConnection(port);
                          BufferedInputStream bis = new BufferedInputStream(transferSocket.getInputStream());
-                         FileOutputStream fos = new FileOutputStream(fileName)) {
+                         OutputStream fos = openDownload(fileName);
+                         TransferProgress progress = new TransferProgress("GET-" + fileName, bytesPerFile)) {
                         byte[] buffer = new byte[TCP_BUFFER_SIZE];
                         int bytesRead;
                         long currentBytes = 0;
                         long startTime= System.currentTimeMillis();  // Start time for each file
-                        bytesPerFile = fileSize + TCP_IP_OVERHEAD * (int)Math.ceil((double) fileSize/TCP_BUFFER_SIZE);  // Total bytes to transfer
     
                         while ((bytesRead = bis.read(buffer)) != -1) {
                             fos.write(buffer, 0, bytesRead);
                             currentBytes += bytesRead;
                             totalBytesTransferred += (bytesRead + TCP_IP_OVERHEAD); // bytesRead + TCP Header + IP Header
-    
-                            // Display progress for the current run
-                            transferDisplay(totalBytesTransferred - i * bytesPerFile, bytesPerFile, 0, 0);
-
+                            progress.add(bytesRead + TCP_IP_OVERHEAD);  // Drawn by the progress sampler
                         }
 
                         long endTime = System.currentTimeMillis();
                         totalDuration += (endTime - startTime);  // Accumulate total time for all runs
                         fos.flush();
+                        complete = currentBytes == fileSize;
                     }
                 } else {
-                    // UDP Mode
-                    try (DatagramSocket datagramSocket = new DatagramSocket();
-                        FileOutputStream fileOutputStream = new FileOutputStream(fileName)) {
-                        datagramSocket.setSoTimeout(TIMEOUT); // Set timeout for receiving packets
-                        datagramSocket.setReceiveBufferSize(UDP_RECV_BUFFER); // Set buffer size
-                        //printAndLog("Actual UDP receive buffer size on server: " + datagramSocket.getReceiveBufferSize() + " bytes", true);
-                        InetAddress serverAddress = InetAddress.getByName(serverIP);
+                    // UDP Mode, with one socket and one receiving thread per stripe the server opened
+                    int udpSession = readySession(readyResponse);
+                    List<DatagramSocket> sockets = openStripeSockets(parsePorts(readyResponse[1]).length);
+                    long resumeAt = -1;  // Where AUTO mode carries on over TCP after UDP was abandoned
+                    try (OutputStream fileOutputStream = openDownload(fileName);
+                        TransferProgress progress = new TransferProgress("GET-" + fileName,
+                                fileSize + UDP_IP_APPLICATION_OVERHEAD * (long) Math.ceil((double) fileSize / UDP_BUFFER_SIZE))) {
+                        sendHellos(sockets, InetAddress.getByName(session.host), parsePorts(readyResponse[1]), udpSession);
+                        session.out.println("CLIENT_READY " + joinPorts(sockets));
+                        session.out.flush();
     
-                        out.println("CLIENT_READY " + datagramSocket.getLocalPort());
-                        out.flush();
-    
-                        PacketHandler handler = new PacketHandler(
-                                datagramSocket,
-                                fileOutputStream,
+                        Reassembler reassembly = new Reassembler(
+                                writeBehind(fileOutputStream),  // Disk writes happen off the receive threads
                                 fileSize,
-                                FTPClient::transferDisplay, // Pass transferDisplay method reference
-                                TIMEOUT,
-                                i
+                                progress  // Counters drawn by the progress sampler
                         );
-                        handler.start();
-    
+                        if (autoMode) {
+                            reassembly.watchGoodput();
+                        }
                         try {
-                            handler.join();
+                            receiveStripes(sockets, reassembly, readyCipher(readyResponse), udpSession);
                         } catch (InterruptedException e) {
                             printAndLog("File transfer was interrupted: " + e.getMessage(), true);
                             Thread.currentThread().interrupt(); // Restore interrupt status
-                            return;
+                            return false;
                         }
     
-                        // Collect metrics from the PacketHandler
-                        totalBytesTransferred += handler.getTotalBytesTransferred();
-                        totalDuration += handler.getDuration();
+                        // Collect metrics from the reassembler
+                        if (reassembly.getWriteReport() != null) {
+                            printAndLog(reassembly.getWriteReport(), true);
+                        }
+                        totalBytesTransferred += reassembly.getTotalBytesTransferred();
+                        totalDuration += reassembly.getDuration();
+                        complete = reassembly.getPayloadBytes() >= fileSize;
+                        if (autoMode && !complete) {
+                            resumeAt = reassembly.getPayloadBytes();
+                        }
+                    } finally {
+                        sockets.forEach(DatagramSocket::close);
+                    }
+                    if (resumeAt >= 0) {
+                        // The file holds every byte before resumeAt; fetch the rest over TCP
+                        AutoTransport.udpFailed(session);
+                        long startTime = System.currentTimeMillis();
+                        AutoTransport.resume(fileName, session, resumeAt, fileSize, readyOption(readyResponse, "version"));
+                        totalDuration += System.currentTimeMillis() - startTime;
+                        totalBytesTransferred += (fileSize - resumeAt) + TCP_IP_OVERHEAD * (long) Math.ceil((double) (fileSize - resumeAt) / TCP_BUFFER_SIZE);
+                        complete = true;
+                    }
+                }
+                String version = readyOption(readyResponse, "version");
+                if (cacheable && complete && version != null) {
+                    try {
+                        downloadCache.store(cacheKey(session, fileName), version, new File(fileName));
+                    } catch (IOException e) {
+                        printAndLog("Could not cache " + fileName + ": " + e.getMessage(), true);
                     }
                 }
             } else {
@@ -388,16 +1420,48 @@ public class FTPClient {
             // Log transfer details
             logTransferDetails(numRuns, fileSize, totalDuration, totalBytesTransferred, fileName, "GET");
         }
+        return transferSuccess;
     }    
 
+    /**
+     * Uploads a file in the current upload mode.
+     * @param fileName The name of the file to upload.
+     * @param session The session to send the command on.
+     * @throws IOException If an I/O error occurs while sending the file.
+     */
+    private static void upload(String fileName, NodeSession session) throws IOException {
+        if (SyntheticData.isSink(fileName)) {
+            sendFile(fileName, session);  // Synthetic data has nothing to diff or deduplicate against
+        } else if (uploadMode == UploadMode.DELTA) {
+            sendFileDelta(fileName, session);
+        } else if (uploadMode == UploadMode.DEDUP) {
+            sendFileDedup(fileName, session);
+        } else {
+            sendFile(fileName, session);
+        }
+    }
+
+    /**
+     * @return The GET command for a file, made conditional on the server's version of a cached copy.
+     */
+    private static String getCommand(String fileName, DownloadCache.Entry cached) {
+        return "GET " + fileName + (cached != null ? " IF " + cached.version.replace(':', ' ') : "");
+    }
+
+    /**
+     * @return What a download is cached under: the server, the directory the menu CD'd to and the file.
+     */
+    private static String cacheKey(NodeSession session, String fileName) {
+        return session.host + ":" + session.port + " " + String.join("/", remoteDirectory) + " " + fileName;
+    }
+
     /**
      * Handles the file sending for the PUT command.
      * @param fileName The name of the file to upload.
-     * @param out The PrintWriter for sending commands to the server.
-     * @param in The BufferedReader for reading responses from the server.
+     * @param session The session to send the command on; a cluster node may redirect it to the node that owns the file.
      * @throws IOException If an I/O error occurs while sending the file.
      */
-    private static void sendFile(String fileName, PrintWriter out, BufferedReader in) throws IOException {
+    private static void sendFile(String fileName, NodeSession session) throws IOException {
         long totalDuration = 0;  // Accumulate transfer times
         long totalBytesTransferred = 0;  // Accumulate bytes transferred
         int numRuns = testingMode ? NUM_TESTS : 1;
@@ -414,92 +1478,84 @@ public class FTPClient {
                 System.out.println("Starting run " + (i + 1) + " of " + numRuns + " for " + fileName + " transfer.");
             }
             long startTime = System.currentTimeMillis();  // Start time for each run
-            File file = new File(fileName);
-            fileSize = file.length();  // Get the actual file size
-
-            out.println("PUT " + fileName + " " + fileSize);  // Send PUT command with file size
-            out.flush();
+            fileSize = localLength(fileName);  // Get the actual file size
 
-            String serverResponse = in.readLine();
+            String serverResponse = requestTransfer("PUT " + fileName + " " + fileSize, session.out, session.in);  // Send PUT command with file size
+            for (int hops = 0; redirectTarget(serverResponse) != null && hops < MAX_REDIRECTS; hops++) {
+                session = nodeSession(redirectTarget(serverResponse));  // The node that owns the file
+                serverResponse = requestOnNode(session, "PUT " + fileName + " " + fileSize);
+            }
             if (serverResponse != null && serverResponse.startsWith("READY")) {
                 String[] readyResponse = serverResponse.split(" ");
-                int port = Integer.parseInt(readyResponse[1]); // Server's transfer port
+                int port = parsePorts(readyResponse[1])[0]; // Server's transfer port (the first stripe's for UDP)
                 transferSuccess = true;  // Transfer is going to happen
 
                 if (!udpMode) {
                     // TCP mode
-                    try (Socket transferSocket = new Socket(serverIP, port);
+                    bytesPerFile = fileSize + TCP_IP_OVERHEAD * (int)Math.ceil((double) fileSize/TCP_BUFFER_SIZE);  // Total bytes to transfer
+                    try (Socket transferSocket = session.openDataConnection(port);
                         BufferedOutputStream bos = new BufferedOutputStream(transferSocket.getOutputStream());
-                        FileInputStream fis = new FileInputStream(fileName)) {
+                        InputStream fis = openLocal(fileName);
+                        TransferProgress progress = new TransferProgress("PUT-" + fileName, bytesPerFile)) {
                         byte[] buffer = new byte[TCP_BUFFER_SIZE];
                         int bytesRead;
                         long currentBytes = 0;
-                        bytesPerFile = fileSize + TCP_IP_OVERHEAD * (int)Math.ceil((double) fileSize/TCP_BUFFER_SIZE);  // Total bytes to transfer
 
                         while ((bytesRead = fis.read(buffer)) != -1) {
                             bos.write(buffer, 0, bytesRead);
                             currentBytes += bytesRead;
 
                             totalBytesTransferred += (bytesRead + 40); // bytesRead + TCP Header + IP Header
-
-                            // Display progress for the current run
-                            transferDisplay(totalBytesTransferred - i * bytesPerFile, bytesPerFile, 0, 0);
+                            progress.add(bytesRead + TCP_IP_OVERHEAD);  // Drawn by the progress sampler
                         }
 
                         bos.flush();
                         
                     }
                 } else {
-                    // UDP mode
-                    try (DatagramSocket datagramSocket = new DatagramSocket();
-                        FileInputStream fis = new FileInputStream(fileName)) {
-                        datagramSocket.setSoTimeout(TIMEOUT);
-                        InetAddress serverAddress = InetAddress.getByName(serverIP);
-
-                        byte[] buffer = new byte[UDP_BUFFER_SIZE];
-                        long sequenceNumber = 0;
-                        long currentBytes = 0;
-                        bytesPerFile = fileSize + UDP_IP_APPLICATION_OVERHEAD * (int)Math.ceil((double) fileSize/UDP_BUFFER_SIZE);
+                    // UDP mode, with one socket and one sending thread per stripe the server opened
+                    int[] ports = parsePorts(readyResponse[1]);
+                    List<DatagramSocket> sockets = new ArrayList<>();
+                    try (InputStream fis = openLocal(fileName)) {
+                        InetAddress serverAddress = InetAddress.getByName(session.host);
+                        DatagramCipher cipher = readyCipher(readyResponse);
+                        int udpSession = readySession(readyResponse);
 
-                        while (true) {
-                            int bytesRead = fis.read(buffer);
-                            if (bytesRead == -1) break;
-
-                            CRC32 crc = new CRC32();
-                            crc.update(buffer, 0, bytesRead);
-                            int checksum = (int) crc.getValue();
-
-                            ByteBuffer packetBuffer = ByteBuffer.allocate(Long.BYTES + bytesRead + Integer.BYTES);
-                            packetBuffer.order(ByteOrder.BIG_ENDIAN);
-                            packetBuffer.putLong(sequenceNumber);
-                            packetBuffer.put(buffer, 0, bytesRead);
-                            packetBuffer.putInt(checksum);
-
-                            DatagramPacket packet = new DatagramPacket(packetBuffer.array(), packetBuffer.position(), serverAddress, port);
-                            datagramSocket.send(packet);
+                        // Find the largest datagram each path carries before sending any data
+                        List<DatagramSender> senders = new ArrayList<>();
+                        for (int stripe = 0; stripe < ports.length; stripe++) {
+                            DatagramSocket datagramSocket = new DatagramSocket();
+                            sockets.add(datagramSocket);
+                            datagramSocket.setSoTimeout(TIMEOUT);
+                            DatagramSender sender = new DatagramSender(datagramSocket, serverAddress, ports[stripe], udpSession);
+                            sender.setCipher(cipher != null ? cipher.copy() : null);
+                            int datagramSize = sender.probe();
+                            printAndLog("UDP datagram size: " + datagramSize + " bytes"
+                                    + (ports.length > 1 ? " (stripe " + (stripe + 1) + " of " + ports.length + ")" : ""), true);
+                            senders.add(sender);
+                        }
 
-                            sequenceNumber++;
-                            currentBytes += bytesRead;
-                            totalBytesTransferred += (bytesRead + UDP_IP_APPLICATION_OVERHEAD);
+                        AtomicLong currentBytes = new AtomicLong();
+                        AtomicLong datagramsSent = new AtomicLong();
+                        bytesPerFile = fileSize + UDP_IP_APPLICATION_OVERHEAD * (long) Math.ceil((double) fileSize / senders.get(0).getPayloadSize());
+                        String rateOption = readyOption(readyResponse, "rate");
+                        long rate = rateOption != null ? Long.parseLong(rateOption) : 0;  // Server's pacing rate in bytes/s (0 = unpaced)
+                        long pacingStart = System.nanoTime();
+                        try (TransferProgress progress = new TransferProgress("PUT-" + fileName, bytesPerFile)) {
+                            sendStripes(fis, senders, (sequenceNumber, length, checksum) -> {
+                                long bytes = currentBytes.addAndGet(length);
+                                long datagrams = datagramsSent.incrementAndGet();
 
-                            // Display progress for the current run
-                            transferDisplay(totalBytesTransferred - i * bytesPerFile, bytesPerFile, checksum, sequenceNumber);
+                                progress.add(length + UDP_IP_APPLICATION_OVERHEAD);  // Drawn by the progress sampler
+                                progress.update(sequenceNumber, checksum);
 
-                            // Introduce a small delay
-                            try {
-                                Thread.sleep(UDP_DELAY);
-                            }
-                                catch(InterruptedException e) {
-                                printAndLog("Thread interrupted: " + e.getMessage(), true);
-                            }
+                                // Stay within the rate the server's scheduler granted this upload
+                                pace(pacingStart, datagrams * UDP_IP_APPLICATION_OVERHEAD + bytes, rate);
+                            });
                         }
-
-                        // End-of-file signal
-                        ByteBuffer endBuffer = ByteBuffer.allocate(Long.BYTES);
-                        endBuffer.order(ByteOrder.BIG_ENDIAN);
-                        endBuffer.putLong(-1L);
-                        DatagramPacket endPacket = new DatagramPacket(endBuffer.array(), endBuffer.capacity(), serverAddress, port);
-                        datagramSocket.send(endPacket);
+                        totalBytesTransferred += currentBytes.get() + datagramsSent.get() * UDP_IP_APPLICATION_OVERHEAD;
+                    } finally {
+                        sockets.forEach(DatagramSocket::close);
                     }
                 }
             } else {
@@ -519,76 +1575,3538 @@ public class FTPClient {
     }
 
     /**
-     * Logs and prints the details of a file transfer, handling both single run and test mode.
-     * @param numRuns The number of runs (1 for a single run, NUM_TESTS for test mode).
-     * @param totalDuration The total duration of all runs in milliseconds.
-     * @param totalBytesTransferred The total number of bytes transferred.
-     * @param fileName The name of the file being transferred.
-     * @param operation The operation type ("GET" or "PUT").
+     * Uploads a stream of unknown length, e.g. standard input, as PUT <file> -. Data goes out as soon as it is
+     * read, and the server learns the size only at the end. Over TCP the data connection carries chunks of
+     * [length][data], a zero length as the end marker, then a trailer of the size and SHA-256 of the data.
+     * Over UDP the end signal carries the size, and the trailer follows on the control connection as
+     * END <size> <sha256>. The server stores the file only if the trailer matches what it received.
+     * AUTO mode has no size to choose by, so a stream goes over TCP unless UDP was picked explicitly.
+     * @param source The data to upload; read until it ends.
+     * @param remoteName The name to store it under.
+     * @param session The session to send the command on; a cluster node may redirect it to the node that owns the file.
+     * @return True if the server stored the upload.
+     * @throws IOException If an I/O error occurs while reading or sending the data.
      */
-    private static void logTransferDetails(int numRuns, long filesize, long totalDuration, long totalBytesTransferred, String fileName, String operation) {
-        printAndLog("\n" + operation + " transfer of " + fileName + " complete.", true);
-        if (numRuns > 1) {
-            // Test mode: display average statistics
-            long averageDuration = totalDuration / numRuns;
-            double averageThroughput = totalBytesTransferred / (averageDuration * numRuns/ 1000.0);  // Throughput in b/s
-            System.out.println("");  // New line for clarity
-            printAndLog("Average transfer time for " + numRuns + " runs: " + averageDuration + " ms", true);
-            printAndLog("File size: " + filesize + " bytes", true);
-            printAndLog("Total bytes transferred: " + totalBytesTransferred / numRuns + " bytes", true);
-            printAndLog("Average throughput: " + (long) averageThroughput + " b/s", true);
+    private static boolean sendStream(InputStream source, String remoteName, NodeSession session) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+        DigestInputStream in = new DigestInputStream(source, digest);
+        boolean udp = udpMode && !autoMode;
+        long startTime = System.currentTimeMillis();
+
+        session.setUdp(udp);
+        String serverResponse = requestTransfer("PUT " + remoteName + " -", session.out, session.in);
+        for (int hops = 0; redirectTarget(serverResponse) != null && hops < MAX_REDIRECTS; hops++) {
+            session = nodeSession(redirectTarget(serverResponse));  // The node that owns the file
+            session.setUdp(udp);
+            serverResponse = requestOnNode(session, "PUT " + remoteName + " -");
+        }
+        if (serverResponse == null || !serverResponse.startsWith("READY")) {
+            printAndLog("Server error: " + serverResponse, true);
+            return false;
+        }
+        String[] readyResponse = serverResponse.split(" ");
+        long size = 0;
+        long totalBytesTransferred;
+
+        if (!udp) {
+            long chunks = 0;
+            try (Socket transferSocket = session.openDataConnection(parsePorts(readyResponse[1])[0]);
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(transferSocket.getOutputStream(), STREAM_CHUNK_SIZE))) {
+                byte[] buffer = new byte[STREAM_CHUNK_SIZE];
+                int bytesRead;
+                while ((bytesRead = in.read(buffer)) != -1) {
+                    if (bytesRead == 0) {
+                        continue;
+                    }
+                    dos.writeInt(bytesRead);
+                    dos.write(buffer, 0, bytesRead);
+                    size += bytesRead;
+                    chunks++;
+                    if (in.available() == 0) {
+                        dos.flush();  // The producer has nothing more yet, so send what it gave
+                    }
+                }
+                dos.writeInt(0);  // End marker
+                dos.writeLong(size);
+                dos.write(digest.digest());
+                dos.flush();
+            }
+            totalBytesTransferred = size + (chunks + 1) * Integer.BYTES + Long.BYTES + 32
+                    + TCP_IP_OVERHEAD * (long) Math.ceil((double) size / TCP_BUFFER_SIZE);
         } else {
-            // Single run: display detailed stats
-            long duration = totalDuration;  // Total duration is for the single run
-            double throughput = totalBytesTransferred / (duration / 1000.0);  // Throughput in b/s
-            System.out.println("");  // New line for clarity
-            printAndLog(operation + " of " + fileName + " completed in " + duration + " ms", true);
-            printAndLog("File size: " + filesize + " bytes", true);
-            printAndLog("Total bytes transferred: " + totalBytesTransferred + " bytes", true);
-            printAndLog("Throughput: " + (long) throughput + " b/s", true);
+            int[] ports = parsePorts(readyResponse[1]);
+            List<DatagramSocket> sockets = new ArrayList<>();
+            AtomicLong currentBytes = new AtomicLong();
+            AtomicLong datagramsSent = new AtomicLong();
+            String trailer = "END ABORTED";  // Unless every datagram went out
+            try {
+                InetAddress serverAddress = InetAddress.getByName(session.host);
+                DatagramCipher cipher = readyCipher(readyResponse);
+                int udpSession = readySession(readyResponse);
+                List<DatagramSender> senders = new ArrayList<>();
+                for (int stripe = 0; stripe < ports.length; stripe++) {
+                    DatagramSocket datagramSocket = new DatagramSocket();
+                    sockets.add(datagramSocket);
+                    datagramSocket.setSoTimeout(TIMEOUT);
+                    DatagramSender sender = new DatagramSender(datagramSocket, serverAddress, ports[stripe], udpSession);
+                    sender.setCipher(cipher != null ? cipher.copy() : null);
+                    sender.probe();
+                    senders.add(sender);
+                }
+                String rateOption = readyOption(readyResponse, "rate");
+                long rate = rateOption != null ? Long.parseLong(rateOption) : 0;  // Server's pacing rate in bytes/s (0 = unpaced)
+                long pacingStart = System.nanoTime();
+                sendStripes(in, senders, (sequenceNumber, length, checksum) -> {
+                    long bytes = currentBytes.addAndGet(length);
+                    long datagrams = datagramsSent.incrementAndGet();
+                    pace(pacingStart, datagrams * UDP_IP_APPLICATION_OVERHEAD + bytes, rate);
+                });
+                size = currentBytes.get();
+                trailer = "END " + size + " " + HexFormat.of().formatHex(digest.digest());
+            } finally {
+                sockets.forEach(DatagramSocket::close);
+                session.out.println(trailer);  // The server reads one line after the data either way
+                session.out.flush();
+                if (trailer.equals("END ABORTED")) {
+                    // Take the server's ERROR off the control connection, or the next command would read it as its reply
+                    try {
+                        printAndLog("Streamed upload of " + remoteName + " aborted, server replied: " + session.in.readLine(), true);
+                    } catch (IOException e) {
+                        // The exception already on its way out says what went wrong
+                    }
+                }
+            }
+            totalBytesTransferred = currentBytes.get() + datagramsSent.get() * UDP_IP_APPLICATION_OVERHEAD;
+        }
+
+        String result = session.in.readLine();
+        if (result == null || !result.startsWith("STORED")) {
+            printAndLog("Streamed upload of " + remoteName + " failed: " + result, true);
+            return false;
         }
+        logTransferDetails(1, size, System.currentTimeMillis() - startTime, totalBytesTransferred, remoteName, "PUT");
+        return true;
     }
 
     /**
-     * Displays a progress bar for the file transfer.
-     * @param currentBytes The number of bytes transferred so far.
-     * @param totalBytes The total number of bytes to transfer.
-     * @param crc The CRC32 checksum of the transferred data.
-     * @param segment The current segment/sequence number being processed.
+     * Handles the file sending for the PUT command when delta sync is enabled.
+     * The server sends block signatures of its current copy, and only the data that does not match
+     * one of those blocks is sent. The delta is always carried over a TCP data connection.
+     * @param fileName The name of the file to upload.
+     * @param session The session to send the command on; a cluster node may redirect it to the node that owns the file.
+     * @throws IOException If an I/O error occurs while sending the file.
      */
-    private static void transferDisplay(long currentBytes, long totalBytes, int crc, long segment) {
-        // Clear the line if we're about to hit 100% to ensure no residual characters are present
-        if (currentBytes >= totalBytes) {
-            System.out.print("\r" + " ".repeat(150) + "");
-        }
-        int transferPercentage = (int) ((currentBytes / (double) totalBytes) * 100);
+    private static void sendFileDelta(String fileName, NodeSession session) throws IOException {
+        long totalDuration = 0;  // Accumulate transfer times
+        long totalBytesTransferred = 0;  // Accumulate bytes sent on the data connection
+        int numRuns = testingMode ? NUM_TESTS : 1;
+        long fileSize = 0;
+        boolean transferSuccess = false;  // Flag to indicate if transfer was successful
 
-        // Calculate how much of the bar to fill. Minimum is 0, and maximum is 50.
-        int arrowPosition = Math.max(0, Math.min(50, transferPercentage / 2));
+        for (int i = 0; i < numRuns; i++) {
+            if (i > 0) {
+                // If we're in testing mode, display a separator between runs
+                System.out.println("\n--------------------------------------------------");
+            }
+            if (testingMode) {
+                System.out.println("Starting run " + (i + 1) + " of " + numRuns + " for " + fileName + " transfer.");
+            }
+            long startTime = System.currentTimeMillis();  // Start time for each run
+            File file = new File(fileName);
+            fileSize = file.length();
 
-        // Build the progress bar display
-        String progressBar = "|"
-                + "=".repeat(arrowPosition)  // Filled portion
-                + (arrowPosition < 50 ? ">" : "") // Arrow
-                + " ".repeat(50 - arrowPosition)  // Empty portion
-                + "| ";
+            String serverResponse = requestTransfer("DELTA " + fileName + " " + fileSize, session.out, session.in);
+            for (int hops = 0; redirectTarget(serverResponse) != null && hops < MAX_REDIRECTS; hops++) {
+                session = nodeSession(redirectTarget(serverResponse));  // The node that owns the file
+                serverResponse = requestOnNode(session, "DELTA " + fileName + " " + fileSize);
+            }
+            if (serverResponse != null && serverResponse.startsWith("ERROR: File not found")) {
+                printAndLog("DELTA: " + fileName + " is not on the server yet, sending it whole", true);
+                sendFile(fileName, session);  // Nothing to patch
+                return;
+            }
+            if (serverResponse == null || !serverResponse.startsWith("READY")) {
+                printAndLog("Server error: " + serverResponse, true);
+                transferSuccess = false;
+                break;
+            }
+            int port = Integer.parseInt(serverResponse.split(" ")[1]); // Server's transfer port
 
-        // Print transfer percentage and byte count
-        System.out.print("\r" + progressBar
-                + transferPercentage + "% ("
-                + currentBytes + "/" + totalBytes + " bytes)");
+            long bytesSent;
+            try (Socket transferSocket = session.openDataConnection(port);
+                DataInputStream dis = new DataInputStream(new BufferedInputStream(transferSocket.getInputStream()));
+                CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(transferSocket.getOutputStream()));
+                DataOutputStream dos = new DataOutputStream(counter);
+                FileInputStream fis = new FileInputStream(file)) {
+                DeltaEncoder encoder = new DeltaEncoder(dis);
+                encoder.encode(fis, dos, fileSize);
+                dos.flush();
+                bytesSent = counter.getCount();
 
-        // Only print CRC if it is non-zero
-        if (crc != 0) {
-            System.out.print(" CRC32: 0x" + Integer.toHexString(crc));
+                // Wait for the server to verify and install the new version
+                String result = session.in.readLine();
+                if (result == null || !result.startsWith("DELTA_COMPLETE")) {
+                    printAndLog("Server error: " + result, true);
+                    transferSuccess = false;
+                    break;
+                }
+                printAndLog("Delta sync: " + encoder.getLiteralBytes() + " literal bytes, " + encoder.getMatchedBytes()
+                        + " bytes matched in " + encoder.getMatchedBlocks() + " blocks of " + encoder.getBlockSize() + " bytes", true);
+            } catch (NoSuchAlgorithmException e) {
+                printAndLog("Delta sync unavailable: " + e.getMessage(), true);
+                transferSuccess = false;
+                break;
+            }
+            transferSuccess = true;
+            totalBytesTransferred += bytesSent + TCP_IP_OVERHEAD * (long) Math.ceil((double) bytesSent / TCP_BUFFER_SIZE);
+            totalDuration += System.currentTimeMillis() - startTime;
         }
 
-        if (segment != 0) {
-            System.out.print(" Segment: " + segment);
+        if (transferSuccess) {
+            // Log details
+            logTransferDetails(numRuns, fileSize, totalDuration, totalBytesTransferred, fileName, "DELTA PUT");
         }
+    }
 
-        // Flush the output to ensure it updates in real-time
-        System.out.flush();
+    /**
+     * Handles the file sending for the PUT command when deduplicated uploads are enabled.
+     * The file is split into content-defined chunks, the server reports which chunks it already stores,
+     * and only the missing chunks are sent over a TCP data connection.
+     * @param fileName The name of the file to upload.
+     * @param session The session to send the command on; a cluster node may redirect it to the node that owns the file.
+     * @throws IOException If an I/O error occurs while sending the file.
+     */
+    private static void sendFileDedup(String fileName, NodeSession session) throws IOException {
+        long totalDuration = 0;  // Accumulate transfer times
+        long totalBytesTransferred = 0;  // Accumulate bytes sent on the data connection
+        int numRuns = testingMode ? NUM_TESTS : 1;
+        long fileSize = 0;
+        boolean transferSuccess = false;  // Flag to indicate if transfer was successful
+
+        for (int i = 0; i < numRuns; i++) {
+            if (i > 0) {
+                // If we're in testing mode, display a separator between runs
+                System.out.println("\n--------------------------------------------------");
+            }
+            if (testingMode) {
+                System.out.println("Starting run " + (i + 1) + " of " + numRuns + " for " + fileName + " transfer.");
+            }
+            long startTime = System.currentTimeMillis();  // Start time for each run
+            File file = new File(fileName);
+            fileSize = file.length();
+
+            ChunkList chunks;
+            try (FileInputStream fis = new FileInputStream(file)) {
+                chunks = ChunkList.scan(fis);
+            } catch (NoSuchAlgorithmException e) {
+                printAndLog("Deduplicated upload unavailable: " + e.getMessage(), true);
+                transferSuccess = false;
+                break;
+            }
+
+            String serverResponse = requestTransfer("CPUT " + fileName + " " + fileSize, session.out, session.in);
+            for (int hops = 0; redirectTarget(serverResponse) != null && hops < MAX_REDIRECTS; hops++) {
+                session = nodeSession(redirectTarget(serverResponse));  // The node that owns the file
+                serverResponse = requestOnNode(session, "CPUT " + fileName + " " + fileSize);
+            }
+            if (serverResponse == null || !serverResponse.startsWith("READY")) {
+                printAndLog("Server error: " + serverResponse, true);
+                transferSuccess = false;
+                break;
+            }
+            int port = Integer.parseInt(serverResponse.split(" ")[1]); // Server's transfer port
+
+            long bytesSent;
+            int sentChunks = 0;
+            try (Socket transferSocket = session.openDataConnection(port);
+                DataInputStream dis = new DataInputStream(new BufferedInputStream(transferSocket.getInputStream()));
+                CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(transferSocket.getOutputStream()));
+                DataOutputStream dos = new DataOutputStream(counter);
+                RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                // Chunk list: [count] then [SHA-256][length] per chunk
+                dos.writeInt(chunks.size());
+                for (int c = 0; c < chunks.size(); c++) {
+                    dos.write(chunks.hashes.get(c));
+                    dos.writeInt(chunks.lengths.get(c));
+                }
+                dos.flush();
+
+                // The server answers with one flag per chunk; send the data only for chunks it lacks
+                boolean[] needed = new boolean[chunks.size()];
+                for (int c = 0; c < needed.length; c++) {
+                    needed[c] = dis.readBoolean();
+                }
+                byte[] buffer = new byte[CHUNK_MAX_SIZE];
+                for (int c = 0; c < needed.length; c++) {
+                    if (needed[c]) {
+                        raf.seek(chunks.offsets.get(c));
+                        raf.readFully(buffer, 0, chunks.lengths.get(c));
+                        dos.write(buffer, 0, chunks.lengths.get(c));
+                        sentChunks++;
+                    }
+                }
+                dos.flush();
+                bytesSent = counter.getCount();
+
+                String result = session.in.readLine();
+                if (result == null || !result.startsWith("CPUT_COMPLETE")) {
+                    printAndLog("Server error: " + result, true);
+                    transferSuccess = false;
+                    break;
+                }
+            }
+            printAndLog("Deduplicated upload: sent " + sentChunks + " of " + chunks.size() + " chunks ("
+                    + (chunks.size() - sentChunks) + " already on the server)", true);
+            transferSuccess = true;
+            totalBytesTransferred += bytesSent + TCP_IP_OVERHEAD * (long) Math.ceil((double) bytesSent / TCP_BUFFER_SIZE);
+            totalDuration += System.currentTimeMillis() - startTime;
+        }
+
+        if (transferSuccess) {
+            // Log details
+            logTransferDetails(numRuns, fileSize, totalDuration, totalBytesTransferred, fileName, "DEDUP PUT");
+        }
+    }
+
+    /**
+     * Runs GET/PUT jobs in the background on a bounded pool of workers, highest priority first
+     * (first come, first served among equal priorities). Every job opens its own control session,
+     * replays the CDs of the menu's session and moves its data over TCP, so the menu's session stays
+     * free for LS/CD. Jobs can be paused, resumed and cancelled, and a failed transfer is retried with
+     * doubling delays up to JOB_RETRIES times.
+     */
+    private static class TransferManager {
+        enum State { QUEUED, RUNNING, PAUSED, RETRYING, DONE, FAILED, CANCELLED }
+
+        private final ThreadPoolExecutor workers;
+        private final ScheduledExecutorService retryTimer;
+        private final Map<Integer, Job> jobs = new ConcurrentSkipListMap<>();
+        private final AtomicInteger nextId = new AtomicInteger(1);
+        private final AtomicInteger nextOrder = new AtomicInteger();
+
+        TransferManager(int workerCount) {
+            ThreadFactory daemons = runnable -> {
+                Thread thread = new Thread(runnable, "transfer-worker");
+                thread.setDaemon(true);
+                return thread;
+            };
+            workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), daemons);
+            retryTimer = Executors.newSingleThreadScheduledExecutor(daemons);
+        }
+
+        /**
+         * Queues a transfer.
+         * @param upload True for PUT, false for GET.
+         * @param localFile The local file to read from or write to.
+         * @param remoteName The file name on the server.
+         * @param size The size if known, or -1.
+         * @param priority Higher priorities are started first.
+         * @param directory The CD arguments that lead to the server directory of the file.
+         * @return The queued job.
+         */
+        Job submit(boolean upload, File localFile, String remoteName, long size, int priority, List<String> directory) {
+            Job job = new Job(nextId.getAndIncrement(), upload, localFile, remoteName, size, priority, new ArrayList<>(directory));
+            jobs.put(job.id, job);
+            job.enqueue();
+            printAndLog("Queued job #" + job.id + ": " + job.describe(), true);
+            return job;
+        }
+
+        Job get(int id) {
+            return jobs.get(id);
+        }
+
+        /**
+         * @return The number of jobs that have not finished yet.
+         */
+        int activeCount() {
+            int active = 0;
+            for (Job job : jobs.values()) {
+                if (!job.isFinished()) {
+                    active++;
+                }
+            }
+            return active;
+        }
+
+        /**
+         * Prints every job with its state and progress.
+         */
+        void list() {
+            if (jobs.isEmpty()) {
+                printAndLog("No background transfers.", true);
+            }
+            for (Job job : jobs.values()) {
+                long size = job.size;
+                int percent = size > 0 ? (int) (job.transferred * 100 / size) : (job.state == State.DONE ? 100 : 0);
+                printAndLog(String.format("  #%-4d %-9s %-40s %3d%% (%d/%s bytes)%s%s", job.id, job.state, job.describe(), percent,
+                        job.transferred, size >= 0 ? Long.toString(size) : "?",
+                        job.attempts > 0 ? " retries: " + job.attempts : "",
+                        job.error != null && job.isFinished() ? " " + job.error : ""), true);
+            }
+        }
+
+        /**
+         * Waits until every job has finished. Paused jobs would never finish, so they are cancelled.
+         */
+        void awaitCompletion() {
+            boolean announced = false;
+            while (activeCount() > 0) {
+                if (!announced) {
+                    printAndLog("Waiting for " + activeCount() + " background transfers to finish...", true);
+                    announced = true;
+                }
+                for (Job job : jobs.values()) {
+                    if (job.state == State.PAUSED) {
+                        printAndLog("Cancelling paused job #" + job.id, true);
+                        job.cancel();
+                    }
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            workers.shutdown();
+            retryTimer.shutdown();
+        }
+
+        /**
+         * A queued GET or PUT. Pausing a running job stops its copy loop, which holds the data connection
+         * (and a worker) open until it is resumed; TCP flow control stops the sender meanwhile.
+         */
+        private class Job implements Runnable, Comparable<Job> {
+            final int id;
+            final boolean upload;
+            final File localFile;
+            final String remoteName;
+            final int priority;
+            final List<String> directory;
+            volatile long size;
+            volatile long transferred;
+            volatile State state = State.QUEUED;
+            volatile String error;
+            volatile int attempts;
+            private int order;  // Submission order, so equal priorities run first come, first served
+            private boolean running;
+            private boolean pauseRequested;
+            private boolean cancelRequested;
+            private Socket dataSocket;
+
+            Job(int id, boolean upload, File localFile, String remoteName, long size, int priority, List<String> directory) {
+                this.id = id;
+                this.upload = upload;
+                this.localFile = localFile;
+                this.remoteName = remoteName;
+                this.size = size;
+                this.priority = priority;
+                this.directory = directory;
+            }
+
+            String describe() {
+                return (upload ? "PUT " : "GET ") + remoteName;
+            }
+
+            boolean isFinished() {
+                return state == State.DONE || state == State.FAILED || state == State.CANCELLED;
+            }
+
+            @Override
+            public int compareTo(Job other) {
+                return priority != other.priority ? Integer.compare(other.priority, priority) : Integer.compare(order, other.order);
+            }
+
+            private synchronized void enqueue() {
+                state = State.QUEUED;
+                order = nextOrder.getAndIncrement();
+                workers.execute(this);
+            }
+
+            /**
+             * Pauses a queued or running job, or resumes a paused one.
+             * @return False if the job has already finished.
+             */
+            synchronized boolean togglePause() {
+                if (isFinished()) {
+                    return false;
+                }
+                if (pauseRequested) {
+                    pauseRequested = false;
+                    printAndLog("Resumed job #" + id, true);
+                    if (running) {
+                        notifyAll();
+                    } else if (state == State.PAUSED) {
+                        enqueue();
+                    }
+                } else {
+                    pauseRequested = true;
+                    printAndLog("Paused job #" + id, true);
+                    if (!running && workers.remove(this)) {
+                        state = State.PAUSED;
+                    }
+                }
+                return true;
+            }
+
+            /**
+             * Cancels the job. A running transfer has its data connection reset, so a partial upload is not
+             * mistaken for a complete one, and a partial download is deleted.
+             * @return False if the job has already finished.
+             */
+            synchronized boolean cancel() {
+                if (isFinished()) {
+                    return false;
+                }
+                cancelRequested = true;
+                notifyAll();
+                if (running) {
+                    if (dataSocket != null) {
+                        try {
+                            dataSocket.setSoLinger(true, 0);
+                            dataSocket.close();
+                        } catch (IOException e) {
+                            // Already closed
+                        }
+                    }
+                } else {
+                    workers.remove(this);
+                    state = State.CANCELLED;
+                    printAndLog("Cancelled job #" + id, true);
+                }
+                return true;
+            }
+
+            @Override
+            public void run() {
+                synchronized (this) {
+                    if (cancelRequested) {
+                        return;
+                    }
+                    if (pauseRequested) {
+                        state = State.PAUSED;  // Picked up while paused; togglePause() queues it again
+                        return;
+                    }
+                    running = true;
+                    state = State.RUNNING;
+                }
+                long startTime = System.currentTimeMillis();
+                try {
+                    transfer();
+                    finish(State.DONE, null);
+                    printAndLog("Background " + describe() + " complete: " + transferred + " bytes in "
+                            + (System.currentTimeMillis() - startTime) + " ms", true);
+                } catch (IOException e) {
+                    if (!upload && (cancelRequested || e instanceof TransferRefusedException)) {
+                        localFile.delete();  // Do not leave a partial download behind
+                    }
+                    if (cancelRequested) {
+                        finish(State.CANCELLED, null);
+                        printAndLog("Cancelled job #" + id, true);
+                    } else if (e instanceof TransferRefusedException || attempts >= JOB_RETRIES) {
+                        finish(State.FAILED, e.getMessage());
+                        printAndLog("Background " + describe() + " failed: " + e.getMessage(), true);
+                    } else {
+                        attempts++;
+                        long delay = JOB_RETRY_DELAY << (attempts - 1);
+                        finish(State.RETRYING, e.getMessage());
+                        printAndLog("Background " + describe() + " failed (" + e.getMessage() + "), retry " + attempts
+                                + " of " + JOB_RETRIES + " in " + delay + " ms", true);
+                        retryTimer.schedule(this::retry, delay, TimeUnit.MILLISECONDS);
+                    }
+                } catch (RuntimeException e) {
+                    // e.g. a malformed READY; retrying would meet it again, and the job must not stay RUNNING
+                    if (!upload) {
+                        localFile.delete();
+                    }
+                    finish(State.FAILED, e.toString());
+                    printAndLog("Background " + describe() + " failed: " + e, true);
+                }
+            }
+
+            private synchronized void finish(State result, String message) {
+                running = false;
+                dataSocket = null;
+                error = message;
+                state = result;
+            }
+
+            private synchronized void retry() {
+                if (state != State.RETRYING) {
+                    return;  // Cancelled or paused while waiting
+                }
+                if (pauseRequested) {
+                    state = State.PAUSED;
+                } else {
+                    enqueue();
+                }
+            }
+
+            /**
+             * Runs the transfer on a new control session.
+             * @throws IOException If the transfer fails.
+             */
+            private void transfer() throws IOException {
+                NodeSession session = NodeSession.open(serverIP + ":" + serverPort, directory, false);
+                try {
+                    long fileSize = upload ? localLength(localFile.getPath()) : 0;
+                    String command = upload ? "PUT " + remoteName + " " + fileSize : "GET " + remoteName;
+                    String response = requestTransfer(command, session.out, session.in);
+                    for (int hops = 0; redirectTarget(response) != null && hops < MAX_REDIRECTS; hops++) {
+                        session.close();
+                        session = NodeSession.open(redirectTarget(response), directory, false);  // The cluster node that owns the file
+                        response = requestTransfer(command, session.out, session.in);
+                    }
+                    if (response == null || response.startsWith("BUSY")) {
+                        throw new IOException("Server busy: " + response);  // Retried later
+                    }
+                    if (!response.startsWith("READY")) {
+                        throw new TransferRefusedException(response);
+                    }
+                    String[] readyResponse = response.split(" ");
+                    int port = Integer.parseInt(readyResponse[1]);
+                    size = upload ? fileSize : Long.parseLong(readyResponse[2]);
+
+                    Socket socket = session.openDataConnection(port);
+                    synchronized (this) {
+                        dataSocket = socket;
+                        if (cancelRequested) {
+                            socket.setSoLinger(true, 0);
+                            socket.close();
+                        }
+                    }
+                    try (Socket data = socket) {
+                        if (upload) {
+                            try (InputStream fis = openLocal(localFile.getPath());
+                                 OutputStream bos = new BufferedOutputStream(data.getOutputStream(), JOB_BUFFER_SIZE)) {
+                                copy(fis, bos);
+                            }
+                        } else {
+                            try (InputStream bis = data.getInputStream();
+                                 OutputStream fos = new BufferedOutputStream(openDownload(localFile.getPath()), JOB_BUFFER_SIZE)) {
+                                copy(bis, fos);
+                            }
+                        }
+                    }
+                    if (transferred != size) {
+                        throw new IOException("transferred " + transferred + " of " + size + " bytes");
+                    }
+
+                    session.out.println("QUIT");
+                    session.in.readLine();  // Returns once the server has finished with the data
+                } finally {
+                    session.close();
+                }
+            }
+
+            /**
+             * Copies a stream, stopping while the job is paused and giving up when it is cancelled.
+             */
+            private void copy(InputStream source, OutputStream sink) throws IOException {
+                byte[] buffer = new byte[JOB_BUFFER_SIZE];
+                transferred = 0;
+                int bytesRead;
+                while ((bytesRead = source.read(buffer)) != -1) {
+                    checkpoint();
+                    sink.write(buffer, 0, bytesRead);
+                    transferred += bytesRead;
+                }
+                checkpoint();
+            }
+
+            private synchronized void checkpoint() throws IOException {
+                while (pauseRequested && !cancelRequested) {
+                    state = State.PAUSED;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Transfer interrupted");
+                    }
+                }
+                if (cancelRequested) {
+                    throw new InterruptedIOException("Transfer cancelled");
+                }
+                state = State.RUNNING;
+            }
+        }
+    }
+
+    /**
+     * Multi-source (swarm) download of one file from every server that holds the same version of it:
+     * the connected server plus the mirrors named in ftp.swarm. The file is split into chunks of
+     * ftp.swarm.chunk bytes, whose SHA-256 digests come from the first server that has the file (HASHES).
+     * Each source has one session and one thread that takes the next chunk from a shared queue, fetches
+     * it with GETRANGE, checks its digest and writes it at its offset, so fast sources take more chunks
+     * than slow ones. Once the queue is empty, idle sources also fetch chunks still in flight on slower
+     * ones and the first copy to arrive wins, so the end of the download does not wait for the slowest
+     * source. A chunk that fails or does not match its digest goes back to the queue; a source that
+     * fails SWARM_MAX_FAILURES times in a row is dropped.
+     */
+    private static class SwarmDownload {
+        private final String fileName;
+        private final long size;
+        private final int chunkSize;
+        private final byte[][] digests;
+        private final FileChannel output;  // Null for synthetic paths, whose data is discarded
+        private final TransferProgress progress;
+        private final Deque<Integer> pending = new ArrayDeque<>();  // Chunks nobody is fetching yet
+        private final boolean[] done;
+        private final int[] fetchers;  // Sources fetching each chunk now
+        private int remaining;
+        private int activeSources;
+
+        /**
+         * One server taking part in a download.
+         */
+        private static class Source {
+            final String node;
+            final long size;  // File size the source reported with STAT
+            NodeSession session;
+            long bytes = 0;  // Verified chunk data fetched from this source
+            int chunks = 0;  // Chunks this source delivered first
+            int duplicates = 0;  // Chunks another source delivered first
+            int failures = 0;  // Failures in a row
+
+            Source(String node, long size, NodeSession session) {
+                this.node = node;
+                this.size = size;
+                this.session = session;
+            }
+        }
+
+        private SwarmDownload(String fileName, long size, int chunkSize, byte[][] digests, FileChannel output, TransferProgress progress) {
+            this.fileName = fileName;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.digests = digests;
+            this.output = output;
+            this.progress = progress;
+            this.done = new boolean[digests.length];
+            this.fetchers = new int[digests.length];
+            this.remaining = digests.length;
+            for (int i = 0; i < digests.length; i++) {
+                pending.add(i);
+            }
+        }
+
+        /**
+         * Downloads a file from the connected server and the ftp.swarm mirrors.
+         * @param fileName The file to download.
+         * @param mirrors host:port of the servers besides the connected one.
+         * @throws IOException If no server has the file or the download does not complete.
+         */
+        static void download(String fileName, List<String> mirrors) throws IOException {
+            download(fileName, mirrors, 1);
+        }
+
+        /**
+         * Downloads a file from the connected server and the given mirrors over several connections to each.
+         * With no mirrors this is a striped TCP download from the connected server.
+         * @param fileName The file to download.
+         * @param mirrors host:port of the servers besides the connected one.
+         * @param connections Sessions opened with each server that has the file.
+         * @throws IOException If no server has the file or the download does not complete.
+         */
+        static void download(String fileName, List<String> mirrors, int connections) throws IOException {
+            List<String> nodes = new ArrayList<>();
+            nodes.add(serverIP + ":" + serverPort);
+            nodes.addAll(mirrors);
+
+            // Find the servers that hold the file; the first one fixes its size
+            List<Source> sources = new ArrayList<>();
+            long size = -1;
+            try {
+                for (String node : nodes) {
+                    Source source = locate(node, fileName, sources);
+                    if (source == null) {
+                        continue;
+                    }
+                    if (size < 0) {
+                        size = source.size;
+                    } else if (source.size != size) {
+                        printAndLog("Swarm: " + source.node + " has a different version of " + fileName + " (" + source.size + " bytes), skipped", true);
+                        source.session.close();
+                        continue;
+                    }
+                    sources.add(source);
+                }
+                if (sources.isEmpty()) {
+                    throw new TransferRefusedException("no server has " + fileName);
+                }
+                int servers = sources.size();
+                for (int i = 0; i < servers; i++) {
+                    String node = sources.get(i).node;
+                    try {
+                        for (int c = 1; c < connections; c++) {
+                            sources.add(new Source(node, size, NodeSession.open(node, remoteDirectory, false)));
+                        }
+                    } catch (IOException e) {
+                        printAndLog("Swarm: no further connection to " + node + " (" + e.getMessage() + ")", true);
+                    }
+                }
+
+                // Chunk digests from the first source, against which every fetched chunk is checked
+                NodeSession reference = sources.get(0).session;
+                String response = requestTransfer("HASHES " + fileName + " " + SWARM_CHUNK_SIZE, reference.out, reference.in);
+                if (response == null || !response.startsWith("HASHES ")) {
+                    throw new TransferRefusedException(sources.get(0).node + ": " + response);
+                }
+                int count = Integer.parseInt(response.split(" ")[2]);
+                byte[][] digests = new byte[count][];
+                for (int i = 0; i < count; i++) {
+                    digests[i] = HexFormat.of().parseHex(reference.in.readLine());
+                }
+
+                printAndLog("Swarm: " + fileName + " (" + size + " bytes, " + count + " chunks) from " + servers + " sources"
+                        + (sources.size() > servers ? " over " + sources.size() + " connections" : ""), true);
+                long start = System.currentTimeMillis();
+                try (RandomAccessFile file = SyntheticData.isSink(fileName) ? null : new RandomAccessFile(fileName, "rw");
+                     TransferProgress progress = new TransferProgress("SWARM-" + fileName, size)) {
+                    if (file != null) {
+                        file.setLength(size);
+                    }
+                    SwarmDownload swarm = new SwarmDownload(fileName, size, SWARM_CHUNK_SIZE, digests,
+                            file != null ? file.getChannel() : null, progress);
+                    swarm.run(sources);
+                }
+                long duration = Math.max(1, System.currentTimeMillis() - start);
+                for (Source source : sources) {
+                    printAndLog("Swarm source " + source.node + ": " + source.chunks + " chunks (" + source.bytes + " bytes), "
+                            + source.duplicates + " duplicate chunks discarded", true);
+                }
+                logTransferDetails(1, size, duration, size + TCP_IP_OVERHEAD * (long) Math.ceil((double) size / TCP_BUFFER_SIZE),
+                        fileName, "SWARM GET");
+            } finally {
+                for (Source source : sources) {
+                    source.session.close();
+                }
+            }
+        }
+
+        /**
+         * Opens a session with a server and asks it for the file's size with STAT, following cluster redirects.
+         * @return The source, or null if the server lacks the file or cannot be reached.
+         */
+        private static Source locate(String node, String fileName, List<Source> found) {
+            for (int hops = 0; hops <= MAX_REDIRECTS; hops++) {
+                for (Source source : found) {
+                    if (source.node.equals(node)) {
+                        return null;  // Already a source, e.g. the owner several cluster nodes redirect to
+                    }
+                }
+                NodeSession session = null;
+                try {
+                    session = NodeSession.open(node, remoteDirectory, false);
+                    session.out.println("STAT " + fileName);
+                    String response = session.in.readLine();
+                    if (response != null && response.startsWith("STAT ")) {
+                        return new Source(node, Long.parseLong(response.split(" ")[1]), session);
+                    }
+                    session.close();
+                    if (redirectTarget(response) == null) {
+                        printAndLog("Swarm: " + node + " does not have " + fileName + ": " + response, true);
+                        return null;
+                    }
+                    node = redirectTarget(response);
+                } catch (IOException e) {
+                    printAndLog("Swarm: " + node + " unreachable: " + e.getMessage(), true);
+                    if (session != null) {
+                        try {
+                            session.close();
+                        } catch (IOException ignored) {
+                            // Already failed
+                        }
+                    }
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Runs one fetching thread per source until every chunk is written or every source has failed.
+         */
+        private void run(List<Source> sources) throws IOException {
+            List<Thread> threads = new ArrayList<>();
+            synchronized (this) {
+                activeSources = sources.size();
+            }
+            for (Source source : sources) {
+                Thread thread = new Thread(() -> fetchChunks(source), "swarm-" + source.node);
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+            try {
+                synchronized (this) {
+                    while (remaining > 0 && activeSources > 0) {
+                        wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Swarm download interrupted");
+            } finally {
+                // Sources still fetching duplicates of finished chunks are cut off
+                for (Source source : sources) {
+                    source.session.close();
+                }
+                for (Thread thread : threads) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            synchronized (this) {
+                if (remaining > 0) {
+                    throw new IOException(remaining + " of " + done.length + " chunks could not be fetched from any source");
+                }
+            }
+        }
+
+        /**
+         * Fetching loop of one source.
+         */
+        private void fetchChunks(Source source) {
+            byte[] buffer = new byte[chunkSize];
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                Integer chunk;
+                while ((chunk = next()) != null) {
+                    long offset = (long) chunk * chunkSize;
+                    int length = (int) Math.min(chunkSize, size - offset);
+                    try {
+                        fetch(source, offset, length, buffer);
+                        digest.update(buffer, 0, length);
+                        if (!MessageDigest.isEqual(digest.digest(), digests[chunk])) {
+                            throw new IOException("chunk " + chunk + " does not match its digest");
+                        }
+                        if (output != null) {
+                            ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+                            while (data.hasRemaining()) {
+                                output.write(data, offset + data.position());  // Positional, so sources write side by side
+                            }
+                        }
+                        complete(source, chunk, length);
+                        source.failures = 0;
+                    } catch (IOException e) {
+                        if (!release(chunk)) {
+                            return;  // The download finished and closed this session
+                        }
+                        source.failures++;
+                        printAndLog("\nSwarm: " + source.node + " failed on chunk " + chunk + " (" + e.getMessage() + ")"
+                                + (source.failures >= SWARM_MAX_FAILURES ? ", source dropped" : ""), true);
+                        if (source.failures >= SWARM_MAX_FAILURES) {
+                            return;
+                        }
+                        source.session.close();
+                        source.session = NodeSession.open(source.node, remoteDirectory, false);
+                    }
+                }
+            } catch (IOException | NoSuchAlgorithmException e) {
+                printAndLog("\nSwarm: " + source.node + " dropped (" + e.getMessage() + ")", true);
+            } finally {
+                synchronized (this) {
+                    activeSources--;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Fetches one range into the buffer.
+         */
+        private void fetch(Source source, long offset, int length, byte[] buffer) throws IOException {
+            NodeSession session = source.session;
+            String response = requestTransfer("GETRANGE " + fileName + " " + offset + " " + length, session.out, session.in);
+            if (response == null || !response.startsWith("READY")) {
+                throw new IOException("server answered " + response);
+            }
+            try (Socket data = session.openDataConnection(Integer.parseInt(response.split(" ")[1]));
+                 InputStream in = data.getInputStream()) {
+                int received = 0;
+                while (received < length) {
+                    int bytesRead = in.read(buffer, received, length - received);
+                    if (bytesRead == -1) {
+                        throw new EOFException("range ended after " + received + " of " + length + " bytes");
+                    }
+                    received += bytesRead;
+                    progress.add(bytesRead);
+                }
+            }
+        }
+
+        /**
+         * Picks the next chunk for a source: a chunk nobody fetches yet, or once there are none, the in-flight
+         * chunk the fewest sources are fetching. Waits while every unfinished chunk already has two sources.
+         * @return The chunk, or null when the download is complete.
+         */
+        private synchronized Integer next() {
+            while (remaining > 0) {
+                Integer chunk = pending.pollFirst();
+                if (chunk == null) {
+                    int fewest = SWARM_MAX_FETCHERS;
+                    for (int i = 0; i < done.length; i++) {
+                        if (!done[i] && fetchers[i] < fewest) {
+                            chunk = i;
+                            fewest = fetchers[i];
+                        }
+                    }
+                }
+                if (chunk != null) {
+                    fetchers[chunk]++;
+                    return chunk;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        private synchronized void complete(Source source, int chunk, int length) {
+            fetchers[chunk]--;
+            if (done[chunk]) {
+                source.duplicates++;
+                return;
+            }
+            done[chunk] = true;
+            remaining--;
+            source.chunks++;
+            source.bytes += length;
+            notifyAll();
+        }
+
+        /**
+         * Gives a chunk back after a failed fetch, queueing it again if no other source is on it.
+         * @return False if the download is already complete.
+         */
+        private synchronized boolean release(int chunk) {
+            fetchers[chunk]--;
+            if (!done[chunk] && fetchers[chunk] == 0) {
+                pending.addFirst(chunk);
+            }
+            notifyAll();
+            return remaining > 0;
+        }
+    }
+
+    /**
+     * AUTO transfer mode (menu option 5) picks TCP, striped TCP or UDP for each GET and PUT from the file's size and
+     * what is known about the path to the server. The first transfer to a server, and the first after
+     * AUTO_PROBE_INTERVAL, probes the path: bare PINGs time the control connection, and a burst of Ethernet-sized
+     * datagrams echoed by "PING <n>" measures the UDP round trip and loss. Small files go over TCP, where UDP's
+     * setup costs more than it saves. UDP has no retransmission, so a lossy or unreachable UDP path means TCP, and
+     * large downloads on a long path are split over several TCP connections, since one cannot fill it.
+     * Otherwise UDP is used, until the smoothed goodput of past transfers says another candidate is faster.
+     * UDP downloads are watched while they run; if their goodput collapses the rest of the file is fetched over
+     * TCP, and the server's UDP path is avoided until the next probe. Uploads have no such feedback, so their
+     * transport is only chosen up front.
+     */
+    private static class AutoTransport {
+        enum Choice { TCP, STRIPED_TCP, UDP }
+
+        /**
+         * What is known about the path to one server.
+         */
+        private static class PathStats {
+            long probedAt = 0;  // System.nanoTime() of the last probe, 0 before the first
+            double controlRtt = -1;  // Median round trip of a PING on the control connection, in ms
+            double udpRtt = -1;  // Median round trip of an echoed datagram in ms, -1 if none came back
+            double loss = 1;  // Fraction of the echo datagrams lost on the way there or back
+            boolean udpFailed = false;  // A UDP download to the server collapsed since the last probe
+            final double[] goodput = new double[Choice.values().length];  // Smoothed bytes/s per choice, 0 before the first
+        }
+
+        private static final Map<String, PathStats> PATHS = new HashMap<>();  // By host:port, used from the menu thread only
+
+        /**
+         * Downloads a file over the transport chosen for it.
+         * @param fileName The file to download.
+         * @param home The menu's session with the connected server.
+         * @throws IOException If the path cannot be probed or a striped download fails.
+         */
+        static void get(String fileName, NodeSession home) throws IOException {
+            // The size, from the node that owns the file, whose path is the one that matters
+            NodeSession session = home;
+            session.out.println("STAT " + fileName);
+            String response = session.in.readLine();
+            for (int hops = 0; redirectTarget(response) != null && hops < MAX_REDIRECTS; hops++) {
+                session = nodeSession(redirectTarget(response));
+                response = requestOnNode(session, "STAT " + fileName);
+            }
+            long size = response != null && response.startsWith("STAT ") ? Long.parseLong(response.split(" ")[1]) : -1;
+
+            PathStats path = path(session);
+            Choice choice = choose(path, size, true);
+            printAndLog("AUTO: " + fileName + (size >= 0 ? " (" + size + " bytes)" : "") + " over " + choice, true);
+            long start = System.nanoTime();
+            if (choice == Choice.STRIPED_TCP) {
+                SwarmDownload.download(fileName, List.of(), AUTO_TCP_STREAMS);
+            } else {
+                udpMode = choice == Choice.UDP;
+                home.setUdp(udpMode);
+                if (!receiveFile(fileName, home)) {
+                    return;  // Nothing was transferred to time
+                }
+            }
+            record(path, choice, size * (testingMode && choice != Choice.STRIPED_TCP ? NUM_TESTS : 1), System.nanoTime() - start);
+        }
+
+        /**
+         * Uploads a file in the current upload mode over the transport chosen for it. DELTA and DEDUP uploads
+         * always use TCP, so only full uploads are timed for the path's history.
+         * @param fileName The file to upload.
+         * @param home The menu's session with the connected server.
+         * @throws IOException If the path cannot be probed or the upload fails.
+         */
+        static void put(String fileName, NodeSession home) throws IOException {
+            long size = localLength(fileName);
+            PathStats path = path(home);
+            Choice choice = choose(path, size, false);
+            printAndLog("AUTO: " + fileName + " (" + size + " bytes) over " + choice, true);
+            udpMode = choice == Choice.UDP;
+            home.setUdp(udpMode);
+            long start = System.nanoTime();
+            upload(fileName, home);
+            if (uploadMode == UploadMode.FULL || SyntheticData.isSink(fileName)) {
+                record(path, choice, size * (testingMode ? NUM_TESTS : 1), System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Picks the transport for one transfer.
+         * @param path What is known about the path to the server.
+         * @param size The file size, or -1 if unknown.
+         * @param download Whether the transfer is a GET; only downloads can be striped over TCP.
+         * @return The choice.
+         */
+        static Choice choose(PathStats path, long size, boolean download) {
+            if (size >= 0 && size < AUTO_SMALL_FILE) {
+                return Choice.TCP;
+            }
+            boolean udpUsable = path.udpRtt >= 0 && path.loss == 0 && !path.udpFailed;
+            boolean stripable = download && size >= AUTO_STRIPED_FILE;
+            List<Choice> candidates = new ArrayList<>();
+            candidates.add(Choice.TCP);
+            if (stripable) {
+                candidates.add(Choice.STRIPED_TCP);
+            }
+            if (udpUsable) {
+                candidates.add(Choice.UDP);
+            }
+
+            // Once every candidate has been timed on this path, the fastest one wins
+            Choice fastest = null;
+            for (Choice candidate : candidates) {
+                double goodput = path.goodput[candidate.ordinal()];
+                if (goodput == 0) {
+                    fastest = null;
+                    break;
+                }
+                if (fastest == null || goodput > path.goodput[fastest.ordinal()]) {
+                    fastest = candidate;
+                }
+            }
+            if (fastest != null) {
+                return fastest;
+            }
+            if (udpUsable) {
+                return Choice.UDP;
+            }
+            return stripable && path.controlRtt >= AUTO_LONG_RTT ? Choice.STRIPED_TCP : Choice.TCP;
+        }
+
+        /**
+         * Returns what is known about the path to a server, probing it first if it was never probed or the
+         * last probe is older than AUTO_PROBE_INTERVAL.
+         */
+        private static PathStats path(NodeSession session) throws IOException {
+            PathStats path = PATHS.computeIfAbsent(session.host + ":" + session.port, node -> new PathStats());
+            if (path.probedAt == 0 || System.nanoTime() - path.probedAt > AUTO_PROBE_INTERVAL * 1_000_000) {
+                probe(session, path);
+            }
+            return path;
+        }
+
+        /**
+         * Measures the control round trip with bare PINGs, then the UDP round trip and loss with a burst of
+         * datagrams the server echoes. A server without PING, or whose UDP port cannot be reached, gets a
+         * loss of 1, which keeps its transfers on TCP.
+         */
+        private static void probe(NodeSession session, PathStats path) throws IOException {
+            String node = session.host + ":" + session.port;
+            double[] rtts = new double[AUTO_PINGS];
+            for (int i = 0; i < AUTO_PINGS; i++) {
+                long start = System.nanoTime();
+                session.out.println("PING");
+                if (session.in.readLine() == null) {
+                    throw new EOFException("Connection to " + node + " closed during PING");
+                }
+                rtts[i] = (System.nanoTime() - start) / 1e6;
+            }
+            Arrays.sort(rtts);
+            path.controlRtt = rtts[AUTO_PINGS / 2];
+            path.udpRtt = -1;
+            path.loss = 1;
+            path.udpFailed = false;
+            path.probedAt = System.nanoTime();
+
+            session.out.println("PING " + AUTO_PROBE_DATAGRAMS);
+            String response = session.in.readLine();
+            if (response == null) {
+                throw new EOFException("Connection to " + node + " closed during PING");
+            }
+            if (!response.startsWith("PONG ")) {
+                printAndLog(String.format(Locale.ROOT, "AUTO: path to %s: control RTT %.2f ms, no UDP echo (%s)", node, path.controlRtt, response), true);
+                return;
+            }
+            String[] pong = response.split(" ");  // "PONG <port> <count> session=<id>", laid out like READY
+            int echoSession;
+            try {
+                echoSession = readySession(pong);
+            } catch (IOException e) {
+                session.in.readLine();  // The PINGED that follows
+                printAndLog(String.format(Locale.ROOT, "AUTO: path to %s: control RTT %.2f ms, no UDP echo (%s)", node, path.controlRtt, e.getMessage()), true);
+                return;
+            }
+            InetSocketAddress server = new InetSocketAddress(session.host, parsePorts(pong[1])[0]);
+            boolean[] echoed = new boolean[AUTO_PROBE_DATAGRAMS];
+            List<Double> echoRtts = new ArrayList<>();
+            try (DatagramSocket socket = new DatagramSocket()) {
+                byte[] datagram = new byte[DEFAULT_DATAGRAM_SIZE];
+                for (int i = 0; i < AUTO_PROBE_DATAGRAMS; i++) {
+                    putHeader(ByteBuffer.wrap(datagram), echoSession, i).putLong(System.nanoTime());  // Send time, returned in the echo
+                    socket.send(new DatagramPacket(datagram, datagram.length, server));
+                }
+                byte[] buffer = new byte[DEFAULT_DATAGRAM_SIZE];
+                long deadline = System.currentTimeMillis() + AUTO_ECHO_TIMEOUT;
+                long remaining;
+                while (echoRtts.size() < AUTO_PROBE_DATAGRAMS && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    socket.setSoTimeout((int) remaining);
+                    try {
+                        socket.receive(packet);
+                    } catch (SocketTimeoutException e) {
+                        break;
+                    }
+                    ByteBuffer echo = ByteBuffer.wrap(buffer, 0, packet.getLength());
+                    if (packet.getLength() < DATAGRAM_HEADER + Long.BYTES || echo.get(0) != DATAGRAM_VERSION || echo.getInt(1) != echoSession) {
+                        continue;
+                    }
+                    long sequenceNumber = echo.getLong(DATAGRAM_HEADER - Long.BYTES);
+                    if (sequenceNumber >= 0 && sequenceNumber < AUTO_PROBE_DATAGRAMS && !echoed[(int) sequenceNumber]) {
+                        echoed[(int) sequenceNumber] = true;
+                        echoRtts.add((System.nanoTime() - echo.getLong(DATAGRAM_HEADER)) / 1e6);
+                    }
+                }
+            }
+            String pinged = session.in.readLine();  // "PINGED <received>", once the server stops echoing
+            if (pinged == null) {
+                throw new EOFException("Connection to " + node + " closed during PING");
+            }
+            int received = pinged.startsWith("PINGED ") ? Integer.parseInt(pinged.split(" ")[1]) : echoRtts.size();
+            path.loss = 1 - (double) echoRtts.size() / AUTO_PROBE_DATAGRAMS;
+            if (!echoRtts.isEmpty()) {
+                Collections.sort(echoRtts);
+                path.udpRtt = echoRtts.get(echoRtts.size() / 2);
+            }
+            printAndLog(String.format(Locale.ROOT, "AUTO: path to %s: control RTT %.2f ms, UDP RTT %.2f ms, UDP loss %.1f%% (%.1f%% on the way there)",
+                    node, path.controlRtt, path.udpRtt, path.loss * 100, 100 - received * 100.0 / AUTO_PROBE_DATAGRAMS), true);
+        }
+
+        /**
+         * Adds a finished transfer's goodput to the path's history. Small transfers are skipped, as they time
+         * the setup rather than the path, and so are UDP downloads that collapsed.
+         */
+        private static void record(PathStats path, Choice choice, long bytes, long nanos) {
+            if (bytes < AUTO_SMALL_FILE || nanos <= 0 || (choice == Choice.UDP && path.udpFailed)) {
+                return;
+            }
+            double goodput = bytes * 1e9 / nanos;
+            double previous = path.goodput[choice.ordinal()];
+            path.goodput[choice.ordinal()] = previous == 0 ? goodput : AUTO_GOODPUT_WEIGHT * goodput + (1 - AUTO_GOODPUT_WEIGHT) * previous;
+        }
+
+        /**
+         * Notes that a UDP download from a server collapsed, so its transfers stay on TCP until the next probe.
+         */
+        static void udpFailed(NodeSession session) {
+            PathStats path = PATHS.get(session.host + ":" + session.port);
+            if (path != null) {
+                path.udpFailed = true;
+            }
+        }
+
+        /**
+         * Fetches the rest of a download over TCP with GETRANGE, on a session of its own, after UDP was abandoned.
+         * The file is checked with STAT first, so a file replaced on the server since READY is not completed with
+         * the new version's bytes.
+         * @param fileName The file being downloaded; its first offset bytes are already written.
+         * @param session The session the download ran on.
+         * @param offset Where the rest starts.
+         * @param size The file size.
+         * @param version The version READY reported, or null if the server sent none.
+         * @throws IOException If the file changed on the server or the range cannot be fetched.
+         */
+        static void resume(String fileName, NodeSession session, long offset, long size, String version) throws IOException {
+            long length = size - offset;
+            printAndLog("AUTO: fetching the remaining " + length + " bytes of " + fileName + " over TCP", true);
+            try (NodeSession tcp = NodeSession.open(session.host + ":" + session.port, remoteDirectory, false)) {
+                tcp.out.println("STAT " + fileName);
+                String stat = tcp.in.readLine();
+                if (stat == null || !stat.startsWith("STAT ")) {
+                    throw new IOException("STAT before GETRANGE failed: " + stat);
+                }
+                String[] fields = stat.substring("STAT ".length()).split(" ");
+                if (version != null ? !sameVersion(version.split(":"), fields) : Long.parseLong(fields[0]) != size) {
+                    throw new IOException(fileName + " changed on the server during the download");
+                }
+                String response = requestTransfer("GETRANGE " + fileName + " " + offset + " " + length, tcp.out, tcp.in);
+                if (response == null || !response.startsWith("READY")) {
+                    throw new IOException("GETRANGE refused: " + response);
+                }
+                try (Socket data = tcp.openDataConnection(Integer.parseInt(response.split(" ")[1]));
+                     InputStream in = data.getInputStream();
+                     RandomAccessFile file = SyntheticData.isSink(fileName) ? null : new RandomAccessFile(fileName, "rw");
+                     TransferProgress progress = new TransferProgress("GET-" + fileName, length)) {
+                    if (file != null) {
+                        file.setLength(offset);  // Drop anything past the last in-order byte
+                        file.seek(offset);
+                    }
+                    byte[] buffer = new byte[JOB_BUFFER_SIZE];
+                    long received = 0;
+                    int bytesRead;
+                    while ((bytesRead = in.read(buffer)) != -1) {
+                        if (file != null) {
+                            file.write(buffer, 0, bytesRead);
+                        }
+                        received += bytesRead;
+                        progress.add(bytesRead);
+                    }
+                    if (received != length) {
+                        throw new EOFException("range ended after " + received + " of " + length + " bytes");
+                    }
+                }
+                tcp.out.println("QUIT");
+                tcp.in.readLine();
+            }
+        }
+
+        /**
+         * Compares two versions of a file as the server's conditional GET does: by content hash when both
+         * have one, otherwise by size and modification time.
+         * @param expected The version from READY (size, millis and an optional SHA-256).
+         * @param current The fields of a later STAT.
+         * @return True if both describe the same version.
+         */
+        private static boolean sameVersion(String[] expected, String[] current) {
+            if (expected.length > 2 && current.length > 2) {
+                return expected[2].equals(current[2]);
+            }
+            return current.length >= 2 && expected[0].equals(current[0]) && expected[1].equals(current[1]);
+        }
+    }
+
+    /**
+     * Local copies of downloaded files (-Dftp.cache=<dir>), each kept with the version the server reported in READY
+     * (size, modification time and, with the server's file catalog, a SHA-256). A GET of a file that is in the cache
+     * asks the server to send it only if that version is no longer current; otherwise the server answers
+     * NOT_MODIFIED and the copy is taken from the cache. Entries are named by the SHA-256 of their key (server,
+     * directory and path): the data in <name>.data and the key, version and length in <name>.meta. An entry is
+     * populated by writing both to temporary files and renaming the data first, so an entry whose metadata exists is
+     * complete, and data left without metadata by a crash is removed at startup. Once the data exceeds the size limit,
+     * the least recently used entries are evicted; the modification time of the metadata file records the last use.
+     */
+    private static class DownloadCache {
+        private final File directory;
+        private final long limit;
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);  // By key, least recently used first
+        private long size = 0;  // Bytes of cached data
+        private long hits = 0;
+        private long misses = 0;
+
+        /**
+         * One cached file.
+         */
+        static class Entry {
+            final String key;
+            final String name;  // Hex SHA-256 of the key, naming the entry's files
+            final String version;  // "<size>:<millis>[:<sha256>]" from READY
+            final long length;
+
+            Entry(String key, String name, String version, long length) {
+                this.key = key;
+                this.name = name;
+                this.version = version;
+                this.length = length;
+            }
+        }
+
+        private DownloadCache(File directory, long limit) {
+            this.directory = directory;
+            this.limit = limit;
+        }
+
+        /**
+         * Opens the cache, creating the directory if needed, and loads its entries in order of last use.
+         * @param directory The cache directory.
+         * @param limit Most bytes of file data to keep.
+         * @return The cache.
+         * @throws IOException If the directory cannot be created or read.
+         */
+        static DownloadCache open(File directory, long limit) throws IOException {
+            Files.createDirectories(directory.toPath());
+            DownloadCache cache = new DownloadCache(directory, limit);
+            File[] files = directory.listFiles();
+            if (files == null) {
+                throw new IOException("cannot list " + directory);
+            }
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                String fileName = file.getName();
+                if (fileName.endsWith(".tmp")) {
+                    Files.deleteIfExists(file.toPath());  // Left by an interrupted store
+                } else if (fileName.endsWith(".meta")) {
+                    String name = fileName.substring(0, fileName.length() - ".meta".length());
+                    List<String> meta = Files.readAllLines(file.toPath());
+                    File data = new File(directory, name + ".data");
+                    if (meta.size() >= 3 && data.length() == Long.parseLong(meta.get(2))) {
+                        cache.entries.put(meta.get(0), new Entry(meta.get(0), name, meta.get(1), data.length()));
+                        cache.size += data.length();
+                    } else {
+                        Files.deleteIfExists(file.toPath());
+                    }
+                }
+            }
+            for (File file : files) {
+                String fileName = file.getName();
+                if (fileName.endsWith(".data") && !new File(directory, fileName.replace(".data", ".meta")).exists()) {
+                    Files.deleteIfExists(file.toPath());  // Data whose metadata was never written
+                }
+            }
+            cache.evict();
+            return cache;
+        }
+
+        /**
+         * Looks a file up and marks it as used.
+         * @param key The file's cache key.
+         * @return The entry, or null if the file is not cached.
+         */
+        synchronized Entry lookup(String key) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            new File(directory, entry.name + ".meta").setLastModified(System.currentTimeMillis());  // Last use, for the next run
+            return entry;
+        }
+
+        /**
+         * Copies a downloaded file into the cache, replacing the key's older entry, then evicts the least
+         * recently used entries until the data fits the limit again.
+         * @param key The file's cache key.
+         * @param version The version READY reported.
+         * @param file The downloaded file.
+         * @throws IOException If the copy cannot be written.
+         */
+        void store(String key, String version, File file) throws IOException {
+            long length = file.length();
+            if (length > limit) {
+                return;
+            }
+            String name = HexFormat.of().formatHex(sha256(key));
+            remove(key);
+            Path data = directory.toPath().resolve(name + ".data");
+            Path meta = directory.toPath().resolve(name + ".meta");
+            Path dataTemp = Files.createTempFile(directory.toPath(), name, ".tmp");
+            Path metaTemp = Files.createTempFile(directory.toPath(), name, ".tmp");
+            try {
+                Files.copy(file.toPath(), dataTemp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                Files.write(metaTemp, List.of(key, version, String.valueOf(length)));
+                Files.move(dataTemp, data, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(metaTemp, meta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(dataTemp);
+                Files.deleteIfExists(metaTemp);
+            }
+            synchronized (this) {
+                entries.put(key, new Entry(key, name, version, length));
+                size += length;
+            }
+            evict();
+        }
+
+        /**
+         * Puts a cached file in place of the local one. A local file with the cached copy's length and modification
+         * time is taken to be that copy and left alone; otherwise the copy is written next to it and renamed over it.
+         * @param entry The cached file.
+         * @param file The local file.
+         * @return True if the file was copied, false if it already matched.
+         * @throws IOException If the copy fails.
+         */
+        boolean restore(Entry entry, File file) throws IOException {
+            Path data = directory.toPath().resolve(entry.name + ".data");
+            if (file.length() == entry.length && file.lastModified() == Files.getLastModifiedTime(data).toMillis()) {
+                return false;
+            }
+            Path target = file.getAbsoluteFile().toPath();
+            Path temp = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+            try {
+                Files.copy(data, temp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            return true;
+        }
+
+        private synchronized void remove(String key) throws IOException {
+            Entry entry = entries.remove(key);
+            if (entry != null) {
+                size -= entry.length;
+                Files.deleteIfExists(directory.toPath().resolve(entry.name + ".meta"));  // The entry is gone once this is
+                Files.deleteIfExists(directory.toPath().resolve(entry.name + ".data"));
+            }
+        }
+
+        private synchronized void evict() throws IOException {
+            while (size > limit && !entries.isEmpty()) {
+                Entry eldest = entries.values().iterator().next();
+                remove(eldest.key);
+                printAndLog("Download cache: evicted " + eldest.key, false);
+            }
+        }
+
+        private static byte[] sha256(String key) throws IOException {
+            try {
+                return MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+
+        /**
+         * @return The directory, the entries and bytes held against the limit, and hits and misses so far.
+         */
+        synchronized String describe() {
+            return directory + ", " + entries.size() + " files, " + size + " of " + limit + " bytes, " + hits + " hits, " + misses + " misses";
+        }
+    }
+
+    /**
+     * Benchmark runner. Sweeps a matrix of files (sizes) x operations x transfer modes x concurrency
+     * (offered load). Each cell runs warmup iterations that are discarded, then measured iterations in
+     * which every concurrent client opens a fresh session and times, with System.nanoTime():
+     * handshake (connect until the session is ready), time to first byte (command until data flows)
+     * and transfer (first byte until the last one; for PUT, until the server answers the following
+     * QUIT, i.e. has stored the file). Downloads are discarded rather than written to disk, so the
+     * network path is measured. Results are written as raw samples (CSV) and summaries with mean,
+     * median, stddev, 95% confidence interval of the mean and percentiles (CSV and JSON).
+     * Each cell's summary is also appended to the result store (ftp.bench.store) as one JSON line, with
+     * the run's ID and label and the environment it ran in, so testing/BenchCompare can test two runs
+     * for significant differences. Lines are only ever appended, one write per cell.
+     */
+    private static class Benchmark {
+        private static final String[] METRICS = {"handshake_ms", "ttfb_ms", "transfer_ms", "response_ms", "throughput_Bps", "aggregate_throughput_Bps"};
+        private static final double[] T_95 = {12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+                2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+                2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042};  // Two-sided 95% t values, df 1..30
+
+        /**
+         * One timed transfer.
+         */
+        private static class Sample {
+            long handshakeNanos;
+            long ttfbNanos;
+            long transferNanos;
+            long bytes;
+            String error;  // Null when the transfer succeeded
+
+            long responseNanos() {
+                return handshakeNanos + ttfbNanos + transferNanos;
+            }
+        }
+
+        private final List<String> files;
+        private final List<String> operations;
+        private final List<String> modes;
+        private final List<Integer> concurrencyLevels;
+        private final int warmup;
+        private final int iterations;
+        private final String outputPrefix;
+        private final String label;  // Names the build or configuration under test in the result store
+        private final String run;  // Ties a run's lines in the result store together
+
+        Benchmark(List<String> files, List<String> operations, List<String> modes, List<Integer> concurrencyLevels,
+                  int warmup, int iterations, String outputPrefix, String label) {
+            this.files = files;
+            this.operations = operations;
+            this.modes = modes;
+            this.concurrencyLevels = concurrencyLevels;
+            this.warmup = warmup;
+            this.iterations = iterations;
+            this.outputPrefix = outputPrefix;
+            this.label = label;
+            this.run = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + "-" + HexFormat.of().toHexDigits((short) new SecureRandom().nextInt());
+        }
+
+        /**
+         * Runs every cell of the matrix and writes the results.
+         * @throws IOException If the results cannot be written.
+         */
+        void run() throws IOException {
+            File samplesFile = new File(outputPrefix + "-samples.csv");
+            File summaryFile = new File(outputPrefix + "-summary.csv");
+            File jsonFile = new File(outputPrefix + ".json");
+            File storeFile = BENCH_STORE.isEmpty() ? null : new File(BENCH_STORE);
+            String environment = environment();
+            try (PrintWriter samplesOut = new PrintWriter(new BufferedWriter(new FileWriter(samplesFile)));
+                 PrintWriter summaryOut = new PrintWriter(new BufferedWriter(new FileWriter(summaryFile)));
+                 PrintWriter jsonOut = new PrintWriter(new BufferedWriter(new FileWriter(jsonFile)));
+                 PrintWriter storeOut = new PrintWriter(storeFile != null ? new FileWriter(storeFile, true) : Writer.nullWriter())) {
+                samplesOut.println("file,operation,mode,concurrency,iteration,client,size,handshake_ns,ttfb_ns,transfer_ns,response_ns,error");
+                summaryOut.println("file,operation,mode,concurrency,size,samples,failures,metric,mean,median,stddev,ci95_low,ci95_high,min,p5,p25,p75,p95,p99,max");
+                jsonOut.println("{\"warmup\": " + warmup + ", \"iterations\": " + iterations + ", \"cells\": [");
+                boolean firstCell = true;
+                for (String file : files) {
+                    for (String operation : operations) {
+                        for (String mode : modes) {
+                            for (int concurrency : concurrencyLevels) {
+                                String cell = operation + " " + file + " " + mode + " x" + concurrency;
+                                printAndLog("Benchmark " + cell + ": " + warmup + " warmup, " + iterations + " measured iterations", true);
+                                for (int i = 0; i < warmup; i++) {
+                                    runIteration(file, operation, mode, concurrency);
+                                }
+                                List<Sample> samples = new ArrayList<>();
+                                List<Double> aggregate = new ArrayList<>();
+                                for (int i = 0; i < iterations; i++) {
+                                    long start = System.nanoTime();
+                                    List<Sample> batch = runIteration(file, operation, mode, concurrency);
+                                    long wall = System.nanoTime() - start;
+                                    long batchBytes = 0;
+                                    for (int c = 0; c < batch.size(); c++) {
+                                        Sample sample = batch.get(c);
+                                        samplesOut.println(csv(file) + "," + operation + "," + mode + "," + concurrency + "," + i + "," + c + "," + sample.bytes + ","
+                                                + sample.handshakeNanos + "," + sample.ttfbNanos + "," + sample.transferNanos + "," + sample.responseNanos() + ","
+                                                + (sample.error == null ? "" : csv(sample.error)));
+                                        if (sample.error == null) {
+                                            batchBytes += sample.bytes;
+                                        }
+                                    }
+                                    aggregate.add(batchBytes * 1e9 / wall);
+                                    samples.addAll(batch);
+                                }
+                                samplesOut.flush();
+                                firstCell = summarize(file, operation, mode, concurrency, samples, aggregate, summaryOut, jsonOut, firstCell,
+                                        storeOut, environment);
+                            }
+                        }
+                    }
+                }
+                jsonOut.println("]}");
+            }
+            printAndLog("Benchmark results written to " + samplesFile + ", " + summaryFile + " and " + jsonFile, true);
+            if (storeFile != null) {
+                printAndLog("Benchmark run " + run + " (" + label + ") appended to " + storeFile, true);
+            }
+        }
+
+        /**
+         * Runs one transfer on each of `concurrency` clients, all started together.
+         */
+        private List<Sample> runIteration(String file, String operation, String mode, int concurrency) {
+            List<Thread> clients = new ArrayList<>();
+            List<Sample> batch = new ArrayList<>();
+            CountDownLatch startGate = new CountDownLatch(1);
+            for (int c = 0; c < concurrency; c++) {
+                Sample sample = new Sample();
+                batch.add(sample);
+                // Concurrent uploads of one file would contend for the server's lock on it
+                String baseName = SyntheticData.isSink(file) ? file : new File(file).getName();  // Synthetic uploads go to the server's null sink
+                String remoteName = operation.equals("PUT") && concurrency > 1 && !SyntheticData.isSink(file) ? baseName + ".bench" + c : baseName;
+                Thread client = new Thread(() -> {
+                    try {
+                        startGate.await();
+                        measure(file, remoteName, operation.equals("PUT"), mode.equals("UDP"), sample);
+                    } catch (IOException | RuntimeException e) {
+                        sample.error = e.getClass().getSimpleName() + ": " + e.getMessage();
+                    } catch (InterruptedException e) {
+                        sample.error = "interrupted";
+                    }
+                }, "benchmark-client-" + c);
+                clients.add(client);
+                client.start();
+            }
+            startGate.countDown();
+            for (Thread client : clients) {
+                try {
+                    client.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return batch;
+        }
+
+        /**
+         * Times one transfer on a new session.
+         */
+        private void measure(String file, String remoteName, boolean upload, boolean udp, Sample sample) throws IOException {
+            long start = System.nanoTime();
+            NodeSession session = NodeSession.open(serverIP + ":" + serverPort, remoteDirectory, udp);
+            try {
+                long ready = System.nanoTime();
+                sample.handshakeNanos = ready - start;
+
+                File localFile = new File(file);
+                String command = upload ? "PUT " + remoteName + " " + localLength(file) : "GET " + remoteName;
+                String response = requestTransfer(command, session.out, session.in);
+                for (int hops = 0; redirectTarget(response) != null && hops < MAX_REDIRECTS; hops++) {
+                    session.close();
+                    session = NodeSession.open(redirectTarget(response), remoteDirectory, udp);  // Counted in the time to first byte
+                    response = requestTransfer(command, session.out, session.in);
+                }
+                PrintWriter out = session.out;
+                BufferedReader in = session.in;
+                if (response == null || !response.startsWith("READY")) {
+                    throw new IOException("server answered " + response);
+                }
+                String[] readyResponse = response.split(" ");
+                int port = parsePorts(readyResponse[1])[0];
+                long size = Long.parseLong(readyResponse[2]);
+                long firstByte;
+                long end;
+
+                if (!upload && !udp) {
+                    try (Socket data = session.openDataConnection(port);
+                         InputStream is = data.getInputStream()) {
+                        byte[] buffer = new byte[JOB_BUFFER_SIZE];
+                        int bytesRead = is.read(buffer);
+                        firstByte = System.nanoTime();
+                        long received = Math.max(0, bytesRead);
+                        while (bytesRead != -1 && (bytesRead = is.read(buffer)) != -1) {
+                            received += bytesRead;
+                        }
+                        end = System.nanoTime();
+                        if (received != size) {
+                            throw new IOException("received " + received + " of " + size + " bytes");
+                        }
+                    }
+                } else if (!upload) {
+                    int udpSession = readySession(readyResponse);
+                    List<DatagramSocket> sockets = openStripeSockets(parsePorts(readyResponse[1]).length);
+                    try (TransferProgress progress = new TransferProgress(null, size, false)) {
+                        Reassembler reassembly = new Reassembler(OutputStream.nullOutputStream(), size, progress);
+                        sendHellos(sockets, InetAddress.getByName(session.host), parsePorts(readyResponse[1]), udpSession);
+                        out.println("CLIENT_READY " + joinPorts(sockets));
+                        try {
+                            receiveStripes(sockets, reassembly, readyCipher(readyResponse), udpSession);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("benchmark interrupted");
+                        }
+                        end = System.nanoTime();
+                        firstByte = reassembly.getFirstDataNanos() != 0 ? reassembly.getFirstDataNanos() : end;
+                        if (reassembly.getPayloadBytes() != size) {
+                            throw new IOException("received " + reassembly.getPayloadBytes() + " of " + size + " bytes");
+                        }
+                    } finally {
+                        sockets.forEach(DatagramSocket::close);
+                    }
+                } else {
+                    try (InputStream fis = openLocal(file)) {
+                        byte[] buffer = new byte[Math.max(JOB_BUFFER_SIZE, MAX_DATAGRAM_SIZE)];
+                        int bytesRead;
+                        if (!udp) {
+                            try (Socket data = session.openDataConnection(port);
+                                 OutputStream bos = new BufferedOutputStream(data.getOutputStream(), JOB_BUFFER_SIZE)) {
+                                firstByte = System.nanoTime();
+                                while ((bytesRead = fis.read(buffer)) != -1) {
+                                    bos.write(buffer, 0, bytesRead);
+                                }
+                            }
+                        } else {
+                            int[] ports = parsePorts(readyResponse[1]);
+                            List<DatagramSocket> sockets = new ArrayList<>();
+                            try {
+                                DatagramCipher cipher = readyCipher(readyResponse);
+                                int udpSession = readySession(readyResponse);
+                                List<DatagramSender> senders = new ArrayList<>();
+                                for (int stripePort : ports) {
+                                    DatagramSocket datagramSocket = new DatagramSocket();
+                                    sockets.add(datagramSocket);
+                                    datagramSocket.setSoTimeout(TIMEOUT);
+                                    DatagramSender sender = new DatagramSender(datagramSocket, InetAddress.getByName(session.host), stripePort, udpSession);
+                                    sender.setCipher(cipher != null ? cipher.copy() : null);
+                                    sender.probe();
+                                    senders.add(sender);
+                                }
+                                String rateOption = readyOption(readyResponse, "rate");
+                                long rate = rateOption != null ? Long.parseLong(rateOption) : 0;
+                                long sendStart = System.nanoTime();
+                                AtomicLong sent = new AtomicLong();
+                                AtomicLong datagrams = new AtomicLong();
+                                sendStripes(fis, senders, (sequenceNumber, length, checksum) ->
+                                        pace(sendStart, datagrams.incrementAndGet() * UDP_IP_APPLICATION_OVERHEAD + sent.addAndGet(length), rate));
+                                firstByte = sendStart;
+                            } finally {
+                                sockets.forEach(DatagramSocket::close);
+                            }
+                        }
+                    }
+                    out.println("QUIT");
+                    in.readLine();  // Answered once the server has stored the upload
+                    end = System.nanoTime();
+                }
+                sample.ttfbNanos = firstByte - ready;
+                sample.transferNanos = end - firstByte;
+                sample.bytes = size;
+                if (!upload) {
+                    out.println("QUIT");
+                    in.readLine();
+                }
+            } finally {
+                session.close();
+            }
+        }
+
+        /**
+         * Describes where the benchmark runs, as FTPServer logs it at startup, as the start of a result store line:
+         * OS, Java version, CPUs, heap, MTU and the MTU of the interface that reaches the server, plus the
+         * client settings that change what is measured.
+         */
+        private String environment() {
+            int interfaceMtu = -1;
+            try (DatagramSocket route = new DatagramSocket()) {
+                route.connect(InetAddress.getByName(serverIP), serverPort);  // Picks the local address without sending anything
+                NetworkInterface nic = NetworkInterface.getByInetAddress(route.getLocalAddress());
+                interfaceMtu = nic != null ? nic.getMTU() : -1;
+            } catch (IOException e) {
+                printAndLog("Could not find the interface to the server: " + e.getMessage(), false);
+            }
+            return "{\"run\": \"" + run + "\", \"label\": \"" + json(label) + "\", \"time\": \"" + java.time.Instant.now()
+                    + "\", \"os\": \"" + json(System.getProperty("os.name") + " " + System.getProperty("os.version") + " (" + System.getProperty("os.arch") + ")")
+                    + "\", \"java\": \"" + json(System.getProperty("java.version") + " (" + System.getProperty("java.vendor") + ")")
+                    + "\", \"cpus\": " + Runtime.getRuntime().availableProcessors() + ", \"max_memory\": " + Runtime.getRuntime().maxMemory()
+                    + ", \"mtu\": " + MTU + ", \"interface_mtu\": " + interfaceMtu + ", \"udp_maxdatagram\": " + MAX_DATAGRAM_SIZE
+                    + ", \"tls\": " + TLS + ", \"stripes\": " + UDP_STRIPES + ", \"server\": \"" + json(serverIP + ":" + serverPort)
+                    + "\", \"warmup\": " + warmup + ", \"iterations\": " + iterations;
+        }
+
+        /**
+         * Writes the statistics of one cell, and appends them to the result store.
+         * @return False, so the caller knows later cells need a separating comma in the JSON.
+         */
+        private boolean summarize(String file, String operation, String mode, int concurrency, List<Sample> samples, List<Double> aggregate,
+                                  PrintWriter summaryOut, PrintWriter jsonOut, boolean firstCell, PrintWriter storeOut, String environment) {
+            List<Sample> ok = new ArrayList<>();
+            for (Sample sample : samples) {
+                if (sample.error == null) {
+                    ok.add(sample);
+                }
+            }
+            int failures = samples.size() - ok.size();
+            long size = ok.isEmpty() ? 0 : ok.get(0).bytes;
+            double[][] values = new double[METRICS.length][];
+            values[0] = new double[ok.size()];
+            values[1] = new double[ok.size()];
+            values[2] = new double[ok.size()];
+            values[3] = new double[ok.size()];
+            values[4] = new double[ok.size()];
+            for (int i = 0; i < ok.size(); i++) {
+                Sample sample = ok.get(i);
+                values[0][i] = sample.handshakeNanos / 1e6;
+                values[1][i] = sample.ttfbNanos / 1e6;
+                values[2][i] = sample.transferNanos / 1e6;
+                values[3][i] = sample.responseNanos() / 1e6;
+                values[4][i] = sample.bytes * 1e9 / Math.max(1, sample.responseNanos());
+            }
+            values[5] = aggregate.stream().mapToDouble(Double::doubleValue).toArray();
+
+            String cell = "\"file\": \"" + json(file) + "\", \"operation\": \"" + operation + "\", \"mode\": \"" + mode
+                    + "\", \"concurrency\": " + concurrency + ", \"size\": " + size + ", \"samples\": " + ok.size() + ", \"failures\": " + failures;
+            jsonOut.print((firstCell ? "" : ",\n") + "  {" + cell + ", \"metrics\": {");
+            // The store line is flat: n, mean, stddev, median and p95 of each metric, enough for a Welch's t-test
+            StringBuilder stored = new StringBuilder(environment).append(", ").append(cell);
+            for (int m = 0; m < METRICS.length; m++) {
+                double[] stats = statistics(values[m]);
+                stored.append(", \"").append(METRICS[m]).append("_n\": ").append(values[m].length);
+                int[] kept = {0, 2, 1, 9};
+                String[] keptNames = {"mean", "stddev", "median", "p95"};
+                for (int k = 0; k < kept.length; k++) {
+                    stored.append(", \"").append(METRICS[m]).append("_").append(keptNames[k]).append("\": ")
+                            .append(Double.isNaN(stats[kept[k]]) ? "null" : String.format(Locale.ROOT, "%.3f", stats[kept[k]]));
+                }
+                StringBuilder row = new StringBuilder(csv(file) + "," + operation + "," + mode + "," + concurrency + "," + size + "," + ok.size() + "," + failures + "," + METRICS[m]);
+                StringBuilder object = new StringBuilder((m > 0 ? ", " : "") + "\"" + METRICS[m] + "\": {");
+                String[] names = {"mean", "median", "stddev", "ci95_low", "ci95_high", "min", "p5", "p25", "p75", "p95", "p99", "max"};
+                for (int k = 0; k < names.length; k++) {
+                    String value = Double.isNaN(stats[k]) ? "" : String.format(Locale.ROOT, "%.3f", stats[k]);
+                    row.append(",").append(value);
+                    object.append(k > 0 ? ", " : "").append("\"").append(names[k]).append("\": ").append(value.isEmpty() ? "null" : value);
+                }
+                summaryOut.println(row);
+                jsonOut.print(object.append("}"));
+            }
+            jsonOut.print("}}");
+            summaryOut.flush();
+            jsonOut.flush();
+            storeOut.println(stored.append("}"));
+            storeOut.flush();  // A line at a time, so a run cut short keeps the cells it finished
+
+            double[] response = statistics(values[3]);
+            double[] throughput = statistics(values[5]);
+            printAndLog(String.format("  %d ok, %d failed; response median %.1f ms (95%% CI of mean %.1f..%.1f ms, p95 %.1f ms); aggregate throughput median %.0f b/s",
+                    ok.size(), failures, response[1], response[3], response[4], response[9], throughput[1]), true);
+            return false;
+        }
+
+        /**
+         * @return mean, median, stddev, 95% CI low/high of the mean, min, p5, p25, p75, p95, p99, max (NaN when undefined).
+         */
+        private static double[] statistics(double[] values) {
+            double[] stats = new double[12];
+            Arrays.fill(stats, Double.NaN);
+            int n = values.length;
+            if (n == 0) {
+                return stats;
+            }
+            double[] sorted = values.clone();
+            Arrays.sort(sorted);
+            double sum = 0;
+            for (double value : sorted) {
+                sum += value;
+            }
+            double mean = sum / n;
+            stats[0] = mean;
+            stats[1] = percentile(sorted, 50);
+            if (n > 1) {
+                double squares = 0;
+                for (double value : sorted) {
+                    squares += (value - mean) * (value - mean);
+                }
+                double stddev = Math.sqrt(squares / (n - 1));
+                double t = n - 1 <= T_95.length ? T_95[n - 2] : 1.96 + 2.37 / (n - 1);  // Large df: Cornish-Fisher approximation
+                double halfWidth = t * stddev / Math.sqrt(n);
+                stats[2] = stddev;
+                stats[3] = mean - halfWidth;
+                stats[4] = mean + halfWidth;
+            }
+            stats[5] = sorted[0];
+            stats[6] = percentile(sorted, 5);
+            stats[7] = percentile(sorted, 25);
+            stats[8] = percentile(sorted, 75);
+            stats[9] = percentile(sorted, 95);
+            stats[10] = percentile(sorted, 99);
+            stats[11] = sorted[n - 1];
+            return stats;
+        }
+
+        /**
+         * Percentile of sorted values, interpolating linearly between closest ranks.
+         */
+        private static double percentile(double[] sorted, double p) {
+            double rank = p / 100 * (sorted.length - 1);
+            int lower = (int) Math.floor(rank);
+            int upper = (int) Math.ceil(rank);
+            return sorted[lower] + (sorted[upper] - sorted[lower]) * (rank - lower);
+        }
+
+        private static String csv(String value) {
+            return value.contains(",") || value.contains("\"") ? "\"" + value.replace("\"", "\"\"") + "\"" : value;
+        }
+
+        private static String json(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"");
+        }
+    }
+
+    /**
+     * Virtual files for network benchmarks that do not touch the disk. "synthetic/random/<size>" and
+     * "synthetic/zero/<size>" read as <size> bytes (suffixes K, M, G, T are powers of 1024) of seeded
+     * pseudo-random data or zeros, generated in memory as they are sent. Downloads of any "synthetic/" path
+     * are discarded, as the server discards uploads to one. The random stream is the same on both sides.
+     */
+    private static class SyntheticData {
+        private static final String PREFIX = "synthetic/";
+        final long size;
+        private final boolean random;
+
+        private SyntheticData(long size, boolean random) {
+            this.size = size;
+            this.random = random;
+        }
+
+        /**
+         * Parses a synthetic source path.
+         * @param name The requested path.
+         * @return The source, or null if the path is not a synthetic source.
+         */
+        static SyntheticData parse(String name) {
+            if (!isSink(name)) {
+                return null;
+            }
+            String[] parts = name.substring(PREFIX.length()).split("/");
+            if (parts.length != 2 || !(parts[0].equals("random") || parts[0].equals("zero"))) {
+                return null;
+            }
+            String size = parts[1].toUpperCase();
+            int shift = "KMGT".indexOf(size.isEmpty() ? ' ' : size.charAt(size.length() - 1)) + 1;
+            try {
+                long value = Long.parseLong(shift > 0 ? size.substring(0, size.length() - 1) : size);
+                if (value < 0 || value > Long.MAX_VALUE >> (10 * shift)) {
+                    return null;
+                }
+                return new SyntheticData(value << (10 * shift), parts[0].equals("random"));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @param name The requested path.
+         * @return True if the path is synthetic, so a download of it is discarded.
+         */
+        static boolean isSink(String name) {
+            return name.replace('\\', '/').startsWith(PREFIX);
+        }
+
+        InputStream open() {
+            return new SyntheticInputStream(size, random);
+        }
+    }
+
+    /**
+     * Stream of pseudo-random (xorshift64*) or zero bytes of a fixed length. Random bytes come out the
+     * same whatever the read sizes, since leftover bytes of a generated word carry over between reads.
+     */
+    private static class SyntheticInputStream extends InputStream {
+        private long remaining;
+        private final boolean random;
+        private long state;
+        private long word;  // Generated bytes not yet returned, lowest byte first
+        private int wordBytes;
+
+        private SyntheticInputStream(long size, boolean random) {
+            this.remaining = size;
+            this.random = random;
+            this.state = SYNTHETIC_SEED ^ size;
+        }
+
+        private long next() {
+            state ^= state >>> 12;
+            state ^= state << 25;
+            state ^= state >>> 27;
+            return state * 0x2545F4914F6CDD1DL;
+        }
+
+        @Override
+        public int read() {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining == 0) {
+                return -1;
+            }
+            int n = (int) Math.min(len, remaining);
+            remaining -= n;
+            int end = off + n;
+            if (!random) {
+                Arrays.fill(b, off, end, (byte) 0);
+                return n;
+            }
+            int i = off;
+            while (wordBytes > 0 && i < end) {
+                b[i++] = (byte) word;
+                word >>>= 8;
+                wordBytes--;
+            }
+            while (end - i >= Long.BYTES) {
+                long value = next();
+                for (int k = 0; k < Long.BYTES; k++) {
+                    b[i++] = (byte) value;
+                    value >>>= 8;
+                }
+            }
+            if (i < end) {
+                word = next();
+                wordBytes = Long.BYTES;
+                while (i < end) {
+                    b[i++] = (byte) word;
+                    word >>>= 8;
+                    wordBytes--;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            return 0;  // Keeps the random stream identical to reading every byte
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, remaining);
+        }
+    }
+
+    /**
+     * Takes file writes off a UDP receive thread. Writes are copied into WRITE_BEHIND_BLOCK-sized
+     * blocks and a writer thread hands each full block to the file in one call, so a disk stall
+     * delays the writer instead of the socket reads. The receiver only waits, and the kernel buffer
+     * only fills, once WRITE_BEHIND_LIMIT bytes are queued. flush() hands over the partial block;
+     * close() waits for everything to reach the file.
+     */
+    private static class WriteBehindOutputStream extends OutputStream {
+        private static final Block END = new Block(0); // Tells the writer to stop
+        private final OutputStream sink;
+        private final BlockingQueue<Block> full = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Block> free;
+        private final int maxBlocks;
+        private final Thread writer;
+        private int allocated;
+        private Block current;
+        private boolean closed;
+        private volatile IOException failure;
+        // Metrics, reported by describe()
+        private int peakBacklog; // Most full blocks waiting for the writer at once
+        private long receiverWaitNanos; // Time the receiver spent waiting for a free block
+        private long writes; // Written by the writer thread, read after it has finished
+        private long writtenBytes;
+        private long longestWriteNanos;
+
+        private static final class Block {
+            final byte[] data;
+            int length;
+
+            Block(int size) {
+                data = new byte[size];
+            }
+        }
+
+        WriteBehindOutputStream(OutputStream sink, int blockSize, long limit) {
+            this.sink = sink;
+            this.maxBlocks = (int) Math.max(2, Math.min(Integer.MAX_VALUE, limit / blockSize));
+            this.free = new ArrayBlockingQueue<>(maxBlocks);
+            this.current = new Block(blockSize);
+            this.allocated = 1;
+            this.writer = new Thread(this::drain, "write-behind");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        private void drain() {
+            try {
+                Block block;
+                while ((block = full.take()) != END) {
+                    if (failure == null) {
+                        long start = System.nanoTime();
+                        try {
+                            sink.write(block.data, 0, block.length);
+                        } catch (IOException e) {
+                            failure = e; // Reported to the receiver; later blocks are only recycled
+                        }
+                        long elapsed = System.nanoTime() - start;
+                        longestWriteNanos = Math.max(longestWriteNanos, elapsed);
+                        writes++;
+                        writtenBytes += block.length;
+                    }
+                    block.length = 0;
+                    free.add(block);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Queues the current block for the writer and takes an empty one, waiting only when the
+         * backlog limit is reached.
+         * @throws IOException If the writer failed or the wait was interrupted.
+         */
+        private void handOff() throws IOException {
+            full.add(current);
+            peakBacklog = Math.max(peakBacklog, full.size());
+            Block next = free.poll();
+            if (next == null && allocated < maxBlocks) {
+                next = new Block(current.data.length);
+                allocated++;
+            }
+            if (next == null) {
+                long start = System.nanoTime();
+                try {
+                    next = free.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Write-behind interrupted");
+                } finally {
+                    receiverWaitNanos += System.nanoTime() - start;
+                }
+            }
+            current = next;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            while (len > 0) {
+                int n = Math.min(len, current.data.length - current.length);
+                System.arraycopy(b, off, current.data, current.length, n);
+                current.length += n;
+                off += n;
+                len -= n;
+                if (current.length == current.data.length) {
+                    handOff();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            if (current.length > 0) {
+                handOff();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (current.length > 0) {
+                    full.add(current);
+                }
+                full.add(END);
+                boolean interrupted = false;
+                while (writer.isAlive()) {
+                    try {
+                        writer.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true; // The file must be complete before it is closed
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            } finally {
+                sink.close();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        /**
+         * @return A summary of how the write-behind stage kept up, for the transfer log.
+         */
+        String describe() {
+            return String.format("Write-behind: %d writes averaging %d KB, longest write %d ms, peak backlog %d of %d blocks, receiver waited %d ms",
+                    writes, writes > 0 ? writtenBytes / writes / 1024 : 0, longestWriteNanos / 1_000_000,
+                    peakBacklog, maxBlocks, receiverWaitNanos / 1_000_000);
+        }
+    }
+
+    /**
+     * Reads a stream ahead of its consumer on a background thread, so disk reads overlap network sends.
+     * The reader fills READ_AHEAD_BLOCK-sized buffers from a small pool of reusable buffers and queues
+     * them; the sender drains full buffers and hands them back. Blocks start at multiples of the block
+     * size, which is a multiple of the page size, so every disk read is page aligned.
+     */
+    private static class ReadAheadInputStream extends InputStream {
+        private static final Block END = new Block(0); // Queued after the last block, or after a read error
+        private final InputStream source;
+        private final BlockingQueue<Block> full;
+        private final BlockingQueue<Block> free;
+        private final Thread reader;
+        private Block current;
+        private int position;
+        private volatile IOException failure;
+
+        private static final class Block {
+            final byte[] data;
+            int length;
+
+            Block(int size) {
+                data = new byte[size];
+            }
+        }
+
+        ReadAheadInputStream(InputStream source, int blockSize, int depth) {
+            this.source = source;
+            this.full = new ArrayBlockingQueue<>(depth + 1); // Room for every buffer plus the end marker
+            this.free = new ArrayBlockingQueue<>(depth);
+            for (int i = 0; i < depth; i++) {
+                free.add(new Block(blockSize));
+            }
+            this.reader = new Thread(this::fill, "read-ahead");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void fill() {
+            try {
+                while (true) {
+                    Block block = free.take();
+                    block.length = source.readNBytes(block.data, 0, block.data.length);
+                    if (block.length == 0) {
+                        break;
+                    }
+                    full.put(block);
+                    if (block.length < block.data.length) {
+                        break; // readNBytes only comes up short at the end of the stream
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                // Closed by the consumer
+            } catch (RuntimeException | Error e) {
+                failure = new IOException("Read-ahead failed: " + e, e);
+                throw e;
+            } finally {
+                full.add(END); // Always, so the consumer never waits on a reader that has stopped
+            }
+        }
+
+        /**
+         * Moves to the next full block, returning the drained one to the reader.
+         * @return False at the end of the stream.
+         * @throws IOException If the reader failed or the wait was interrupted.
+         */
+        private boolean nextBlock() throws IOException {
+            if (current == END) {
+                return false;
+            }
+            if (current != null) {
+                free.add(current);
+            }
+            try {
+                current = full.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Read-ahead interrupted");
+            }
+            position = 0;
+            if (current == END && failure != null) {
+                throw failure;
+            }
+            return current != END;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if ((current == null || position == current.length) && !nextBlock()) {
+                return -1;
+            }
+            return current.data[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if ((current == null || position == current.length) && !nextBlock()) {
+                return -1;
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current.data, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return current == null || current == END ? 0 : current.length - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.interrupt();
+            try {
+                reader.join(); // A block read in progress finishes before the source is closed under it
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * Wraps a UDP receiver's file stream in a write-behind stage, unless write-behind is turned off.
+     * @param sink The stream the received data goes to.
+     * @return The wrapped stream, or the sink itself.
+     */
+    private static OutputStream writeBehind(OutputStream sink) {
+        return WRITE_BEHIND_LIMIT > 0 ? new WriteBehindOutputStream(sink, WRITE_BEHIND_BLOCK, WRITE_BEHIND_LIMIT) : sink;
+    }
+
+    /**
+     * Wraps a file stream in a read-ahead pipeline, unless read-ahead is turned off.
+     * @param source The stream to read ahead of.
+     * @return The wrapped stream, or the source itself.
+     */
+    private static InputStream readAhead(InputStream source) {
+        return READ_AHEAD_DEPTH > 0 ? new ReadAheadInputStream(source, READ_AHEAD_BLOCK, READ_AHEAD_DEPTH) : source;
+    }
+
+    /**
+     * Opens a local file, or a synthetic source, to upload.
+     * @param fileName The local path.
+     * @return A stream over its contents.
+     * @throws IOException If the file cannot be opened.
+     */
+    private static InputStream openLocal(String fileName) throws IOException {
+        SyntheticData synthetic = SyntheticData.parse(fileName);
+        return synthetic != null ? synthetic.open() : readAhead(new FileInputStream(fileName));
+    }
+
+    /**
+     * Returns the size of a local file, or of a synthetic source.
+     * @param fileName The local path.
+     * @return The size in bytes.
+     */
+    private static long localLength(String fileName) {
+        SyntheticData synthetic = SyntheticData.parse(fileName);
+        return synthetic != null ? synthetic.size : new File(fileName).length();
+    }
+
+    /**
+     * Opens the local file a download is written to; synthetic downloads are discarded.
+     * @param fileName The local path.
+     * @return The stream to write the download to.
+     * @throws IOException If the file cannot be created.
+     */
+    private static OutputStream openDownload(String fileName) throws IOException {
+        return SyntheticData.isSink(fileName) ? OutputStream.nullOutputStream() : new FileOutputStream(fileName);
+    }
+
+    /**
+     * A control session with one server. A cluster node answers a transfer command for a file that another
+     * node owns with "REDIRECT <host:port>", and the command is repeated on a session with that node, set up
+     * like the original one: same user, stripe count, directory and transfer mode.
+     */
+    private static class NodeSession implements Closeable {
+        final String host;
+        final int port;
+        final PrintWriter out;
+        final BufferedReader in;
+        private final Socket socket;
+        private boolean udp = false;  // Transfer mode of the server's side of the session, toggled with MODE
+
+        NodeSession(String host, int port, Socket socket) throws IOException {
+            this.host = host;
+            this.port = port;
+            this.socket = socket;
+            this.out = new PrintWriter(socket.getOutputStream(), true);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        }
+
+        /**
+         * Opens a session and sets it up for transfers.
+         * @param node The server's host:port.
+         * @param directory CD arguments that lead to the directory to work in.
+         * @param udp Whether transfers use UDP.
+         * @return The session.
+         * @throws IOException If the server cannot be reached or refuses a CD.
+         */
+        static NodeSession open(String node, List<String> directory, boolean udp) throws IOException {
+            int split = node.lastIndexOf(':');
+            String host;
+            int port;
+            try {
+                host = node.substring(0, split);
+                port = Integer.parseInt(node.substring(split + 1));
+            } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                throw new IOException("Invalid node address: " + node);  // e.g. a malformed REDIRECT
+            }
+            NodeSession session = new NodeSession(host, port, openControlConnection(host, port));
+            try {
+                if (userName != null) {
+                    session.out.println("USER " + userName);
+                    session.in.readLine();
+                }
+                if (UDP_STRIPES > 1) {
+                    session.out.println("STRIPES " + UDP_STRIPES);
+                    session.in.readLine();
+                }
+                for (String dir : directory) {
+                    session.out.println("CD " + dir);
+                    String response = session.in.readLine();
+                    if (response == null || !response.startsWith("Changed directory")) {
+                        throw new TransferRefusedException("CD " + dir + " on " + node + ": " + response);
+                    }
+                }
+                session.setUdp(udp);
+                return session;
+            } catch (IOException e) {
+                session.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Switches the server's side of the session to a transfer mode, if it is in the other one.
+         */
+        void setUdp(boolean udp) {
+            if (this.udp != udp) {
+                out.println("MODE");
+                this.udp = udp;
+            }
+        }
+
+        Socket openDataConnection(int dataPort) throws IOException {
+            return FTPClient.openDataConnection(host, port, dataPort);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * A transfer the server refused outright (such as a missing file), which retrying will not fix.
+     */
+    private static class TransferRefusedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TransferRefusedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * AES-GCM protection of UDP transfers when TLS is on. The key and salt are made per transfer by the
+     * server and sent in READY over the TLS control connection. Each datagram is [header][ciphertext][tag];
+     * the header's sequence number is authenticated as associated data and, after the salt, forms the nonce, so no
+     * nonce repeats under a key. The 16-byte tag replaces the CRC32 trailer. Probes, acknowledgements and
+     * the end-of-file signal carry no file data and stay in the clear.
+     */
+    private static class DatagramCipher {
+        private final SecretKeySpec key;
+        private final byte[] salt;
+        private final byte[] nonce = new byte[GCM_NONCE_LENGTH];
+        private Cipher cipher;
+        private long lastSealed = Long.MIN_VALUE;
+
+        private DatagramCipher(byte[] key, byte[] salt) throws IOException {
+            this.key = new SecretKeySpec(key, "AES");
+            this.salt = salt;
+            this.cipher = newCipher();
+        }
+
+        /**
+         * Makes a cipher with a fresh random key and salt.
+         * @return The cipher.
+         * @throws IOException If AES-GCM is unavailable.
+         */
+        static DatagramCipher generate() throws IOException {
+            SecureRandom random = new SecureRandom();
+            byte[] key = new byte[GCM_KEY_LENGTH];
+            byte[] salt = new byte[GCM_NONCE_LENGTH - Long.BYTES];
+            random.nextBytes(key);
+            random.nextBytes(salt);
+            return new DatagramCipher(key, salt);
+        }
+
+        /**
+         * Rebuilds the peer's cipher from the key=... salt=... fields of a READY line.
+         * @param key The hex key.
+         * @param salt The hex salt.
+         * @return The cipher.
+         * @throws IOException If the fields are malformed or AES-GCM is unavailable.
+         */
+        static DatagramCipher fromHex(String key, String salt) throws IOException {
+            try {
+                return new DatagramCipher(HexFormat.of().parseHex(key), HexFormat.of().parseHex(salt));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed datagram key", e);
+            }
+        }
+
+        /**
+         * Makes another cipher with the same key and salt, for another thread of a striped transfer.
+         * @return The copy.
+         * @throws IOException If AES-GCM is unavailable.
+         */
+        DatagramCipher copy() throws IOException {
+            return new DatagramCipher(key.getEncoded(), salt);
+        }
+
+        /**
+         * @return The READY fields that hand the key and salt to the peer.
+         */
+        String readyOptions() {
+            return " key=" + HexFormat.of().formatHex(key.getEncoded()) + " salt=" + HexFormat.of().formatHex(salt);
+        }
+
+        private static Cipher newCipher() throws IOException {
+            try {
+                return Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IOException("AES-GCM unavailable", e);
+            }
+        }
+
+        private void init(int mode, long sequenceNumber) throws GeneralSecurityException {
+            System.arraycopy(salt, 0, nonce, 0, salt.length);
+            ByteBuffer.wrap(nonce, salt.length, Long.BYTES).putLong(sequenceNumber);
+            cipher.init(mode, key, new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce));
+            cipher.updateAAD(nonce, salt.length, Long.BYTES);
+        }
+
+        /**
+         * Encrypts one datagram payload.
+         * @return The ciphertext length, including the tag.
+         * @throws IOException If encryption fails.
+         */
+        int seal(long sequenceNumber, byte[] input, int offset, int length, byte[] output, int outputOffset) throws IOException {
+            try {
+                if (sequenceNumber == lastSealed) {
+                    // Resending a piece that could not be sent; a fresh Cipher accepts the same nonce again
+                    cipher = newCipher();
+                }
+                lastSealed = sequenceNumber;
+                init(Cipher.ENCRYPT_MODE, sequenceNumber);
+                return cipher.doFinal(input, offset, length, output, outputOffset);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Datagram encryption failed", e);
+            }
+        }
+
+        /**
+         * Decrypts and authenticates one datagram payload.
+         * @return The plaintext length, or -1 if the datagram was forged or damaged.
+         */
+        int open(long sequenceNumber, byte[] input, int offset, int length, byte[] output, int outputOffset) {
+            try {
+                init(Cipher.DECRYPT_MODE, sequenceNumber);
+                return cipher.doFinal(input, offset, length, output, outputOffset);
+            } catch (GeneralSecurityException e) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Sends file data as sequenced datagrams: [sequence number (8 bytes)][data][CRC32 checksum (4 bytes)].
+     * Before the data, the path is probed for the largest datagram that arrives with the don't-fragment
+     * bit set, up to the 64 KB UDP limit. Where the JDK cannot set the bit, fragmented datagrams would pass
+     * the probe, so datagrams stay Ethernet-sized. If a large datagram is later refused
+     * as too big, the sender drops back to Ethernet-sized datagrams and carries on.
+     */
+    private static class DatagramSender {
+        private final DatagramSocket socket;
+        private final InetAddress address;
+        private final int port;
+        private final int session; // Session ID in every datagram's header
+        private final byte[] packetBuffer = new byte[MAX_DATAGRAM_SIZE];
+        private final CRC32 crc = new CRC32();
+        private int payloadSize = UDP_BUFFER_SIZE; // Data bytes per datagram
+        private int lastChecksum = 0;
+        private DatagramCipher cipher; // Set for encrypted transfers
+
+        private DatagramSender(DatagramSocket socket, InetAddress address, int port, int session) {
+            this.socket = socket;
+            this.address = address;
+            this.port = port;
+            this.session = session;
+        }
+
+        /**
+         * Probes the path for the largest datagram size that the receiver acknowledges.
+         * Each candidate size is sent twice as [header -2][size][padding]; the receiver answers [header -3][size].
+         * @return The negotiated datagram size in bytes.
+         * @throws IOException If the socket fails.
+         */
+        private int probe() throws IOException {
+            socket.setSendBufferSize(Math.max(socket.getSendBufferSize(), UDP_SEND_BUFFER));
+            if (!setDontFragment(socket, true)) {
+                return DEFAULT_DATAGRAM_SIZE; // Large probes could arrive as fragments and still be acknowledged
+            }
+            int largestSent = 0;
+            for (int size : PROBE_DATAGRAM_SIZES) {
+                if (size > MAX_DATAGRAM_SIZE || size <= DEFAULT_DATAGRAM_SIZE) {
+                    continue;
+                }
+                ByteBuffer probe = ByteBuffer.wrap(packetBuffer, 0, size);
+                putHeader(probe, session, PROBE_SEQUENCE).putInt(size);
+                try {
+                    for (int i = 0; i < PROBE_REPEATS; i++) {
+                        socket.send(new DatagramPacket(packetBuffer, size, address, port));
+                    }
+                    largestSent = Math.max(largestSent, size);
+                } catch (IOException e) {
+                    // Too big for the local interface (EMSGSIZE); try the next size down
+                }
+            }
+
+            int datagramSize = DEFAULT_DATAGRAM_SIZE;
+            if (largestSent > 0) {
+                int previousTimeout = socket.getSoTimeout();
+                long deadline = System.currentTimeMillis() + PROBE_TIMEOUT;
+                byte[] ack = new byte[DATAGRAM_HEADER + Integer.BYTES];
+                try {
+                    while (datagramSize < largestSent) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        socket.setSoTimeout((int) remaining);
+                        DatagramPacket packet = new DatagramPacket(ack, ack.length);
+                        socket.receive(packet);
+                        ByteBuffer reply = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+                        if (packet.getLength() == ack.length && reply.get() == DATAGRAM_VERSION && reply.getInt() == session
+                                && reply.getLong() == PROBE_ACK_SEQUENCE) {
+                            datagramSize = Math.max(datagramSize, reply.getInt());
+                        }
+                    }
+                } catch (SocketTimeoutException e) {
+                    // Whatever was acknowledged so far is the answer
+                } finally {
+                    socket.setSoTimeout(previousTimeout);
+                }
+            }
+            payloadSize = datagramSize - DATAGRAM_HEADER - trailerLength();
+            return datagramSize;
+        }
+
+        /**
+         * Encrypts the datagrams of this transfer; the GCM tag replaces the CRC32 trailer.
+         * @param cipher The transfer's cipher.
+         */
+        private void setCipher(DatagramCipher cipher) {
+            this.cipher = cipher;
+            this.payloadSize = DEFAULT_DATAGRAM_SIZE - DATAGRAM_HEADER - trailerLength();
+        }
+
+        private int trailerLength() {
+            return cipher != null ? GCM_TAG_LENGTH : Integer.BYTES;
+        }
+
+        /**
+         * Sends one data datagram of at most the negotiated payload size.
+         * @param sequenceNumber The datagram's place in the transfer.
+         * @param data The buffer holding the data.
+         * @param offset The start of the data.
+         * @param length The number of bytes to send.
+         * @throws IOException If the datagram cannot be sent.
+         */
+        private void send(long sequenceNumber, byte[] data, int offset, int length) throws IOException {
+            ByteBuffer packet = ByteBuffer.wrap(packetBuffer);
+            putHeader(packet, session, sequenceNumber);
+            int packetLength;
+            if (cipher != null) {
+                packetLength = DATAGRAM_HEADER + cipher.seal(sequenceNumber, data, offset, length, packetBuffer, DATAGRAM_HEADER);
+            } else {
+                crc.reset();
+                crc.update(data, offset, length);
+                lastChecksum = (int) crc.getValue();
+                packet.put(data, offset, length).putInt(lastChecksum);
+                packetLength = packet.position();
+            }
+            DatagramPacket datagram = new DatagramPacket(packetBuffer, packetLength, address, port);
+            try {
+                socket.send(datagram);
+            } catch (IOException e) {
+                int ethernetPayload = DEFAULT_DATAGRAM_SIZE - DATAGRAM_HEADER - trailerLength();
+                if (payloadSize <= ethernetPayload) {
+                    throw e;
+                }
+                // The path shrank. Later datagrams are Ethernet-sized; this one is already numbered, so it goes out fragmented
+                payloadSize = ethernetPayload;
+                setDontFragment(socket, false);
+                socket.send(datagram);
+            }
+        }
+
+        /**
+         * Sends the end-of-file signal (sequence number -1) with the size of the data, which is how the server learns
+         * the size of a streamed upload. It is sent PROBE_REPEATS times, as losing it would cost a stream its end.
+         * @param size The bytes sent on every stripe together.
+         * @throws IOException If the datagram cannot be sent.
+         */
+        private void sendEnd(long size) throws IOException {
+            ByteBuffer endBuffer = ByteBuffer.allocate(DATAGRAM_HEADER + Long.BYTES);
+            putHeader(endBuffer, session, -1L).putLong(size);
+            for (int i = 0; i < PROBE_REPEATS; i++) {
+                socket.send(new DatagramPacket(endBuffer.array(), endBuffer.capacity(), address, port));
+            }
+        }
+
+        private int getPayloadSize() {
+            return payloadSize;
+        }
+
+        private int getLastChecksum() {
+            return lastChecksum;
+        }
+    }
+
+    /**
+     * Accounts for each data datagram a stripe sends, e.g. to pace the transfer.
+     */
+    @FunctionalInterface
+    private interface DatagramPacer {
+        void sent(long sequenceNumber, int length, int checksum) throws IOException;
+    }
+
+    /**
+     * Sends a stream as sequenced datagrams over every stripe of a UDP transfer. Each sender runs its
+     * own loop on its own thread (the first on the caller's), taking the next piece of the stream and
+     * the next sequence number together, so the stripes share one sequence space and a stripe on a
+     * faster path simply carries more of the file. Each stripe ends with its own end-of-file signal.
+     * @param source The data to send.
+     * @param senders One probed sender per stripe.
+     * @param pacer Called after every data datagram, from several threads at once when striped.
+     * @throws IOException If reading the source or sending fails on any stripe.
+     */
+    private static void sendStripes(InputStream source, List<DatagramSender> senders, DatagramPacer pacer) throws IOException {
+        AtomicLong nextSequence = new AtomicLong();
+        AtomicLong size = new AtomicLong();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (DatagramSender sender : senders.subList(1, senders.size())) {
+            Thread thread = new Thread(() -> sendStripe(source, nextSequence, size, sender, pacer, failure), "udp-stripe-" + (threads.size() + 2));
+            thread.start();
+            threads.add(thread);
+        }
+        sendStripe(source, nextSequence, size, senders.get(0), pacer, failure);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, new InterruptedIOException("Striped send interrupted"));
+                break;
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * The send loop of one stripe.
+     * @param source The data to send, shared by all stripes.
+     * @param nextSequence The next unused sequence number, shared by all stripes.
+     * @param size The bytes read from the source so far, shared by all stripes; final once the source has ended.
+     * @param sender This stripe's sender.
+     * @param pacer Called after every data datagram.
+     * @param failure Where the first failure on any stripe is recorded; stops the other stripes.
+     */
+    private static void sendStripe(InputStream source, AtomicLong nextSequence, AtomicLong size, DatagramSender sender,
+                                   DatagramPacer pacer, AtomicReference<IOException> failure) {
+        byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        try {
+            while (failure.get() == null) {
+                int bytesRead;
+                long sequenceNumber;
+                synchronized (source) {
+                    bytesRead = source.read(buffer, 0, sender.getPayloadSize());
+                    if (bytesRead == -1) {
+                        break;
+                    }
+                    size.addAndGet(bytesRead);
+                    sequenceNumber = nextSequence.getAndIncrement();
+                }
+                sender.send(sequenceNumber, buffer, 0, bytesRead);
+                pacer.sent(sequenceNumber, bytesRead, sender.getLastChecksum());
+
+                // Introduce a small delay
+                try {
+                    Thread.sleep(UDP_DELAY);
+                }
+                    catch(InterruptedException e) {
+                    printAndLog("Thread interrupted: " + e.getMessage(), true);
+                }
+            }
+            if (failure.get() == null) {
+                // Send end-of-file signal with sequence number -1
+                sender.sendEnd(size.get());
+            }
+        } catch (IOException e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    /**
+     * Starts a datagram with the header every datagram carries: [version (1 byte)][session ID (4 bytes)][sequence number (8 bytes)].
+     * @param buffer The datagram, positioned at its start.
+     * @param session The transfer's session ID.
+     * @param sequenceNumber The sequence number, or one of the negative signals.
+     * @return The buffer, positioned after the header.
+     */
+    private static ByteBuffer putHeader(ByteBuffer buffer, int session, long sequenceNumber) {
+        return buffer.put(DATAGRAM_VERSION).putInt(session).putLong(sequenceNumber);
+    }
+
+    /**
+     * Sends a hello from each download stripe's socket to the server port of that stripe, so a server on a shared
+     * UDP port learns where the stripe receives, as seen through any NAT, before it sends. Each goes out
+     * PROBE_REPEATS times in case one is lost; a server that gets none uses the ports of CLIENT_READY.
+     * @param sockets The download's sockets, one per stripe.
+     * @param serverAddress The server.
+     * @param ports The server's ports from READY, one per stripe.
+     * @param session The session ID from READY.
+     * @throws IOException If a hello cannot be sent.
+     */
+    private static void sendHellos(List<DatagramSocket> sockets, InetAddress serverAddress, int[] ports, int session) throws IOException {
+        for (int stripe = 0; stripe < Math.min(sockets.size(), ports.length); stripe++) {
+            ByteBuffer hello = ByteBuffer.allocate(DATAGRAM_HEADER + Integer.BYTES);
+            putHeader(hello, session, HELLO_SEQUENCE).putInt(stripe);
+            for (int i = 0; i < PROBE_REPEATS; i++) {
+                sockets.get(stripe).send(new DatagramPacket(hello.array(), hello.capacity(), serverAddress, ports[stripe]));
+            }
+        }
+    }
+
+    /**
+     * Formats the local ports of a transfer's stripes for READY/CLIENT_READY, e.g. "50001,50002".
+     * @param sockets One socket per stripe.
+     * @return The comma-separated ports.
+     */
+    private static String joinPorts(List<DatagramSocket> sockets) {
+        StringBuilder ports = new StringBuilder();
+        for (DatagramSocket socket : sockets) {
+            ports.append(ports.length() > 0 ? "," : "").append(socket.getLocalPort());
+        }
+        return ports.toString();
+    }
+
+    /**
+     * Parses the comma-separated stripe ports of a READY/CLIENT_READY line.
+     * @param ports The port field.
+     * @return The ports, one per stripe.
+     */
+    private static int[] parsePorts(String ports) {
+        return Arrays.stream(ports.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    /**
+     * Answers a path MTU probe received by a PacketHandler, echoing the probed size back to the sender.
+     * @param socket The receiving socket.
+     * @param probe The probe datagram.
+     * @param byteBuffer The probe contents, positioned after the header.
+     * @param session The transfer's session ID.
+     * @throws IOException If the acknowledgement cannot be sent.
+     */
+    private static void acknowledgeProbe(DatagramSocket socket, DatagramPacket probe, ByteBuffer byteBuffer, int session) throws IOException {
+        int size = byteBuffer.getInt();
+        if (size != probe.getLength()) {
+            return; // Truncated on the way; do not confirm this size
+        }
+        ByteBuffer ack = ByteBuffer.allocate(DATAGRAM_HEADER + Integer.BYTES);
+        putHeader(ack, session, PROBE_ACK_SEQUENCE).putInt(size);
+        socket.send(new DatagramPacket(ack.array(), ack.capacity(), probe.getSocketAddress()));
+    }
+
+    /**
+     * Sets or clears the don't-fragment bit on a datagram socket, so oversized probes fail instead of being fragmented.
+     * The option exists from JDK 19; older JDKs cannot set it.
+     * @param socket The socket to configure.
+     * @param on Whether datagrams may not be fragmented.
+     * @return Whether the option was set.
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean setDontFragment(DatagramSocket socket, boolean on) {
+        try {
+            SocketOption<Boolean> option = (SocketOption<Boolean>) Class.forName("jdk.net.ExtendedSocketOptions")
+                    .getField("IP_DONTFRAGMENT").get(null);
+            if (socket.supportedOptions().contains(option)) {
+                socket.setOption(option, on);
+                return true;
+            }
+        } catch (ReflectiveOperationException | IOException | UnsupportedOperationException e) {
+            // Not available on this JDK or platform
+        }
+        return false;
+    }
+
+    /**
+     * Looks up an optional key=value field in a READY response (fields after the port and size).
+     * @param readyResponse The READY response split on spaces.
+     * @param key The option name.
+     * @return The option value, or null if the server did not send it.
+     */
+    private static String readyOption(String[] readyResponse, String key) {
+        for (int i = 3; i < readyResponse.length; i++) {
+            if (readyResponse[i].startsWith(key + "=")) {
+                return readyResponse[i].substring(key.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the session ID the server's datagrams carry, and that ours must carry, from its READY response.
+     * @param readyResponse The READY response split on spaces.
+     * @return The session ID.
+     * @throws IOException If the server sent none.
+     */
+    private static int readySession(String[] readyResponse) throws IOException {
+        String session = readyOption(readyResponse, "session");
+        try {
+            return Integer.parseInt(session);
+        } catch (NumberFormatException e) {
+            throw new IOException("READY without a valid session ID: " + session);
+        }
+    }
+
+    /**
+     * Builds the datagram cipher from the key and salt the server sent in its READY response.
+     * @param readyResponse The READY response split on spaces.
+     * @return The cipher, or null if the server sent no key (plaintext datagrams).
+     * @throws IOException If the key is malformed.
+     */
+    private static DatagramCipher readyCipher(String[] readyResponse) throws IOException {
+        String key = readyOption(readyResponse, "key");
+        String salt = readyOption(readyResponse, "salt");
+        return key != null && salt != null ? DatagramCipher.fromHex(key, salt) : null;
+    }
+
+    /**
+     * Sleeps until sending the given number of bytes since the start would not exceed the rate.
+     * @param startNanos The System.nanoTime() at which sending started.
+     * @param bytesSent The bytes sent so far.
+     * @param rate The rate in bytes/s (0 = unpaced).
+     */
+    private static void pace(long startNanos, long bytesSent, long rate) {
+        if (rate <= 0) {
+            return;
+        }
+        long waitNanos = startNanos + (long) (bytesSent * 1e9 / rate) - System.nanoTime();
+        if (waitNanos >= 1_000_000) {
+            try {
+                Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Logs and prints the details of a file transfer, handling both single run and test mode.
+     * @param numRuns The number of runs (1 for a single run, NUM_TESTS for test mode).
+     * @param totalDuration The total duration of all runs in milliseconds.
+     * @param totalBytesTransferred The total number of bytes transferred.
+     * @param fileName The name of the file being transferred.
+     * @param operation The operation type ("GET" or "PUT").
+     */
+    private static void logTransferDetails(int numRuns, long filesize, long totalDuration, long totalBytesTransferred, String fileName, String operation) {
+        printAndLog("\n" + operation + " transfer of " + fileName + " complete.", true);
+        if (numRuns > 1) {
+            // Test mode: display average statistics
+            long averageDuration = totalDuration / numRuns;
+            double averageThroughput = totalBytesTransferred / (averageDuration * numRuns/ 1000.0);  // Throughput in b/s
+            System.out.println("");  // New line for clarity
+            printAndLog("Average transfer time for " + numRuns + " runs: " + averageDuration + " ms", true);
+            printAndLog("File size: " + filesize + " bytes", true);
+            printAndLog("Total bytes transferred: " + totalBytesTransferred / numRuns + " bytes", true);
+            printAndLog("Average throughput: " + (long) averageThroughput + " b/s", true);
+        } else {
+            // Single run: display detailed stats
+            long duration = totalDuration;  // Total duration is for the single run
+            double throughput = totalBytesTransferred / (duration / 1000.0);  // Throughput in b/s
+            System.out.println("");  // New line for clarity
+            printAndLog(operation + " of " + fileName + " completed in " + duration + " ms", true);
+            printAndLog("File size: " + filesize + " bytes", true);
+            printAndLog("Total bytes transferred: " + totalBytesTransferred + " bytes", true);
+            printAndLog("Throughput: " + (long) throughput + " b/s", true);
+        }
+    }
+
+    /**
+     * Progress of one transfer run. The data loop only bumps lock-free counters; a shared sampler thread
+     * redraws the progress bar every PROGRESS_INTERVAL ms and records a throughput trace, which is written
+     * as CSV (for plotting) to the directory named by -Dftp.trace when the run ends.
+     */
+    private static class TransferProgress implements AutoCloseable {
+        private static final ScheduledExecutorService SAMPLER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "progress-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final String label;
+        private final long startNanos = System.nanoTime();
+        private final AtomicLong bytes = new AtomicLong();  // Bytes on the wire, including header overhead
+        private final AtomicLong retransmits = new AtomicLong();  // Datagrams received more than once
+        private final AtomicLong crcFailures = new AtomicLong();  // Datagrams dropped for a bad CRC
+        private volatile long totalBytes;
+        private volatile long sequence;
+        private volatile int checksum;
+        private final List<long[]> trace = new ArrayList<>();  // Elapsed ms, bytes, b/s, sequence, retransmits, CRC failures
+        private final ScheduledFuture<?> sampling;
+        private long lastSampleBytes;
+        private long lastSampleNanos = startNanos;
+
+        /**
+         * Starts sampling a transfer.
+         * @param label Names the trace file, e.g. "GET-a.dat".
+         * @param totalBytes The expected bytes on the wire, including overhead.
+         */
+        TransferProgress(String label, long totalBytes) {
+            this(label, totalBytes, true);
+        }
+
+        /**
+         * Tracks a transfer, optionally without drawing or tracing it (as the benchmark does).
+         * @param label Names the trace file.
+         * @param totalBytes The expected bytes on the wire, including overhead.
+         * @param display Whether to sample, draw and trace the transfer.
+         */
+        TransferProgress(String label, long totalBytes, boolean display) {
+            this.label = label;
+            this.totalBytes = totalBytes;
+            this.sampling = display ? SAMPLER.scheduleAtFixedRate(this::sample, PROGRESS_INTERVAL, PROGRESS_INTERVAL, TimeUnit.MILLISECONDS) : null;
+        }
+
+        void add(long wireBytes) {
+            bytes.addAndGet(wireBytes);
+        }
+
+        /**
+         * Records the latest datagram for display.
+         * @param sequenceNumber Its sequence number.
+         * @param crc Its CRC32 checksum.
+         */
+        void update(long sequenceNumber, int crc) {
+            sequence = sequenceNumber;
+            checksum = crc;
+        }
+
+        void setTotalBytes(long totalBytes) {
+            this.totalBytes = totalBytes;
+        }
+
+        void retransmit() {
+            retransmits.incrementAndGet();
+        }
+
+        void crcFailure() {
+            crcFailures.incrementAndGet();
+        }
+
+        /**
+         * Draws the progress bar and appends a trace point.
+         */
+        private synchronized void sample() {
+            long now = System.nanoTime();
+            long current = bytes.get();
+            long interval = now - lastSampleNanos;
+            long throughput = interval > 0 ? (current - lastSampleBytes) * 1_000_000_000L / interval : 0;
+            trace.add(new long[] {(now - startNanos) / 1_000_000, current, throughput, sequence, retransmits.get(), crcFailures.get()});
+            lastSampleBytes = current;
+            lastSampleNanos = now;
+            transferDisplay(current, totalBytes, checksum, sequence);
+        }
+
+        /**
+         * Stops sampling, draws the final state and writes the trace.
+         */
+        @Override
+        public synchronized void close() {
+            if (sampling == null) {
+                return;
+            }
+            sampling.cancel(false);
+            sample();
+            if (retransmits.get() > 0 || crcFailures.get() > 0) {
+                printAndLog("\nDuplicate datagrams: " + retransmits.get() + ", CRC failures: " + crcFailures.get(), true);
+            }
+            String traceDir = System.getProperty("ftp.trace");
+            if (traceDir != null) {
+                writeTrace(new File(traceDir));
+            }
+        }
+
+        private void writeTrace(File dir) {
+            String name = label.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + ".csv";
+            File file = new File(dir, name);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                printAndLog("\nCannot create trace directory " + dir, true);
+                return;
+            }
+            try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+                writer.println("elapsed_ms,bytes,throughput_bps,sequence,retransmits,crc_failures");
+                for (long[] point : trace) {
+                    writer.println(point[0] + "," + point[1] + "," + point[2] + "," + point[3] + "," + point[4] + "," + point[5]);
+                }
+            } catch (IOException e) {
+                printAndLog("\nCould not write trace " + file + ": " + e.getMessage(), true);
+            }
+        }
+    }
+
+    /**
+     * Displays a progress bar for the file transfer.
+     * @param currentBytes The number of bytes transferred so far.
+     * @param totalBytes The total number of bytes to transfer.
+     * @param crc The CRC32 checksum of the transferred data.
+     * @param segment The current segment/sequence number being processed.
+     */
+    private static void transferDisplay(long currentBytes, long totalBytes, int crc, long segment) {
+        // Clear the line if we're about to hit 100% to ensure no residual characters are present
+        if (currentBytes >= totalBytes) {
+            System.out.print("\r" + " ".repeat(150) + "");
+        }
+        int transferPercentage = (int) ((currentBytes / (double) totalBytes) * 100);
+
+        // Calculate how much of the bar to fill. Minimum is 0, and maximum is 50.
+        int arrowPosition = Math.max(0, Math.min(50, transferPercentage / 2));
+
+        // Build the progress bar display
+        String progressBar = "|"
+                + "=".repeat(arrowPosition)  // Filled portion
+                + (arrowPosition < 50 ? ">" : "") // Arrow
+                + " ".repeat(50 - arrowPosition)  // Empty portion
+                + "| ";
+
+        // Print transfer percentage and byte count
+        System.out.print("\r" + progressBar
+                + transferPercentage + "% ("
+                + currentBytes + "/" + totalBytes + " bytes)");
+
+        // Only print CRC if it is non-zero
+        if (crc != 0) {
+            System.out.print(" CRC32: 0x" + Integer.toHexString(crc));
+        }
+
+        if (segment != 0) {
+            System.out.print(" Segment: " + segment);
+        }
+
+        // Flush the output to ensure it updates in real-time
+        System.out.flush();
+    }
+
+    /**
+     * Computes an rsync-style delta of a local file against the block signatures of the server's copy.
+     * A weak checksum is rolled one byte at a time over the local file; on a weak hit, the MD5 of the
+     * window confirms the match and a block reference is sent instead of the data.
+     */
+    private static class DeltaEncoder {
+        private final int blockSize;
+        private final long remoteSize;
+        private final int blockCount;
+        private final Map<Integer, List<Integer>> weakIndex = new HashMap<>(); // Weak checksum -> block indices
+        private final byte[][] strongSignatures;
+        private final MessageDigest blockDigest;
+        private final MessageDigest fileDigest;
+        private long literalBytes = 0;
+        private long matchedBytes = 0;
+        private int matchedBlocks = 0;
+        private int lastMatch = -1; // Block index of the last successful match
+
+        private DeltaEncoder(DataInputStream signatures) throws IOException, NoSuchAlgorithmException {
+            this.blockSize = signatures.readInt();
+            this.remoteSize = signatures.readLong();
+            this.blockCount = signatures.readInt();
+            this.strongSignatures = new byte[blockCount][DELTA_STRONG_LENGTH];
+            for (int i = 0; i < blockCount; i++) {
+                int weak = signatures.readInt();
+                signatures.readFully(strongSignatures[i]);
+                weakIndex.computeIfAbsent(weak, k -> new ArrayList<>()).add(i);
+            }
+            this.blockDigest = MessageDigest.getInstance("MD5");
+            this.fileDigest = MessageDigest.getInstance("MD5");
+        }
+
+        /**
+         * Streams the delta for the local file, followed by the end token, the file size and its MD5.
+         * @param source The local file contents.
+         * @param dos The data connection to the server.
+         * @param fileSize The size of the local file.
+         * @throws IOException If an I/O error occurs.
+         */
+        private void encode(InputStream source, DataOutputStream dos, long fileSize) throws IOException {
+            byte[] window = new byte[Math.max(DELTA_WINDOW_SIZE, blockSize * 4)];
+            int length = 0;        // Valid bytes in the window
+            int position = 0;      // Start of the block being checked
+            int literalStart = 0;  // Start of the literal data not yet sent
+            boolean endOfFile = false;
+            boolean rolling = false;
+            int a = 0;
+            int b = 0;
+
+            while (true) {
+                if (position + blockSize >= length && !endOfFile) {
+                    // Slide the window: keep pending literal data and refill from the file
+                    System.arraycopy(window, literalStart, window, 0, length - literalStart);
+                    length -= literalStart;
+                    position -= literalStart;
+                    literalStart = 0;
+                    while (length < window.length) {
+                        int bytesRead = source.read(window, length, window.length - length);
+                        if (bytesRead == -1) {
+                            endOfFile = true;
+                            break;
+                        }
+                        fileDigest.update(window, length, bytesRead);
+                        length += bytesRead;
+                    }
+                }
+
+                int available = length - position;
+                if (available <= 0) {
+                    break;
+                }
+
+                if (available < blockSize) {
+                    // Only the short final block of the server's copy can match the tail
+                    if (matches(window, position, available, weakChecksum(window, position, available))) {
+                        sendLiteral(dos, window, literalStart, position - literalStart);
+                        sendMatch(dos, available);
+                        literalStart = length;
+                    }
+                    position = length;
+                    break;
+                }
+
+                if (!rolling) {
+                    int weak = weakChecksum(window, position, blockSize);
+                    a = weak & 0xFFFF;
+                    b = weak >>> 16;
+                    rolling = true;
+                }
+
+                if (matches(window, position, blockSize, ((b & 0xFFFF) << 16) | (a & 0xFFFF))) {
+                    sendLiteral(dos, window, literalStart, position - literalStart);
+                    sendMatch(dos, blockSize);
+                    position += blockSize;
+                    literalStart = position;
+                    rolling = false;
+                    continue;
+                }
+
+                if (position + blockSize < length) {
+                    // Roll the checksum forward by one byte
+                    int outgoing = window[position] & 0xFF;
+                    int incoming = window[position + blockSize] & 0xFF;
+                    a = (a - outgoing + incoming) & 0xFFFF;
+                    b = (b - blockSize * outgoing + a) & 0xFFFF;
+                } else {
+                    rolling = false;
+                }
+                position++;
+
+                if (position - literalStart >= DELTA_MAX_LITERAL) {
+                    sendLiteral(dos, window, literalStart, position - literalStart);
+                    literalStart = position;
+                }
+            }
+
+            sendLiteral(dos, window, literalStart, length - literalStart);
+            dos.writeByte(DELTA_END);
+            dos.writeLong(fileSize);
+            dos.write(fileDigest.digest());
+        }
+
+        /**
+         * Checks whether the window matches one of the server's blocks, confirming weak hits with MD5.
+         */
+        private boolean matches(byte[] window, int offset, int length, int weak) {
+            List<Integer> candidates = weakIndex.get(weak);
+            if (candidates == null) {
+                return false;
+            }
+            blockDigest.update(window, offset, length);
+            byte[] strong = blockDigest.digest();
+            for (int index : candidates) {
+                long blockLength = Math.min(blockSize, remoteSize - (long) index * blockSize);
+                if (blockLength == length && Arrays.equals(strong, strongSignatures[index])) {
+                    lastMatch = index;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void sendMatch(DataOutputStream dos, int length) throws IOException {
+            dos.writeByte(DELTA_MATCH);
+            dos.writeInt(lastMatch);
+            matchedBytes += length;
+            matchedBlocks++;
+        }
+
+        private void sendLiteral(DataOutputStream dos, byte[] data, int offset, int length) throws IOException {
+            if (length <= 0) {
+                return;
+            }
+            dos.writeByte(DELTA_LITERAL);
+            dos.writeInt(length);
+            dos.write(data, offset, length);
+            literalBytes += length;
+        }
+
+        public long getLiteralBytes() {
+            return literalBytes;
+        }
+
+        public long getMatchedBytes() {
+            return matchedBytes;
+        }
+
+        public int getMatchedBlocks() {
+            return matchedBlocks;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+    }
+
+    /**
+     * Computes the rsync weak checksum of a block: a 16-bit byte sum and a 16-bit weighted sum.
+     * @param data The buffer containing the block.
+     * @param offset The offset of the block in the buffer.
+     * @param length The length of the block.
+     * @return The weak checksum ((b << 16) | a).
+     */
+    private static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = data[offset + i] & 0xFF;
+            a += value;
+            b += (length - i) * value;
+        }
+        return ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+    }
+
+    /**
+     * Content-defined chunks of a file (offset, length and SHA-256), computed with the same gear
+     * rolling hash and size limits as the server's chunk store so that the hashes line up.
+     */
+    private static class ChunkList {
+        private final List<Long> offsets = new ArrayList<>();
+        private final List<Integer> lengths = new ArrayList<>();
+        private final List<byte[]> hashes = new ArrayList<>();
+
+        private int size() {
+            return offsets.size();
+        }
+
+        /**
+         * Splits a stream into content-defined chunks.
+         * @param source The data to chunk.
+         * @return The chunk list.
+         * @throws IOException If the stream cannot be read.
+         * @throws NoSuchAlgorithmException If SHA-256 is not available.
+         */
+        private static ChunkList scan(InputStream source) throws IOException, NoSuchAlgorithmException {
+            ChunkList chunks = new ChunkList();
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[DELTA_MAX_LITERAL];
+            long chunkStart = 0;
+            int length = 0;
+            long hash = 0;
+            int bytesRead;
+            while ((bytesRead = source.read(buffer)) != -1) {
+                int segmentStart = 0;
+                for (int i = 0; i < bytesRead; i++) {
+                    length++;
+                    hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+                    if ((length >= CHUNK_MIN_SIZE && (hash & CHUNK_MASK) == 0) || length == CHUNK_MAX_SIZE) {
+                        digest.update(buffer, segmentStart, i + 1 - segmentStart);
+                        chunks.add(chunkStart, length, digest.digest());
+                        chunkStart += length;
+                        segmentStart = i + 1;
+                        length = 0;
+                        hash = 0;
+                    }
+                }
+                digest.update(buffer, segmentStart, bytesRead - segmentStart);
+            }
+            if (length > 0) {
+                chunks.add(chunkStart, length, digest.digest());
+            }
+            return chunks;
+        }
+
+        private void add(long offset, int length, byte[] hash) {
+            offsets.add(offset);
+            lengths.add(length);
+            hashes.add(hash);
+        }
+    }
+
+    /**
+     * Builds the gear table for content-defined chunking from a fixed seed (splitmix64), so every
+     * client and server derives the same chunk boundaries.
+     */
+    private static long[] gearTable() {
+        long[] table = new long[256];
+        long state = CHUNK_GEAR_SEED;
+        for (int i = 0; i < table.length; i++) {
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            table[i] = z ^ (z >>> 31);
+        }
+        return table;
+    }
+
+    /**
+     * Output stream wrapper that counts the bytes written through it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        public long getCount() {
+            return count;
+        }
     }
 
     /**
@@ -4,30 +4,126 @@
  * File: FTPServer.java
  * CNT6707 - Network Architecture and Client/Server Computing
  * Description: Mutlithreaded FTP server program that uses threads to handle multiple clients
- *              Commands: GET, PUT, CD, LS, QUIT
- *              Transfer modes: TCP, UDP
+ *              Commands: GET, GETRANGE, STAT, HASHES, PUT, DELTA, CPUT, CD, LS, USER, STRIPES, PEERLS, PING, QUIT
+ *              Transfer modes: TCP, UDP (datagram size negotiated per transfer by path MTU probing, up to 64 KB,
+ *                              on JDK 19+ where the don't-fragment bit can be set; Ethernet-sized datagrams otherwise)
+ *              Striped UDP: STRIPES n spreads each UDP transfer over n sockets with a sending/receiving thread each
+ *              Shared UDP port: optional fixed pool of UDP sockets that demultiplexes every transfer by the session ID
+ *                               in the versioned datagram header (-Dftp.udp.port=<port>, -Dftp.udp.sockets=<n>)
+ *              Path probing: PING times the control path; PING <n> also echoes n datagrams on a UDP port so clients
+ *                            can measure the data path's RTT and loss before choosing a transport
+ *              Delta sync: DELTA uploads only the changed blocks of a file (rsync-style)
+ *              Chunk store: optional deduplicating storage backend (-Dftp.chunkstore=true)
+ *              Scheduling: optional total/per-client/per-user rate caps with weighted fair sharing (-Dftp.rate.*)
+ *              Admission control: session/transfer limits, idle timeout and load shedding with BUSY replies
+ *              Synthetic data: GET synthetic/random/<size> or synthetic/zero/<size> from memory, PUT synthetic/... to a null sink
+ *              Encryption: optional TLS on control and TCP data connections, AES-GCM on UDP datagrams (-Dftp.tls=true)
+ *              Read-ahead: files are read in large blocks on a background thread while the previous block is sent
+ *              Write-behind: UDP receivers queue data for a writer thread, so disk stalls do not overflow the socket buffer
+ *              Durability: uploads are staged to a temp file, size-checked and renamed into place, with optional fsync
+ *                          or group commit (-Dftp.durability=none|fsync|group)
+ *              File locks: striped in-process reader/writer locks; GETs read the last committed version during uploads
+ *              Swarm support: STAT, HASHES (per-chunk SHA-256) and GETRANGE let clients fetch one file from several mirrors
+ *              Streamed PUT: PUT <file> - takes data of unknown length, in length-prefixed chunks ending with a size
+ *                            and SHA-256 trailer over TCP, or as datagrams whose end signal carries the size over UDP
+ *              Conditional GET: READY carries the file's version; GET <file> IF <version> answers NOT_MODIFIED when
+ *                               the client's cached copy is still current
+ *              Flight Recorder: optional JFR events for commands, transfers and their phases, and UDP datagram batches
+ *                               (-Dftp.jfr=true, recorded with -XX:StartFlightRecording)
+ *              File catalog: optional memory-mapped catalog of paths, sizes, mtimes and hashes under the root, kept current
+ *                            by commits and a WatchService, serves LS/STAT/CD and cached HASHES (-Dftp.catalog=true)
+ *              Cluster: nodes share a consistent-hash ring over file paths, redirect GET/PUT to the owner and list
+ *                       every node's files with LS (-Dftp.cluster=host:port,...)
  *              Testing mode: GET/PUT performed NUM_TESTS times and average time/throughput is calculated
  */
 
+import com.sun.management.UnixOperatingSystemMXBean;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.ServerSocket;
+import java.net.SocketAddress;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketOption;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.Scanner;
-import java.util.TreeMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.zip.CRC32;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Map;
 import java.util.logging.Formatter;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocketFactory;
 import java.util.logging.LogRecord;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
 import java.util.logging.FileHandler;
 import java.util.logging.Logger;
 
@@ -40,542 +136,6038 @@ public class FTPServer {
     private static boolean running = true; // Server running flag
     private static ServerSocket serverSocket; // Class-level ServerSocket for handling shutdown
     private static final Logger LOGGER = Logger.getLogger("FTPServer");
+    private static final String LOG_FILE = "FTPServer.log"; // Log file in the root directory, which every cluster node keeps for itself
     private static final int MTU = 1500;  // Maximum Transmission Unit (MTU) for Ethernet
     private static final int IP_OVERHEAD = 20; // 20 bytes for IP header
     private static final int TCP_OVERHEAD = 20; // 20 bytes for TCP header
     private static final int TCP_IP_OVERHEAD = IP_OVERHEAD + TCP_OVERHEAD; // Total TCP/IP overhead
     private static final int TCP_BUFFER_SIZE = MTU - TCP_IP_OVERHEAD; // Final payload size
     private static final int UDP_OVERHEAD = 8; // 8 bytes for UDP header
-    private static final int APPLICATION_OVERHEAD = Long.BYTES + Integer.BYTES; // 8 bytes for sequence + 4 bytes for CRC
+    private static final byte DATAGRAM_VERSION = 1; // Header version every datagram starts with; others are dropped
+    private static final int DATAGRAM_HEADER = 1 + Integer.BYTES + Long.BYTES; // 1 byte version + 4 bytes session ID + 8 bytes sequence
+    private static final int APPLICATION_OVERHEAD = DATAGRAM_HEADER + Integer.BYTES; // Datagram header + 4 bytes for CRC
     private static final int UDP_IP_OVERHEAD = IP_OVERHEAD + UDP_OVERHEAD; // Total UDP/IP overhead
-    private static final int UDP_IP_APPLICATION_OVERHEAD = UDP_IP_OVERHEAD + APPLICATION_OVERHEAD; // 8 bytes for sequence + 4 bytes for CRC
+    private static final int UDP_IP_APPLICATION_OVERHEAD = UDP_IP_OVERHEAD + APPLICATION_OVERHEAD; // Datagram header + 4 bytes for CRC
     private static final int UDP_BUFFER_SIZE = MTU - UDP_IP_APPLICATION_OVERHEAD; // Final payload size
     private static final int TIMEOUT = 2000; // Timeout in milliseconds
-    private static final int UDP_RECV_BUFFER = 100000000; // 100MB buffer size for UDP
+    private static final int UDP_RECV_BUFFER = Integer.getInteger("ftp.udp.recvbuffer", 100000000); // UDP receive buffer request (the kernel caps it at net.core.rmem_max)
     private static final int UDP_DELAY = 0; // Delay in milliseconds for UDP mode
+    private static final int DEFAULT_DATAGRAM_SIZE = MTU - UDP_IP_OVERHEAD; // Datagram that fits one Ethernet frame
+    private static final int MAX_DATAGRAM_SIZE = Math.max(DEFAULT_DATAGRAM_SIZE, Math.min(65507, // Largest IPv4 UDP payload
+            Integer.getInteger("ftp.udp.maxdatagram", 65507)));
+    private static final int[] PROBE_DATAGRAM_SIZES = {65507, 9000 - UDP_IP_OVERHEAD}; // Loopback limit, jumbo frame
+    private static final int PROBE_REPEATS = 2; // Copies of each probe, so one lost probe does not shrink the size
+    private static final int PROBE_TIMEOUT = 250; // How long to wait for probe acknowledgements, in milliseconds
+    private static final long PROBE_SEQUENCE = -2L; // Sequence number marking a path MTU probe
+    private static final long PROBE_ACK_SEQUENCE = -3L; // Sequence number marking a probe acknowledgement
+    private static final long HELLO_SEQUENCE = -4L; // Sequence number marking a client's hello from a download stripe
+    private static final int UDP_PORT = Integer.getInteger("ftp.udp.port", 0); // First port of the shared UDP endpoint (0 = a fresh socket per stripe)
+    private static final int UDP_SHARED_SOCKETS = Math.max(1, Integer.getInteger("ftp.udp.sockets", 4)); // Sockets and receive threads of the shared endpoint
+    private static final int UDP_SHARED_QUEUE = 1024; // Datagrams of one upload queued between a shared socket's receive thread and the upload's worker
+    private static final int STREAM_MAX_CHUNK = 1024 * 1024; // Largest chunk of a streamed TCP upload
+    private static final int PING_MAX_DATAGRAMS = 256; // Most datagrams one PING echoes
+    private static final int PING_TIMEOUT = 1000; // How long a PING echoes datagrams, in milliseconds
+    private static UdpEndpoint udpEndpoint; // Shared UDP sockets every transfer is demultiplexed on, null when each transfer opens its own
+    private static final boolean TLS = Boolean.getBoolean("ftp.tls");  // TLS on control and TCP data connections, AES-GCM on datagrams
+    private static final int GCM_KEY_LENGTH = 16;  // AES-128 key for encrypted datagrams
+    private static final int GCM_NONCE_LENGTH = 12;  // 4-byte salt + 8-byte sequence number
+    private static final int GCM_TAG_LENGTH = 16;  // Authentication tag that replaces the CRC32 on encrypted datagrams
+    private static final int UDP_SEND_BUFFER = 4 * 1024 * 1024; // Send buffer for large datagrams
+    private static final int READ_AHEAD_BLOCK = (Math.max(4096, Integer.getInteger("ftp.readahead.block", 1024 * 1024)) + 4095) & ~4095; // Read-ahead block, rounded up to whole pages
+    private static final int READ_AHEAD_DEPTH = Integer.getInteger("ftp.readahead.depth", 2); // Read-ahead blocks per send (0 = read inline)
+    private static final int WRITE_BEHIND_BLOCK = 1024 * 1024; // Block a UDP receiver's writes are coalesced into
+    private static final long WRITE_BEHIND_LIMIT = Long.getLong("ftp.writebehind.limit", 64L * 1024 * 1024); // Received data queued for the disk before the receiver waits (0 = write inline)
+    private static final int RANGE_BUFFER_SIZE = 64 * 1024; // Read and send buffer for GETRANGE and HASHES
+    private static final int HASH_MIN_CHUNK = 64 * 1024; // Smallest chunk HASHES digests separately
+    private static final int HASH_MAX_CHUNK = 64 * 1024 * 1024; // Largest chunk HASHES digests separately
+    private static final int LISTING_BUFFER_SIZE = 64 * 1024; // Characters of an LS listing written to the socket at once
+    private static final int MAX_STRIPES = Integer.getInteger("ftp.udp.maxstripes", 16); // Most UDP sockets a client may spread one transfer over
+    private static final int DELTA_MIN_BLOCK_SIZE = 2048; // Smallest block size used for delta signatures
+    private static final int DELTA_MAX_BLOCK_SIZE = 65536; // Largest block size used for delta signatures
+    private static final int DELTA_STRONG_LENGTH = 16; // MD5 digest length for strong block signatures
+    private static final byte DELTA_END = 0; // Delta token: end of stream, followed by size and MD5 of the new file
+    private static final byte DELTA_LITERAL = 1; // Delta token: literal data, followed by length and bytes
+    private static final byte DELTA_MATCH = 2; // Delta token: block reference, followed by block index
+    private static final boolean CHUNK_STORE = Boolean.getBoolean("ftp.chunkstore"); // Store uploads as deduplicated chunks
+    private static final String CHUNK_DIR_NAME = ".chunks"; // Chunk store directory under the server root
+    private static final int CHUNK_MIN_SIZE = 2048; // Smallest content-defined chunk
+    private static final int CHUNK_MAX_SIZE = 65536; // Largest content-defined chunk
+    private static final long CHUNK_MASK = 0xFFF8000000000000L; // 13 hash bits must be zero for a boundary (~8KB average chunk)
+    private static final long CHUNK_GEAR_SEED = 0x4654504348554E4BL; // Seed for the gear table, shared with the client
+    private static final long SYNTHETIC_SEED = 0x53594E5448455449L; // Seed for synthetic random data, shared with the client
+    private static final long[] GEAR = gearTable(); // Per-byte random values for the gear rolling hash
+    private static final int CHUNK_HASH_LENGTH = 32; // SHA-256 digest length for chunk keys
+    private static ChunkStore chunkStore; // Chunk store backend, null when uploads are stored as plain files
+    private static final boolean CATALOG = Boolean.getBoolean("ftp.catalog"); // Keep a persistent catalog of the files under the root
+    private static final String CATALOG_FILE_NAME = ".ftpcatalog"; // Catalog log under the server root
+    private static FileCatalog catalog; // File catalog, null when every lookup goes to the filesystem
+    private static final String DURABILITY = System.getProperty("ftp.durability", "none"); // How committed uploads are made durable: none, fsync or group
+    private static UploadCommitter committer; // Verifies staged uploads and renames them into place
+    private static final String CLUSTER = System.getProperty("ftp.cluster"); // Control addresses (host:port,...) of every node of a cluster
+    private static final int CLUSTER_VIRTUAL_NODES = Integer.getInteger("ftp.cluster.vnodes", 128); // Ring points per node
+    private static final int PEER_TIMEOUT = 10000; // How long to wait for another node's replies, in milliseconds
+    private static ClusterRing cluster; // Places files on the nodes of a cluster, null when this server runs alone
+    private static final FileLockTable LOCKS = new FileLockTable(
+            Integer.getInteger("ftp.locks.stripes", 64), // Reader/writer locks the served files are spread over
+            Boolean.parseBoolean(System.getProperty("ftp.locks.snapshot", "true"))); // GET holds its lock only while opening the file
+    private static final double SCHEDULER_BURST_SECONDS = 0.05; // Token bucket depth in seconds of a stream's rate
+    private static final int SCHEDULER_MIN_BURST = 65536; // Minimum token bucket depth in bytes
+    private static final TransferScheduler SCHEDULER = new TransferScheduler(
+            Long.getLong("ftp.rate.total", 0), // Server-wide rate cap in bytes/s
+            Long.getLong("ftp.rate.client", 0), // Rate cap per client address in bytes/s
+            Long.getLong("ftp.rate.user", 0), // Rate cap per user in bytes/s
+            Long.getLong("ftp.rate.small", 0), // Size up to which a transfer counts as small
+            Integer.getInteger("ftp.rate.smallweight", 4)); // Weight of small transfers
+    private static final int BACKLOG = Integer.getInteger("ftp.backlog", 50); // Pending connection queue length
+    private static final int IDLE_TIMEOUT = Integer.getInteger("ftp.idletimeout", 600000); // Idle session timeout in milliseconds (0 = never)
+    private static final int ACCEPT_TIMEOUT = Integer.getInteger("ftp.accepttimeout", 30000); // Wait for a client to open a data connection
+    private static final int RETRY_AFTER = Integer.getInteger("ftp.retryafter", 1000); // Retry delay sent with BUSY replies, in milliseconds
+    private static final int REJECT_LINGER = 1; // Seconds a refused connection may wait for its BUSY reply to drain before it is closed
+    private static final AdmissionController ADMISSION = new AdmissionController(
+            Integer.getInteger("ftp.maxsessions", 512), // Concurrent sessions (0 = unlimited)
+            Integer.getInteger("ftp.maxtransfers", 64), // Concurrent data transfers (0 = unlimited)
+            Long.getLong("ftp.transferqueue", 5000), // How long a transfer may wait for a slot, in milliseconds
+            Double.parseDouble(System.getProperty("ftp.shed.memory", "0.9")), // Heap fraction in use after GC that triggers shedding
+            Double.parseDouble(System.getProperty("ftp.shed.fds", "0.9"))); // File descriptor fraction in use that triggers shedding
+    private static final boolean JFR_EVENTS = Boolean.getBoolean("ftp.jfr"); // Emit JDK Flight Recorder events for commands, transfers and datagrams
+    private static final int JFR_DATAGRAM_BATCH = 1024; // Datagrams counted into one DatagramBatch event
+    private static final long JFR_BATCH_NANOS = 100_000_000L; // Longest a DatagramBatch event spans
+    private static final ExecutorService SESSION_POOL = Executors.newCachedThreadPool(); // Reuses session threads between connections
+    private static final int REJECT_THREADS = 4; // Threads that send BUSY to refused connections, off the accept loop
+    private static final int REJECT_QUEUE = 256; // Refused connections waiting for those threads; beyond this they are reset
+    private static final ThreadPoolExecutor REJECT_POOL = new ThreadPoolExecutor(REJECT_THREADS, REJECT_THREADS, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(REJECT_QUEUE), runnable -> {
+                Thread thread = new Thread(runnable, "reject");
+                thread.setDaemon(true);
+                return thread;
+            });
 
     private static class PacketHandler extends Thread {
         private final DatagramSocket socket;
-        private final FileOutputStream fos;
-        //private final long expectedFileSize;
+        private final Reassembler reassembly; // Shared by the handlers of every stripe of the upload
+        private final int session; // Session ID every datagram of the upload carries
         //private final int timeout;
-        private final long startTime;
-        private long totalBytesTransferred = 0;
-        private volatile boolean transferActive = true;
-        private long bytesPerFile = 0;
+        private DatagramCipher cipher; // Set for encrypted transfers
+        private DatagramBatchEvent batch; // Datagrams counted since the last JFR event, null when events are off
+        private BlockingQueue<DatagramPacket> queue; // Datagrams from the shared endpoint, handled on this thread; null on a socket of its own
+        private final AtomicLong dropped = new AtomicLong(); // Datagrams the endpoint dropped because the queue was full
 
-        private PacketHandler(DatagramSocket socket, FileOutputStream fos, long expectedFileSize, int timeout) {
+        private PacketHandler(DatagramSocket socket, Reassembler reassembly, int session, int timeout) {
             this.socket = socket;
-            this.fos = fos;
-            //this.expectedFileSize = expectedFileSize;
+            this.reassembly = reassembly;
+            this.session = session;
             //this.timeout = timeout;
-            this.startTime = System.currentTimeMillis();
-            this.bytesPerFile = expectedFileSize + UDP_IP_APPLICATION_OVERHEAD * (int)Math.ceil((double) expectedFileSize/UDP_BUFFER_SIZE);
         }
 
         @Override
         public void run() {
+            if (queue != null) {
+                runShared();
+                return;
+            }
+            startBatch();
             try {
-                long expectedSequence = 0;
-                Map<Long, byte[]> packetBuffer = new TreeMap<>();
+                byte[] buffer = new byte[MAX_DATAGRAM_SIZE]; // Room for the largest datagram the client may negotiate
 
-                byte[] buffer = new byte[Long.BYTES + UDP_BUFFER_SIZE + Integer.BYTES];
-
-                while (transferActive && totalBytesTransferred < bytesPerFile) {
+                while (!reassembly.isDone()) {
                     DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                     try {
                         socket.receive(packet);
                     } catch (SocketTimeoutException e) {
-                        if (totalBytesTransferred >= bytesPerFile) {
+                        if (reassembly.isDone()) {
                             break;
                         }
                         printAndLog("Timeout waiting for next packet from client. Aborting transfer.");
-                        transferActive = false;
+                        reassembly.abort();
                         return;
+                    } catch (SocketException e) {
+                        break; // Closed by the reassembler when another stripe completed or aborted the upload
                     }
 
-                    ByteBuffer byteBuffer = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
-                    byteBuffer.order(ByteOrder.BIG_ENDIAN);
-                    long sequenceNumber = byteBuffer.getLong();
-
-                    if (sequenceNumber == -1L) {
-                        transferActive = false;
+                    if (packet.getLength() < DATAGRAM_HEADER && socket.isClosed()) {
+                        break; // Woken by the reassembler closing the socket
+                    }
+                    if (!handle(packet)) {
                         break;
                     }
+                }
+            } catch (IOException e) {
+                printAndLog("Error in packet handler: " + e.getMessage());
+                reassembly.abort();
+            } finally {
+                socket.close();
+                finishBatch();
+            }
+        }
 
-                    int dataLength = packet.getLength() - Long.BYTES - Integer.BYTES;
-                    if (dataLength <= 0) {
-                        printAndLog("Invalid packet received from client. Skipping.");
-                        continue;
-                    }
+        /**
+         * Checks one datagram of the upload and hands its data to the reassembler. Called by run() for a socket
+         * of the upload's own, or by the shared endpoint's receive thread for a datagram carrying this upload's session ID.
+         * @param packet The datagram.
+         * @return False once the end-of-file signal arrived and the file is complete.
+         * @throws IOException If the file cannot be written or a probe cannot be answered.
+         */
+        private boolean handle(DatagramPacket packet) throws IOException {
+            if (packet.getLength() < DATAGRAM_HEADER) {
+                return true; // Too short to carry a header
+            }
+            ByteBuffer byteBuffer = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+            byteBuffer.order(ByteOrder.BIG_ENDIAN);
+            if (byteBuffer.get() != DATAGRAM_VERSION || byteBuffer.getInt() != session) {
+                return true; // Another protocol version, or a stray datagram of an earlier transfer
+            }
+            long sequenceNumber = byteBuffer.getLong();
+            reassembly.heard();
 
-                    byte[] data = new byte[dataLength];
-                    byteBuffer.get(data);
-                    int receivedChecksum = byteBuffer.getInt();
+            if (sequenceNumber == -1L) {
+                // End-of-file signal; delayed or reordered data may still be on its way
+                if (byteBuffer.remaining() >= Long.BYTES) {
+                    reassembly.setExpectedFileSize(byteBuffer.getLong()); // The size of a streamed upload
+                }
+                return !reassembly.isComplete();
+            }
 
-                    CRC32 crc = new CRC32();
-                    crc.update(data, 0, dataLength);
-                    long calculatedChecksum = crc.getValue() & 0xFFFFFFFFL;
-                    if (calculatedChecksum != (receivedChecksum & 0xFFFFFFFFL)) {
-                        printAndLog("CRC mismatch for sequence " + sequenceNumber + " from client. Ignoring packet.");
-                        continue;
-                    }
+            if (sequenceNumber == PROBE_SEQUENCE) {
+                acknowledgeProbe(socket, packet, byteBuffer, session);
+                return true;
+            }
 
-                    // Add packet to buffer for reassembly
-                    packetBuffer.put(sequenceNumber, data);
+            int dataLength = packet.getLength() - DATAGRAM_HEADER - (cipher != null ? GCM_TAG_LENGTH : Integer.BYTES);
+            if (dataLength <= 0) {
+                printAndLog("Invalid packet received from client. Skipping.");
+                return true;
+            }
 
-                    while (packetBuffer.containsKey(expectedSequence)) {
-                        byte[] nextData = packetBuffer.remove(expectedSequence);
-                        fos.write(nextData);
-                        totalBytesTransferred += (nextData.length + UDP_IP_APPLICATION_OVERHEAD); // data size + TCP Header + IP Header
-                        expectedSequence++;
+            byte[] data = new byte[dataLength];
+            if (cipher != null) {
+                // Decrypt and authenticate; the GCM tag takes the place of the CRC
+                if (cipher.open(sequenceNumber, packet.getData(), packet.getOffset() + DATAGRAM_HEADER,
+                        packet.getLength() - DATAGRAM_HEADER, data, 0) != dataLength) {
+                    printAndLog("Authentication failed for sequence " + sequenceNumber + " from client. Ignoring packet.");
+                    if (batch != null) {
+                        batch.crcFailures++;
                     }
+                    return true;
                 }
+            } else {
+                byteBuffer.get(data);
+                int receivedChecksum = byteBuffer.getInt();
 
-                fos.flush();
-            } catch (IOException e) {
+                CRC32 crc = new CRC32();
+                crc.update(data, 0, dataLength);
+                long calculatedChecksum = crc.getValue() & 0xFFFFFFFFL;
+                if (calculatedChecksum != (receivedChecksum & 0xFFFFFFFFL)) {
+                    printAndLog("CRC mismatch for sequence " + sequenceNumber + " from client. Ignoring packet.");
+                    if (batch != null) {
+                        batch.crcFailures++;
+                    }
+                    return true;
+                }
+            }
+
+            // Hand the packet over for reassembly
+            int waiting = reassembly.add(sequenceNumber, data);
+            if (batch != null) {
+                batch = batch.count(dataLength, waiting);
+            }
+            return true;
+        }
+
+        /**
+         * Takes datagrams from the shared endpoint instead of a socket of its own: the endpoint's receive thread
+         * only queues them in offer(), so checking and writing them cannot hold up other transfers on the socket.
+         */
+        private void share() {
+            queue = new ArrayBlockingQueue<>(UDP_SHARED_QUEUE);
+            setName("udp-upload-" + session);
+        }
+
+        /**
+         * Queues a copy of one datagram, on the shared endpoint's receive thread. When this upload's worker has
+         * fallen behind the datagram is dropped, so a slow upload loses only its own data.
+         * @param packet The datagram, whose buffer the receive thread reuses.
+         */
+        private void offer(DatagramPacket packet) {
+            byte[] copy = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength());
+            reassembly.heard();
+            if (!queue.offer(new DatagramPacket(copy, copy.length, packet.getSocketAddress()))) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        /**
+         * The worker of a shared upload: handles queued datagrams until the upload is done or this thread is
+         * interrupted; a failure aborts the upload.
+         */
+        private void runShared() {
+            startBatch();
+            try {
+                while (!reassembly.isDone()) {
+                    DatagramPacket packet = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (packet != null && !handle(packet)) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Closed before the upload finished
+            } catch (IOException | RuntimeException e) {
                 printAndLog("Error in packet handler: " + e.getMessage());
+                reassembly.abort();
             } finally {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    printAndLog("Error closing file: " + e.getMessage());
+                finishBatch();
+                if (dropped.get() > 0) {
+                    printAndLog("UDP upload " + session + ": " + dropped.get() + " datagrams dropped while its worker was behind");
                 }
-                socket.close();
-                long duration = System.currentTimeMillis() - startTime;
-                printAndLog("File upload completed in " + duration + " ms. Total bytes transferred: " + totalBytesTransferred);
             }
         }
 
-        //public long getTotalBytesTransferred() {
-        //    return totalBytesTransferred;
-        //}
+        /**
+         * Starts counting datagrams for JFR, when events are on.
+         */
+        private void startBatch() {
+            batch = DatagramBatchEvent.start(socket.getLocalPort(), reassembly.transferId);
+        }
+
+        /**
+         * Emits the datagrams counted since the last event.
+         */
+        private synchronized void finishBatch() {
+            if (batch != null) {
+                batch.finish();
+                batch = null;
+            }
+        }
+
+        /**
+         * Expects encrypted datagrams, authenticated by their GCM tag instead of a CRC.
+         * @param cipher The transfer's cipher.
+         */
+        private void setCipher(DatagramCipher cipher) {
+            this.cipher = cipher;
+        }
     }
 
-    public static void main(String[] args) throws IOException {
-        LogToFile.logToFile(LOGGER, "FTPServer.log"); // Log to file
-        printAndLog("Logging to FTPServer.log");
-        printAndLog("Starting FTP server...");
-        final String javaVersion = System.getProperty("java.version");
-        final String javaVendor = System.getProperty("java.vendor");
-        final String osVersion = System.getProperty("os.version");
-        final String osName = System.getProperty("os.name");
-        final String osArch = System.getProperty("os.arch");
-        final Runtime runtime = Runtime.getRuntime();
-        final long totalMemory = runtime.totalMemory();
-        final long maxMemory = runtime.maxMemory();
-        final long freeMemory = runtime.freeMemory();
-        final long usedMemory = totalMemory - freeMemory;
-        final String MEMORY_FORMAT = "Java Memory: %.2fMb/%.2fMb (%.2fMb used) [%.2f%%]";
-        printAndLog("OS: " + osName + " " + osVersion + " (" + osArch + ")");
-        printAndLog("Java version: " + javaVersion + " (" + javaVendor + ")");
-        printAndLog(String.format(MEMORY_FORMAT, totalMemory / 1048576.0, maxMemory / 1048576.0, usedMemory / 1048576.0, (usedMemory * 100.0) / totalMemory));
+    /**
+     * The end of a streamed upload: the size and SHA-256 of the data, as the client computed them.
+     */
+    private static class StreamTrailer {
+        final long size;
+        final byte[] sha256;
 
-        if (args.length > 0) {
-            listenPort = Integer.parseInt(args[0]);
-        } else {
-            printAndLog("Attempting to listen on default port (" + listenPort + ")");
+        StreamTrailer(long size, byte[] sha256) {
+            this.size = size;
+            this.sha256 = sha256;
         }
+    }
 
-        // Start the server shutdown listener (listens for "q" to quit)
-        new Thread(FTPServer::shutdownListener).start();
+    /**
+     * Puts the datagrams of one UDP upload back in sequence order and writes them to the file.
+     * The PacketHandlers of a striped upload, one per socket, all feed the same reassembler. Once the
+     * file is complete, or one of them gives up, it closes every socket so the others stop waiting.
+     * On the shared endpoint it owns no sockets; the upload's thread waits in awaitDone() instead.
+     */
+    private static class Reassembler {
+        private final OutputStream fos;
+        private volatile long expectedFileSize; // -1 for a streamed upload until its end signal arrives
+        private final long startTime = System.currentTimeMillis();
+        private final Map<Long, byte[]> packetBuffer = new HashMap<>(); // Datagrams that arrived ahead of their turn
+        private final List<DatagramSocket> sockets = new ArrayList<>();
+        private long expectedSequence = 0;
+        private long totalBytesTransferred = 0;
+        private volatile long payloadBytes = 0; // File data written so far
+        private volatile boolean aborted = false;
+        private volatile long lastHeard = System.nanoTime(); // When the last datagram of the upload arrived
+        private final long transferId; // Ties the stripes' JFR events to the upload's, 0 when untraced
 
-        try {
-            serverSocket = new ServerSocket(listenPort, 50, InetAddress.getByName("0.0.0.0")); // Bind to all interfaces
-            printAndLog("Server listening on " + serverSocket.getInetAddress() + ":" + serverSocket.getLocalPort());
-            try (final DatagramSocket datagramSocket = new DatagramSocket()) {
-                datagramSocket.connect(InetAddress.getByName("8.8.8.8"), 12345);
-                printAndLog("WAN Address: " + datagramSocket.getLocalAddress().getHostAddress());
-                // Display server interface IP address
-                printAndLog("LAN Address: " + InetAddress.getLocalHost());
-            } catch (Exception e) {
-                printAndLog("Server WAN IP: Unable to Reach Google DNS: " + e.getMessage());
-            }
-            
-            printAndLog("Root directory: " + System.getProperty("user.dir"));
-            printAndLog("Maximum Transmission Unit (MTU): " + MTU + " bytes");
-            printAndLog("TCP buffer size: " + TCP_BUFFER_SIZE + " bytes");
-            printAndLog("UDP buffer size: " + UDP_BUFFER_SIZE + " bytes");
-            printAndLog("Server ready to accept client connections.");
-            printAndLog("Waiting for client connections...");
+        private Reassembler(OutputStream fos, long expectedFileSize, long transferId) {
+            this.fos = fos;
+            this.expectedFileSize = expectedFileSize;
+            this.transferId = transferId;
+        }
 
-            // Main loop to accept client connections
-            while (running) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    printAndLog("Accepted connection from: " + clientSocket.getInetAddress());
+        private synchronized void addSocket(DatagramSocket socket) {
+            sockets.add(socket);
+        }
 
-                    // Handle client connection in a new thread
-                    Thread clientThread = new Thread(new ClientHandler(clientSocket));
-                    clientThread.start();
-                    printAndLog("Started thread for client: " + clientSocket.getInetAddress());
+        /**
+         * Takes a verified datagram and writes out every datagram that is now in order.
+         * @param sequenceNumber The datagram's sequence number.
+         * @param data Its payload.
+         * @return How many datagrams are left waiting for an earlier one, or -1 if this one was a duplicate.
+         * @throws IOException If the file cannot be written.
+         */
+        private synchronized int add(long sequenceNumber, byte[] data) throws IOException {
+            if (sequenceNumber < expectedSequence || packetBuffer.putIfAbsent(sequenceNumber, data) != null) {
+                return -1; // Already have this one
+            }
+            byte[] nextData;
+            while ((nextData = packetBuffer.remove(expectedSequence)) != null) {
+                fos.write(nextData);
+                payloadBytes += nextData.length;
+                totalBytesTransferred += (nextData.length + UDP_IP_APPLICATION_OVERHEAD); // data size + UDP/IP and application headers
+                expectedSequence++;
+            }
+            if (isComplete()) {
+                closeSockets();
+                notifyAll();
+            }
+            return packetBuffer.size();
+        }
 
-                } catch (IOException e) {
-                    if (running) { // Only log if still running
-                        printAndLog("Error accepting connection: " + e.getMessage());
-                    }
+        /**
+         * Notes that a datagram of the upload arrived, which keeps awaitDone() from timing out.
+         */
+        private void heard() {
+            lastHeard = System.nanoTime();
+        }
+
+        /**
+         * Waits until the file is complete or the upload was aborted, giving up once no datagram has arrived for a while.
+         * @param idleTimeout How long the client may stay silent, in milliseconds.
+         * @return False if the client went silent.
+         * @throws InterruptedException If interrupted while waiting.
+         */
+        private synchronized boolean awaitDone(long idleTimeout) throws InterruptedException {
+            while (!isDone()) {
+                long idle = (System.nanoTime() - lastHeard) / 1_000_000;
+                if (idle >= idleTimeout) {
+                    return false;
                 }
+                wait(idleTimeout - idle);
             }
+            return true;
+        }
 
-        } catch (IOException e) {
-            if (running) {
-                printAndLog("Could not listen on port " + listenPort + ": " + e.getMessage());
+        /**
+         * Sets the size of a streamed upload, which its end signal carries; a known size is kept.
+         * @param size The size the client sent.
+         */
+        private synchronized void setExpectedFileSize(long size) {
+            if (expectedFileSize >= 0 || size < 0) {
+                return;
             }
-        } finally {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
+            expectedFileSize = size;
+            if (isComplete()) {
+                closeSockets();
+                notifyAll();
             }
         }
-    }
 
-    /**
-     * Listens for "q" input to shut down the server.
-    */
-    private static void shutdownListener() {
-        Scanner scanner = new Scanner(System.in);
-        while (running) {
-            if (scanner.nextLine().equalsIgnoreCase("q")) {
-                running = false;
-                printAndLog("Shutting down the server...");
-                try {
-                    if (serverSocket != null && !serverSocket.isClosed()) {
-                        serverSocket.close();  // Close the server socket to unblock accept()
-                    }
-                } catch (IOException e) {
-                    printAndLog("Error closing the server socket: " + e.getMessage());
-                }
-                break;
+        private boolean isComplete() {
+            long expected = expectedFileSize;
+            return expected >= 0 && payloadBytes >= expected;
+        }
+
+        private long getPayloadBytes() {
+            return payloadBytes;
+        }
+
+        private boolean isDone() {
+            return aborted || isComplete();
+        }
+
+        /**
+         * Gives up on the upload and stops every stripe.
+         */
+        private synchronized void abort() {
+            aborted = true;
+            closeSockets();
+            notifyAll();
+        }
+
+        private synchronized void closeSockets() {
+            for (DatagramSocket socket : sockets) {
+                socket.close();
+            }
+        }
+
+        /**
+         * Closes the file once every PacketHandler has stopped, and logs how the upload went.
+         */
+        private void close() {
+            try {
+                fos.close();
+            } catch (IOException e) {
+                printAndLog("Error closing file: " + e.getMessage());
+            }
+            long duration = System.currentTimeMillis() - startTime;
+            printAndLog("File upload completed in " + duration + " ms. Total bytes transferred: " + totalBytesTransferred);
+            if (fos instanceof WriteBehindOutputStream) {
+                printAndLog(((WriteBehindOutputStream) fos).describe());
             }
         }
-        scanner.close();
     }
 
     /**
-     * ClientHandler class to handle individual client connections in separate threads.
-    * Each client connection is handled by a separate instance of this class.
-    * The class implements the Runnable interface to run in a separate thread.
-    * The class handles the LS, CD, GET, PUT, and QUIT commands.
-    * The class maintains the current directory for each client.
-    * The class uses a static ROOT_DIR for the server root directory.
-    */
-    private static class ClientHandler implements Runnable {
-        private final Socket clientSocket;
-        private final String clientAddress; // Store client address for logging
-        private static final String ROOT_DIR = System.getProperty("user.dir");
-        private String currentDir;
-        private boolean udpMode = false; // UDP mode flag
-    
-        ClientHandler(Socket clientSocket) {
-            this.clientSocket = clientSocket;
-            this.clientAddress = clientSocket.getInetAddress().toString(); // Capture client address
-            this.currentDir = ROOT_DIR; // Start in the root directory
-            printAndLog("ClientHandler initialized for: " + clientAddress);
+     * The UDP sockets of one transfer's stripes and the session ID its datagrams carry. Without a shared endpoint
+     * each stripe gets a fresh socket of its own. With one (-Dftp.udp.port) the stripes are spread over the
+     * endpoint's sockets, and the transfer is registered there under its session ID until it is closed.
+     */
+    private static class StripeSockets implements AutoCloseable {
+        private final int session;
+        private final List<DatagramSocket> sockets; // One per stripe; on the shared endpoint stripes may share a socket
+        private final int[] shared; // Endpoint socket of each stripe, null for sockets of the transfer's own
+        private final SocketAddress[] hellos; // Where each download stripe's hello came from, on the shared endpoint
+        private final BlockingQueue<DatagramPacket> replies = new LinkedBlockingQueue<>(); // Probe acknowledgements, on the shared endpoint
+        private List<PacketHandler> handlers = List.of();
+
+        private StripeSockets(int session, List<DatagramSocket> sockets, int[] shared) {
+            this.session = session;
+            this.sockets = sockets;
+            this.shared = shared;
+            this.hellos = new SocketAddress[sockets.size()];
         }
-    
+
         /**
-         * Run method to handle client connections and execute commands.
-        */
-        @Override
-        public void run() {
-            printAndLog("Handling client connection from: " + clientAddress);
-            try (
-                BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)
-            ) {
-                String inputLine;
-                while ((inputLine = in.readLine()) != null) {
-                    printAndLog("Received command from " + clientAddress + ": " + inputLine); // Log with client info
-                    String[] command = inputLine.split(" ");
-                    switch (command[0].toUpperCase()) {
-                        case "LS":
-                            handleLS(out);
-                            break;
-                        case "CD":
-                            handleCD(command, out);
-                            break;
-                        case "GET":
-                            handleGET(command, out);
-                            break;
-                        case "PUT":
-                            handlePUT(command, out, in);  // Pass 'in' to handlePUT
-                            break;
-                        case "MODE":
-                            udpMode = !udpMode; // Toggle UDP mode
-                            break;
-                        case "QUIT":
-                            handleQUIT(out);
-                            return;  // Close this client handler after QUIT
-                        default:
-                            out.println("Unknown command");
-                            break;
-                    }
+         * Opens the sockets of one transfer, or claims a session on the shared endpoint. A shared session
+         * listens for the client's hellos and probe acknowledgements from the start.
+         * @param count The number of stripes.
+         * @return The transfer's sockets.
+         * @throws SocketException If a socket cannot be opened.
+         */
+        static StripeSockets open(int count) throws SocketException {
+            if (udpEndpoint != null) {
+                int session = udpEndpoint.newSession();
+                int first = udpEndpoint.nextSocket();
+                int[] shared = new int[count];
+                List<DatagramSocket> sockets = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    shared[i] = (first + i) % udpEndpoint.size();
+                    sockets.add(udpEndpoint.socket(shared[i]));
                 }
-            // Handle exceptions and close the client connection
-            } catch (IOException e) {
-                printAndLog("Exception in client handling for " + clientAddress + ": " + e.getMessage());
+                StripeSockets stripes = new StripeSockets(session, sockets, shared);
+                for (int index : shared) {
+                    DatagramSocket socket = udpEndpoint.socket(index);
+                    udpEndpoint.register(index, session, packet -> stripes.control(socket, packet));
+                }
+                return stripes;
+            }
+            List<DatagramSocket> sockets = new ArrayList<>();
+            try {
+                for (int i = 0; i < count; i++) {
+                    DatagramSocket socket = new DatagramSocket();
+                    sockets.add(socket);
+                    socket.setSoTimeout(TIMEOUT);
+                    socket.setReceiveBufferSize(UDP_RECV_BUFFER);
+                }
+            } catch (SocketException e) {
+                sockets.forEach(DatagramSocket::close);
+                throw e;
             }
+            return new StripeSockets(ThreadLocalRandom.current().nextInt(), sockets, null);
         }
-    
+
         /**
-         * Handles the LS command to list files in the current directory in the desired format.
-        * @param out The output writer to communicate with the client.
-        */
+         * @return The ports for READY, one per stripe, e.g. "50001,50002".
+         */
+        String ports() {
+            return joinPorts(sockets);
+        }
+
         /**
-         * Handles the LS command to list files in the current directory in the desired format.
-        * @param out The output writer to communicate with the client.
-        */
-        private void handleLS(PrintWriter out) {
-            File dir = new File(currentDir);
-            File[] files = dir.listFiles();
-        
-            if (files != null) {
-                Arrays.sort(files, (f1, f2) -> f1.getName().compareToIgnoreCase(f2.getName()));
-                String OUTPUT_FORMAT = "  %-50s %-30s";
-        
-                out.println("Directory: " + currentDir);
-                out.println(OUTPUT_FORMAT.formatted("Name", "Size"));
-                out.println(OUTPUT_FORMAT.formatted(".", "<DIR>"));
-                out.println(OUTPUT_FORMAT.formatted("..", "<DIR>"));
-        
-                for (File file : files) {
-                    if (file.isDirectory()) {
-                        out.println(OUTPUT_FORMAT.formatted("/" + file.getName() + "/", "<DIR>"));
+         * @return The READY field that hands the session ID to the client.
+         */
+        String readyOptions() {
+            return " session=" + session;
+        }
+
+        /**
+         * Handles what a shared session receives before and besides data: a download stripe's hello,
+         * which tells where the client (or its NAT) receives that stripe, and probe acknowledgements.
+         */
+        private void control(DatagramSocket socket, DatagramPacket packet) {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+            byteBuffer.position(DATAGRAM_HEADER - Long.BYTES);
+            long sequenceNumber = byteBuffer.getLong();
+            if (sequenceNumber == HELLO_SEQUENCE && byteBuffer.remaining() >= Integer.BYTES) {
+                int stripe = byteBuffer.getInt();
+                if (stripe >= 0 && stripe < hellos.length) {
+                    synchronized (hellos) {
+                        hellos[stripe] = packet.getSocketAddress();
+                        hellos.notifyAll();
                     }
                 }
-        
-                for (File file : files) {
-                    if (!file.isDirectory()) {
-                        out.println(OUTPUT_FORMAT.formatted(file.getName(), file.length() + " bytes"));  
-                    }
+            } else if (sequenceNumber == PROBE_ACK_SEQUENCE) {
+                byte[] copy = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength());
+                replies.offer(new DatagramPacket(copy, copy.length, packet.getSocketAddress()));
+            } else if (sequenceNumber == PROBE_SEQUENCE) {
+                try {
+                    acknowledgeProbe(socket, packet, byteBuffer, session);
+                } catch (IOException e) {
+                    // The client falls back to Ethernet-sized datagrams
+                }
+            }
+        }
+
+        /**
+         * Waits briefly for a hello from each of the client's download stripes. Stripes that sent none
+         * are addressed at the client's control address and the ports of its CLIENT_READY.
+         * @param count The number of stripes the client opened.
+         * @throws InterruptedIOException If interrupted while waiting.
+         */
+        void awaitHellos(int count) throws InterruptedIOException {
+            if (shared == null) {
+                return;
+            }
+            long deadline = System.currentTimeMillis() + PROBE_TIMEOUT;
+            synchronized (hellos) {
+                for (int i = 0; i < Math.min(count, hellos.length); i++) {
+                    long remaining;
+                    while (hellos[i] == null && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        try {
+                            hellos.wait(remaining);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted waiting for the client's hello");
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Makes the sender of one download stripe, addressed where the stripe's hello came from, or else
+         * at the port the client listed in CLIENT_READY.
+         * @param stripe The stripe.
+         * @param clientAddress The client's control address.
+         * @param clientPort The stripe's port from CLIENT_READY.
+         * @return The sender, which still needs its cipher and probe.
+         */
+        DatagramSender sender(int stripe, InetAddress clientAddress, int clientPort) {
+            SocketAddress hello;
+            synchronized (hellos) {
+                hello = hellos[stripe];
+            }
+            DatagramSender sender = new DatagramSender(sockets.get(stripe),
+                    hello != null ? hello : new InetSocketAddress(clientAddress, clientPort), session);
+            if (shared != null) {
+                sender.setReplies(replies); // The endpoint's receive thread owns the socket
+            }
+            return sender;
+        }
+
+        /**
+         * Sets up the PacketHandlers of an upload before READY is sent, so no datagram arrives unheard:
+         * one thread per socket of the transfer's own, or one registration per endpoint socket it uses.
+         * @param reassembly Puts the stripes' datagrams back in order.
+         * @param cipher The transfer's cipher, or null for plaintext datagrams.
+         * @throws IOException If a stripe's cipher cannot be set up.
+         */
+        void listen(Reassembler reassembly, DatagramCipher cipher) throws IOException {
+            List<PacketHandler> listening = new ArrayList<>();
+            Set<Integer> registered = new HashSet<>();
+            for (int i = 0; i < sockets.size(); i++) {
+                if (shared != null && !registered.add(shared[i])) {
+                    continue; // Stripes on the same endpoint socket share its handler
+                }
+                PacketHandler handler = new PacketHandler(sockets.get(i), reassembly, session, TIMEOUT);
+                handler.setCipher(cipher != null ? cipher.copy() : null); // Each thread needs its own Cipher
+                listening.add(handler);
+                if (shared == null) {
+                    reassembly.addSocket(sockets.get(i));
+                } else {
+                    handler.share();
+                    handler.start();
+                    udpEndpoint.register(shared[i], session, handler::offer);
+                }
+            }
+            handlers = listening;
+        }
+
+        /**
+         * Receives the upload set up by listen() and closes the file once it is complete, aborted or the client
+         * went silent for TIMEOUT.
+         * @param reassembly The reassembler passed to listen().
+         * @throws InterruptedException If interrupted while waiting; the upload is aborted.
+         */
+        void receive(Reassembler reassembly) throws InterruptedException {
+            try {
+                if (shared == null) {
+                    for (PacketHandler handler : handlers) {
+                        handler.start();
+                    }
+                    for (PacketHandler handler : handlers) {
+                        handler.join();
+                    }
+                } else if (!reassembly.awaitDone(TIMEOUT)) {
+                    printAndLog("Timeout waiting for next packet from client. Aborting transfer.");
+                    reassembly.abort();
+                }
+            } catch (InterruptedException e) {
+                reassembly.abort();
+                throw e;
+            } finally {
+                if (shared != null) {
+                    joinWorkers();  // Done with the upload, they stop within one poll; the file is closed after them
+                }
+                reassembly.close();
+            }
+        }
+
+        /**
+         * Sends back, unchanged, the datagrams of this session that reach the first stripe's socket, until
+         * count of them arrived or the time is up.
+         * @param count The number of datagrams the client sends.
+         * @param timeoutMillis How long to echo.
+         * @return How many datagrams were echoed.
+         * @throws IOException If the socket fails or the wait is interrupted.
+         */
+        int echo(int count, long timeoutMillis) throws IOException {
+            DatagramSocket socket = sockets.get(0);
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long remaining;
+            if (shared != null) {
+                AtomicInteger echoed = new AtomicInteger();
+                udpEndpoint.register(shared[0], session, packet -> {
+                    try {
+                        socket.send(packet);
+                    } catch (IOException e) {
+                        return; // The client counts it as lost
+                    }
+                    if (echoed.incrementAndGet() >= count) {
+                        synchronized (echoed) {
+                            echoed.notifyAll();
+                        }
+                    }
+                });
+                synchronized (echoed) {
+                    while (echoed.get() < count && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        try {
+                            echoed.wait(remaining);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted echoing datagrams");
+                        }
+                    }
+                }
+                return Math.min(count, echoed.get());
+            }
+            byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+            int echoed = 0;
+            while (echoed < count && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.setSoTimeout((int) remaining);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                if (packet.getLength() < DATAGRAM_HEADER || buffer[0] != DATAGRAM_VERSION || ByteBuffer.wrap(buffer).getInt(1) != session) {
+                    continue; // Not this probe's
+                }
+                socket.send(packet);
+                echoed++;
+            }
+            return echoed;
+        }
+
+        /**
+         * Closes the transfer's own sockets, or removes its session from the shared endpoint.
+         */
+        @Override
+        public void close() {
+            if (shared == null) {
+                sockets.forEach(DatagramSocket::close);
+                return;
+            }
+            udpEndpoint.release(session);
+            for (PacketHandler handler : handlers) {
+                handler.interrupt();  // Stops the workers of an upload that never got to receive()
+            }
+        }
+
+        /**
+         * Waits for the workers of a shared upload to stop.
+         */
+        private void joinWorkers() {
+            boolean interrupted = false;
+            for (PacketHandler handler : handlers) {
+                while (handler.isAlive()) {
+                    try {
+                        handler.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The shared UDP endpoint (-Dftp.udp.port): a small fixed pool of sockets on consecutive ports that every UDP
+     * transfer uses instead of sockets of its own, so a firewall needs only those ports open and concurrent transfers
+     * cost no extra sockets or receive threads. Every datagram starts with the header version and the transfer's
+     * session ID. One receive thread per socket looks the ID up and hands the datagram to the transfer registered
+     * under it; datagrams of another version or an unknown session are counted and dropped. An upload's data is
+     * queued for a worker thread of the upload, which checks and reassembles it, so the receive thread never waits
+     * on one upload's disk. A route that fails costs only the datagram it was handling.
+     */
+    private static class UdpEndpoint {
+        private final List<DatagramSocket> sockets = new ArrayList<>();
+        private final List<Map<Integer, Consumer<DatagramPacket>>> routes = new ArrayList<>(); // Per socket, by session ID
+        private final Set<Integer> sessions = ConcurrentHashMap.newKeySet(); // Session IDs in use
+        private final AtomicInteger nextSocket = new AtomicInteger(); // Endpoint socket of the next transfer's first stripe
+        private final AtomicLong strays = new AtomicLong(); // Datagrams no transfer was registered for
+
+        /**
+         * Binds the endpoint's sockets.
+         * @param port The first port.
+         * @param count The number of sockets, on consecutive ports.
+         * @return The endpoint, not yet receiving.
+         * @throws SocketException If a port cannot be bound.
+         */
+        static UdpEndpoint bind(int port, int count) throws SocketException {
+            UdpEndpoint endpoint = new UdpEndpoint();
+            try {
+                for (int i = 0; i < count; i++) {
+                    DatagramSocket socket = new DatagramSocket(port + i);
+                    endpoint.sockets.add(socket);
+                    endpoint.routes.add(new ConcurrentHashMap<>());
+                    socket.setReceiveBufferSize(UDP_RECV_BUFFER);
+                    socket.setSendBufferSize(Math.max(socket.getSendBufferSize(), UDP_SEND_BUFFER));
+                }
+            } catch (SocketException e) {
+                endpoint.sockets.forEach(DatagramSocket::close);
+                throw e;
+            }
+            return endpoint;
+        }
+
+        /**
+         * Starts one receive thread per socket.
+         */
+        void start() {
+            for (int i = 0; i < sockets.size(); i++) {
+                int index = i;
+                Thread thread = new Thread(() -> receive(index), "udp-endpoint-" + sockets.get(i).getLocalPort());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        private void receive(int index) {
+            DatagramSocket socket = sockets.get(index);
+            Map<Integer, Consumer<DatagramPacket>> table = routes.get(index);
+            byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+            ByteBuffer header = ByteBuffer.wrap(buffer);
+            while (!socket.isClosed()) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(packet);
+                } catch (IOException e) {
+                    if (!socket.isClosed()) {
+                        printAndLog("UDP endpoint " + socket.getLocalPort() + ": " + e.getMessage());
+                    }
+                    continue;
+                }
+                Consumer<DatagramPacket> route = packet.getLength() >= DATAGRAM_HEADER && buffer[0] == DATAGRAM_VERSION
+                        ? table.get(header.getInt(1)) : null;
+                if (route == null) {
+                    strays.incrementAndGet();
+                    continue;
+                }
+                try {
+                    route.accept(packet);
+                } catch (RuntimeException e) {
+                    strays.incrementAndGet();  // e.g. a malformed datagram; the thread must keep serving every other session
+                    printAndLog("UDP endpoint " + socket.getLocalPort() + ": dropped a datagram: " + e);
+                }
+            }
+        }
+
+        /**
+         * Claims an unused session ID.
+         * @return The ID.
+         */
+        int newSession() {
+            int session;
+            do {
+                session = ThreadLocalRandom.current().nextInt();
+            } while (!sessions.add(session));
+            return session;
+        }
+
+        /**
+         * @return The socket the next transfer's first stripe uses; later stripes take the following ones.
+         */
+        int nextSocket() {
+            return Math.floorMod(nextSocket.getAndIncrement(), sockets.size());
+        }
+
+        int size() {
+            return sockets.size();
+        }
+
+        DatagramSocket socket(int index) {
+            return sockets.get(index);
+        }
+
+        /**
+         * Hands the datagrams of a session that arrive on one socket to a route, replacing any earlier one.
+         * @param index The socket.
+         * @param session The session ID.
+         * @param route Called on the socket's receive thread for each datagram.
+         */
+        void register(int index, int session, Consumer<DatagramPacket> route) {
+            routes.get(index).put(session, route);
+        }
+
+        /**
+         * Removes a session from every socket and frees its ID. Its late datagrams are dropped as strays.
+         * @param session The session ID.
+         */
+        void release(int session) {
+            for (Map<Integer, Consumer<DatagramPacket>> table : routes) {
+                table.remove(session);
+            }
+            sessions.remove(session);
+        }
+
+        /**
+         * @return The ports, sessions in use and stray datagrams, for the log and the "udp" console command.
+         */
+        String describe() {
+            return "ports " + sockets.get(0).getLocalPort() + "-" + sockets.get(sockets.size() - 1).getLocalPort()
+                    + " (" + sockets.size() + " sockets, one receive thread each), " + sessions.size() + " sessions, "
+                    + strays.get() + " stray datagrams";
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        LogToFile.logToFile(LOGGER, LOG_FILE); // Log to file
+        printAndLog("Logging to " + LOG_FILE);
+        printAndLog("Starting FTP server...");
+        final String javaVersion = System.getProperty("java.version");
+        final String javaVendor = System.getProperty("java.vendor");
+        final String osVersion = System.getProperty("os.version");
+        final String osName = System.getProperty("os.name");
+        final String osArch = System.getProperty("os.arch");
+        final Runtime runtime = Runtime.getRuntime();
+        final long totalMemory = runtime.totalMemory();
+        final long maxMemory = runtime.maxMemory();
+        final long freeMemory = runtime.freeMemory();
+        final long usedMemory = totalMemory - freeMemory;
+        final String MEMORY_FORMAT = "Java Memory: %.2fMb/%.2fMb (%.2fMb used) [%.2f%%]";
+        printAndLog("OS: " + osName + " " + osVersion + " (" + osArch + ")");
+        printAndLog("Java version: " + javaVersion + " (" + javaVendor + ")");
+        printAndLog(String.format(MEMORY_FORMAT, totalMemory / 1048576.0, maxMemory / 1048576.0, usedMemory / 1048576.0, (usedMemory * 100.0) / totalMemory));
+
+        if (args.length > 0) {
+            listenPort = Integer.parseInt(args[0]);
+        } else {
+            printAndLog("Attempting to listen on default port (" + listenPort + ")");
+        }
+
+        // Start the server shutdown listener (listens for "q" to quit)
+        new Thread(FTPServer::shutdownListener).start();
+
+        if (TLS && System.getProperty("javax.net.ssl.keyStore") == null) {
+            printAndLog("ERROR: ftp.tls requires a server certificate (-Djavax.net.ssl.keyStore=<file> -Djavax.net.ssl.keyStorePassword=<password>)");
+            System.exit(1);
+        }
+        UploadCommitter.Durability durability = UploadCommitter.parse(DURABILITY);
+        if (durability == null) {
+            printAndLog("ERROR: ftp.durability must be none, fsync or group, not " + DURABILITY);
+            System.exit(1);
+        }
+        committer = new UploadCommitter(durability);
+        if (UDP_PORT > 0) {
+            try {
+                udpEndpoint = UdpEndpoint.bind(UDP_PORT, UDP_SHARED_SOCKETS);
+            } catch (SocketException e) {
+                printAndLog("ERROR: ftp.udp.port: cannot bind UDP ports " + UDP_PORT + "-" + (UDP_PORT + UDP_SHARED_SOCKETS - 1) + ": " + e.getMessage());
+                System.exit(1);
+            }
+            udpEndpoint.start();
+        }
+        if (CLUSTER != null) {
+            try {
+                cluster = ClusterRing.parse(CLUSTER, System.getProperty("ftp.cluster.self"), listenPort, CLUSTER_VIRTUAL_NODES);
+            } catch (IllegalArgumentException e) {
+                printAndLog("ERROR: ftp.cluster: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        try {
+            serverSocket = TLS
+                    ? SSLServerSocketFactory.getDefault().createServerSocket(listenPort, BACKLOG, InetAddress.getByName("0.0.0.0"))
+                    : new ServerSocket(listenPort, BACKLOG, InetAddress.getByName("0.0.0.0")); // Bind to all interfaces
+            printAndLog("Server listening on " + serverSocket.getInetAddress() + ":" + serverSocket.getLocalPort());
+            try (final DatagramSocket datagramSocket = new DatagramSocket()) {
+                datagramSocket.connect(InetAddress.getByName("8.8.8.8"), 12345);
+                printAndLog("WAN Address: " + datagramSocket.getLocalAddress().getHostAddress());
+                // Display server interface IP address
+                printAndLog("LAN Address: " + InetAddress.getLocalHost());
+            } catch (Exception e) {
+                printAndLog("Server WAN IP: Unable to Reach Google DNS: " + e.getMessage());
+            }
+            
+            printAndLog("Root directory: " + System.getProperty("user.dir"));
+            if (CHUNK_STORE) {
+                chunkStore = new ChunkStore(new File(System.getProperty("user.dir"), CHUNK_DIR_NAME));
+                printAndLog("Storage backend: chunk store (" + CHUNK_DIR_NAME + ")");
+            } else {
+                printAndLog("Storage backend: plain files");
+            }
+            if (CATALOG) {
+                try {
+                    catalog = FileCatalog.open(new File(ClientHandler.ROOT_DIR));
+                    printAndLog("File catalog: " + CATALOG_FILE_NAME + ", loaded and checked in the background (lookups go to the filesystem until then)");
+                    catalog.start();
+                } catch (IOException e) {
+                    printAndLog("File catalog: unavailable, lookups go to the filesystem: " + e.getMessage());
+                }
+            } else {
+                printAndLog("File catalog: none (lookups go to the filesystem)");
+            }
+            printAndLog("Upload durability: " + durability.name().toLowerCase());
+            if (cluster != null) {
+                printAndLog("Cluster: " + cluster.describe());
+                List<File> misplaced = new ArrayList<>();
+                findMisplaced(new File(ClientHandler.ROOT_DIR), misplaced);
+                if (!misplaced.isEmpty()) {
+                    printAndLog("Cluster: " + misplaced.size() + " files here belong to other nodes; enter \"rebalance\" to move them");
+                }
+            } else {
+                printAndLog("Cluster: none (this server stores every file)");
+            }
+            printAndLog("File locks: " + LOCKS.describe());
+            printAndLog("Encryption: " + (TLS ? "TLS (control and TCP data), AES-GCM (UDP datagrams)" : "none"));
+            printAndLog("Maximum Transmission Unit (MTU): " + MTU + " bytes");
+            printAndLog("TCP buffer size: " + TCP_BUFFER_SIZE + " bytes");
+            printAndLog("UDP endpoint: " + (udpEndpoint != null ? "shared, " + udpEndpoint.describe() : "a fresh socket per stripe of each transfer"));
+            printAndLog("UDP buffer size: " + UDP_BUFFER_SIZE + " bytes" + (dontFragmentSupported()
+                    ? " (up to " + (MAX_DATAGRAM_SIZE - APPLICATION_OVERHEAD) + " bytes after path MTU probing)"
+                    : " (no path MTU probing: this JDK cannot set the don't-fragment bit)"));
+            printAndLog("Transfer rate limits: " + SCHEDULER.describe());
+            printAndLog("Admission limits: " + ADMISSION.describe() + ", backlog " + BACKLOG);
+            printAndLog("Server ready to accept client connections.");
+            printAndLog("Waiting for client connections...");
+
+            // Main loop to accept client connections
+            while (running) {
+                try {
+                    Socket clientSocket = serverSocket.accept();
+                    clientSocket.setTcpNoDelay(TLS); // Handshake flights are small writes that Nagle would hold for a delayed ACK
+                    String busy = ADMISSION.admitSession();
+                    if (busy != null) {
+                        refuseSession(clientSocket, busy);
+                        continue;
+                    }
+                    printAndLog("Accepted connection from: " + clientSocket.getInetAddress());
+
+                    // Handle client connection on a pooled thread
+                    try {
+                        SESSION_POOL.execute(new ClientHandler(clientSocket));
+                    } catch (RuntimeException e) {
+                        ADMISSION.releaseSession();
+                        refuseSession(clientSocket, "Cannot start session");
+                        continue;
+                    }
+                    printAndLog("Started thread for client: " + clientSocket.getInetAddress());
+
+                } catch (IOException e) {
+                    if (running) { // Only log if still running
+                        printAndLog("Error accepting connection: " + e.getMessage());
+                    }
+                }
+            }
+
+        } catch (IOException e) {
+            if (running) {
+                printAndLog("Could not listen on port " + listenPort + ": " + e.getMessage());
+            }
+        } finally {
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+            SESSION_POOL.shutdown();
+            REJECT_POOL.shutdown();
+        }
+    }
+
+    /**
+     * Listens for "q" input to shut down the server, for "rebalance" to move files to the cluster nodes that own them,
+     * for "catalog" to show the file catalog's state, and for "udp" to show the shared UDP endpoint's.
+    */
+    private static void shutdownListener() {
+        Scanner scanner = new Scanner(System.in);
+        while (running) {
+            String line = scanner.nextLine();
+            if (line.equalsIgnoreCase("udp")) {
+                printAndLog("UDP endpoint: " + (udpEndpoint != null ? udpEndpoint.describe() : "none (-Dftp.udp.port)"));
+            } else if (line.equalsIgnoreCase("catalog")) {
+                printAndLog("File catalog: " + (catalog != null ? catalog.describe() : "none (-Dftp.catalog)"));
+            } else if (line.equalsIgnoreCase("rebalance")) {
+                if (cluster != null) {
+                    rebalance();
+                } else {
+                    printAndLog("Rebalance needs a cluster (-Dftp.cluster)");
+                }
+            } else if (line.equalsIgnoreCase("q")) {
+                running = false;
+                printAndLog("Shutting down the server...");
+                try {
+                    if (serverSocket != null && !serverSocket.isClosed()) {
+                        serverSocket.close();  // Close the server socket to unblock accept()
+                    }
+                } catch (IOException e) {
+                    printAndLog("Error closing the server socket: " + e.getMessage());
+                }
+                break;
+            }
+        }
+        scanner.close();
+    }
+
+    /**
+     * ClientHandler class to handle individual client connections in separate threads.
+    * Each client connection is handled by a separate instance of this class.
+    * The class implements the Runnable interface to run in a separate thread.
+    * The class handles the LS, CD, GET, PUT, and QUIT commands.
+    * The class maintains the current directory for each client.
+    * The class uses a static ROOT_DIR for the server root directory.
+    */
+    private static class ClientHandler implements Runnable {
+        private final Socket clientSocket;
+        private final String clientAddress; // Store client address for logging
+        private static final String ROOT_DIR = System.getProperty("user.dir");
+        private static final Comparator<String> LISTING_ORDER = String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder()); // LS order, keeping names that differ only in case apart
+        private String currentDir;
+        private boolean udpMode = false; // UDP mode flag
+        private int stripes = 1; // UDP sockets (and threads on each side) per transfer, set with STRIPES
+        private String user; // User name for rate accounting, set with USER
+        private TransferTrace trace = TransferTrace.NONE; // JFR events of the running transfer
+    
+        ClientHandler(Socket clientSocket) {
+            this.clientSocket = clientSocket;
+            this.clientAddress = clientSocket.getInetAddress().toString(); // Capture client address
+            this.currentDir = ROOT_DIR; // Start in the root directory
+            this.user = clientSocket.getInetAddress().getHostAddress(); // Until the client names a user
+            printAndLog("ClientHandler initialized for: " + clientAddress);
+        }
+    
+        /**
+         * Run method to handle client connections and execute commands.
+        */
+        @Override
+        public void run() {
+            printAndLog("Handling client connection from: " + clientAddress);
+            try (
+                BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)
+            ) {
+                clientSocket.setSoTimeout(IDLE_TIMEOUT); // Reap sessions that stay idle too long
+                out.println("WELCOME"); // Tell the client the session was admitted
+                String inputLine;
+                while ((inputLine = in.readLine()) != null) {
+                    printAndLog("Received command from " + clientAddress + ": " + inputLine); // Log with client info
+                    String[] command = inputLine.split(" ");
+                    CommandEvent event = CommandEvent.start(command, clientAddress, user); // Null unless JFR events are on
+                    try {
+                        switch (command[0].toUpperCase()) {
+                            case "LS":
+                                handleLS(out);
+                                break;
+                            case "CD":
+                                handleCD(command, out);
+                                break;
+                            case "GET":
+                                if (!handleNotModified(command, out)) {  // A current cached copy needs no transfer slot
+                                    admitTransfer(out, command, () -> handleGET(command, out));
+                                }
+                                break;
+                            case "PUT":
+                                admitTransfer(out, command, () -> handlePUT(command, out, in));  // Pass 'in' to handlePUT
+                                break;
+                            case "DELTA":
+                                admitTransfer(out, command, () -> handleDELTA(command, out));
+                                break;
+                            case "CPUT":
+                                admitTransfer(out, command, () -> handleCPUT(command, out));
+                                break;
+                            case "MODE":
+                                udpMode = !udpMode; // Toggle UDP mode
+                                break;
+                            case "USER":
+                                handleUSER(command, out);
+                                break;
+                            case "STRIPES":
+                                handleSTRIPES(command, out);
+                                break;
+                            case "STAT":
+                                handleSTAT(command, out);
+                                break;
+                            case "HASHES":
+                                admitTransfer(out, command, () -> handleHASHES(command, out));
+                                break;
+                            case "GETRANGE":
+                                admitTransfer(out, command, () -> handleGETRANGE(command, out));
+                                break;
+                            case "PEERLS":
+                                handlePEERLS(command, out);
+                                break;
+                            case "PING":
+                                handlePING(command, out);
+                                break;
+                            case "QUIT":
+                                handleQUIT(out);
+                                return;  // Close this client handler after QUIT
+                            default:
+                                out.println("Unknown command");
+                                break;
+                        }
+                    } finally {
+                        if (event != null) {
+                            event.commit();
+                        }
+                    }
+                }
+            // Handle exceptions and close the client connection
+            } catch (SocketTimeoutException e) {
+                printAndLog("Closing idle session for " + clientAddress);
+            } catch (IOException e) {
+                printAndLog("Exception in client handling for " + clientAddress + ": " + e.getMessage());
+            } finally {
+                try {
+                    clientSocket.close(); // Also when opening its streams failed
+                } catch (IOException e) {
+                    // Already closed
+                }
+                ADMISSION.releaseSession();
+            }
+        }
+
+        /**
+         * A GET/PUT handler run under admission control.
+         */
+        @FunctionalInterface
+        private interface TransferAction {
+            void run() throws IOException;
+        }
+
+        /**
+         * Runs a transfer once a transfer slot is free, or tells the client to retry later.
+         * With JFR events on, the transfer and its phases (the wait for a slot first) are recorded.
+         * @param out The output writer to communicate with the client.
+         * @param command The command array, which names the transfer in its events.
+         * @param action The transfer handler.
+         * @throws IOException If the transfer fails.
+         */
+        private void admitTransfer(PrintWriter out, String[] command, TransferAction action) throws IOException {
+            trace = TransferTrace.start(command, udpMode ? "UDP" : "TCP", udpMode ? stripes : 1, clientAddress, user);
+            String outcome = null;
+            try {
+                trace.phase("admission");
+                String busy = ADMISSION.admitTransfer();
+                trace.endPhase();
+                if (busy != null) {
+                    out.println("BUSY " + RETRY_AFTER + " " + busy);
+                    out.flush();
+                    outcome = "busy";
+                    return;
+                }
+                try {
+                    action.run();
+                } catch (IOException | RuntimeException e) {
+                    outcome = "failed: " + e.getMessage();
+                    throw e;
+                } finally {
+                    ADMISSION.releaseTransfer();
+                }
+            } finally {
+                trace.end(outcome);
+                trace = TransferTrace.NONE;
+            }
+        }
+
+        /**
+         * Opens a listening socket for one data connection, which gives up if the client never connects.
+         * @return The data server socket on an ephemeral port.
+         * @throws IOException If the socket cannot be opened.
+         */
+        private ServerSocket openDataSocket() throws IOException {
+            ServerSocket transferSocket = TLS ? SSLServerSocketFactory.getDefault().createServerSocket(0) : new ServerSocket(0);
+            transferSocket.setSoTimeout(ACCEPT_TIMEOUT);
+            return transferSocket;
+        }
+
+        /**
+         * Waits for the client to connect to a data socket.
+         * @param transferSocket The data server socket.
+         * @return The data connection.
+         * @throws IOException If the client never connects.
+         */
+        private Socket acceptDataConnection(ServerSocket transferSocket) throws IOException {
+            Socket socket = transferSocket.accept();
+            socket.setTcpNoDelay(TLS); // Lets the resumed handshake complete without waiting for delayed ACKs
+            return socket;
+        }
+    
+        /**
+         * Handles the LS command to list files in the current directory in the desired format.
+        * In a cluster the listing covers every node: the other nodes are asked for their files in the same directory.
+        * @param control The output writer to communicate with the client.
+        */
+        private void handleLS(PrintWriter control) throws IOException {
+            PrintWriter out = new PrintWriter(new BufferedWriter(control, LISTING_BUFFER_SIZE)); // Sent in large writes instead of a flush per line
+            File dir = new File(currentDir);
+            Set<String> directories = new TreeSet<>(LISTING_ORDER);
+            Map<String, Long> files = new TreeMap<>(LISTING_ORDER);
+            listLocal(dir, files, directories);
+            List<String> unreachable = new ArrayList<>();
+            if (cluster != null) {
+                String key = clusterKey(dir);
+                for (String peer : cluster.peers()) {
+                    try {
+                        listPeer(peer, key != null ? key : ".", files, directories);
+                    } catch (IOException e) {
+                        unreachable.add(peer);
+                        printAndLog("Could not list " + peer + " for " + clientAddress + ": " + e.getMessage());
+                    }
+                }
+            }
+        
+            if (dir.isDirectory()) {
+        
+                out.println("Directory: " + currentDir);
+                out.println(listingRow("Name", "Size"));
+                out.println(listingRow(".", "<DIR>"));
+                out.println(listingRow("..", "<DIR>"));
+        
+                for (String name : directories) {
+                    out.println(listingRow("/" + name + "/", "<DIR>"));
+                }
+        
+                for (Map.Entry<String, Long> file : files.entrySet()) {
+                    out.println(listingRow(file.getKey(), file.getValue() + " bytes"));
+                }
+                for (String peer : unreachable) {
+                    out.println("Node unreachable, its files are not listed: " + peer);
+                }
+            }
+            out.println("EOF"); // Mark the end of listing
+            out.flush();
+            printAndLog("LS command executed by " + clientAddress);
+        }
+
+        /**
+         * Formats one line of an LS listing like "  %-50s %-30s", without the cost of a format string per file.
+         */
+        private static String listingRow(String name, String size) {
+            StringBuilder row = new StringBuilder(84).append("  ").append(name);
+            for (int i = name.length(); i < 50; i++) {
+                row.append(' ');
+            }
+            row.append(' ').append(size);
+            for (int i = size.length(); i < 30; i++) {
+                row.append(' ');
+            }
+            return row.toString();
+        }
+
+        /**
+         * Handles PEERLS, with which another node of the cluster lists this node's part of a directory:
+         * "D <name>" for each subdirectory and "F <size> <name>" for each file this node owns, then EOF.
+        * @param command The command array containing the root-relative directory ("." for the root).
+        * @param control The output writer to communicate with the node.
+        */
+        private void handlePEERLS(String[] command, PrintWriter control) throws IOException {
+            PrintWriter out = new PrintWriter(new BufferedWriter(control, LISTING_BUFFER_SIZE)); // Sent in large writes instead of a flush per line
+            File dir = new File(ROOT_DIR, command.length > 1 ? command[1] : ".");
+            if (dir.getCanonicalPath().startsWith(ROOT_DIR)) {
+                Map<String, Long> files = new TreeMap<>();
+                Set<String> directories = new TreeSet<>();
+                listLocal(dir, files, directories);
+                for (String name : directories) {
+                    out.println("D " + name);
+                }
+                for (Map.Entry<String, Long> file : files.entrySet()) {
+                    out.println("F " + file.getValue() + " " + file.getKey());
+                }
+            }
+            out.println("EOF");
+            out.flush();
+        }
+
+        /**
+         * Sends the client to the node that owns a file, when the cluster places the file on another node.
+         * The reply is "REDIRECT <host:port>"; the client repeats the command on a session with that node.
+         * Synthetic paths are served by every node.
+        * @param name The file named in the command.
+        * @param out The output writer to communicate with the client.
+        * @return True if the client was redirected.
+        * @throws IOException If the path cannot be resolved.
+        */
+        private boolean redirect(String name, PrintWriter out) throws IOException {
+            if (cluster == null || SyntheticData.isSink(name)) {
+                return false;
+            }
+            String key = clusterKey(new File(currentDir, name));
+            if (key == null || cluster.isLocal(key)) {
+                return false;
+            }
+            String owner = cluster.owner(key);
+            out.println("REDIRECT " + owner);
+            out.flush();
+            printAndLog("Redirected " + key + " for " + clientAddress + " to " + owner);
+            return true;
+        }
+    
+        /**
+         * Handles the CD command to change the current directory.
+        * @param command The command array containing the directory to change to.
+        * @param out The output writer to communicate with the client.
+        */
+        private void handleCD(String[] command, PrintWriter out) {
+            if (command.length > 1) {
+                File newDir = new File(currentDir + File.separator + command[1]);
+                try {
+                    FileCatalog.Entry entry = catalog != null ? catalog.lookup(newDir) : null;
+                    if (entry != null && entry.directory) {
+                        // Catalogued directories lie under the root and are not links, so the path needs no resolving
+                        currentDir = newDir.toPath().toAbsolutePath().normalize().toString();
+                        out.println("Changed directory to: " + currentDir);
+                        printAndLog("Changed directory to: " + currentDir + " for client: " + clientAddress);
+                    } else if (newDir.isDirectory() && newDir.getCanonicalPath().startsWith(ROOT_DIR)) {
+                        currentDir = newDir.getCanonicalPath(); // Update current directory
+                        out.println("Changed directory to: " + currentDir);
+                        printAndLog("Changed directory to: " + currentDir + " for client: " + clientAddress);
+                    } else {
+                        out.println("Directory not found or permission denied.");
+                    }
+                } catch (IOException e) {
+                    printAndLog("Error changing directory for " + clientAddress + ": " + e.getMessage());
+                }
+            } else {
+                out.println("ERROR: No directory specified.");
+            }
+            out.flush();
+        }
+
+        /**
+         * Handles the USER command, naming the user that this session's transfers are accounted to.
+        * @param command The command array containing the user name.
+        * @param out The output writer to communicate with the client.
+        */
+        private void handleUSER(String[] command, PrintWriter out) {
+            if (command.length > 1) {
+                user = command[1];
+                out.println("User set to: " + user);
+                printAndLog("Client " + clientAddress + " identified as user " + user);
+            } else {
+                out.println("ERROR: No user specified.");
+            }
+            out.flush();
+        }
+
+        /**
+         * Handles the STRIPES command, which sets how many UDP sockets later UDP transfers are spread over.
+        * @param command The command array containing the stripe count.
+        * @param out The output writer to communicate with the client.
+        */
+        private void handleSTRIPES(String[] command, PrintWriter out) {
+            try {
+                int count = Integer.parseInt(command[1]);
+                if (count < 1 || count > MAX_STRIPES) {
+                    out.println("ERROR: Stripes must be between 1 and " + MAX_STRIPES + ".");
+                } else {
+                    stripes = count;
+                    out.println("Stripes set to: " + stripes);
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                out.println("ERROR: No stripe count specified.");
+            }
+            out.flush();
+        }
+
+        /**
+         * Handles the PING command. A bare PING is answered with PONG, so the client can time the control path.
+         * PING <count> also opens a UDP socket, or a session on the shared endpoint, and answers
+         * "PONG <port> <count> session=<id>", laid out like READY. The datagrams the client then sends there are
+         * echoed back unchanged for up to PING_TIMEOUT, and "PINGED <received>" follows, so the client can measure
+         * the data path's round trip and tell loss on the way in from loss on the way out.
+         * @param command The command array, with the optional datagram count.
+         * @param out The output writer to communicate with the client.
+         * @throws IOException If the UDP socket cannot be opened or fails.
+         */
+        private void handlePING(String[] command, PrintWriter out) throws IOException {
+            if (command.length < 2) {
+                out.println("PONG");
+                return;
+            }
+            int count;
+            try {
+                count = Integer.parseInt(command[1]);
+            } catch (NumberFormatException e) {
+                out.println("ERROR: Invalid datagram count.");
+                return;
+            }
+            if (count < 1 || count > PING_MAX_DATAGRAMS) {
+                out.println("ERROR: Datagram count must be between 1 and " + PING_MAX_DATAGRAMS + ".");
+                return;
+            }
+            try (StripeSockets probe = StripeSockets.open(1)) {
+                out.println("PONG " + probe.ports() + " " + count + probe.readyOptions());
+                int echoed = probe.echo(count, PING_TIMEOUT);
+                out.println("PINGED " + echoed);
+                printAndLog("PING from " + clientAddress + ": echoed " + echoed + " of " + count + " datagrams");
+            }
+        }
+
+        /**
+         * Registers a data stream for this client with the transfer scheduler.
+        * @param size The transfer size in bytes.
+        * @return The stream used to pace the transfer.
+        */
+        private TransferScheduler.Stream openStream(long size) {
+            return SCHEDULER.register(clientSocket.getInetAddress().getHostAddress(), user, size);
+        }
+
+        /**
+         * Handles the QUIT command, closing the client connection.
+        * @param out The output writer to communicate with the client.
+        * @throws IOException If an I/O error occurs.
+        */
+        private void handleQUIT(PrintWriter out) throws IOException {
+            out.println("Goodbye!"); // Inform the client the server is closing the connection
+            printAndLog("Client issued QUIT. Closing connection for: " + clientAddress);
+    
+            // Close the client socket
+            clientSocket.close();
+            printAndLog("Client connection closed for: " + clientAddress);
+        }
+    
+        /**
+         * Handles the GET command for file download.
+        * @param command The command array containing the file to download.
+        * @param out The output writer to communicate with the client.
+        * @throws IOException If an I/O error occurs while sending the file.
+        */
+        private void handleGET(String[] command, PrintWriter out) throws IOException {
+            if (command.length > 1) {
+                if (redirect(command[1], out)) {
+                    return;
+                }
+                File file = new File(currentDir + File.separator + command[1]);
+                SyntheticData synthetic = SyntheticData.parse(command[1]);  // Generated in memory instead of read from disk
+                if (synthetic != null || file.exists() && !file.isDirectory()) {
+                    // Taken before opening, so a commit in between can only make the client's copy look stale
+                    String[] version = synthetic != null ? null : version(file);
+                    String versionOption = version != null ? " version=" + String.join(":", version) : "";
+
+                    // Open the file under its shared lock, so the whole transfer reads one committed version
+                    trace.phase("open");
+                    Lock readLock = synthetic != null ? null : LOCKS.shared(file);
+                    InputStream source;
+                    long fileSize;
+                    try {
+                        source = synthetic != null ? synthetic.open() : openFile(file);
+                        fileSize = synthetic != null ? synthetic.size : openedLength(source, file);  // Get file size
+                    } catch (IOException e) {
+                        if (readLock != null) {
+                            readLock.unlock();
+                        }
+                        out.println("ERROR: Could not open file: " + e.getMessage());  // e.g. a damaged chunk manifest
+                        out.flush();
+                        return;
+                    } catch (RuntimeException e) {
+                        if (readLock != null) {
+                            readLock.unlock();
+                        }
+                        throw e;
+                    }
+                    if (readLock != null && LOCKS.snapshots()) {
+                        readLock.unlock();  // The open file keeps the version it was opened at
+                        readLock = null;
+                    }
+                    try (InputStream opened = source) {
+                        trace.phase("connect");
+                        if (!udpMode) {
+                            try (ServerSocket transferSocket = openDataSocket()) {
+                                out.println("READY " + transferSocket.getLocalPort() + " " + fileSize + versionOption);  // Send file size
+                                try (Socket fileTransferSocket = acceptDataConnection(transferSocket);
+                                    InputStream fis = synthetic != null ? opened : readAhead(opened);
+                                    BufferedOutputStream bos = new BufferedOutputStream(fileTransferSocket.getOutputStream());
+                                    TransferScheduler.Stream stream = openStream(fileSize)) {
+                                    trace.phase("send");
+                                    byte[] buffer = new byte[TCP_BUFFER_SIZE];
+                                    int bytesRead;
+                                    while ((bytesRead = fis.read(buffer)) != -1) {
+                                        stream.acquire(bytesRead);
+                                        bos.write(buffer, 0, bytesRead);
+                                    }
+                                    bos.flush();
+                                    trace.transferred(fileSize);
+                                }
+                            }
+                        } else {
+                            // UDP mode, with one sending thread per stripe, each on its own socket or the shared endpoint's
+                            InetAddress clientAddress = clientSocket.getInetAddress(); // Client IP
+                            DatagramCipher cipher = TLS ? DatagramCipher.generate() : null; // Fresh key per transfer, sent over the TLS control channel
+                            try (StripeSockets udp = StripeSockets.open(stripes)) {
+                                out.println("READY " + udp.ports() + " " + fileSize + versionOption
+                                        + (cipher != null ? cipher.readyOptions() : "") + udp.readyOptions());  // Server tells client it's ready
+
+                                // Wait for the client to send its local ports, one per stripe
+                                BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                                String clientResponse = in.readLine();
+                                if (clientResponse != null && clientResponse.startsWith("CLIENT_READY")) {
+                                    int[] clientPorts = parsePorts(clientResponse.split(" ")[1]);  // Get client's ports
+                                    udp.awaitHellos(clientPorts.length);  // Where a NAT maps them, on the shared endpoint
+
+                                    // Find the largest datagram each path carries, then start sending file data
+                                    List<DatagramSender> senders = new ArrayList<>();
+                                    for (int i = 0; i < Math.min(stripes, clientPorts.length); i++) {
+                                        DatagramSender sender = udp.sender(i, clientAddress, clientPorts[i]);
+                                        sender.setCipher(cipher != null ? cipher.copy() : null);
+                                        int datagramSize = sender.probe();
+                                        printAndLog("UDP datagram size for " + clientAddress + ": " + datagramSize + " bytes"
+                                                + (stripes > 1 ? " (stripe " + (i + 1) + " of " + stripes + ")" : ""));
+                                        senders.add(sender);
+                                    }
+
+                                    // Read and send data packets on every stripe, paced by the transfer scheduler
+                                    trace.phase("send");
+                                    try (InputStream fileInputStream = synthetic != null ? opened : readAhead(opened);
+                                        TransferScheduler.Stream stream = openStream(fileSize)) {
+                                        sendStripes(fileInputStream, senders,
+                                                (sequenceNumber, length, checksum) -> stream.acquire(length + UDP_IP_APPLICATION_OVERHEAD));
+                                    }
+                                    trace.transferred(fileSize);
+                                    printAndLog("File transfer completed successfully to: " + clientAddress);
+                                }
+                            }
+                        }
+                    } finally {
+                        if (readLock != null) {
+                            readLock.unlock();
+                        }
+                    }
+                } else {
+                    out.println("ERROR: File not found.");
+                }
+            } else {
+                out.println("ERROR: No file specified for GET command.");
+            }
+            out.flush();
+        }
+    
+        /**
+         * Handles the STAT command, which reports a file's size and modification time ("STAT <size> <millis>")
+         * so a client can find the servers that hold the same version of a file. When the file catalog knows the
+         * SHA-256 of the whole file, it follows as a third field.
+        * @param command The command array containing the file name.
+        * @param out The output writer to communicate with the client.
+        * @throws IOException If the path cannot be resolved.
+        */
+        private void handleSTAT(String[] command, PrintWriter out) throws IOException {
+            if (command.length < 2) {
+                out.println("ERROR: No file specified for STAT command.");
+            } else if (!redirect(command[1], out)) {
+                File file = new File(currentDir, command[1]);
+                SyntheticData synthetic = SyntheticData.parse(command[1]);
+                String[] version = synthetic == null ? version(file) : null;
+                if (synthetic != null) {
+                    out.println("STAT " + synthetic.size + " 0");
+                } else if (version != null) {
+                    out.println("STAT " + String.join(" ", version));
+                } else {
+                    out.println("ERROR: File not found.");
+                }
+            }
+            out.flush();
+        }
+
+        /**
+         * Describes the current version of a file: its size, its modification time in milliseconds and, when the
+         * file catalog knows it, the SHA-256 of its content. STAT sends these fields, READY for a GET sends them
+         * joined by ':' as version=, and a conditional GET sends them back.
+         * @param file The file.
+         * @return The fields, or null if the file does not exist or is a directory.
+         * @throws IOException If the file's size cannot be read.
+         */
+        private String[] version(File file) throws IOException {
+            FileCatalog.Entry entry = catalog != null ? catalog.lookup(file) : null;
+            if (entry != null && !entry.directory) {
+                FileCatalog.Hashes hashes = entry.content ? catalog.hashes(file, entry) : null;
+                if (hashes != null && hashes.content != null) {
+                    return new String[] {String.valueOf(entry.size), String.valueOf(entry.modified / 1000000), hashes.content};
+                }
+                if (!entry.content) {
+                    return new String[] {String.valueOf(entry.size), String.valueOf(entry.modified / 1000000)};
+                }
+                // Superseded since the lookup; the filesystem has the current version
+            }
+            if (file.isFile()) {
+                return new String[] {String.valueOf(fileLength(file)), String.valueOf(file.lastModified())};
+            }
+            return null;
+        }
+
+        /**
+         * Answers a conditional GET ("GET <file> IF <size> <millis> [<sha256>]", the version from an earlier
+         * READY) with NOT_MODIFIED when that version is still current: the same content hash when both sides
+         * have one, otherwise the same size and modification time. Cluster redirects are answered here too.
+         * @param command The command array.
+         * @param out The output writer to communicate with the client.
+         * @return True if the command was answered, false if the file must be sent.
+         * @throws IOException If the file's version cannot be read.
+         */
+        private boolean handleNotModified(String[] command, PrintWriter out) throws IOException {
+            if (command.length < 5 || !command[2].equalsIgnoreCase("IF") || SyntheticData.parse(command[1]) != null) {
+                return false;
+            }
+            if (redirect(command[1], out)) {
+                return true;
+            }
+            String[] current = version(new File(currentDir, command[1]));
+            if (current == null) {
+                return false;  // GET reports the missing file
+            }
+            boolean hashes = current.length > 2 && command.length > 5;
+            boolean unchanged = hashes ? current[2].equalsIgnoreCase(command[5])
+                    : current[0].equals(command[3]) && current[1].equals(command[4]);
+            if (!unchanged) {
+                return false;
+            }
+            out.println("NOT_MODIFIED " + String.join(":", current));
+            out.flush();
+            printAndLog("GET " + command[1] + " for " + clientAddress + ": not modified");
+            return true;
+        }
+
+        /**
+         * Handles the HASHES command, which sends the SHA-256 digest of every chunk of a file:
+         * "HASHES <size> <count>" followed by one hex digest per line. Swarm downloads check each chunk
+         * they fetch from a mirror against these digests. With the file catalog the digests are kept, so asking
+         * again for an unchanged file with the same chunk size does not read it.
+        * @param command The command array containing the file name and the chunk size.
+        * @param out The output writer to communicate with the client.
+        * @throws IOException If the file cannot be read.
+        */
+        private void handleHASHES(String[] command, PrintWriter out) throws IOException {
+            if (command.length < 3) {
+                out.println("ERROR: Usage: HASHES <file> <chunk size>");
+                out.flush();
+                return;
+            }
+            if (redirect(command[1], out)) {
+                return;
+            }
+            final int chunkSize;
+            try {
+                chunkSize = Integer.parseInt(command[2]);
+            } catch (NumberFormatException e) {
+                out.println("ERROR: Invalid chunk size.");
+                out.flush();
+                return;
+            }
+            if (chunkSize < HASH_MIN_CHUNK || chunkSize > HASH_MAX_CHUNK) {
+                out.println("ERROR: Chunk size must be between " + HASH_MIN_CHUNK + " and " + HASH_MAX_CHUNK + " bytes.");
+                out.flush();
+                return;
+            }
+            File file = new File(currentDir, command[1]);
+            SyntheticData synthetic = SyntheticData.parse(command[1]);
+            if (synthetic == null && !file.isFile()) {
+                out.println("ERROR: File not found.");
+                out.flush();
+                return;
+            }
+
+            Lock readLock = synthetic != null ? null : LOCKS.shared(file);
+            try {
+                // The catalog entry of the version about to be opened, and any digests already recorded for it
+                FileCatalog.Entry seen = synthetic == null && catalog != null ? catalog.current(file) : null;
+                FileCatalog.Hashes cached = seen != null && seen.chunkSize == chunkSize ? catalog.hashes(file, seen) : null;
+                if (cached != null) {
+                    catalog.hashHits.incrementAndGet();
+                    out.println("HASHES " + seen.size + " " + cached.chunks.size());
+                    for (String hash : cached.chunks) {
+                        out.println(hash);
+                    }
+                    out.flush();
+                    printAndLog("Sent " + cached.chunks.size() + " catalogued chunk hashes of " + command[1] + " to " + clientAddress);
+                    trace.transferred(0); // Nothing read
+                    return;
+                }
+                try (InputStream source = synthetic != null ? synthetic.open() : openFile(file)) {
+                    long fileSize = synthetic != null ? synthetic.size : openedLength(source, file);
+                    if (readLock != null && LOCKS.snapshots()) {
+                        readLock.unlock();  // The open file keeps the version it was opened at
+                        readLock = null;
+                    }
+                    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                    MessageDigest contentDigest = seen != null ? MessageDigest.getInstance("SHA-256") : null;
+                    long count = (fileSize + chunkSize - 1) / chunkSize;
+                    List<String> hashes = new ArrayList<>();
+                    List<byte[]> chunkDigests = new ArrayList<>();
+                    try (InputStream in = synthetic != null ? source : readAhead(source)) {
+                        byte[] buffer = new byte[RANGE_BUFFER_SIZE];
+                        for (long i = 0; i < count; i++) {
+                            long remaining = Math.min(chunkSize, fileSize - i * chunkSize);
+                            while (remaining > 0) {
+                                int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                                if (bytesRead == -1) {
+                                    throw new EOFException("File ended before its length");
+                                }
+                                digest.update(buffer, 0, bytesRead);
+                                if (contentDigest != null) {
+                                    contentDigest.update(buffer, 0, bytesRead);
+                                }
+                                remaining -= bytesRead;
+                            }
+                            byte[] chunkDigest = digest.digest();
+                            hashes.add(toHex(chunkDigest));
+                            if (seen != null) {
+                                chunkDigests.add(chunkDigest);
+                            }
+                        }
+                    }
+                    if (seen != null && seen.size == fileSize) {
+                        catalog.storeHashes(file, seen, contentDigest.digest(), chunkSize, chunkDigests);
+                    }
+                    out.println("HASHES " + fileSize + " " + count);
+                    for (String hash : hashes) {
+                        out.println(hash);
+                    }
+                    printAndLog("Sent " + count + " chunk hashes of " + command[1] + " to " + clientAddress);
+                    trace.transferred(fileSize); // Bytes read and hashed
+                } catch (NoSuchAlgorithmException e) {
+                    out.println("ERROR: Hashing unavailable: " + e.getMessage());
+                }
+            } finally {
+                if (readLock != null) {
+                    readLock.unlock();
+                }
+            }
+            out.flush();
+        }
+
+        /**
+         * Handles the GETRANGE command, which sends part of a file over a TCP data connection
+         * ("READY <port> <length>"), so a client can fetch disjoint chunks of one file from several servers.
+        * @param command The command array containing the file name, offset and length.
+        * @param out The output writer to communicate with the client.
+        * @throws IOException If an I/O error occurs while sending the range.
+        */
+        private void handleGETRANGE(String[] command, PrintWriter out) throws IOException {
+            if (command.length < 4) {
+                out.println("ERROR: Usage: GETRANGE <file> <offset> <length>");
+                out.flush();
+                return;
+            }
+            if (redirect(command[1], out)) {
+                return;
+            }
+            final long offset;
+            final long length;
+            try {
+                offset = Long.parseLong(command[2]);
+                length = Long.parseLong(command[3]);
+            } catch (NumberFormatException e) {
+                out.println("ERROR: Invalid range.");
+                out.flush();
+                return;
+            }
+            File file = new File(currentDir, command[1]);
+            SyntheticData synthetic = SyntheticData.parse(command[1]);
+            if (synthetic == null && !file.isFile()) {
+                out.println("ERROR: File not found.");
+                out.flush();
+                return;
+            }
+
+            trace.phase("open");
+            Lock readLock = synthetic != null ? null : LOCKS.shared(file);
+            try (InputStream source = synthetic != null ? synthetic.open() : openFile(file)) {
+                long fileSize = synthetic != null ? synthetic.size : openedLength(source, file);
+                if (readLock != null && LOCKS.snapshots()) {
+                    readLock.unlock();  // The open file keeps the version it was opened at
+                    readLock = null;
+                }
+                if (offset < 0 || length < 0 || offset > fileSize - length) {
+                    out.println("ERROR: Range outside the file (" + fileSize + " bytes).");
+                    out.flush();
+                    return;
+                }
+                source.skipNBytes(offset);  // A seek for plain files; whole chunks are stepped over in the chunk store
+
+                trace.phase("connect");
+                try (ServerSocket transferSocket = openDataSocket()) {
+                    out.println("READY " + transferSocket.getLocalPort() + " " + length);
+                    out.flush();
+                    try (Socket fileTransferSocket = acceptDataConnection(transferSocket);
+                        BufferedOutputStream bos = new BufferedOutputStream(fileTransferSocket.getOutputStream(), RANGE_BUFFER_SIZE);
+                        TransferScheduler.Stream stream = openStream(length)) {
+                        trace.phase("send");
+                        byte[] buffer = new byte[RANGE_BUFFER_SIZE];
+                        long remaining = length;
+                        while (remaining > 0) {
+                            int bytesRead = source.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                            if (bytesRead == -1) {
+                                throw new EOFException("File ended before the range");
+                            }
+                            stream.acquire(bytesRead);
+                            bos.write(buffer, 0, bytesRead);
+                            remaining -= bytesRead;
+                        }
+                        bos.flush();
+                        trace.transferred(length);
+                    }
+                }
+            } finally {
+                if (readLock != null) {
+                    readLock.unlock();
+                }
+            }
+        }
+    
+        /**
+         * Handles the DELTA command for rsync-style uploads of modified files.
+        * The server sends weak (rolling) and strong (MD5) signatures for each block of its existing copy,
+        * the client answers with literal data and block references, and the new file is rebuilt into a
+        * temporary file while the destination is locked, then moved into place.
+        * @param command The command array containing the file to upload and its new size.
+        * @param out The output writer to communicate with the client.
+        * @throws IOException If an I/O error occurs while receiving the delta.
+        */
+        private void handleDELTA(String[] command, PrintWriter out) throws IOException {
+            if (command.length < 3) {
+                out.println("ERROR: No file specified for DELTA command.");
+                out.flush();
+                return;
+            }
+            if (SyntheticData.isSink(command[1])) {
+                out.println("ERROR: Synthetic paths support GET and PUT only.");
+                out.flush();
+                return;
+            }
+            final long fileSize;
+            try {
+                fileSize = Long.parseLong(command[2]);  // Size of the client's new version
+            } catch (NumberFormatException e) {
+                out.println("ERROR: Invalid file size.");
+                out.flush();
+                return;
+            }
+
+            if (redirect(command[1], out)) {
+                return;
+            }
+            File file = new File(currentDir, command[1]);
+            if (!file.isFile()) {
+                out.println("ERROR: File not found.");  // A delta needs an existing version to patch
+                out.flush();
+                return;
+            }
+            File tempFile = null;
+            String writeKey = LOCKS.beginWrite(file);  // Only one upload at a time may own a path
+            if (writeKey == null) {
+                out.println("ERROR: File is currently in use.");
+                out.flush();
+                return;
+            }
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                FileChannel channel = raf.getChannel()) {
+                java.nio.channels.FileLock fileLock = channel.tryLock();
+                if (fileLock == null) {
+                    out.println("ERROR: File is currently in use.");
+                    out.flush();
+                    return;
+                }
+
+                ManifestInputStream chunkedBase = chunkStore != null && chunkStore.isManifest(file)
+                        ? new ManifestInputStream(chunkStore.readManifest(file)) : null;
+                long existingSize = chunkedBase != null ? chunkedBase.manifest.size : channel.size();
+                int blockSize = deltaBlockSize(existingSize);
+                int blockCount = (int) ((existingSize + blockSize - 1) / blockSize);
+                tempFile = UploadCommitter.stage(file);
+
+                try (ServerSocket transferSocket = openDataSocket()) {
+                    out.println("READY " + transferSocket.getLocalPort() + " " + existingSize);
+                    out.flush();
+
+                    try (Socket fileTransferSocket = acceptDataConnection(transferSocket);
+                        DataInputStream dis = new DataInputStream(new BufferedInputStream(fileTransferSocket.getInputStream()));
+                        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fileTransferSocket.getOutputStream()));
+                        FileOutputStream fos = new FileOutputStream(tempFile);
+                        TransferScheduler.Stream stream = openStream(fileSize)) {
+                        MessageDigest blockDigest = MessageDigest.getInstance("MD5");
+                        MessageDigest fileDigest = MessageDigest.getInstance("MD5");
+
+                        // Signatures: [block size][existing size][block count] then [weak][strong] per block
+                        dos.writeInt(blockSize);
+                        dos.writeLong(existingSize);
+                        dos.writeInt(blockCount);
+                        InputStream existing = chunkedBase != null ? new ManifestInputStream(chunkedBase.manifest)
+                                : new BufferedInputStream(Channels.newInputStream(channel.position(0)));
+                        byte[] block = new byte[blockSize];
+                        for (int i = 0; i < blockCount; i++) {
+                            int length = (int) Math.min(blockSize, existingSize - (long) i * blockSize);
+                            readFully(existing, block, length);
+                            dos.writeInt(weakChecksum(block, 0, length));
+                            blockDigest.update(block, 0, length);
+                            dos.write(blockDigest.digest());
+                        }
+                        dos.flush();
+
+                        // Rebuild the new version from literal data and references to our blocks
+                        long literalBytes = 0;
+                        long matchedBytes = 0;
+                        long written = 0;
+                        byte[] buffer = new byte[Math.max(blockSize, TCP_BUFFER_SIZE)];
+                        while (true) {
+                            byte token = dis.readByte();
+                            if (token == DELTA_END) {
+                                break;
+                            } else if (token == DELTA_LITERAL) {
+                                int length = dis.readInt();
+                                while (length > 0) {
+                                    int chunk = Math.min(length, buffer.length);
+                                    dis.readFully(buffer, 0, chunk);
+                                    stream.acquire(chunk);
+                                    fos.write(buffer, 0, chunk);
+                                    fileDigest.update(buffer, 0, chunk);
+                                    length -= chunk;
+                                    literalBytes += chunk;
+                                    written += chunk;
+                                }
+                            } else if (token == DELTA_MATCH) {
+                                int index = dis.readInt();
+                                if (index < 0 || index >= blockCount) {
+                                    throw new IOException("Invalid block reference " + index);
+                                }
+                                int length = (int) Math.min(blockSize, existingSize - (long) index * blockSize);
+                                long position = (long) index * blockSize;
+                                if (chunkedBase != null) {
+                                    chunkedBase.readAt(position, buffer, length);
+                                } else {
+                                    ByteBuffer blockBuffer = ByteBuffer.wrap(buffer, 0, length);
+                                    while (blockBuffer.hasRemaining()) {
+                                        if (channel.read(blockBuffer, position + blockBuffer.position()) < 0) {
+                                            throw new EOFException("Unexpected end of existing file");
+                                        }
+                                    }
+                                }
+                                fos.write(buffer, 0, length);
+                                fileDigest.update(buffer, 0, length);
+                                matchedBytes += length;
+                                written += length;
+                            } else {
+                                throw new IOException("Invalid delta token " + token);
+                            }
+                        }
+                        long announcedSize = dis.readLong();
+                        byte[] expectedDigest = new byte[DELTA_STRONG_LENGTH];
+                        dis.readFully(expectedDigest);
+                        fos.flush();
+
+                        if (written != fileSize || announcedSize != fileSize || !MessageDigest.isEqual(expectedDigest, fileDigest.digest())) {
+                            out.println("ERROR: Delta verification failed.");
+                            out.flush();
+                            printAndLog("Delta verification failed for " + file.getName() + " from " + clientAddress);
+                            return;
+                        }
+
+                        // Replace the old version while the lock is still held
+                        if (chunkStore != null) {
+                            ChunkStore.writeManifest(file, channel, chunkStore.ingest(tempFile));
+                        } else {
+                            committer.commit(tempFile, file, channel, written);
+                        }
+                        if (catalog != null) {
+                            catalog.committed(file, null);
+                        }
+                        out.println("DELTA_COMPLETE " + literalBytes + " " + matchedBytes);
+                        out.flush();
+                        trace.transferred(literalBytes);
+                        printAndLog("Delta upload of " + file.getName() + " completed from " + clientAddress + ": " + literalBytes + " literal bytes, " + matchedBytes + " matched bytes");
+                    }
+                }
+            } catch (NoSuchAlgorithmException e) {
+                out.println("ERROR: Delta sync unavailable: " + e.getMessage());
+                out.flush();
+            } catch (IOException e) {
+                out.println("ERROR: Delta upload failed: " + e.getMessage());
+                out.flush();
+                printAndLog("Delta upload failed for " + clientAddress + ": " + e.getMessage());
+            } finally {
+                if (tempFile != null && tempFile.exists() && !tempFile.delete()) {
+                    printAndLog("Could not remove temporary file " + tempFile);
+                }
+                LOCKS.endWrite(writeKey);
+            }
+        }
+
+        /**
+         * Handles the CPUT command for deduplicated uploads into the chunk store.
+        * The client sends the SHA-256 and length of each content-defined chunk of its file, the server
+        * answers which of those chunks it does not have yet, and only those chunks are transferred.
+        * @param command The command array containing the file to upload and its size.
+        * @param out The output writer to communicate with the client.
+        * @throws IOException If an I/O error occurs while receiving the chunks.
+        */
+        private void handleCPUT(String[] command, PrintWriter out) throws IOException {
+            if (chunkStore == null) {
+                out.println("ERROR: Chunk store is not enabled.");
+                out.flush();
+                return;
+            }
+            if (command.length < 3) {
+                out.println("ERROR: No file specified for CPUT command.");
+                out.flush();
+                return;
+            }
+            if (SyntheticData.isSink(command[1])) {
+                out.println("ERROR: Synthetic paths support GET and PUT only.");
+                out.flush();
+                return;
+            }
+            final long fileSize;
+            try {
+                fileSize = Long.parseLong(command[2]);
+            } catch (NumberFormatException e) {
+                out.println("ERROR: Invalid file size.");
+                out.flush();
+                return;
+            }
+
+            if (redirect(command[1], out)) {
+                return;
+            }
+            File file = new File(currentDir, command[1]);
+            String writeKey = LOCKS.beginWrite(file);  // Only one upload at a time may own a path
+            if (writeKey == null) {
+                out.println("ERROR: File is currently in use.");
+                out.flush();
+                return;
+            }
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                FileChannel channel = raf.getChannel()) {
+                java.nio.channels.FileLock fileLock = channel.tryLock();
+                if (fileLock == null) {
+                    out.println("ERROR: File is currently in use.");
+                    out.flush();
+                    return;
+                }
+
+                try (ServerSocket transferSocket = openDataSocket()) {
+                    out.println("READY " + transferSocket.getLocalPort() + " " + fileSize);
+                    out.flush();
+
+                    try (Socket fileTransferSocket = acceptDataConnection(transferSocket);
+                        DataInputStream dis = new DataInputStream(new BufferedInputStream(fileTransferSocket.getInputStream()));
+                        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fileTransferSocket.getOutputStream()));
+                        TransferScheduler.Stream stream = openStream(fileSize)) {
+                        // Chunk list: [count] then [SHA-256][length] per chunk
+                        int count = dis.readInt();
+                        if (count < 0 || count > fileSize / CHUNK_MIN_SIZE + 1) {
+                            // Every chunk but the last is at least CHUNK_MIN_SIZE long
+                            out.println("ERROR: Invalid chunk count " + count + " for " + fileSize + " bytes.");
+                            out.flush();
+                            return;
+                        }
+                        String[] hashes = new String[count];
+                        int[] lengths = new int[count];
+                        byte[] rawHash = new byte[CHUNK_HASH_LENGTH];
+                        for (int i = 0; i < count; i++) {
+                            dis.readFully(rawHash);
+                            hashes[i] = toHex(rawHash);
+                            lengths[i] = dis.readInt();
+                            if (lengths[i] <= 0 || lengths[i] > CHUNK_MAX_SIZE) {
+                                throw new IOException("Invalid chunk length " + lengths[i]);
+                            }
+                        }
+
+                        // Ask for each missing chunk once, even if it repeats within the file
+                        Set<String> requested = new HashSet<>();
+                        boolean[] needed = new boolean[count];
+                        for (int i = 0; i < count; i++) {
+                            needed[i] = !chunkStore.hasChunk(hashes[i]) && requested.add(hashes[i]);
+                            dos.writeBoolean(needed[i]);
+                        }
+                        dos.flush();
+
+                        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                        Manifest manifest = new Manifest();
+                        byte[] buffer = new byte[CHUNK_MAX_SIZE];
+                        int sentChunks = 0;
+                        long sentBytes = 0;
+                        for (int i = 0; i < count; i++) {
+                            if (needed[i]) {
+                                dis.readFully(buffer, 0, lengths[i]);
+                                stream.acquire(lengths[i]);
+                                digest.update(buffer, 0, lengths[i]);
+                                if (!hashes[i].equals(toHex(digest.digest()))) {
+                                    throw new IOException("Checksum mismatch for chunk " + i);
+                                }
+                                chunkStore.putChunk(hashes[i], buffer, lengths[i]);
+                                sentChunks++;
+                                sentBytes += lengths[i];
+                            } else {
+                                chunkStore.chunksDeduplicated.incrementAndGet();
+                                chunkStore.bytesDeduplicated.addAndGet(lengths[i]);
+                            }
+                            manifest.add(hashes[i], lengths[i]);
+                        }
+
+                        if (manifest.size != fileSize) {
+                            out.println("ERROR: Size mismatch, expected " + fileSize + " bytes but chunks total " + manifest.size + ".");
+                            out.flush();
+                            return;
+                        }
+                        ChunkStore.writeManifest(file, channel, manifest);
+                        if (catalog != null) {
+                            catalog.committed(file, null);
+                        }
+                        out.println("CPUT_COMPLETE " + sentChunks + " " + (count - sentChunks));
+                        out.flush();
+                        trace.transferred(sentBytes);
+                        printAndLog("Deduplicated upload of " + file.getName() + " from " + clientAddress + ": " + sentChunks
+                                + " of " + count + " chunks transferred; store: " + chunkStore.stats());
+                    }
+                }
+            } catch (NoSuchAlgorithmException e) {
+                out.println("ERROR: Chunk store unavailable: " + e.getMessage());
+                out.flush();
+            } catch (IOException e) {
+                out.println("ERROR: Deduplicated upload failed: " + e.getMessage());
+                out.flush();
+                printAndLog("Deduplicated upload failed for " + clientAddress + ": " + e.getMessage());
+            } finally {
+                LOCKS.endWrite(writeKey);
+            }
+        }
+
+        /**
+         * @return A SHA-256 digest for the contents of an upload, or null if the platform has none.
+         */
+        private MessageDigest newContentDigest() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Opens the stream an upload is written to: its staging file, or the chunk store.
+         * @param staged The temporary file the upload is staged in, or null with the chunk store.
+         * @return The stream to write the uploaded data to.
+         * @throws IOException If the stream cannot be opened.
+         */
+        private OutputStream openUpload(File staged) throws IOException {
+            if (chunkStore != null) {
+                return new ChunkingOutputStream(chunkStore);
+            }
+            return new FileOutputStream(staged);
+        }
+
+        /**
+         * Completes an upload once its stream is closed: commits the staging file over the destination,
+         * or for the chunk store writes the manifest into the locked file.
+         * @param upload The stream returned by openUpload.
+         * @param staged The staging file, or null with the chunk store.
+         * @param file The destination file.
+         * @param channel The locked destination file's channel.
+         * @param fileSize The announced upload size.
+         * @throws IOException If the upload is incomplete or cannot be committed; the destination is left as it was.
+         */
+        private void finishUpload(OutputStream upload, File staged, File file, FileChannel channel, long fileSize) throws IOException {
+            if (upload instanceof ChunkingOutputStream) {
+                Manifest manifest = ((ChunkingOutputStream) upload).getManifest();
+                if (manifest.size != fileSize) {
+                    throw new IOException("Size mismatch, expected " + fileSize + " bytes but received " + manifest.size);
+                }
+                ChunkStore.writeManifest(file, channel, manifest);
+                printAndLog("Chunk store: " + chunkStore.stats());
+            } else {
+                long start = System.nanoTime();
+                committer.commit(staged, file, channel, fileSize);
+                printAndLog("Committed " + file.getName() + " in " + (System.nanoTime() - start) / 1000 + " us (durability " + committer.describe() + ")");
+                printAndLog("File locks: " + LOCKS.describe());
+            }
+        }
+
+        /**
+         * Receives PUT data over a TCP data connection or as datagrams, depending on the session's mode.
+         * @param fileSize The announced upload size.
+         * @param fos Where the data is written.
+         * @param out The output writer to communicate with the client.
+         * @return False if the transfer was interrupted.
+         * @throws IOException If an I/O error occurs while receiving the data.
+         */
+        private boolean receiveUpload(long fileSize, OutputStream fos, PrintWriter out) throws IOException {
+            if (!udpMode) {
+                // TCP mode
+                trace.phase("connect");
+                try (ServerSocket transferSocket = openDataSocket()) {
+                    out.println("READY " + transferSocket.getLocalPort() + " " + fileSize);  // Send file size
+                    out.flush();
+
+                    try (Socket fileTransferSocket = acceptDataConnection(transferSocket);
+                        BufferedInputStream bis = new BufferedInputStream(fileTransferSocket.getInputStream());
+                        TransferScheduler.Stream stream = openStream(fileSize)) {
+                        trace.phase("receive");
+                        byte[] buffer = new byte[TCP_BUFFER_SIZE];
+                        int bytesRead;
+                        while ((bytesRead = bis.read(buffer)) != -1) {
+                            stream.acquire(bytesRead); // Reading slower pushes back on the sender through TCP flow control
+                            fos.write(buffer, 0, bytesRead);
+                        }
+                        fos.flush();
+                    }
+                }
+            } else {
+                // UDP mode, with one receiving thread per stripe's socket, or the shared endpoint's receive threads
+                try (StripeSockets udp = StripeSockets.open(stripes);
+                    // Datagrams cannot be slowed down on arrival, so the client is told to pace itself at our share
+                    TransferScheduler.Stream stream = openStream(fileSize)) {
+                    DatagramCipher cipher = TLS ? DatagramCipher.generate() : null;
+                    Reassembler reassembly = new Reassembler(writeBehind(fos), fileSize, trace.id());
+                    udp.listen(reassembly, cipher);
+                    out.println("READY " + udp.ports() + " " + fileSize + (stream.getRate() > 0 ? " rate=" + stream.getRate() : "")
+                            + (cipher != null ? cipher.readyOptions() : "") + udp.readyOptions());
+                    out.flush();
+
+                    // Wait for the upload to complete
+                    trace.phase("receive");
+                    udp.receive(reassembly);
+                } catch (InterruptedException e) {
+                    printAndLog("File transfer was interrupted: " + e.getMessage());
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+
+                printAndLog("File upload completed successfully from: " + clientAddress);
+            }
+            return true;
+        }
+
+        /**
+         * Receives a streamed upload (PUT <file> -), whose size the client only knows once its data has ended.
+         * Over TCP the data connection carries chunks, each a 4-byte length and that many bytes, then a zero length
+         * as the end marker and a trailer of the 8-byte size and the 32-byte SHA-256 of the data. Over UDP the data
+         * goes out as usual, the end signal carries the size, and once everything is sent the client puts the
+         * trailer on the control connection as "END <size> <sha256>". READY has "-" in place of the size.
+         * @param fos Where the data is written.
+         * @param out The output writer to communicate with the client.
+         * @param in The control connection's reader, for the trailer of a UDP upload.
+         * @return The trailer, whose size matches the data received, or null after an ERROR reply if the data was
+         *         cut short or the trailer is missing or does not match.
+         * @throws IOException If an I/O error occurs while receiving the data.
+         */
+        private StreamTrailer receiveStream(OutputStream fos, PrintWriter out, BufferedReader in) throws IOException {
+            long received = 0;
+            StreamTrailer trailer = null;
+            if (!udpMode) {
+                trace.phase("connect");
+                try (ServerSocket transferSocket = openDataSocket()) {
+                    out.println("READY " + transferSocket.getLocalPort() + " -");
+                    out.flush();
+
+                    try (Socket fileTransferSocket = acceptDataConnection(transferSocket);
+                        DataInputStream dis = new DataInputStream(new BufferedInputStream(fileTransferSocket.getInputStream()));
+                        TransferScheduler.Stream stream = openStream(Long.MAX_VALUE)) {
+                        trace.phase("receive");
+                        byte[] buffer = new byte[TCP_BUFFER_SIZE];
+                        int length;
+                        while ((length = dis.readInt()) != 0) {
+                            if (length < 0 || length > STREAM_MAX_CHUNK) {
+                                out.println("ERROR: Invalid chunk length " + length + " after " + received + " bytes.");
+                                return null;
+                            }
+                            while (length > 0) {
+                                int bytesRead = dis.read(buffer, 0, Math.min(length, buffer.length));
+                                if (bytesRead == -1) {
+                                    throw new EOFException();
+                                }
+                                stream.acquire(bytesRead);
+                                fos.write(buffer, 0, bytesRead);
+                                received += bytesRead;
+                                length -= bytesRead;
+                            }
+                        }
+                        long size = dis.readLong();
+                        byte[] sha256 = new byte[32];
+                        dis.readFully(sha256);
+                        trailer = new StreamTrailer(size, sha256);
+                        fos.flush();
+                    } catch (EOFException e) {
+                        out.println("ERROR: Upload ended before its end marker, after " + received + " bytes.");
+                        return null;
+                    }
+                }
+            } else {
+                // The datagrams of a stream carry no size, so the end signal completes the reassembler
+                try (StripeSockets udp = StripeSockets.open(stripes);
+                    TransferScheduler.Stream stream = openStream(Long.MAX_VALUE)) {
+                    DatagramCipher cipher = TLS ? DatagramCipher.generate() : null;
+                    Reassembler reassembly = new Reassembler(writeBehind(fos), -1, trace.id());
+                    udp.listen(reassembly, cipher);
+                    out.println("READY " + udp.ports() + " -" + (stream.getRate() > 0 ? " rate=" + stream.getRate() : "")
+                            + (cipher != null ? cipher.readyOptions() : "") + udp.readyOptions());
+                    out.flush();
+
+                    trace.phase("receive");
+                    udp.receive(reassembly);
+                    received = reassembly.isComplete() ? reassembly.getPayloadBytes() : -1;
+                } catch (InterruptedException e) {
+                    printAndLog("File transfer was interrupted: " + e.getMessage());
+                    Thread.currentThread().interrupt();
+                    out.println("ERROR: Upload interrupted.");
+                    return null;
+                }
+                String[] end = String.valueOf(in.readLine()).split(" ");  // Sent whether or not every datagram arrived
+                if (received < 0) {
+                    out.println("ERROR: Upload incomplete, datagrams were lost.");
+                    return null;
+                }
+                try {
+                    if (end.length == 3 && end[0].equals("END")) {
+                        trailer = new StreamTrailer(Long.parseLong(end[1]), HexFormat.of().parseHex(end[2]));
+                    }
+                } catch (IllegalArgumentException e) {
+                    trailer = null;  // Malformed; reported below
+                }
+                if (trailer == null) {
+                    out.println("ERROR: Missing or malformed END trailer.");
+                    return null;
+                }
+            }
+            if (trailer.size != received) {
+                out.println("ERROR: Size mismatch, the trailer says " + trailer.size + " bytes but " + received + " arrived.");
+                return null;
+            }
+            return trailer;
+        }
+
+        /**
+         * Checks a streamed upload's data against the SHA-256 in its trailer.
+         * @param trailer The trailer the client sent.
+         * @param sha256 The SHA-256 of the data received.
+         * @param out The output writer to communicate with the client; an ERROR is replied on a mismatch.
+         * @return True if the hashes match.
+         */
+        private boolean confirmStream(StreamTrailer trailer, byte[] sha256, PrintWriter out) {
+            if (MessageDigest.isEqual(trailer.sha256, sha256)) {
+                return true;
+            }
+            out.println("ERROR: SHA-256 mismatch, the upload was discarded.");
+            return false;
+        }
+
+        /**
+    * Handles the PUT command for file upload.
+    * @param command The command array containing the file to upload.
+    * @param out The output writer to communicate with the client.
+    * @param in The existing BufferedReader to read client messages.
+    * @throws IOException If an I/O error occurs while receiving the file.
+    */
+    private void handlePUT(String[] command, PrintWriter out, BufferedReader in) throws IOException {
+        if (command.length > 2) {
+            final long fileSize;
+            boolean streamed = command[2].equals("-");  // Length unknown until the stream's trailer
+            try {
+                fileSize = streamed ? -1 : Long.parseLong(command[2]);  // Get file size from the client
+            } catch (NumberFormatException e) {
+                out.println("ERROR: Invalid file size.");
+                out.flush();
+                return;
+            }
+
+            if (SyntheticData.isSink(command[1]) && streamed) {
+                MessageDigest digest = newContentDigest();
+                StreamTrailer trailer = receiveStream(new DigestOutputStream(OutputStream.nullOutputStream(), digest), out, in);
+                if (trailer != null && confirmStream(trailer, digest.digest(), out)) {
+                    out.println("STORED " + trailer.size);
+                    trace.transferred(trailer.size);
+                    printAndLog("Discarded synthetic upload of " + trailer.size + " streamed bytes from: " + clientAddress);
+                }
+                out.flush();
+                return;
+            }
+            if (SyntheticData.isSink(command[1])) {
+                // Synthetic uploads are discarded as they arrive, without touching the filesystem
+                if (receiveUpload(fileSize, OutputStream.nullOutputStream(), out)) {
+                    trace.transferred(fileSize);
+                }
+                printAndLog("Discarded synthetic upload of " + fileSize + " bytes from: " + clientAddress);
+                return;
+            }
+
+            if (redirect(command[1], out)) {
+                return;
+            }
+
+            trace.phase("open");
+            File file = new File(currentDir, command[1]);
+            boolean existed = file.exists();
+            File staged = null;
+            boolean committed = false;
+            String writeKey = LOCKS.beginWrite(file);  // Only one upload at a time may own a path
+            if (writeKey == null) {
+                out.println("ERROR: File is currently in use.");
+                out.flush();
+                return;
+            }
+
+            // Attempt to lock the file
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                FileChannel channel = raf.getChannel()) {
+                java.nio.channels.FileLock fileLock = channel.tryLock();
+                if (fileLock == null) {
+                    out.println("ERROR: File is currently in use.");
+                    out.flush();
+                    return;
+                }
+
+                // Stage the upload, so a failed or aborted transfer never leaves a partial destination
+                staged = chunkStore == null ? UploadCommitter.stage(file) : null;
+                OutputStream upload = openUpload(staged);
+                // Recorded in the catalog with the file, and checked against a stream's trailer
+                MessageDigest contentDigest = catalog != null || streamed ? newContentDigest() : null;
+                boolean received;
+                StreamTrailer trailer = null;
+                try (OutputStream fos = upload) {
+                    OutputStream sink = contentDigest != null ? new DigestOutputStream(fos, contentDigest) : fos;
+                    if (streamed) {
+                        trailer = receiveStream(sink, out, in);
+                        received = trailer != null;
+                    } else {
+                        received = receiveUpload(fileSize, sink, out);
+                    }
+                }
+                byte[] content = contentDigest != null ? contentDigest.digest() : null;
+                long size = trailer != null ? trailer.size : fileSize;
+                if (received && trailer != null) {
+                    received = confirmStream(trailer, content, out);
+                }
+                if (received) {
+                    try {
+                        trace.phase("commit");
+                        finishUpload(upload, staged, file, channel, size);
+                        committed = true;
+                        trace.transferred(size);
+                        if (catalog != null) {
+                            catalog.committed(file, content);
+                        }
+                    } catch (IOException e) {
+                        // The client has moved on after the data, so the failure can only be logged
+                        printAndLog("Upload of " + file.getName() + " from " + clientAddress + " not committed: " + e.getMessage());
+                    }
+                    if (streamed) {
+                        // A stream's client waits for the outcome, having had no size to check against
+                        out.println(committed ? "STORED " + size : "ERROR: Upload not committed.");
+                    }
+                }
+                out.flush();
+                if (!committed && !existed && !file.delete()) {
+                    printAndLog("Could not remove empty file " + file);
+                }
+            } catch (IOException e) {
+                out.println("ERROR: Could not lock file for writing: " + e.getMessage());
+                out.flush();
+            } finally {
+                if (staged != null && staged.exists() && !staged.delete()) {
+                    printAndLog("Could not remove temporary file " + staged);
+                }
+                LOCKS.endWrite(writeKey);
+            }
+        } else {
+            out.println("ERROR: No file specified for PUT command.");
+            out.flush();
+        }
+    }
+}
+
+    /**
+     * AES-GCM protection of UDP transfers when TLS is on. The key and salt are made per transfer by the
+     * server and sent in READY over the TLS control connection. Each datagram is [header][ciphertext][tag];
+     * the header's sequence number is authenticated as associated data and, after the salt, forms the nonce, so no
+     * nonce repeats under a key. The 16-byte tag replaces the CRC32 trailer. Probes, acknowledgements and
+     * the end-of-file signal carry no file data and stay in the clear.
+     */
+    private static class DatagramCipher {
+        private final SecretKeySpec key;
+        private final byte[] salt;
+        private final byte[] nonce = new byte[GCM_NONCE_LENGTH];
+        private Cipher cipher;
+        private long lastSealed = Long.MIN_VALUE;
+
+        private DatagramCipher(byte[] key, byte[] salt) throws IOException {
+            this.key = new SecretKeySpec(key, "AES");
+            this.salt = salt;
+            this.cipher = newCipher();
+        }
+
+        /**
+         * Makes a cipher with a fresh random key and salt.
+         * @return The cipher.
+         * @throws IOException If AES-GCM is unavailable.
+         */
+        static DatagramCipher generate() throws IOException {
+            SecureRandom random = new SecureRandom();
+            byte[] key = new byte[GCM_KEY_LENGTH];
+            byte[] salt = new byte[GCM_NONCE_LENGTH - Long.BYTES];
+            random.nextBytes(key);
+            random.nextBytes(salt);
+            return new DatagramCipher(key, salt);
+        }
+
+        /**
+         * Rebuilds the peer's cipher from the key=... salt=... fields of a READY line.
+         * @param key The hex key.
+         * @param salt The hex salt.
+         * @return The cipher.
+         * @throws IOException If the fields are malformed or AES-GCM is unavailable.
+         */
+        static DatagramCipher fromHex(String key, String salt) throws IOException {
+            try {
+                return new DatagramCipher(HexFormat.of().parseHex(key), HexFormat.of().parseHex(salt));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed datagram key", e);
+            }
+        }
+
+        /**
+         * Makes another cipher with the same key and salt, for another thread of a striped transfer.
+         * @return The copy.
+         * @throws IOException If AES-GCM is unavailable.
+         */
+        DatagramCipher copy() throws IOException {
+            return new DatagramCipher(key.getEncoded(), salt);
+        }
+
+        /**
+         * @return The READY fields that hand the key and salt to the peer.
+         */
+        String readyOptions() {
+            return " key=" + HexFormat.of().formatHex(key.getEncoded()) + " salt=" + HexFormat.of().formatHex(salt);
+        }
+
+        private static Cipher newCipher() throws IOException {
+            try {
+                return Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IOException("AES-GCM unavailable", e);
+            }
+        }
+
+        private void init(int mode, long sequenceNumber) throws GeneralSecurityException {
+            System.arraycopy(salt, 0, nonce, 0, salt.length);
+            ByteBuffer.wrap(nonce, salt.length, Long.BYTES).putLong(sequenceNumber);
+            cipher.init(mode, key, new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce));
+            cipher.updateAAD(nonce, salt.length, Long.BYTES);
+        }
+
+        /**
+         * Encrypts one datagram payload.
+         * @return The ciphertext length, including the tag.
+         * @throws IOException If encryption fails.
+         */
+        int seal(long sequenceNumber, byte[] input, int offset, int length, byte[] output, int outputOffset) throws IOException {
+            try {
+                if (sequenceNumber == lastSealed) {
+                    // Resending a piece that could not be sent; a fresh Cipher accepts the same nonce again
+                    cipher = newCipher();
+                }
+                lastSealed = sequenceNumber;
+                init(Cipher.ENCRYPT_MODE, sequenceNumber);
+                return cipher.doFinal(input, offset, length, output, outputOffset);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Datagram encryption failed", e);
+            }
+        }
+
+        /**
+         * Decrypts and authenticates one datagram payload.
+         * @return The plaintext length, or -1 if the datagram was forged or damaged.
+         */
+        int open(long sequenceNumber, byte[] input, int offset, int length, byte[] output, int outputOffset) {
+            try {
+                init(Cipher.DECRYPT_MODE, sequenceNumber);
+                return cipher.doFinal(input, offset, length, output, outputOffset);
+            } catch (GeneralSecurityException e) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Sends file data as sequenced datagrams: [header (13 bytes)][data][CRC32 checksum (4 bytes)], where the header
+     * holds the version, the transfer's session ID and the sequence number.
+     * Before the data, the path is probed for the largest datagram that arrives with the don't-fragment
+     * bit set, up to the 64 KB UDP limit. Where the JDK cannot set the bit, fragmented datagrams would pass
+     * the probe, so datagrams stay Ethernet-sized. If a large datagram is later refused
+     * as too big, the sender drops back to Ethernet-sized datagrams and carries on.
+     */
+    private static class DatagramSender {
+        private final DatagramSocket socket;
+        private final SocketAddress target;
+        private final int session; // Session ID in every datagram's header
+        private final byte[] packetBuffer = new byte[MAX_DATAGRAM_SIZE];
+        private final CRC32 crc = new CRC32();
+        private int payloadSize = UDP_BUFFER_SIZE; // Data bytes per datagram
+        private int lastChecksum = 0;
+        private DatagramCipher cipher; // Set for encrypted transfers
+        private BlockingQueue<DatagramPacket> replies; // Probe acknowledgements from the shared endpoint, null when the socket is the transfer's own
+
+        private DatagramSender(DatagramSocket socket, SocketAddress target, int session) {
+            this.socket = socket;
+            this.target = target;
+            this.session = session;
+        }
+
+        /**
+         * Takes probe acknowledgements from the shared endpoint's receive thread instead of reading the socket.
+         * @param replies The session's acknowledgements.
+         */
+        private void setReplies(BlockingQueue<DatagramPacket> replies) {
+            this.replies = replies;
+        }
+
+        /**
+         * Probes the path for the largest datagram size that the receiver acknowledges.
+         * Each candidate size is sent twice as [header -2][size][padding]; the receiver answers [header -3][size].
+         * @return The negotiated datagram size in bytes.
+         * @throws IOException If the socket fails.
+         */
+        private int probe() throws IOException {
+            socket.setSendBufferSize(Math.max(socket.getSendBufferSize(), UDP_SEND_BUFFER));
+            if (!setDontFragment(socket, true)) {
+                return DEFAULT_DATAGRAM_SIZE; // Large probes could arrive as fragments and still be acknowledged
+            }
+            int largestSent = 0;
+            for (int size : PROBE_DATAGRAM_SIZES) {
+                if (size > MAX_DATAGRAM_SIZE || size <= DEFAULT_DATAGRAM_SIZE) {
+                    continue;
+                }
+                ByteBuffer probe = ByteBuffer.wrap(packetBuffer, 0, size);
+                putHeader(probe, session, PROBE_SEQUENCE).putInt(size);
+                try {
+                    for (int i = 0; i < PROBE_REPEATS; i++) {
+                        socket.send(new DatagramPacket(packetBuffer, size, target));
+                    }
+                    largestSent = Math.max(largestSent, size);
+                } catch (IOException e) {
+                    // Too big for the local interface (EMSGSIZE); try the next size down
+                }
+            }
+
+            int datagramSize = DEFAULT_DATAGRAM_SIZE;
+            if (largestSent > 0) {
+                int previousTimeout = socket.getSoTimeout();
+                long deadline = System.currentTimeMillis() + PROBE_TIMEOUT;
+                byte[] ack = new byte[DATAGRAM_HEADER + Integer.BYTES];
+                try {
+                    while (datagramSize < largestSent) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        DatagramPacket packet = receiveReply(ack, (int) remaining);
+                        ByteBuffer reply = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+                        if (packet.getLength() == ack.length && (replies == null || packet.getSocketAddress().equals(target))
+                                && reply.get() == DATAGRAM_VERSION && reply.getInt() == session && reply.getLong() == PROBE_ACK_SEQUENCE) {
+                            datagramSize = Math.max(datagramSize, reply.getInt());
+                        }
+                    }
+                } catch (SocketTimeoutException e) {
+                    // Whatever was acknowledged so far is the answer
+                } finally {
+                    if (replies == null) {
+                        socket.setSoTimeout(previousTimeout);
+                    }
+                }
+            }
+            payloadSize = datagramSize - DATAGRAM_HEADER - trailerLength();
+            return datagramSize;
+        }
+
+        /**
+         * Waits for the next datagram sent back to this sender: read from its own socket, or handed over by the shared endpoint.
+         * @param buffer Where a datagram read from the socket goes.
+         * @param timeout How long to wait, in milliseconds.
+         * @return The datagram.
+         * @throws SocketTimeoutException If none arrived in time.
+         * @throws IOException If the socket fails or the wait is interrupted.
+         */
+        private DatagramPacket receiveReply(byte[] buffer, int timeout) throws IOException {
+            if (replies == null) {
+                socket.setSoTimeout(timeout);
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                return packet;
+            }
+            try {
+                DatagramPacket packet = replies.poll(timeout, TimeUnit.MILLISECONDS);
+                if (packet == null) {
+                    throw new SocketTimeoutException("No probe acknowledgement");
+                }
+                return packet;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while probing");
+            }
+        }
+
+        /**
+         * Encrypts the datagrams of this transfer; the GCM tag replaces the CRC32 trailer.
+         * @param cipher The transfer's cipher.
+         */
+        private void setCipher(DatagramCipher cipher) {
+            this.cipher = cipher;
+            this.payloadSize = DEFAULT_DATAGRAM_SIZE - DATAGRAM_HEADER - trailerLength();
+        }
+
+        private int trailerLength() {
+            return cipher != null ? GCM_TAG_LENGTH : Integer.BYTES;
+        }
+
+        /**
+         * Sends one data datagram of at most the negotiated payload size.
+         * @param sequenceNumber The datagram's place in the transfer.
+         * @param data The buffer holding the data.
+         * @param offset The start of the data.
+         * @param length The number of bytes to send.
+         * @throws IOException If the datagram cannot be sent.
+         */
+        private void send(long sequenceNumber, byte[] data, int offset, int length) throws IOException {
+            ByteBuffer packet = ByteBuffer.wrap(packetBuffer);
+            putHeader(packet, session, sequenceNumber);
+            int packetLength;
+            if (cipher != null) {
+                packetLength = DATAGRAM_HEADER + cipher.seal(sequenceNumber, data, offset, length, packetBuffer, DATAGRAM_HEADER);
+            } else {
+                crc.reset();
+                crc.update(data, offset, length);
+                lastChecksum = (int) crc.getValue();
+                packet.put(data, offset, length).putInt(lastChecksum);
+                packetLength = packet.position();
+            }
+            DatagramPacket datagram = new DatagramPacket(packetBuffer, packetLength, target);
+            try {
+                socket.send(datagram);
+            } catch (IOException e) {
+                int ethernetPayload = DEFAULT_DATAGRAM_SIZE - DATAGRAM_HEADER - trailerLength();
+                if (payloadSize <= ethernetPayload) {
+                    throw e;
+                }
+                // The path shrank. Later datagrams are Ethernet-sized; this one is already numbered, so it goes out fragmented
+                payloadSize = ethernetPayload;
+                setDontFragment(socket, false);
+                socket.send(datagram);
+            }
+        }
+
+        /**
+         * Sends the end-of-file signal (sequence number -1).
+         * @throws IOException If the datagram cannot be sent.
+         */
+        private void sendEnd() throws IOException {
+            ByteBuffer endBuffer = ByteBuffer.allocate(DATAGRAM_HEADER);
+            putHeader(endBuffer, session, -1L);
+            socket.send(new DatagramPacket(endBuffer.array(), endBuffer.capacity(), target));
+        }
+
+        private int getPayloadSize() {
+            return payloadSize;
+        }
+
+        private int getLastChecksum() {
+            return lastChecksum;
+        }
+    }
+
+    /**
+     * Accounts for each data datagram a stripe sends, e.g. to pace the transfer.
+     */
+    @FunctionalInterface
+    private interface DatagramPacer {
+        void sent(long sequenceNumber, int length, int checksum) throws IOException;
+    }
+
+    /**
+     * Sends a stream as sequenced datagrams over every stripe of a UDP transfer. Each sender runs its
+     * own loop on its own thread (the first on the caller's), taking the next piece of the stream and
+     * the next sequence number together, so the stripes share one sequence space and a stripe on a
+     * faster path simply carries more of the file. Each stripe ends with its own end-of-file signal.
+     * @param source The data to send.
+     * @param senders One probed sender per stripe.
+     * @param pacer Called after every data datagram, from several threads at once when striped.
+     * @throws IOException If reading the source or sending fails on any stripe.
+     */
+    private static void sendStripes(InputStream source, List<DatagramSender> senders, DatagramPacer pacer) throws IOException {
+        AtomicLong nextSequence = new AtomicLong();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (DatagramSender sender : senders.subList(1, senders.size())) {
+            Thread thread = new Thread(() -> sendStripe(source, nextSequence, sender, pacer, failure), "udp-stripe-" + (threads.size() + 2));
+            thread.start();
+            threads.add(thread);
+        }
+        sendStripe(source, nextSequence, senders.get(0), pacer, failure);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, new InterruptedIOException("Striped send interrupted"));
+                break;
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * The send loop of one stripe.
+     * @param source The data to send, shared by all stripes.
+     * @param nextSequence The next unused sequence number, shared by all stripes.
+     * @param sender This stripe's sender.
+     * @param pacer Called after every data datagram.
+     * @param failure Where the first failure on any stripe is recorded; stops the other stripes.
+     */
+    private static void sendStripe(InputStream source, AtomicLong nextSequence, DatagramSender sender,
+                                   DatagramPacer pacer, AtomicReference<IOException> failure) {
+        byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        try {
+            while (failure.get() == null) {
+                int bytesRead;
+                long sequenceNumber;
+                synchronized (source) {
+                    bytesRead = source.read(buffer, 0, sender.getPayloadSize());
+                    if (bytesRead == -1) {
+                        break;
+                    }
+                    sequenceNumber = nextSequence.getAndIncrement();
+                }
+                sender.send(sequenceNumber, buffer, 0, bytesRead);
+                pacer.sent(sequenceNumber, bytesRead, sender.getLastChecksum());
+
+                // Introduce a small delay
+                try {
+                    Thread.sleep(UDP_DELAY);
+                }
+                    catch(InterruptedException e) {
+                    printAndLog("Thread interrupted: " + e.getMessage());
+                }
+            }
+            if (failure.get() == null) {
+                // Send end-of-file signal with sequence number -1
+                sender.sendEnd();
+            }
+        } catch (IOException e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    /**
+     * Starts a datagram with the header every datagram carries: [version (1 byte)][session ID (4 bytes)][sequence number (8 bytes)].
+     * @param buffer The datagram, positioned at its start.
+     * @param session The transfer's session ID.
+     * @param sequenceNumber The sequence number, or one of the negative signals.
+     * @return The buffer, positioned after the header.
+     */
+    private static ByteBuffer putHeader(ByteBuffer buffer, int session, long sequenceNumber) {
+        return buffer.put(DATAGRAM_VERSION).putInt(session).putLong(sequenceNumber);
+    }
+
+    /**
+     * Formats the local ports of a transfer's stripes for READY/CLIENT_READY, e.g. "50001,50002".
+     * @param sockets One socket per stripe.
+     * @return The comma-separated ports.
+     */
+    private static String joinPorts(List<DatagramSocket> sockets) {
+        StringBuilder ports = new StringBuilder();
+        for (DatagramSocket socket : sockets) {
+            ports.append(ports.length() > 0 ? "," : "").append(socket.getLocalPort());
+        }
+        return ports.toString();
+    }
+
+    /**
+     * Parses the comma-separated stripe ports of a READY/CLIENT_READY line.
+     * @param ports The port field.
+     * @return The ports, one per stripe.
+     */
+    private static int[] parsePorts(String ports) {
+        return Arrays.stream(ports.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    /**
+     * Answers a path MTU probe received by a PacketHandler, echoing the probed size back to the sender.
+     * @param socket The receiving socket.
+     * @param probe The probe datagram.
+     * @param byteBuffer The probe contents, positioned after the header.
+     * @param session The transfer's session ID.
+     * @throws IOException If the acknowledgement cannot be sent.
+     */
+    private static void acknowledgeProbe(DatagramSocket socket, DatagramPacket probe, ByteBuffer byteBuffer, int session) throws IOException {
+        if (byteBuffer.remaining() < Integer.BYTES) {
+            return; // Too short to carry the probed size
+        }
+        int size = byteBuffer.getInt();
+        if (size != probe.getLength()) {
+            return; // Truncated on the way; do not confirm this size
+        }
+        ByteBuffer ack = ByteBuffer.allocate(DATAGRAM_HEADER + Integer.BYTES);
+        putHeader(ack, session, PROBE_ACK_SEQUENCE).putInt(size);
+        socket.send(new DatagramPacket(ack.array(), ack.capacity(), probe.getSocketAddress()));
+    }
+
+    /**
+     * @return Whether datagram sockets on this JDK and platform can set the don't-fragment bit, which path MTU probing needs.
+     */
+    private static boolean dontFragmentSupported() {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            return setDontFragment(socket, true);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sets or clears the don't-fragment bit on a datagram socket, so oversized probes fail instead of being fragmented.
+     * The option exists from JDK 19; older JDKs cannot set it.
+     * @param socket The socket to configure.
+     * @param on Whether datagrams may not be fragmented.
+     * @return Whether the option was set.
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean setDontFragment(DatagramSocket socket, boolean on) {
+        try {
+            SocketOption<Boolean> option = (SocketOption<Boolean>) Class.forName("jdk.net.ExtendedSocketOptions")
+                    .getField("IP_DONTFRAGMENT").get(null);
+            if (socket.supportedOptions().contains(option)) {
+                socket.setOption(option, on);
+                return true;
+            }
+        } catch (ReflectiveOperationException | IOException | UnsupportedOperationException e) {
+            // Not available on this JDK or platform
+        }
+        return false;
+    }
+
+    /**
+     * Chooses the delta block size for a file, roughly the square root of its size (as rsync does).
+     * @param fileSize The size of the existing file.
+     * @return The block size in bytes.
+     */
+    private static int deltaBlockSize(long fileSize) {
+        int blockSize = (int) Math.sqrt((double) fileSize) & ~7;
+        return Math.max(DELTA_MIN_BLOCK_SIZE, Math.min(DELTA_MAX_BLOCK_SIZE, blockSize));
+    }
+
+    /**
+     * Computes the rsync weak checksum of a block: a 16-bit byte sum and a 16-bit weighted sum.
+     * The client rolls the same checksum one byte at a time to find matching blocks at any offset.
+     * @param data The buffer containing the block.
+     * @param offset The offset of the block in the buffer.
+     * @param length The length of the block.
+     * @return The weak checksum ((b << 16) | a).
+     */
+    private static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = data[offset + i] & 0xFF;
+            a += value;
+            b += (length - i) * value;
+        }
+        return ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+    }
+
+    /**
+     * Reads exactly length bytes from the stream into the buffer.
+     * @param in The stream to read from.
+     * @param buffer The destination buffer.
+     * @param length The number of bytes to read.
+     * @throws IOException If the stream ends early or an I/O error occurs.
+     */
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int bytesRead = in.read(buffer, total, length - total);
+            if (bytesRead == -1) {
+                throw new EOFException("Unexpected end of stream");
+            }
+            total += bytesRead;
+        }
+    }
+
+    /**
+     * Returns the size of a file's contents, which differs from its length for chunk store manifests.
+     * @param file The file.
+     * @return The size in bytes.
+     */
+    private static long fileLength(File file) {
+        return chunkStore != null ? chunkStore.logicalLength(file) : file.length();
+    }
+
+    /**
+     * Returns the length of a file opened with openFile. It stays that of the opened version even if a new one is committed meanwhile.
+     * @param in The stream returned by openFile.
+     * @param file The file it was opened from.
+     * @return The length in bytes.
+     * @throws IOException If the length cannot be read.
+     */
+    private static long openedLength(InputStream in, File file) throws IOException {
+        if (in instanceof FileInputStream) {
+            return ((FileInputStream) in).getChannel().size();
+        }
+        if (in instanceof ManifestInputStream) {
+            return ((ManifestInputStream) in).manifest.size;
+        }
+        return fileLength(file);
+    }
+
+    /**
+     * Takes file writes off a UDP receive thread. Writes are copied into WRITE_BEHIND_BLOCK-sized
+     * blocks and a writer thread hands each full block to the file in one call, so a disk stall
+     * delays the writer instead of the socket reads. The receiver only waits, and the kernel buffer
+     * only fills, once WRITE_BEHIND_LIMIT bytes are queued. flush() hands over the partial block;
+     * close() waits for everything to reach the file.
+     */
+    private static class WriteBehindOutputStream extends OutputStream {
+        private static final Block END = new Block(0); // Tells the writer to stop
+        private final OutputStream sink;
+        private final BlockingQueue<Block> full = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Block> free;
+        private final int maxBlocks;
+        private final Thread writer;
+        private int allocated;
+        private Block current;
+        private boolean closed;
+        private volatile IOException failure;
+        // Metrics, reported by describe()
+        private int peakBacklog; // Most full blocks waiting for the writer at once
+        private long receiverWaitNanos; // Time the receiver spent waiting for a free block
+        private long writes; // Written by the writer thread, read after it has finished
+        private long writtenBytes;
+        private long longestWriteNanos;
+
+        private static final class Block {
+            final byte[] data;
+            int length;
+
+            Block(int size) {
+                data = new byte[size];
+            }
+        }
+
+        WriteBehindOutputStream(OutputStream sink, int blockSize, long limit) {
+            this.sink = sink;
+            this.maxBlocks = (int) Math.max(2, Math.min(Integer.MAX_VALUE, limit / blockSize));
+            this.free = new ArrayBlockingQueue<>(maxBlocks);
+            this.current = new Block(blockSize);
+            this.allocated = 1;
+            this.writer = new Thread(this::drain, "write-behind");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        private void drain() {
+            try {
+                Block block;
+                while ((block = full.take()) != END) {
+                    if (failure == null) {
+                        long start = System.nanoTime();
+                        try {
+                            sink.write(block.data, 0, block.length);
+                        } catch (IOException e) {
+                            failure = e; // Reported to the receiver; later blocks are only recycled
+                        }
+                        long elapsed = System.nanoTime() - start;
+                        longestWriteNanos = Math.max(longestWriteNanos, elapsed);
+                        writes++;
+                        writtenBytes += block.length;
+                    }
+                    block.length = 0;
+                    free.add(block);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Queues the current block for the writer and takes an empty one, waiting only when the
+         * backlog limit is reached.
+         * @throws IOException If the writer failed or the wait was interrupted.
+         */
+        private void handOff() throws IOException {
+            full.add(current);
+            peakBacklog = Math.max(peakBacklog, full.size());
+            Block next = free.poll();
+            if (next == null && allocated < maxBlocks) {
+                next = new Block(current.data.length);
+                allocated++;
+            }
+            if (next == null) {
+                long start = System.nanoTime();
+                try {
+                    next = free.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Write-behind interrupted");
+                } finally {
+                    receiverWaitNanos += System.nanoTime() - start;
+                }
+            }
+            current = next;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            while (len > 0) {
+                int n = Math.min(len, current.data.length - current.length);
+                System.arraycopy(b, off, current.data, current.length, n);
+                current.length += n;
+                off += n;
+                len -= n;
+                if (current.length == current.data.length) {
+                    handOff();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            if (current.length > 0) {
+                handOff();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (current.length > 0) {
+                    full.add(current);
+                }
+                full.add(END);
+                boolean interrupted = false;
+                while (writer.isAlive()) {
+                    try {
+                        writer.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true; // The file must be complete before it is closed
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            } finally {
+                sink.close();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        /**
+         * @return A summary of how the write-behind stage kept up, for the transfer log.
+         */
+        String describe() {
+            return String.format("Write-behind: %d writes averaging %d KB, longest write %d ms, peak backlog %d of %d blocks, receiver waited %d ms",
+                    writes, writes > 0 ? writtenBytes / writes / 1024 : 0, longestWriteNanos / 1_000_000,
+                    peakBacklog, maxBlocks, receiverWaitNanos / 1_000_000);
+        }
+    }
+
+    /**
+     * Reads a stream ahead of its consumer on a background thread, so disk reads overlap network sends.
+     * The reader fills READ_AHEAD_BLOCK-sized buffers from a small pool of reusable buffers and queues
+     * them; the sender drains full buffers and hands them back. Blocks start at multiples of the block
+     * size, which is a multiple of the page size, so every disk read is page aligned.
+     */
+    private static class ReadAheadInputStream extends InputStream {
+        private static final Block END = new Block(0); // Queued after the last block, or after a read error
+        private final InputStream source;
+        private final BlockingQueue<Block> full;
+        private final BlockingQueue<Block> free;
+        private final Thread reader;
+        private Block current;
+        private int position;
+        private volatile IOException failure;
+
+        private static final class Block {
+            final byte[] data;
+            int length;
+
+            Block(int size) {
+                data = new byte[size];
+            }
+        }
+
+        ReadAheadInputStream(InputStream source, int blockSize, int depth) {
+            this.source = source;
+            this.full = new ArrayBlockingQueue<>(depth + 1); // Room for every buffer plus the end marker
+            this.free = new ArrayBlockingQueue<>(depth);
+            for (int i = 0; i < depth; i++) {
+                free.add(new Block(blockSize));
+            }
+            this.reader = new Thread(this::fill, "read-ahead");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void fill() {
+            try {
+                while (true) {
+                    Block block = free.take();
+                    block.length = source.readNBytes(block.data, 0, block.data.length);
+                    if (block.length == 0) {
+                        break;
+                    }
+                    full.put(block);
+                    if (block.length < block.data.length) {
+                        break; // readNBytes only comes up short at the end of the stream
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                // Closed by the consumer
+            } catch (RuntimeException | Error e) {
+                failure = new IOException("Read-ahead failed: " + e, e);
+                throw e;
+            } finally {
+                full.add(END); // Always, so the consumer never waits on a reader that has stopped
+            }
+        }
+
+        /**
+         * Moves to the next full block, returning the drained one to the reader.
+         * @return False at the end of the stream.
+         * @throws IOException If the reader failed or the wait was interrupted.
+         */
+        private boolean nextBlock() throws IOException {
+            if (current == END) {
+                return false;
+            }
+            if (current != null) {
+                free.add(current);
+            }
+            try {
+                current = full.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Read-ahead interrupted");
+            }
+            position = 0;
+            if (current == END && failure != null) {
+                throw failure;
+            }
+            return current != END;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if ((current == null || position == current.length) && !nextBlock()) {
+                return -1;
+            }
+            return current.data[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if ((current == null || position == current.length) && !nextBlock()) {
+                return -1;
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current.data, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return current == null || current == END ? 0 : current.length - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.interrupt();
+            try {
+                reader.join(); // A block read in progress finishes before the source is closed under it
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * Wraps a UDP receiver's file stream in a write-behind stage, unless write-behind is turned off.
+     * @param sink The stream the received data goes to.
+     * @return The wrapped stream, or the sink itself.
+     */
+    private static OutputStream writeBehind(OutputStream sink) {
+        return WRITE_BEHIND_LIMIT > 0 ? new WriteBehindOutputStream(sink, WRITE_BEHIND_BLOCK, WRITE_BEHIND_LIMIT) : sink;
+    }
+
+    /**
+     * Wraps a file stream in a read-ahead pipeline, unless read-ahead is turned off.
+     * @param source The stream to read ahead of.
+     * @return The wrapped stream, or the source itself.
+     */
+    private static InputStream readAhead(InputStream source) {
+        return READ_AHEAD_DEPTH > 0 ? new ReadAheadInputStream(source, READ_AHEAD_BLOCK, READ_AHEAD_DEPTH) : source;
+    }
+
+    /**
+     * Opens a file for reading, reassembling it from the chunk store if necessary.
+     * @param file The file to open.
+     * @return A stream over the file's contents.
+     * @throws IOException If the file cannot be opened.
+     */
+    private static InputStream openFile(File file) throws IOException {
+        return chunkStore != null ? chunkStore.open(file) : new FileInputStream(file);
+    }
+
+    /**
+     * Virtual files for network benchmarks that do not touch the disk. "synthetic/random/<size>" and
+     * "synthetic/zero/<size>" read as <size> bytes (suffixes K, M, G, T are powers of 1024) of seeded
+     * pseudo-random data or zeros, generated in memory as they are sent. Uploads to any "synthetic/" path
+     * go to a null sink. The random stream is the same on both sides for the same size.
+     */
+    private static class SyntheticData {
+        private static final String PREFIX = "synthetic/";
+        final long size;
+        private final boolean random;
+
+        private SyntheticData(long size, boolean random) {
+            this.size = size;
+            this.random = random;
+        }
+
+        /**
+         * Parses a synthetic source path.
+         * @param name The requested path.
+         * @return The source, or null if the path is not a synthetic source.
+         */
+        static SyntheticData parse(String name) {
+            if (!isSink(name)) {
+                return null;
+            }
+            String[] parts = name.substring(PREFIX.length()).split("/");
+            if (parts.length != 2 || !(parts[0].equals("random") || parts[0].equals("zero"))) {
+                return null;
+            }
+            String size = parts[1].toUpperCase();
+            int shift = "KMGT".indexOf(size.isEmpty() ? ' ' : size.charAt(size.length() - 1)) + 1;
+            try {
+                long value = Long.parseLong(shift > 0 ? size.substring(0, size.length() - 1) : size);
+                if (value < 0 || value > Long.MAX_VALUE >> (10 * shift)) {
+                    return null;
+                }
+                return new SyntheticData(value << (10 * shift), parts[0].equals("random"));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @param name The requested path.
+         * @return True if uploads to the path are discarded.
+         */
+        static boolean isSink(String name) {
+            return name.replace('\\', '/').startsWith(PREFIX);
+        }
+
+        InputStream open() {
+            return new SyntheticInputStream(size, random);
+        }
+    }
+
+    /**
+     * Stream of pseudo-random (xorshift64*) or zero bytes of a fixed length. Random bytes come out the
+     * same whatever the read sizes, since leftover bytes of a generated word carry over between reads.
+     */
+    private static class SyntheticInputStream extends InputStream {
+        private long remaining;
+        private final boolean random;
+        private long state;
+        private long word;  // Generated bytes not yet returned, lowest byte first
+        private int wordBytes;
+
+        private SyntheticInputStream(long size, boolean random) {
+            this.remaining = size;
+            this.random = random;
+            this.state = SYNTHETIC_SEED ^ size;
+        }
+
+        private long next() {
+            state ^= state >>> 12;
+            state ^= state << 25;
+            state ^= state >>> 27;
+            return state * 0x2545F4914F6CDD1DL;
+        }
+
+        @Override
+        public int read() {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining == 0) {
+                return -1;
+            }
+            int n = (int) Math.min(len, remaining);
+            remaining -= n;
+            int end = off + n;
+            if (!random) {
+                Arrays.fill(b, off, end, (byte) 0);
+                return n;
+            }
+            int i = off;
+            while (wordBytes > 0 && i < end) {
+                b[i++] = (byte) word;
+                word >>>= 8;
+                wordBytes--;
+            }
+            while (end - i >= Long.BYTES) {
+                long value = next();
+                for (int k = 0; k < Long.BYTES; k++) {
+                    b[i++] = (byte) value;
+                    value >>>= 8;
+                }
+            }
+            if (i < end) {
+                word = next();
+                wordBytes = Long.BYTES;
+                while (i < end) {
+                    b[i++] = (byte) word;
+                    word >>>= 8;
+                    wordBytes--;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            return 0;  // Keeps the random stream identical to reading every byte
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, remaining);
+        }
+    }
+
+    /**
+     * Admission control for sessions and transfers.
+     * Sessions beyond the limit are turned away at once with a BUSY reply; transfers beyond the limit
+     * wait in a bounded queue for a slot and get a BUSY reply if none frees up in time. Both are also
+     * refused while heap usage after GC or open file descriptors are close to their limits.
+     */
+    private static class AdmissionController {
+        private final Semaphore sessions; // Null when sessions are unlimited
+        private final Semaphore transfers; // Null when transfers are unlimited
+        private final long transferQueueMillis;
+        private final double memoryThreshold;
+        private final double descriptorThreshold;
+        private final AtomicLong sessionsRejected = new AtomicLong();
+        private final AtomicLong transfersRejected = new AtomicLong();
+
+        private AdmissionController(int maxSessions, int maxTransfers, long transferQueueMillis, double memoryThreshold, double descriptorThreshold) {
+            this.sessions = maxSessions > 0 ? new Semaphore(maxSessions) : null;
+            this.transfers = maxTransfers > 0 ? new Semaphore(maxTransfers, true) : null;
+            this.transferQueueMillis = transferQueueMillis;
+            this.memoryThreshold = memoryThreshold;
+            this.descriptorThreshold = descriptorThreshold;
+        }
+
+        /**
+         * Tries to admit a new session.
+         * @return Null if admitted (call releaseSession when it ends), otherwise the reason for refusing it.
+         */
+        private String admitSession() {
+            String overload = overload();
+            if (overload == null && sessions != null && !sessions.tryAcquire()) {
+                overload = "Too many sessions";
+            }
+            if (overload != null) {
+                logRejection(sessionsRejected, "session", overload);
+            }
+            return overload;
+        }
+
+        private void releaseSession() {
+            if (sessions != null) {
+                sessions.release();
+            }
+        }
+
+        /**
+         * Waits for a transfer slot, up to the transfer queue timeout.
+         * @return Null if admitted (call releaseTransfer when it ends), otherwise the reason for refusing it.
+         */
+        private String admitTransfer() {
+            String overload = overload();
+            if (overload == null && transfers != null) {
+                try {
+                    if (!transfers.tryAcquire(transferQueueMillis, TimeUnit.MILLISECONDS)) {
+                        overload = "Too many transfers";
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    overload = "Interrupted";
+                }
+            }
+            if (overload != null) {
+                logRejection(transfersRejected, "transfer", overload);
+            }
+            return overload;
+        }
+
+        private void releaseTransfer() {
+            if (transfers != null) {
+                transfers.release();
+            }
+        }
+
+        /**
+         * Checks heap usage after the last GC and open file descriptors against the shedding thresholds.
+         * @return The overload reason, or null if the server has headroom.
+         */
+        private String overload() {
+            if (memoryThreshold > 0) {
+                long usedAfterGc = 0;
+                for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                    if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() && pool.getCollectionUsage() != null) {
+                        usedAfterGc += pool.getCollectionUsage().getUsed();
+                    }
+                }
+                if (usedAfterGc > memoryThreshold * Runtime.getRuntime().maxMemory()) {
+                    return "Low memory";
+                }
+            }
+            if (descriptorThreshold > 0 && ManagementFactory.getOperatingSystemMXBean() instanceof UnixOperatingSystemMXBean) {
+                UnixOperatingSystemMXBean os = (UnixOperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+                if (os.getOpenFileDescriptorCount() > descriptorThreshold * os.getMaxFileDescriptorCount()) {
+                    return "Too many open files";
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Logs the first rejection and then every 100th, so a connection storm does not flood the log.
+         */
+        private void logRejection(AtomicLong counter, String kind, String reason) {
+            long count = counter.incrementAndGet();
+            if (count == 1 || count % 100 == 0) {
+                printAndLog("Refused " + kind + " (" + reason + "), " + count + " " + kind + "s refused so far");
+            }
+        }
+
+        private String describe() {
+            return (sessions != null ? sessions.availablePermits() + " sessions" : "unlimited sessions") + ", "
+                    + (transfers != null ? transfers.availablePermits() + " transfers (queue " + transferQueueMillis + " ms)" : "unlimited transfers")
+                    + ", idle timeout " + (IDLE_TIMEOUT > 0 ? IDLE_TIMEOUT + " ms" : "off");
+        }
+    }
+
+    /**
+     * Hands a refused connection to the reject threads, so a slow client or its TLS handshake never holds up
+     * accept(). When they are all busy and their queue is full, the connection is reset without a reply.
+     * @param clientSocket The refused connection.
+     * @param reason Why it was refused.
+     */
+    private static void refuseSession(Socket clientSocket, String reason) {
+        try {
+            REJECT_POOL.execute(() -> rejectSession(clientSocket, reason));
+        } catch (RejectedExecutionException queueFull) {
+            try (Socket socket = clientSocket) {
+                socket.setSoLinger(true, 0); // Reset at once; nothing was written that could be lost
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+
+    /**
+     * Tells a refused client to come back later and closes its connection. Runs on a reject thread; under TLS
+     * the reply first completes the handshake.
+     * @param clientSocket The refused connection.
+     * @param reason Why it was refused.
+     */
+    private static void rejectSession(Socket clientSocket, String reason) {
+        try (Socket socket = clientSocket) {
+            socket.setSoLinger(true, REJECT_LINGER); // Let BUSY reach the client before the socket closes
+            socket.setSoTimeout(TIMEOUT); // Under TLS the reply waits on a handshake, which must not stall the accept loop
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println("BUSY " + RETRY_AFTER + " " + reason);
+        } catch (IOException e) {
+            // The client went away; nothing to tell it
+        }
+    }
+
+    /**
+     * JDK Flight Recorder event for one command of a session, from its line arriving to its last reply.
+     * Like the other ftp.* events it is only emitted with -Dftp.jfr=true, and only recorded while a
+     * recording runs (e.g. -XX:StartFlightRecording=filename=ftp.jfr); otherwise no event is created.
+     */
+    @Name("ftp.Command")
+    @Label("FTP Command")
+    @Category({"FTP", "Server"})
+    @Description("One command of a client session, from its line arriving to its last reply")
+    @StackTrace(false)
+    private static class CommandEvent extends Event {
+        @Label("Client")
+        String client;
+
+        @Label("User")
+        String user;
+
+        @Label("Command")
+        String command;
+
+        @Label("Argument")
+        String argument;
+
+        /**
+         * @param command The command array.
+         * @param client The client's address.
+         * @param user The session's user.
+         * @return The started event, or null when JFR events are off.
+         */
+        private static CommandEvent start(String[] command, String client, String user) {
+            if (!JFR_EVENTS) {
+                return null;
+            }
+            CommandEvent event = new CommandEvent();
+            event.client = client;
+            event.user = user;
+            event.command = command[0].toUpperCase();
+            event.argument = command.length > 1 ? command[1] : null;
+            event.begin();
+            return event;
+        }
+    }
+
+    /**
+     * JFR event for a transfer admitted by ClientHandler: GET, PUT, GETRANGE, DELTA, CPUT or HASHES.
+     */
+    @Name("ftp.Transfer")
+    @Label("FTP Transfer")
+    @Category({"FTP", "Server"})
+    @Description("A data transfer, from the wait for a transfer slot to its end")
+    @StackTrace(false)
+    private static class TransferEvent extends Event {
+        @Label("Transfer Id")
+        long id;
+
+        @Label("Command")
+        String command;
+
+        @Label("File")
+        String file;
+
+        @Label("Mode")
+        String mode;
+
+        @Label("Stripes")
+        int stripes;
+
+        @Label("Bytes")
+        @Description("File data moved, set once the transfer completed")
+        @DataAmount
+        long bytes;
+
+        @Label("Client")
+        String client;
+
+        @Label("User")
+        String user;
+
+        @Label("Outcome")
+        @Description("complete, busy, refused (an error reply before any data) or failed with the exception")
+        String outcome;
+    }
+
+    /**
+     * JFR event for one phase of a transfer: admission, open, connect, send or receive, commit.
+     */
+    @Name("ftp.TransferPhase")
+    @Label("FTP Transfer Phase")
+    @Category({"FTP", "Server"})
+    @Description("One phase of a transfer; the transfer id matches its ftp.Transfer event")
+    @StackTrace(false)
+    private static class TransferPhaseEvent extends Event {
+        @Label("Transfer Id")
+        long id;
+
+        @Label("Phase")
+        String phase;
+    }
+
+    /**
+     * JFR event summing the datagrams one UDP stripe received over up to JFR_DATAGRAM_BATCH datagrams
+     * or JFR_BATCH_NANOS, so a recording shows the receive rate, loss and reordering without an event per datagram.
+     */
+    @Name("ftp.DatagramBatch")
+    @Label("FTP Datagram Batch")
+    @Category({"FTP", "Server", "UDP"})
+    @Description("Datagrams one UDP stripe of an upload received")
+    @StackTrace(false)
+    private static class DatagramBatchEvent extends Event {
+        @Label("Transfer Id")
+        long transferId;
+
+        @Label("Port")
+        int port;
+
+        @Label("Datagrams")
+        long datagrams;
+
+        @Label("Payload")
+        @DataAmount
+        long bytes;
+
+        @Label("Duplicates")
+        long duplicates;
+
+        @Label("CRC Failures")
+        @Description("Datagrams dropped for a bad CRC, or a bad GCM tag when encrypted")
+        long crcFailures;
+
+        @Label("Reorder Depth")
+        @Description("Most datagrams waiting for an earlier one after any datagram of the batch")
+        int reorderDepth;
+
+        private transient long started; // When the batch began, in System.nanoTime()
+
+        /**
+         * @return The started event, or null when JFR events are off.
+         */
+        private static DatagramBatchEvent start(int port, long transferId) {
+            if (!JFR_EVENTS) {
+                return null;
+            }
+            DatagramBatchEvent event = new DatagramBatchEvent();
+            event.port = port;
+            event.transferId = transferId;
+            event.started = System.nanoTime();
+            event.begin();
+            return event;
+        }
+
+        /**
+         * Counts a verified datagram.
+         * @param length Its payload length.
+         * @param waiting The reassembler's answer: datagrams left waiting, or -1 for a duplicate.
+         * @return The event to count the next datagram in, a new one once this batch is full.
+         */
+        private DatagramBatchEvent count(int length, int waiting) {
+            if (waiting < 0) {
+                duplicates++;
+            } else {
+                datagrams++;
+                bytes += length;
+                reorderDepth = Math.max(reorderDepth, waiting);
+            }
+            if (datagrams + duplicates < JFR_DATAGRAM_BATCH && System.nanoTime() - started < JFR_BATCH_NANOS) {
+                return this;
+            }
+            commit();
+            return start(port, transferId);
+        }
+
+        /**
+         * Commits the last batch of a stripe, unless it is empty.
+         */
+        private void finish() {
+            if (datagrams + duplicates + crcFailures > 0) {
+                commit();
+            }
+        }
+    }
+
+    /**
+     * The JFR events of one transfer: a TransferEvent spanning it and a TransferPhaseEvent per phase, all
+     * with the same id. NONE stands in when events are off, so handlers mark phases without checking.
+     */
+    private static class TransferTrace {
+        private static final TransferTrace NONE = new TransferTrace(null);
+        private static final AtomicLong IDS = new AtomicLong(); // Transfer ids
+        private final TransferEvent transfer;
+        private TransferPhaseEvent phase; // The running phase, if any
+        private boolean transferred = false;
+
+        private TransferTrace(TransferEvent transfer) {
+            this.transfer = transfer;
+        }
+
+        /**
+         * @return A started trace, or NONE when JFR events are off.
+         */
+        private static TransferTrace start(String[] command, String mode, int stripes, String client, String user) {
+            if (!JFR_EVENTS) {
+                return NONE;
+            }
+            TransferEvent event = new TransferEvent();
+            event.id = IDS.incrementAndGet();
+            event.command = command[0].toUpperCase();
+            event.file = command.length > 1 ? command[1] : null;
+            event.mode = mode;
+            event.stripes = stripes;
+            event.client = client;
+            event.user = user;
+            event.begin();
+            return new TransferTrace(event);
+        }
+
+        /**
+         * @return The transfer id, or 0 when untraced.
+         */
+        private long id() {
+            return transfer != null ? transfer.id : 0;
+        }
+
+        /**
+         * Ends the running phase and starts the next.
+         */
+        private void phase(String name) {
+            if (transfer == null) {
+                return;
+            }
+            endPhase();
+            phase = new TransferPhaseEvent();
+            phase.id = transfer.id;
+            phase.phase = name;
+            phase.begin();
+        }
+
+        private void endPhase() {
+            if (phase != null) {
+                phase.commit();
+                phase = null;
+            }
+        }
+
+        /**
+         * Marks the transfer complete.
+         * @param bytes The file data it moved.
+         */
+        private void transferred(long bytes) {
+            if (transfer != null) {
+                transfer.bytes = bytes;
+                transferred = true;
+            }
+        }
+
+        /**
+         * Commits the transfer's events.
+         * @param outcome How it ended, or null to derive it from whether transferred() was called.
+         */
+        private void end(String outcome) {
+            if (transfer == null) {
+                return;
+            }
+            endPhase();
+            transfer.outcome = outcome != null ? outcome : transferred ? "complete" : "refused";
+            transfer.commit();
+        }
+    }
+
+    /**
+     * Server-wide transfer scheduler that paces GET/PUT data streams with per-stream token buckets.
+     * Active streams share the total, per-client and per-user rate caps by weighted max-min fairness,
+     * recomputed whenever a stream starts or finishes: a stream held back by a tighter cap keeps that rate,
+     * and what it cannot use goes to the others. Transfers no larger than the small-transfer threshold get
+     * a larger weight, so short transfers finish quickly while bulk transfers run.
+     */
+    private static class TransferScheduler {
+        private final long totalRate; // Server-wide cap in bytes/s (0 = unlimited)
+        private final long clientRate; // Cap per client address in bytes/s (0 = unlimited)
+        private final long userRate; // Cap per user in bytes/s (0 = unlimited)
+        private final long smallTransferSize; // Transfers up to this size get the small-transfer weight (0 = off)
+        private final int smallTransferWeight; // Weight of small transfers relative to bulk transfers
+        private final List<Stream> active = new ArrayList<>();
+
+        private TransferScheduler(long totalRate, long clientRate, long userRate, long smallTransferSize, int smallTransferWeight) {
+            this.totalRate = totalRate;
+            this.clientRate = clientRate;
+            this.userRate = userRate;
+            this.smallTransferSize = smallTransferSize;
+            this.smallTransferWeight = Math.max(1, smallTransferWeight);
+        }
+
+        /**
+         * Registers a new data stream; close the returned stream when the transfer ends.
+         * @param client The client address.
+         * @param user The user name given with USER (defaults to the client address).
+         * @param size The transfer size in bytes.
+         * @return The stream to pace the transfer with.
+         */
+        private synchronized Stream register(String client, String user, long size) {
+            int weight = smallTransferSize > 0 && size <= smallTransferSize ? smallTransferWeight : 1;
+            Stream stream = new Stream(client, user, weight);
+            active.add(stream);
+            rebalance();
+            return stream;
+        }
+
+        private synchronized void unregister(Stream stream) {
+            if (active.remove(stream)) {
+                rebalance();
+            }
+        }
+
+        /**
+         * A rate cap and the streams it applies to, while rebalance() fills it.
+         */
+        private static class Cap {
+            private final double capacity;
+            private final List<Stream> streams = new ArrayList<>();
+            private double assigned = 0; // Rate given to its streams that are already settled
+            private int openWeight = 0; // Weight of its streams that are not settled yet
+
+            private Cap(double capacity) {
+                this.capacity = capacity;
+            }
+
+            /**
+             * @return The rate per unit of weight at which this cap fills up.
+             */
+            private double level() {
+                return (capacity - assigned) / openWeight;
+            }
+        }
+
+        /**
+         * Recomputes every stream's rate by water-filling: all unsettled streams rise together in proportion
+         * to their weight until some cap is full, the streams under that cap settle at their rate, and the
+         * rest keep rising into the capacity left over. Streams under no finite cap are unlimited.
+         */
+        private void rebalance() {
+            Map<Stream, List<Cap>> capsOf = new HashMap<>();
+            List<Cap> caps = new ArrayList<>();
+            Cap total = totalRate > 0 ? new Cap(totalRate) : null;
+            if (total != null) {
+                caps.add(total);
+            }
+            Map<String, Cap> clientCaps = new HashMap<>();
+            Map<String, Cap> userCaps = new HashMap<>();
+            for (Stream stream : active) {
+                List<Cap> applying = new ArrayList<>(3);
+                if (total != null) {
+                    applying.add(total);
+                }
+                if (clientRate > 0) {
+                    applying.add(clientCaps.computeIfAbsent(stream.client, key -> addCap(caps, clientRate)));
+                }
+                if (userRate > 0) {
+                    applying.add(userCaps.computeIfAbsent(stream.user, key -> addCap(caps, userRate)));
+                }
+                for (Cap cap : applying) {
+                    cap.streams.add(stream);
+                    cap.openWeight += stream.weight;
+                }
+                capsOf.put(stream, applying);
+            }
+            Map<Stream, Long> rates = new HashMap<>(); // Settled streams; the others are unlimited
+            while (true) {
+                double level = Double.MAX_VALUE;
+                for (Cap cap : caps) {
+                    if (cap.openWeight > 0) {
+                        level = Math.min(level, cap.level());
+                    }
+                }
+                if (level == Double.MAX_VALUE) {
+                    break; // Every stream is settled or under no cap
+                }
+                for (Cap cap : caps) {
+                    if (cap.openWeight == 0 || cap.level() > level * (1 + 1e-9)) {
+                        continue;
+                    }
+                    for (Stream stream : cap.streams) {
+                        if (!rates.containsKey(stream)) {
+                            double rate = Math.max(0, level * stream.weight);
+                            rates.put(stream, Math.max(1, (long) rate));
+                            for (Cap applying : capsOf.get(stream)) {
+                                applying.assigned += rate;
+                                applying.openWeight -= stream.weight;
+                            }
+                        }
+                    }
+                }
+            }
+            for (Stream stream : active) {
+                stream.rate = rates.getOrDefault(stream, 0L);
+            }
+        }
+
+        private static Cap addCap(List<Cap> caps, long capacity) {
+            Cap cap = new Cap(capacity);
+            caps.add(cap);
+            return cap;
+        }
+
+        private String describe() {
+            return "total " + formatRate(totalRate) + ", per client " + formatRate(clientRate) + ", per user " + formatRate(userRate)
+                    + (smallTransferSize > 0 ? ", transfers up to " + smallTransferSize + " bytes weighted x" + smallTransferWeight : "");
+        }
+
+        private static String formatRate(long rate) {
+            return rate > 0 ? rate + " B/s" : "unlimited";
+        }
+
+        /**
+         * One paced data stream. The threads of a striped transfer share its bucket: each takes its tokens under
+         * the stream's lock and then sleeps off any debt outside it, so the stripes do not wait on each other.
+         */
+        private class Stream implements AutoCloseable {
+            private final String client;
+            private final String user;
+            private final int weight;
+            private volatile long rate = 0; // Current share in bytes/s (0 = unlimited)
+            private double tokens = 0;
+            private long lastRefill = System.nanoTime();
+
+            private Stream(String client, String user, int weight) {
+                this.client = client;
+                this.user = user;
+                this.weight = weight;
+            }
+
+            /**
+             * Waits until the stream may move the given number of bytes at its current rate.
+             * @param bytes The number of bytes about to be sent or just received.
+             */
+            private void acquire(int bytes) {
+                long currentRate = rate;
+                if (currentRate <= 0) {
+                    return;
+                }
+                long waitNanos;
+                synchronized (this) {
+                    long now = System.nanoTime();
+                    double burst = Math.max(SCHEDULER_MIN_BURST, currentRate * SCHEDULER_BURST_SECONDS);
+                    tokens = Math.min(burst, tokens + (now - lastRefill) * currentRate / 1e9);
+                    lastRefill = now;
+                    tokens -= bytes;
+                    waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / currentRate) : 0;
+                }
+                if (waitNanos >= 1_000_000) {
+                    try {
+                        Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+
+            private long getRate() {
+                return rate;
+            }
+
+            @Override
+            public void close() {
+                unregister(this);
+            }
+        }
+    }
+
+    /**
+     * Consistent-hash ring over the nodes of a cluster (-Dftp.cluster=host:port,...), each node being a
+     * server process with its own root. Every node is placed at a number of virtual points on a 64-bit ring,
+     * and a file belongs to the node at the first point at or after the hash of its root-relative path.
+     * Adding an Nth node hands it about 1/N of the files, taken evenly from the others, and moves nothing
+     * between the existing nodes. Directories are not placed: they must exist on every node.
+     */
+    private static class ClusterRing {
+        private final TreeMap<Long, String> points = new TreeMap<>();
+        private final List<String> nodes;
+        private final String self;
+        private final int virtualNodes;
+
+        private ClusterRing(List<String> nodes, String self, int virtualNodes) {
+            this.nodes = nodes;
+            this.self = self;
+            this.virtualNodes = virtualNodes;
+            for (String node : nodes) {
+                for (int i = 0; i < virtualNodes; i++) {
+                    points.put(hash(node + "#" + i), node);
+                }
+            }
+        }
+
+        /**
+         * Builds the ring from the ftp.cluster node list.
+         * @param spec Comma-separated host:port control addresses of every node, this one included.
+         * @param self This node's entry, or null to pick the entry with the listening port on a local address.
+         * @param port The control port this node listens on.
+         * @param virtualNodes Ring points per node.
+         * @return The ring.
+         * @throws IllegalArgumentException If the list is malformed or does not name this node exactly once.
+         */
+        private static ClusterRing parse(String spec, String self, int port, int virtualNodes) {
+            List<String> nodes = new ArrayList<>();
+            for (String entry : spec.split(",")) {
+                String node = entry.trim();
+                int split = node.lastIndexOf(':');
+                if (split <= 0 || !node.substring(split + 1).matches("\\d{1,5}") || nodes.contains(node)) {
+                    throw new IllegalArgumentException("invalid or repeated node '" + node + "'");
+                }
+                nodes.add(node);
+            }
+            if (self == null) {
+                for (String node : nodes) {
+                    if (port(node) == port && isLocalAddress(host(node))) {
+                        if (self != null) {
+                            throw new IllegalArgumentException("both " + self + " and " + node + " are this node; set ftp.cluster.self");
+                        }
+                        self = node;
+                    }
+                }
+            }
+            if (self == null || !nodes.contains(self)) {
+                throw new IllegalArgumentException("this node (port " + port + ") is not in the list; set ftp.cluster.self");
+            }
+            return new ClusterRing(nodes, self, Math.max(1, virtualNodes));
+        }
+
+        private static boolean isLocalAddress(String host) {
+            try {
+                InetAddress address = InetAddress.getByName(host);
+                return address.isLoopbackAddress() || address.isAnyLocalAddress() || NetworkInterface.getByInetAddress(address) != null;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private static String host(String node) {
+            return node.substring(0, node.lastIndexOf(':'));
+        }
+
+        private static int port(String node) {
+            return Integer.parseInt(node.substring(node.lastIndexOf(':') + 1));
+        }
+
+        /**
+         * Places a key on the ring with the first 64 bits of its MD5 digest, which spreads similar paths evenly.
+         */
+        private static long hash(String key) {
+            try {
+                return ByteBuffer.wrap(MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8))).getLong();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e); // Every Java platform provides MD5
+            }
+        }
+
+        /**
+         * @param key A root-relative path with '/' separators.
+         * @return The control address of the node that stores the file.
+         */
+        private String owner(String key) {
+            Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+            return (point != null ? point : points.firstEntry()).getValue();
+        }
+
+        private boolean isLocal(String key) {
+            return owner(key).equals(self);
+        }
+
+        private List<String> peers() {
+            List<String> peers = new ArrayList<>(nodes);
+            peers.remove(self);
+            return peers;
+        }
+
+        /**
+         * @return The fraction of the hash space a node owns, which is the share of files it can expect.
+         */
+        private double share(String node) {
+            double owned = 0;
+            long previous = points.lastKey();
+            for (Map.Entry<Long, String> point : points.entrySet()) {
+                double arc = (double) point.getKey() - previous;
+                if (node.equals(point.getValue())) {
+                    owned += arc > 0 ? arc : arc + 0x1p64;
+                }
+                previous = point.getKey();
+            }
+            return owned / 0x1p64;
+        }
+
+        private String describe() {
+            return nodes.size() + " nodes, " + virtualNodes + " virtual nodes each, this node " + self + " owns "
+                    + String.format("%.1f%%", share(self) * 100) + " of the ring";
+        }
+    }
+
+    /**
+     * Connects to the control port of another node of the cluster, for listings and rebalancing.
+     * The caller reads the greeting with awaitWelcome before sending commands.
+     * @param node The node's host:port control address.
+     * @return The connected socket.
+     * @throws IOException If the node cannot be reached.
+     */
+    private static Socket openPeerConnection(String node) throws IOException {
+        Socket socket = TLS ? SSLSocketFactory.getDefault().createSocket() : new Socket();
+        try {
+            socket.connect(new InetSocketAddress(ClusterRing.host(node), ClusterRing.port(node)), TIMEOUT);
+            socket.setSoTimeout(PEER_TIMEOUT);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a peer's greeting.
+     * @param in The peer session's reader.
+     * @param node The peer's control address.
+     * @throws IOException If the peer did not admit the session.
+     */
+    private static void awaitWelcome(BufferedReader in, String node) throws IOException {
+        String greeting = in.readLine();
+        if (greeting == null || !greeting.startsWith("WELCOME")) {
+            throw new IOException(node + " refused the session: " + greeting);
+        }
+    }
+
+    /**
+     * Lists the files a peer stores in a directory, with PEERLS.
+     * @param node The peer's control address.
+     * @param directory Root-relative directory ("." for the root).
+     * @param files Receives the names and sizes of the files the peer owns there.
+     * @param directories Receives the names of its subdirectories.
+     * @throws IOException If the peer cannot be asked.
+     */
+    private static void listPeer(String node, String directory, Map<String, Long> files, Set<String> directories) throws IOException {
+        try (Socket socket = openPeerConnection(node);
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            awaitWelcome(in, node);
+            out.println("PEERLS " + directory);
+            String line;
+            while ((line = in.readLine()) != null && !line.equals("EOF")) {
+                // Rows are "D <name>" or "F <size> <name>"
+                if (line.startsWith("D ")) {
+                    directories.add(line.substring(2));
+                } else if (line.startsWith("F ")) {
+                    int split = line.indexOf(' ', 2);
+                    files.put(line.substring(split + 1), Long.parseLong(line.substring(2, split)));
+                }
+            }
+            if (line == null) {
+                throw new EOFException("listing ended early");
+            }
+            out.println("QUIT");
+        }
+    }
+
+    /**
+     * Adds the contents of a local directory to a listing: its subdirectories, and the files this node
+     * owns (all of them outside a cluster). Files left here by a change of the cluster are left out until
+     * they are moved to their owner, since GETs for them go to the owner. Directories the file catalog has
+     * checked are listed from it.
+     * @param dir The directory.
+     * @param files Receives file names and sizes.
+     * @param directories Receives subdirectory names.
+     * @throws IOException If a path cannot be resolved.
+     */
+    private static void listLocal(File dir, Map<String, Long> files, Set<String> directories) throws IOException {
+        Map<String, FileCatalog.Entry> catalogued = catalog != null ? catalog.list(dir) : null;
+        if (catalogued != null) {
+            String key = catalog.key(dir);
+            for (FileCatalog.Entry entry : catalogued.values()) {
+                if (entry.directory) {
+                    directories.add(entry.name);
+                } else if (cluster == null || cluster.isLocal(FileCatalog.child(key, entry.name))) {
+                    files.put(entry.name, entry.size);
+                }
+            }
+            return;
+        }
+        File[] entries = dir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        for (File entry : entries) {
+            if (entry.isDirectory()) {
+                if (!(chunkStore != null && entry.getName().equals(CHUNK_DIR_NAME))) {
+                    directories.add(entry.getName());
+                }
+            } else if (cluster == null || cluster.isLocal(clusterKey(entry))) {
+                files.put(entry.getName(), fileLength(entry));
+            }
+        }
+    }
+
+    /**
+     * @param file A file under the server root.
+     * @return Its path relative to the root with '/' separators, which places it on the cluster ring,
+     *         or null if it lies outside the root.
+     * @throws IOException If the path cannot be resolved.
+     */
+    private static String clusterKey(File file) throws IOException {
+        String root = new File(ClientHandler.ROOT_DIR).getCanonicalPath();
+        String path = file.getCanonicalPath();
+        if (!path.startsWith(root + File.separator)) {
+            return null;
+        }
+        return path.substring(root.length() + 1).replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Files under the root that the cluster now places on another node, such as those handed to a node
+     * that was added. Hidden files, which include staged uploads, the chunk store and the server log are skipped.
+     * @param dir The directory to search.
+     * @param found Receives the files.
+     * @throws IOException If a path cannot be resolved.
+     */
+    private static void findMisplaced(File dir, List<File> found) throws IOException {
+        File[] entries = dir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        for (File entry : entries) {
+            if (entry.getName().startsWith(".") || entry.getName().startsWith(LOG_FILE)) {
+                continue;
+            }
+            if (entry.isDirectory()) {
+                findMisplaced(entry, found);
+            } else {
+                String key = clusterKey(entry);
+                if (key != null && !cluster.isLocal(key)) {
+                    found.add(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves every file the cluster places on another node to that node, run from the console with
+     * "rebalance" after the node list changed. Each file is uploaded to its owner with an ordinary PUT
+     * over TCP, checked in the owner's listing and only then removed here.
+     */
+    private static void rebalance() {
+        List<File> misplaced = new ArrayList<>();
+        try {
+            findMisplaced(new File(ClientHandler.ROOT_DIR), misplaced);
+        } catch (IOException e) {
+            printAndLog("Rebalance failed: " + e.getMessage());
+            return;
+        }
+        printAndLog("Rebalance: " + misplaced.size() + " files belong to other nodes");
+        int moved = 0;
+        long movedBytes = 0;
+        for (File file : misplaced) {
+            try {
+                String key = clusterKey(file);
+                String owner = cluster.owner(key);
+                long size = moveToOwner(file, key, owner);
+                moved++;
+                movedBytes += size;
+                printAndLog("Moved " + key + " (" + size + " bytes) to " + owner);
+            } catch (IOException e) {
+                printAndLog("Could not move " + file + ": " + e.getMessage());
+            }
+        }
+        printAndLog("Rebalance: moved " + moved + " of " + misplaced.size() + " files (" + movedBytes + " bytes)");
+    }
+
+    /**
+     * Uploads one file to the node that owns it and removes the local copy once the owner lists it.
+     * @param file The local file.
+     * @param key Its root-relative path, which is also its path on the owner.
+     * @param owner The owner's control address.
+     * @return The number of bytes moved.
+     * @throws IOException If the upload fails or cannot be confirmed; the local copy is then kept.
+     */
+    private static long moveToOwner(File file, String key, String owner) throws IOException {
+        String writeKey = LOCKS.beginWrite(file);  // Keeps local uploads away while the file moves
+        if (writeKey == null) {
+            throw new IOException("file is in use");
+        }
+        try {
+            Lock readLock = LOCKS.shared(file);
+            InputStream source;
+            long size;
+            try {
+                source = openFile(file);
+                size = openedLength(source, file);
+            } finally {
+                readLock.unlock();
+            }
+            try (InputStream fis = readAhead(source);
+                Socket socket = openPeerConnection(owner);
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                awaitWelcome(in, owner);
+                out.println("PUT " + key + " " + size);
+                String response = in.readLine();
+                if (response == null || !response.startsWith("READY ")) {
+                    throw new IOException(owner + " refused the upload: " + response);
+                }
+                int port = Integer.parseInt(response.split(" ")[1]);
+                try (Socket data = TLS ? SSLSocketFactory.getDefault().createSocket(ClusterRing.host(owner), port)
+                            : new Socket(ClusterRing.host(owner), port);
+                    OutputStream bos = new BufferedOutputStream(data.getOutputStream(), WRITE_BEHIND_BLOCK)) {
+                    fis.transferTo(bos);
+                }
+                out.println("QUIT");
+                in.readLine();  // Answered once the owner has committed the upload
+            }
+
+            // The owner reports commit failures only in its log, so check that it lists the file in full
+            int split = key.lastIndexOf('/');
+            Map<String, Long> files = new HashMap<>();
+            listPeer(owner, split < 0 ? "." : key.substring(0, split), files, new HashSet<>());
+            Long stored = files.get(key.substring(split + 1));
+            if (stored == null || stored != size) {
+                throw new IOException(owner + " did not store the file (lists " + stored + " bytes)");
+            }
+            Lock writeLock = LOCKS.exclusive(file);
+            try {
+                if (!file.delete()) {
+                    throw new IOException("copied, but the local copy could not be removed");
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            if (catalog != null) {
+                catalog.removed(file);
+            }
+            return size;
+        } finally {
+            LOCKS.endWrite(writeKey);
+        }
+    }
+
+    /**
+     * In-process reader/writer locks for served files, keyed by canonical path and striped over a fixed
+     * table of ReentrantReadWriteLocks. Only one upload at a time may own a path; a second one is refused.
+     * The owner takes the exclusive lock only to commit, while the rename or manifest write replaces the
+     * file. GET takes the shared lock to open the file. With snapshots on it lets go as soon as the file is
+     * open: the open file is the last committed version, because commits rename a new file into place rather
+     * than rewrite the old one. With snapshots off it holds the lock until the transfer ends, so commits wait
+     * for readers, which is needed where the platform refuses the rename and the commit copies in place.
+     */
+    private static class FileLockTable {
+        private final ReentrantReadWriteLock[] stripes;
+        private final boolean snapshots;
+        private final Set<String> writers = ConcurrentHashMap.newKeySet(); // Paths with an upload in progress
+        private final AtomicLong sharedLocks = new AtomicLong();
+        private final AtomicLong exclusiveLocks = new AtomicLong();
+        private final AtomicLong contended = new AtomicLong(); // Acquisitions that had to wait
+        private final AtomicLong waitNanos = new AtomicLong(); // Time spent waiting for contended locks
+        private final AtomicLong writerConflicts = new AtomicLong(); // Uploads refused because another one owned the path
+
+        private FileLockTable(int stripeCount, boolean snapshots) {
+            this.stripes = new ReentrantReadWriteLock[Math.max(1, stripeCount)];
+            for (int i = 0; i < stripes.length; i++) {
+                stripes[i] = new ReentrantReadWriteLock(true); // Fair, so a commit is not starved by a stream of readers
+            }
+            this.snapshots = snapshots;
+        }
+
+        private static String key(File file) throws IOException {
+            return file.getCanonicalPath();
+        }
+
+        private ReentrantReadWriteLock stripe(String key) {
+            return stripes[(key.hashCode() & Integer.MAX_VALUE) % stripes.length];
+        }
+
+        /**
+         * Takes the shared lock of a file for opening it.
+         * @param file The file to read.
+         * @return The held lock; the caller unlocks it once the file is open, or at the end of the transfer without snapshots.
+         * @throws IOException If the path cannot be resolved.
+         */
+        private Lock shared(File file) throws IOException {
+            sharedLocks.incrementAndGet();
+            return acquire(stripe(key(file)).readLock());
+        }
+
+        /**
+         * Takes the exclusive lock of a file for committing a new version.
+         * @param file The file being replaced.
+         * @return The held lock, to be unlocked once the commit is done.
+         * @throws IOException If the path cannot be resolved.
+         */
+        private Lock exclusive(File file) throws IOException {
+            exclusiveLocks.incrementAndGet();
+            return acquire(stripe(key(file)).writeLock());
+        }
+
+        private Lock acquire(Lock lock) {
+            if (!lock.tryLock()) {
+                contended.incrementAndGet();
+                long start = System.nanoTime();
+                lock.lock();
+                waitNanos.addAndGet(System.nanoTime() - start);
+            }
+            return lock;
+        }
+
+        /**
+         * Claims a path for an upload.
+         * @param file The upload's destination.
+         * @return The claimed key, to pass to endWrite, or null if another upload owns the path.
+         * @throws IOException If the path cannot be resolved.
+         */
+        private String beginWrite(File file) throws IOException {
+            String key = key(file);
+            if (!writers.add(key)) {
+                writerConflicts.incrementAndGet();
+                return null;
+            }
+            return key;
+        }
+
+        private void endWrite(String key) {
+            writers.remove(key);
+        }
+
+        private boolean snapshots() {
+            return snapshots;
+        }
+
+        private String describe() {
+            return sharedLocks.get() + " shared, " + exclusiveLocks.get() + " exclusive, " + contended.get() + " contended (waited "
+                    + waitNanos.get() / 1_000_000 + " ms in total), " + writerConflicts.get() + " uploads refused as in use, "
+                    + stripes.length + " stripes, snapshots " + (snapshots ? "on" : "off");
+        }
+    }
+
+    /**
+     * Commits staged uploads. An upload is written to a temporary file next to its destination, its size is
+     * checked against the announced size, and it is renamed over the destination, so the destination holds
+     * either the old file or the complete new one. How far the commit survives a crash depends on the mode:
+     * none renames only; fsync forces the data before the rename and the directory after it; group does the
+     * same, but uploads that commit at the same time share the directory force: the first to arrive forces
+     * every directory queued so far while the others wait for its batch.
+     */
+    private static class UploadCommitter {
+        enum Durability { NONE, FSYNC, GROUP }
+
+        private final Durability durability;
+        private final List<ForceRequest> pending = new ArrayList<>(); // Directory forces waiting for the next group batch
+        private boolean forcing = false; // A group batch is being forced
+        private final AtomicLong commits = new AtomicLong();
+        private final AtomicLong forceRequests = new AtomicLong(); // Files and directories that asked to be forced
+        private final AtomicLong forces = new AtomicLong(); // Forces actually issued
+        private final AtomicLong batches = new AtomicLong();
+
+        /**
+         * A directory to force, and how that went.
+         */
+        private static class ForceRequest {
+            private final File directory;
+            private boolean done = false;
+            private IOException failure;
+
+            private ForceRequest(File directory) {
+                this.directory = directory;
+            }
+        }
+
+        private UploadCommitter(Durability durability) {
+            this.durability = durability;
+        }
+
+        /**
+         * Parses a durability mode.
+         * @param mode none, fsync or group, in any case.
+         * @return The mode, or null if it is not one of them.
+         */
+        private static Durability parse(String mode) {
+            try {
+                return Durability.valueOf(mode.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Creates the temporary file an upload is staged in, hidden next to its destination so the rename stays on one filesystem.
+         * @param file The destination.
+         * @return The empty temporary file.
+         * @throws IOException If it cannot be created.
+         */
+        private static File stage(File file) throws IOException {
+            return File.createTempFile("." + file.getName() + ".", ".part", file.getAbsoluteFile().getParentFile());
+        }
+
+        /**
+         * Verifies a staged upload and replaces the destination with it.
+         * @param staged The complete temporary file, closed by its writer.
+         * @param file The destination.
+         * @param channel The destination's locked channel, used if the platform refuses the rename.
+         * @param expectedSize The announced size of the upload.
+         * @throws IOException If the size does not match or the commit fails; the destination is left as it was.
+         */
+        private void commit(File staged, File file, FileChannel channel, long expectedSize) throws IOException {
+            long size = staged.length();
+            if (size != expectedSize) {
+                throw new IOException("Size mismatch, expected " + expectedSize + " bytes but received " + size);
+            }
+            File directory = file.getAbsoluteFile().getParentFile();
+            if (durability != Durability.NONE) {
+                forceRequests.addAndGet(2); // The data before the rename, the directory after it
+            }
+            switch (durability) {
+                case FSYNC:
+                    force(staged, false);
+                    replace(staged, file, channel, size);
+                    force(directory, true);
+                    break;
+                case GROUP:
+                    force(staged, false); // Concurrent forces of different files already share the filesystem's journal commits
+                    replace(staged, file, channel, size);
+                    groupForce(directory);
+                    break;
+                default:
+                    replace(staged, file, channel, size);
+                    break;
+            }
+            commits.incrementAndGet();
+        }
+
+        /**
+         * Renames the staged file over the destination while its file lock is still held, under its exclusive
+         * entry in the lock table. Readers that opened the old file keep reading it; on the copy fallback
+         * only readers that still hold their shared lock (snapshots off) are safe.
+         */
+        private void replace(File staged, File file, FileChannel channel, long size) throws IOException {
+            Lock lock = LOCKS.exclusive(file); // Readers open either the old file or the new one
+            try {
+                Files.move(staged.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // Some platforms refuse to replace a locked file, so copy through the locked channel instead
+                try (FileChannel stagedChannel = new FileInputStream(staged).getChannel()) {
+                    channel.truncate(0);
+                    long copied = 0;
+                    while (copied < size) {
+                        copied += stagedChannel.transferTo(copied, size - copied, channel.position(copied));
+                    }
+                    if (durability != Durability.NONE) {
+                        channel.force(true);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Forces a file's data, or a directory's entries, to stable storage.
+         */
+        private void force(File path, boolean directory) throws IOException {
+            forces.incrementAndGet();
+            try (FileChannel channel = FileChannel.open(path.toPath(), directory ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+                channel.force(!directory);
+            } catch (IOException e) {
+                if (!directory) {
+                    throw e;
+                }
+                // Not every platform can open a directory to force it; the rename is as durable as it gets there
+            }
+        }
+
+        /**
+         * Forces a directory as part of a group batch. The caller either waits for a batch that includes its
+         * request or, if no batch is running, forces every queued directory itself.
+         */
+        private void groupForce(File directory) throws IOException {
+            ForceRequest request = new ForceRequest(directory);
+            List<ForceRequest> batch;
+            synchronized (this) {
+                pending.add(request);
+                try {
+                    while (forcing && !request.done) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a group commit");
+                }
+                if (request.done) {
+                    if (request.failure != null) {
+                        throw request.failure;
+                    }
+                    return;
+                }
+                forcing = true;
+                batch = new ArrayList<>(pending);
+                pending.clear();
+            }
+
+            // Force each directory once, however many uploads in the batch renamed into it
+            Map<File, IOException> results = new HashMap<>();
+            for (ForceRequest queued : batch) {
+                if (!results.containsKey(queued.directory)) {
+                    IOException failure = null;
+                    try {
+                        force(queued.directory, true);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                    results.put(queued.directory, failure);
+                }
+            }
+            batches.incrementAndGet();
+
+            synchronized (this) {
+                for (ForceRequest queued : batch) {
+                    queued.failure = results.get(queued.directory);
+                    queued.done = true;
+                }
+                forcing = false;
+                notifyAll();
+            }
+            if (request.failure != null) {
+                throw request.failure;
+            }
+        }
+
+        private String describe() {
+            String mode = durability.name().toLowerCase();
+            if (durability == Durability.GROUP && batches.get() > 0) {
+                return mode + ", " + commits.get() + " commits, " + forces.get() + " of " + forceRequests.get() + " forces issued, directories in "
+                        + batches.get() + " batches (" + String.format("%.1f", (double) commits.get() / batches.get()) + " commits per batch)";
+            }
+            return mode + ", " + commits.get() + " commits, " + forces.get() + " forces";
+        }
+    }
+
+    /**
+     * Persistent catalog of the files under the root: path, size, modification time and, once computed, the SHA-256
+     * of the whole file and of its chunks. It lives in a log of records in .ftpcatalog, which is memory-mapped and
+     * replayed at startup, so LS, PEERLS, STAT and CD answer from memory and HASHES does not read a file twice.
+     * Commits record uploads as they finish. A background thread then checks the catalog against the disk and
+     * follows later changes with a WatchService; a directory is answered from the catalog only once that check
+     * has covered it, and lookups anywhere else go to the filesystem as before. Hidden files and the server log are
+     * not catalogued. Each record is [length][CRC32][kind][path][fields]: a torn or damaged tail is cut off on load,
+     * and the log is rewritten once superseded records make up most of it.
+     */
+    private static class FileCatalog {
+        private static final byte[] MAGIC = "FTPCAT01".getBytes(StandardCharsets.US_ASCII); // First bytes of the catalog file
+        private static final byte FILE = 'F'; // Record: a file, its sizes, modification time and any hashes
+        private static final byte DIRECTORY = 'D'; // Record: a directory
+        private static final byte REMOVED = 'X'; // Record: a path that is gone, with everything under it
+        private static final int RECORD_HEADER = Integer.BYTES * 2; // Length and CRC32 before each record
+        private static final int MAX_RECORD = 4 * 1024 * 1024; // Largest record; longer chunk hash lists are not kept
+        private static final int MAX_CHUNK_HASHES = 65536; // Most chunk hashes kept for one file (2 MB of digests)
+        private static final long MAP_WINDOW = 256L * 1024 * 1024; // Part of the log mapped at a time while loading
+        private static final long COMPACT_MIN = 1024 * 1024; // Log size below which superseded records are left alone
+
+        private final Path root;
+        private final File file;
+        private FileChannel channel; // Read and append channel, replaced when the log is compacted
+        private long end; // Where the next record is appended
+        private boolean loaded = false; // The log has been replayed; appends wait until then, since end is not known before
+        private boolean unusable = false; // The log could not be replayed, so nothing more is appended to it
+        private long liveBytes; // Bytes of the records that are still current
+        private final Map<String, Directory> directories = new ConcurrentHashMap<>(); // Root-relative path ("" for the root) to contents
+        private final AtomicLong lookups = new AtomicLong(); // Lookups answered from the catalog
+        private final AtomicLong fallbacks = new AtomicLong(); // Lookups in directories not yet checked, sent to the filesystem
+        private final AtomicLong hashHits = new AtomicLong(); // HASHES answered without reading the file
+        private final AtomicLong compactions = new AtomicLong();
+
+        /**
+         * A file or directory in the catalog. Hashes stay in the log and are read from there when asked for.
+         */
+        private static class Entry {
+            private final String name;
+            private final boolean directory;
+            private final long size; // Size clients see (the logical size of a chunk store manifest)
+            private final long length; // Length on disk, which with the modification time tells whether the file changed
+            private final long modified; // Modification time in nanoseconds
+            private final boolean content; // The record holds the SHA-256 of the whole file
+            private final int chunkSize; // Chunk size of the record's chunk hashes, 0 if it has none
+            private long offset; // Position of the record in the log
+            private final int recordLength;
+
+            private Entry(String name, boolean directory, long size, long length, long modified, boolean content, int chunkSize,
+                          long offset, int recordLength) {
+                this.name = name;
+                this.directory = directory;
+                this.size = size;
+                this.length = length;
+                this.modified = modified;
+                this.content = content;
+                this.chunkSize = chunkSize;
+                this.offset = offset;
+                this.recordLength = recordLength;
+            }
+
+            private boolean matches(BasicFileAttributes attributes) {
+                return !directory && length == attributes.size() && modified == attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * The entries of one directory.
+         */
+        private static class Directory {
+            private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+            private volatile boolean verified = false; // Checked against the disk since startup and watched since
+        }
+
+        /**
+         * Hashes recorded for a file, as hex digests.
+         */
+        private static class Hashes {
+            private final String content; // SHA-256 of the whole file, or null
+            private final int chunkSize;
+            private final List<String> chunks;
+
+            private Hashes(String content, int chunkSize, List<String> chunks) {
+                this.content = content;
+                this.chunkSize = chunkSize;
+                this.chunks = chunks;
+            }
+        }
+
+        private FileCatalog(Path root, File file) {
+            this.root = root;
+            this.file = file;
+            directories.put("", new Directory());
+        }
+
+        /**
+         * Opens the catalog under a root directory. Its records are replayed by start(), so the server does not wait for them.
+         * @param rootDir The server root.
+         * @return The catalog, empty until start() has loaded it.
+         * @throws IOException If the catalog file cannot be opened or created.
+         */
+        private static FileCatalog open(File rootDir) throws IOException {
+            FileCatalog catalog = new FileCatalog(rootDir.toPath().toAbsolutePath().normalize(), new File(rootDir, CATALOG_FILE_NAME));
+            catalog.channel = FileChannel.open(catalog.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (!catalog.hasMagic()) {
+                if (catalog.channel.size() > 0) {
+                    printAndLog("File catalog: " + catalog.file + " is not a catalog, starting a new one");
+                }
+                catalog.channel.truncate(0);
+                catalog.channel.write(ByteBuffer.wrap(MAGIC), 0);
+            }
+            catalog.end = MAGIC.length;
+            return catalog;
+        }
+
+        /**
+         * Replays the records in the log. Commits that finish meanwhile wait for the catalog's lock.
+         */
+        private synchronized void load() throws IOException {
+            try {
+                long size = channel.size();
+                long intact = load(size);
+                if (intact < size) {
+                    printAndLog("File catalog: dropped " + (size - intact) + " bytes of torn or damaged records at the end of " + file);
+                    channel.truncate(intact);
+                }
+                end = intact;
+            } catch (IOException | RuntimeException e) {
+                unusable = true;
+                throw e;
+            } finally {
+                loaded = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits until load() has replayed the log. The caller holds the catalog's lock.
+         * @return False if the log could not be replayed and must not be appended to.
+         * @throws InterruptedIOException If the wait was interrupted.
+         */
+        private boolean awaitLoad() throws InterruptedIOException {
+            while (!loaded) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while the file catalog loads");
+                }
+            }
+            return !unusable;
+        }
+
+        private boolean hasMagic() throws IOException {
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0) {
+                // Read until full or at the end
+            }
+            return !magic.hasRemaining() && Arrays.equals(magic.array(), MAGIC);
+        }
+
+        /**
+         * Replays the log through read-only mappings of up to MAP_WINDOW bytes each.
+         * @param size The log's length.
+         * @return The end of the last intact record.
+         */
+        private long load(long size) throws IOException {
+            CRC32 crc = new CRC32();
+            long position = MAGIC.length;
+            while (position < size) {
+                ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, MAP_WINDOW));
+                long used = 0;
+                boolean damaged = false;
+                while (map.remaining() >= RECORD_HEADER) {
+                    int length = map.getInt();
+                    int checksum = map.getInt();
+                    if (length < 3 || length > MAX_RECORD) {
+                        damaged = true;
+                        break;
+                    }
+                    if (map.remaining() < length) {
+                        break; // Continued in the next window, or torn at the end of the log
+                    }
+                    ByteBuffer body = map.slice(map.position(), length);
+                    crc.reset();
+                    crc.update(body.duplicate());
+                    if ((int) crc.getValue() != checksum) {
+                        damaged = true;
+                        break;
+                    }
+                    apply(body, position + used, RECORD_HEADER + length);
+                    map.position(map.position() + length);
+                    used += RECORD_HEADER + length;
+                }
+                position += used;
+                if (damaged || used == 0) {
+                    break;
+                }
+            }
+            return position;
+        }
+
+        /**
+         * Applies one record read from the log.
+         */
+        private void apply(ByteBuffer body, long offset, int recordLength) {
+            byte kind = body.get();
+            byte[] pathBytes = new byte[Short.toUnsignedInt(body.getShort())];
+            body.get(pathBytes);
+            String path = new String(pathBytes, StandardCharsets.UTF_8);
+            if (kind == REMOVED) {
+                remove(path);
+            } else if (kind == DIRECTORY) {
+                put(path, new Entry(name(path), true, 0, 0, 0, false, 0, offset, recordLength));
+            } else {
+                long size = body.getLong();
+                long length = body.getLong();
+                long modified = body.getLong();
+                boolean content = body.get() != 0;
+                if (content) {
+                    body.position(body.position() + CHUNK_HASH_LENGTH);
+                }
+                int chunkSize = body.getInt();
+                put(path, new Entry(name(path), false, size, length, modified, content, chunkSize, offset, recordLength));
+            }
+        }
+
+        private void put(String path, Entry entry) {
+            Directory parent = directories.computeIfAbsent(parent(path), key -> new Directory());
+            Entry old = parent.entries.put(entry.name, entry);
+            if (old != null) {
+                liveBytes -= old.recordLength;
+                if (old.directory && !entry.directory) {
+                    removeTree(path);
+                }
+            }
+            liveBytes += entry.recordLength;
+            if (entry.directory) {
+                directories.computeIfAbsent(path, key -> new Directory());
+            }
+        }
+
+        private void remove(String path) {
+            Directory parent = directories.get(parent(path));
+            Entry old = parent != null ? parent.entries.remove(name(path)) : null;
+            if (old != null) {
+                liveBytes -= old.recordLength;
+                if (old.directory) {
+                    removeTree(path);
+                }
+            }
+        }
+
+        private void removeTree(String path) {
+            String prefix = path + "/";
+            directories.entrySet().removeIf(directory -> {
+                if (!directory.getKey().equals(path) && !directory.getKey().startsWith(prefix)) {
+                    return false;
+                }
+                for (Entry entry : directory.getValue().entries.values()) {
+                    liveBytes -= entry.recordLength;
+                }
+                return true;
+            });
+        }
+
+        private static String parent(String path) {
+            int slash = path.lastIndexOf('/');
+            return slash < 0 ? "" : path.substring(0, slash);
+        }
+
+        private static String name(String path) {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+
+        private static String child(String directory, String name) {
+            return directory.isEmpty() ? name : directory + "/" + name;
+        }
+
+        /**
+         * @param file A file or directory.
+         * @return Its root-relative path with '/' separators ("" for the root), or null if it lies outside the root,
+         *         is hidden or is the server log.
+         */
+        private String key(File file) {
+            return key(file.toPath().toAbsolutePath().normalize());
+        }
+
+        private String key(Path path) {
+            if (!path.startsWith(root)) {
+                return null;
+            }
+            String key = root.relativize(path).toString().replace(File.separatorChar, '/');
+            if (key.startsWith(LOG_FILE) && key.indexOf('/') < 0) {
+                return null; // Every server keeps its own log, which changes with every line
+            }
+            for (String part : key.split("/")) {
+                if (part.startsWith(".")) {
+                    return null; // Staged uploads, the chunk store and the catalog itself
+                }
+            }
+            return key;
+        }
+
+        /**
+         * Appends a record to the log.
+         * @return The record's offset.
+         */
+        private long append(ByteBuffer record) throws IOException {
+            long offset = end;
+            while (record.hasRemaining()) {
+                end += channel.write(record, end);
+            }
+            return offset;
+        }
+
+        private static ByteBuffer encode(byte kind, String path, long size, long length, long modified, byte[] content, int chunkSize,
+                                         List<byte[]> chunks) {
+            byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+            int bodyLength = 1 + Short.BYTES + pathBytes.length;
+            if (kind == FILE) {
+                bodyLength += Long.BYTES * 3 + 1 + (content != null ? CHUNK_HASH_LENGTH : 0) + Integer.BYTES * 2
+                        + (chunks != null ? chunks.size() * CHUNK_HASH_LENGTH : 0);
+            }
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + bodyLength);
+            record.putInt(bodyLength).putInt(0).put(kind).putShort((short) pathBytes.length).put(pathBytes);
+            if (kind == FILE) {
+                record.putLong(size).putLong(length).putLong(modified).put((byte) (content != null ? 1 : 0));
+                if (content != null) {
+                    record.put(content);
+                }
+                record.putInt(chunks != null ? chunkSize : 0).putInt(chunks != null ? chunks.size() : 0);
+                if (chunks != null) {
+                    for (byte[] chunk : chunks) {
+                        record.put(chunk);
+                    }
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), RECORD_HEADER, bodyLength);
+            record.putInt(Integer.BYTES, (int) crc.getValue());
+            return record.flip();
+        }
+
+        /**
+         * Appends a file or directory record and makes it the path's entry.
+         * @return The new entry, or null if the path is too long to record or the log could not be loaded.
+         */
+        private synchronized Entry write(String key, boolean directory, long size, long length, long modified, byte[] content,
+                                         int chunkSize, List<byte[]> chunks) throws IOException {
+            if (!awaitLoad() || key.getBytes(StandardCharsets.UTF_8).length > 0xFFFF) {
+                return null;
+            }
+            if (chunks != null && chunks.size() > MAX_CHUNK_HASHES) {
+                chunks = null; // Too many to keep; HASHES reads the file for them
+            }
+            ByteBuffer record = encode(directory ? DIRECTORY : FILE, key, size, length, modified, content, chunkSize, chunks);
+            Entry entry = new Entry(name(key), directory, size, length, modified, content != null, chunks != null ? chunkSize : 0,
+                    0, record.remaining());
+            entry.offset = append(record);
+            put(key, entry);
+            compactIfNeeded();
+            return entry;
+        }
+
+        /**
+         * Records a file as it is now on disk.
+         * @param key Its catalog path.
+         * @param path The file.
+         * @param attributes Its attributes, read by the caller.
+         * @param content The SHA-256 of its contents, or null if unknown.
+         * @return The new entry, or null if the path is too long to record.
+         */
+        private synchronized Entry record(String key, Path path, BasicFileAttributes attributes, byte[] content) throws IOException {
+            if (attributes.isDirectory()) {
+                return write(key, true, 0, 0, 0, null, 0, null);
+            }
+            return write(key, false, fileLength(path.toFile()), attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                    content, 0, null);
+        }
+
+        private synchronized void recordRemoval(String key) throws IOException {
+            if (!awaitLoad()) {
+                return;
+            }
+            Directory parent = directories.get(parent(key));
+            if (parent == null || !parent.entries.containsKey(name(key))) {
+                return;
+            }
+            append(encode(REMOVED, key, 0, 0, 0, null, 0, null));
+            remove(key);
+            compactIfNeeded();
+        }
+
+        /**
+         * Brings one path up to date with the disk, if it has changed.
+         * @param path The file or directory.
+         * @param attributes Attributes already read by the caller, or null to read them here.
+         * @return True if the catalog changed.
+         */
+        private boolean refresh(Path path, BasicFileAttributes attributes) throws IOException {
+            String key = key(path);
+            if (key == null || key.isEmpty()) {
+                return false;
+            }
+            if (attributes != null && unchanged(key, attributes)) {
+                return false;
+            }
+            synchronized (this) {
+                try {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException e) {
+                    attributes = null;
+                }
+                if (attributes == null || !(attributes.isRegularFile() || attributes.isDirectory())) {
+                    boolean present = lookupKey(key) != null;
+                    recordRemoval(key);
+                    return present;
+                }
+                if (unchanged(key, attributes)) {
+                    return false;
+                }
+                record(key, path, attributes, null);
+                return true;
+            }
+        }
+
+        private boolean unchanged(String key, BasicFileAttributes attributes) {
+            Entry entry = lookupKey(key);
+            return entry != null && (entry.directory ? attributes.isDirectory() : entry.matches(attributes));
+        }
+
+        private Entry lookupKey(String key) {
+            Directory parent = directories.get(parent(key));
+            return parent != null ? parent.entries.get(name(key)) : null;
+        }
+
+        /**
+         * Records an upload that was just committed.
+         * @param committed The destination file.
+         * @param content The SHA-256 of the uploaded data, or null if it was not computed.
+         */
+        private void committed(File committed, byte[] content) {
+            String key = key(committed);
+            if (key == null || key.isEmpty()) {
+                return;
+            }
+            try {
+                synchronized (this) {
+                    Path path = committed.toPath();
+                    record(key, path, Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS), content);
+                }
+            } catch (IOException e) {
+                printAndLog("File catalog: could not record " + key + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Records that a file was removed by the server.
+         */
+        private void removed(File removed) {
+            String key = key(removed);
+            if (key != null && !key.isEmpty()) {
+                try {
+                    recordRemoval(key);
+                } catch (IOException e) {
+                    printAndLog("File catalog: could not record the removal of " + key + ": " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * @param dir A directory.
+         * @return Its entries by name, or null if the directory has not been checked against the disk.
+         */
+        private Map<String, Entry> list(File dir) {
+            String key = key(dir);
+            Directory directory = key != null ? directories.get(key) : null;
+            if (directory == null || !directory.verified) {
+                fallbacks.incrementAndGet();
+                return null;
+            }
+            lookups.incrementAndGet();
+            return directory.entries;
+        }
+
+        /**
+         * @param path A file or directory.
+         * @return Its entry, or null if it is not catalogued or its directory has not been checked against the disk.
+         */
+        private Entry lookup(File path) {
+            String key = key(path);
+            if (key == null || key.isEmpty()) {
+                return null;
+            }
+            Directory parent = directories.get(parent(key));
+            if (parent == null || !parent.verified) {
+                fallbacks.incrementAndGet();
+                return null;
+            }
+            lookups.incrementAndGet();
+            return parent.entries.get(name(key));
+        }
+
+        /**
+         * Returns the entry of a file as it is on disk now, recording it first if it changed. The caller holds
+         * the file's shared lock, so the entry describes the version it is about to open.
+         * @param current The file.
+         * @return Its entry, or null if it cannot be catalogued.
+         */
+        private Entry current(File current) throws IOException {
+            String key = key(current);
+            if (key == null || key.isEmpty()) {
+                return null;
+            }
+            Path path = current.toPath();
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+            Entry entry = lookupKey(key);
+            if (entry != null && entry.matches(attributes)) {
+                return entry;
+            }
+            synchronized (this) {
+                return record(key, path, attributes, null);
+            }
+        }
+
+        /**
+         * Reads the hashes recorded with an entry. A superseded entry's record may since have been compacted away,
+         * so only the path's current entry is read.
+         * @param hashed The file the entry was looked up for.
+         * @param entry An entry returned by lookup() or current().
+         * @return Its hashes, or null if the entry has none or was superseded.
+         */
+        private synchronized Hashes hashes(File hashed, Entry entry) throws IOException {
+            if (entry.directory || (!entry.content && entry.chunkSize == 0)) {
+                return null;
+            }
+            String key = key(hashed);
+            if (key == null || lookupKey(key) != entry) {
+                return null;
+            }
+            ByteBuffer record = ByteBuffer.allocate(entry.recordLength);
+            while (record.hasRemaining()) {
+                if (channel.read(record, entry.offset + record.position()) < 0) {
+                    return null;
+                }
+            }
+            record.flip();
+            record.position(RECORD_HEADER + 1);
+            record.position(record.position() + Short.BYTES + Short.toUnsignedInt(record.getShort(record.position())) + Long.BYTES * 3);
+            String content = null;
+            if (record.get() != 0) {
+                byte[] digest = new byte[CHUNK_HASH_LENGTH];
+                record.get(digest);
+                content = toHex(digest);
+            }
+            int chunkSize = record.getInt();
+            int count = record.getInt();
+            List<String> chunks = new ArrayList<>(count);
+            byte[] digest = new byte[CHUNK_HASH_LENGTH];
+            for (int i = 0; i < count; i++) {
+                record.get(digest);
+                chunks.add(toHex(digest));
+            }
+            return new Hashes(content, chunkSize, chunks);
+        }
+
+        /**
+         * Stores hashes computed for a file, unless the file changed since its entry was read.
+         * @param hashed The file.
+         * @param seen The entry current() returned before the file was opened.
+         * @param content The SHA-256 of the whole file.
+         * @param chunkSize The chunk size.
+         * @param chunks The SHA-256 of each chunk.
+         */
+        private void storeHashes(File hashed, Entry seen, byte[] content, int chunkSize, List<byte[]> chunks) {
+            String key = key(hashed);
+            if (key == null) {
+                return;
+            }
+            synchronized (this) {
+                if (lookupKey(key) != seen) {
+                    return;
+                }
+                try {
+                    write(key, false, seen.size, seen.length, seen.modified, content, chunkSize, chunks);
+                } catch (IOException e) {
+                    printAndLog("File catalog: could not store the hashes of " + key + ": " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Rewrites the log with only the current records once superseded ones make up most of it.
+         */
+        private synchronized void compactIfNeeded() throws IOException {
+            if (end < COMPACT_MIN || end - MAGIC.length < 2 * liveBytes) {
+                return;
+            }
+            File compacted = new File(file.getPath() + ".tmp");
+            List<Entry> entries = new ArrayList<>();
+            long[] offsets;
+            try (FileChannel target = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                target.write(ByteBuffer.wrap(MAGIC));
+                for (Directory directory : directories.values()) {
+                    entries.addAll(directory.entries.values());
+                }
+                offsets = new long[entries.size()];
+                long position = MAGIC.length;
+                for (int i = 0; i < entries.size(); i++) {
+                    Entry entry = entries.get(i);
+                    long copied = 0;
+                    while (copied < entry.recordLength) {
+                        copied += channel.transferTo(entry.offset + copied, entry.recordLength - copied, target);
+                    }
+                    offsets[i] = position;
+                    position += entry.recordLength;
+                }
+            }
+            Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel.close();
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            for (int i = 0; i < entries.size(); i++) {
+                entries.get(i).offset = offsets[i];
+            }
+            long before = end;
+            end = channel.size();
+            compactions.incrementAndGet();
+            printAndLog("File catalog: compacted " + before / 1024 + " KB of records to " + end / 1024 + " KB");
+        }
+
+        /**
+         * Starts the thread that loads the catalog, checks it against the disk and then follows changes.
+         */
+        private void start() {
+            Thread thread = new Thread(this::watch, "file-catalog");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void watch() {
+            try (WatchService watcher = root.getFileSystem().newWatchService()) {
+                long start = System.nanoTime();
+                load();
+                printAndLog("File catalog: loaded " + CATALOG_FILE_NAME + " in " + (System.nanoTime() - start) / 1000000 + " ms, " + describe());
+                start = System.nanoTime();
+                int changes = scan(root, watcher);
+                printAndLog("File catalog: checked against the disk in " + (System.nanoTime() - start) / 1000000 + " ms, "
+                        + changes + " changes recorded; " + describe());
+                while (running) {
+                    WatchKey key = watcher.take();
+                    Path dir = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            scan(dir, watcher); // Events were lost, so look at the whole directory again
+                            continue;
+                        }
+                        Path child = dir.resolve((Path) event.context());
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                            scan(child, watcher);
+                        } else {
+                            refresh(child, null);
+                        }
+                    }
+                    key.reset(); // A deleted directory's key turns invalid; its parent's event removes it
+                }
+            } catch (IOException | RuntimeException e) {
+                printAndLog("File catalog: stopped following changes, lookups go to the filesystem: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Directory directory : directories.values()) {
+                directory.verified = false;
+            }
+        }
+
+        /**
+         * Watches a directory tree and brings its entries up to date with the disk. Each directory is watched
+         * before it is listed, so nothing that changes during the scan is missed, and it is marked checked
+         * once its listing has been compared.
+         * @param start The directory.
+         * @param watcher The watch service.
+         * @return The number of entries that changed.
+         */
+        private int scan(Path start, WatchService watcher) throws IOException {
+            if (key(start) == null) {
+                return 0;
+            }
+            int[] changes = {0};
+            Deque<Set<String>> seen = new ArrayDeque<>();
+            Deque<Boolean> watched = new ArrayDeque<>();
+            Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                    String key = key(dir);
+                    if (key == null) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    boolean registered = true;
+                    try {
+                        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                                StandardWatchEventKinds.ENTRY_MODIFY);
+                    } catch (IOException e) {
+                        registered = false; // Such as the inotify watch limit; this directory stays on the filesystem path
+                        printAndLog("File catalog: cannot watch " + dir + ": " + e.getMessage());
+                    }
+                    if (!seen.isEmpty()) {
+                        seen.peek().add(dir.getFileName().toString());
+                    }
+                    if (!key.isEmpty() && refresh(dir, attributes)) {
+                        changes[0]++;
+                    }
+                    directories.computeIfAbsent(key, k -> new Directory());
+                    seen.push(new HashSet<>());
+                    watched.push(registered);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) throws IOException {
+                    if (key(path) != null && attributes.isRegularFile()) {
+                        seen.peek().add(path.getFileName().toString());
+                        if (refresh(path, attributes)) {
+                            changes[0]++;
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    String key = key(dir);
+                    Set<String> names = seen.pop();
+                    boolean registered = watched.pop();
+                    Directory directory = directories.get(key);
+                    if (directory == null) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    for (String name : new ArrayList<>(directory.entries.keySet())) {
+                        if (!names.contains(name)) {
+                            recordRemoval(child(key, name));
+                            changes[0]++;
+                        }
+                    }
+                    directory.verified = registered && e == null;
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return changes[0];
+        }
+
+        private String describe() {
+            long files = 0;
+            long verified = 0;
+            for (Directory directory : directories.values()) {
+                for (Entry entry : directory.entries.values()) {
+                    if (!entry.directory) {
+                        files++;
+                    }
+                }
+                if (directory.verified) {
+                    verified++;
                 }
             }
-            out.println("EOF"); // Mark the end of listing
-            out.flush();
-            printAndLog("LS command executed by " + clientAddress);
+            return files + " files in " + directories.size() + " directories (" + verified + " checked and watched), log " + end / 1024
+                    + " KB with " + liveBytes / 1024 + " KB current, " + compactions.get() + " compactions; " + lookups.get()
+                    + " lookups from the catalog, " + fallbacks.get() + " from the filesystem, " + hashHits.get() + " HASHES from the catalog";
         }
-    
+    }
+
+    /**
+     * Content-addressed chunk store used as an optional storage backend.
+     * Uploads are split into content-defined chunks, each unique chunk is stored once under its SHA-256,
+     * and the file itself is replaced by a small manifest listing its chunks.
+     */
+    private static class ChunkStore {
+        private static final String MANIFEST_MAGIC = "FTPCHUNKS1"; // First line of every manifest
+        private final File chunkDir;
+        private final AtomicLong chunksStored = new AtomicLong(); // Unique chunks written to disk
+        private final AtomicLong chunksDeduplicated = new AtomicLong(); // Chunks that were already present
+        private final AtomicLong bytesDeduplicated = new AtomicLong(); // Bytes not written thanks to deduplication
+
+        private ChunkStore(File chunkDir) throws IOException {
+            this.chunkDir = chunkDir;
+            if (!chunkDir.isDirectory() && !chunkDir.mkdirs()) {
+                throw new IOException("Could not create chunk directory " + chunkDir);
+            }
+        }
+
         /**
-         * Handles the CD command to change the current directory.
-        * @param command The command array containing the directory to change to.
-        * @param out The output writer to communicate with the client.
-        */
-        private void handleCD(String[] command, PrintWriter out) {
-            if (command.length > 1) {
-                File newDir = new File(currentDir + File.separator + command[1]);
+         * Checks whether a file is a chunk manifest rather than plain data.
+         * @param file The file to check.
+         * @return True if the file starts with the manifest header.
+         */
+        private boolean isManifest(File file) {
+            if (!file.isFile() || file.length() < MANIFEST_MAGIC.length()) {
+                return false;
+            }
+            byte[] header = new byte[MANIFEST_MAGIC.length()];
+            try (FileInputStream fis = new FileInputStream(file)) {
+                readFully(fis, header, header.length);
+            } catch (IOException e) {
+                return false;
+            }
+            return MANIFEST_MAGIC.equals(new String(header, StandardCharsets.US_ASCII));
+        }
+
+        /**
+         * Returns the size of the file's contents, reading the manifest if the file is chunked.
+         * @param file The file.
+         * @return The logical size in bytes.
+         */
+        private long logicalLength(File file) {
+            if (isManifest(file)) {
                 try {
-                    if (newDir.isDirectory() && newDir.getCanonicalPath().startsWith(ROOT_DIR)) {
-                        currentDir = newDir.getCanonicalPath(); // Update current directory
-                        out.println("Changed directory to: " + currentDir);
-                        printAndLog("Changed directory to: " + currentDir + " for client: " + clientAddress);
-                    } else {
-                        out.println("Directory not found or permission denied.");
-                    }
+                    return readManifest(file).size;
                 } catch (IOException e) {
-                    printAndLog("Error changing directory for " + clientAddress + ": " + e.getMessage());
+                    printAndLog("Could not read manifest " + file + ": " + e.getMessage());
                 }
-            } else {
-                out.println("ERROR: No directory specified.");
             }
-            out.flush();
+            return file.length();
         }
 
         /**
-         * Handles the QUIT command, closing the client connection.
-        * @param out The output writer to communicate with the client.
-        * @throws IOException If an I/O error occurs.
-        */
-        private void handleQUIT(PrintWriter out) throws IOException {
-            out.println("Goodbye!"); // Inform the client the server is closing the connection
-            printAndLog("Client issued QUIT. Closing connection for: " + clientAddress);
-    
-            // Close the client socket
-            clientSocket.close();
-            printAndLog("Client connection closed for: " + clientAddress);
+         * Opens the contents of a file, reassembling them from chunks if the file is a manifest.
+         * @param file The file to read.
+         * @return A stream over the file's contents.
+         * @throws IOException If the file or one of its chunks cannot be read.
+         */
+        private InputStream open(File file) throws IOException {
+            if (isManifest(file)) {
+                return new ManifestInputStream(readManifest(file));
+            }
+            return new FileInputStream(file);
         }
-    
+
+        private Manifest readManifest(File file) throws IOException {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII))) {
+                return Manifest.read(reader);
+            }
+        }
+
+        private File chunkFile(String hash) {
+            if (!isChunkHash(hash)) {
+                throw new IllegalArgumentException("Invalid chunk hash: " + hash);  // Would name a path outside the store
+            }
+            return new File(new File(chunkDir, hash.substring(0, 2)), hash);
+        }
+
         /**
-         * Handles the GET command for file download.
-        * @param command The command array containing the file to download.
-        * @param out The output writer to communicate with the client.
-        * @throws IOException If an I/O error occurs while sending the file.
-        */
-        private void handleGET(String[] command, PrintWriter out) throws IOException {
-            if (command.length > 1) {
-                File file = new File(currentDir + File.separator + command[1]);
-                if (file.exists() && !file.isDirectory()) {
-                    long fileSize = file.length();  // Get file size
-                    if (!udpMode) {
-                        try (ServerSocket transferSocket = new ServerSocket(0)) {
-                            out.println("READY " + transferSocket.getLocalPort() + " " + fileSize);  // Send file size
-                            try (Socket fileTransferSocket = transferSocket.accept();
-                                FileInputStream fis = new FileInputStream(file);
-                                BufferedOutputStream bos = new BufferedOutputStream(fileTransferSocket.getOutputStream())) {
-                                byte[] buffer = new byte[TCP_BUFFER_SIZE];
-                                int bytesRead;
-                                while ((bytesRead = fis.read(buffer)) != -1) {
-                                    bos.write(buffer, 0, bytesRead);
-                                }
-                                bos.flush();
-                            }
-                        }
-                    } else {
-                        // UDP mode
-                        DatagramSocket datagramSocket = new DatagramSocket(); // Create DatagramSocket for sending data
-                        datagramSocket.setSoTimeout(5000); // Timeout for receiving packets
-                        InetAddress clientAddress = clientSocket.getInetAddress(); // Client IP
-                        out.println("READY " + datagramSocket.getLocalPort() + " " + fileSize);  // Server tells client it's ready
-        
-                        // Wait for the client to send its local port
-                        BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                        String clientResponse = in.readLine();
-                        if (clientResponse != null && clientResponse.startsWith("CLIENT_READY")) {
-                            int clientPort = Integer.parseInt(clientResponse.split(" ")[1]);  // Get client's port
-        
-                            // Start sending file data
-                            FileInputStream fileInputStream = new FileInputStream(file);
-                            CRC32 crc = new CRC32();
-                            byte[] buffer = new byte[UDP_BUFFER_SIZE];
-                            int bytesRead;
-        
-                            // Initialize sequence number
-                            long sequenceNumber = 0;
-
-                            // Read and send data packets
-                            while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                                // Calculate CRC32 for the data
-                                crc.update(buffer, 0, bytesRead);
-                                int checksum = (int) crc.getValue(); // Use int for CRC32
-
-                                // Create a packet with sequence number, data, and CRC32
-                                // Format: [sequence number (8 bytes)][data (MTU)][CRC32 checksum (4 bytes)]
-                                ByteBuffer byteBuffer = ByteBuffer.allocate(Long.BYTES + bytesRead + Integer.BYTES);
-                                byteBuffer.order(ByteOrder.BIG_ENDIAN); // Ensure consistent byte order
-                                byteBuffer.putLong(sequenceNumber);     // Sequence number
-                                byteBuffer.put(buffer, 0, bytesRead);   // Data
-                                byteBuffer.putInt(checksum);            // CRC32 checksum
-
-                                byte[] packetData = byteBuffer.array();
-                                DatagramPacket packet = new DatagramPacket(packetData, packetData.length, clientAddress, clientPort);
-                                datagramSocket.send(packet); // Send the packet
-
-                                sequenceNumber++;
-                                crc.reset(); // Reset CRC for next packet
-
-                                // Introduce a small delay
-                                try {
-                                    Thread.sleep(UDP_DELAY);
-                                }
-                                    catch(InterruptedException e) {
-                                    printAndLog("Thread interrupted: " + e.getMessage());
-                                }
-                            }
+         * @return True if the string is a chunk hash as the store names chunks: 64 lowercase hex digits.
+         */
+        private static boolean isChunkHash(String hash) {
+            if (hash.length() != 2 * CHUNK_HASH_LENGTH) {
+                return false;
+            }
+            for (int i = 0; i < hash.length(); i++) {
+                char c = hash.charAt(i);
+                if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                    return false;
+                }
+            }
+            return true;
+        }
 
-                            // Send end-of-file signal with sequence number -1
-                            ByteBuffer endBuffer = ByteBuffer.allocate(Long.BYTES);
-                            endBuffer.order(ByteOrder.BIG_ENDIAN);
-                            endBuffer.putLong(-1L); // Special sequence number for EOF
-                            DatagramPacket endPacket = new DatagramPacket(endBuffer.array(), endBuffer.capacity(), clientAddress, clientPort);
-                            datagramSocket.send(endPacket);
+        private boolean hasChunk(String hash) {
+            return chunkFile(hash).isFile();
+        }
 
-                            fileInputStream.close();
-                            datagramSocket.close();
-                            printAndLog("File transfer completed successfully to: " + clientAddress);
+        /**
+         * Stores a chunk unless an identical one is already present.
+         * The chunk is written to a temporary file first, so concurrent uploads of the same chunk are safe.
+         * @param hash The SHA-256 of the chunk (hex).
+         * @param data The buffer holding the chunk.
+         * @param length The chunk length.
+         * @throws IOException If the chunk cannot be written.
+         */
+        private void putChunk(String hash, byte[] data, int length) throws IOException {
+            File target = chunkFile(hash);
+            if (target.isFile()) {
+                chunksDeduplicated.incrementAndGet();
+                bytesDeduplicated.addAndGet(length);
+                return;
+            }
+            File dir = target.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Could not create chunk directory " + dir);
+            }
+            File temp = File.createTempFile(hash, ".tmp", dir);
+            try (FileOutputStream fos = new FileOutputStream(temp)) {
+                fos.write(data, 0, length);
+            }
+            try {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                chunksStored.incrementAndGet();
+            } catch (IOException e) {
+                // Another upload stored the same chunk first
+                if (!temp.delete() || !target.isFile()) {
+                    throw e;
+                }
+                chunksDeduplicated.incrementAndGet();
+                bytesDeduplicated.addAndGet(length);
+            }
+        }
 
-                        }
-                    }
-                } else {
-                    out.println("ERROR: File not found.");
+        /**
+         * Chunks an existing plain file into the store.
+         * @param file The file to ingest.
+         * @return The manifest describing the file.
+         * @throws IOException If the file cannot be read or a chunk cannot be written.
+         */
+        private Manifest ingest(File file) throws IOException {
+            ChunkingOutputStream writer = new ChunkingOutputStream(this);
+            try (FileInputStream fis = new FileInputStream(file)) {
+                byte[] buffer = new byte[CHUNK_MAX_SIZE];
+                int bytesRead;
+                while ((bytesRead = fis.read(buffer)) != -1) {
+                    writer.write(buffer, 0, bytesRead);
                 }
-            } else {
-                out.println("ERROR: No file specified for GET command.");
             }
-            out.flush();
+            writer.close();
+            return writer.getManifest();
         }
-    
+
         /**
-    * Handles the PUT command for file upload.
-    * @param command The command array containing the file to upload.
-    * @param out The output writer to communicate with the client.
-    * @param in The existing BufferedReader to read client messages.
-    * @throws IOException If an I/O error occurs while receiving the file.
-    */
-    private void handlePUT(String[] command, PrintWriter out, BufferedReader in) throws IOException {
-        if (command.length > 2) {
-            final long fileSize;
+         * Replaces the contents of a locked destination file with a manifest, holding its exclusive lock
+         * so that no GET opens a half-written manifest.
+         * @param file The destination file.
+         * @param channel The destination file's channel.
+         * @param manifest The manifest to write.
+         * @throws IOException If the manifest cannot be written.
+         */
+        private static void writeManifest(File file, FileChannel channel, Manifest manifest) throws IOException {
+            ByteBuffer bytes = ByteBuffer.wrap(manifest.toString().getBytes(StandardCharsets.US_ASCII));
+            Lock lock = LOCKS.exclusive(file);
             try {
-                fileSize = Long.parseLong(command[2]);  // Get file size from the client
-            } catch (NumberFormatException e) {
-                out.println("ERROR: Invalid file size.");
-                out.flush();
-                return;
+                channel.truncate(0);
+                channel.position(0);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            } finally {
+                lock.unlock();
             }
+        }
 
-            File file = new File(currentDir, command[1]);
+        private String stats() {
+            return chunksStored.get() + " chunks stored, " + chunksDeduplicated.get() + " chunks deduplicated ("
+                    + bytesDeduplicated.get() + " bytes saved)";
+        }
+    }
 
-            // Attempt to lock the file
-            try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
-                FileChannel channel = raf.getChannel()) {
-                java.nio.channels.FileLock fileLock = channel.tryLock();
-                if (fileLock == null) {
-                    out.println("ERROR: File is currently in use.");
-                    out.flush();
-                    return;
+    /**
+     * Ordered list of chunks (SHA-256 and length) that make up a file in the chunk store.
+     */
+    private static class Manifest {
+        private long size = 0;
+        private final List<String> hashes = new ArrayList<>();
+        private final List<Integer> lengths = new ArrayList<>();
+
+        private void add(String hash, int length) {
+            hashes.add(hash);
+            lengths.add(length);
+            size += length;
+        }
+
+        private static Manifest read(BufferedReader reader) throws IOException {
+            if (!ChunkStore.MANIFEST_MAGIC.equals(reader.readLine())) {
+                throw new IOException("Not a chunk manifest");
+            }
+            Manifest manifest = new Manifest();
+            String line;
+            try {
+                long size = Long.parseLong(String.valueOf(reader.readLine()).trim());
+                while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                    String[] parts = line.split(" ");
+                    // A plain file can start with the magic line too, so nothing in it is trusted as a path
+                    if (parts.length != 2 || !ChunkStore.isChunkHash(parts[0])) {
+                        throw new IOException("Invalid manifest entry: " + line);
+                    }
+                    int length = Integer.parseInt(parts[1]);
+                    if (length <= 0 || length > CHUNK_MAX_SIZE) {
+                        throw new IOException("Invalid chunk length in manifest: " + length);
+                    }
+                    manifest.add(parts[0], length);
                 }
+                if (manifest.size != size) {
+                    throw new IOException("Manifest size mismatch");
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed manifest: " + e.getMessage());
+            }
+            return manifest;
+        }
 
-                if (!udpMode) {
-                    // TCP mode
-                    try (ServerSocket transferSocket = new ServerSocket(0);
-                        FileOutputStream fos = new FileOutputStream(raf.getFD())) {
-                        out.println("READY " + transferSocket.getLocalPort() + " " + fileSize);  // Send file size
-                        out.flush();
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(ChunkStore.MANIFEST_MAGIC).append('\n').append(size).append('\n');
+            for (int i = 0; i < hashes.size(); i++) {
+                sb.append(hashes.get(i)).append(' ').append(lengths.get(i)).append('\n');
+            }
+            return sb.toString();
+        }
+    }
 
-                        try (Socket fileTransferSocket = transferSocket.accept();
-                            BufferedInputStream bis = new BufferedInputStream(fileTransferSocket.getInputStream())) {
-                            byte[] buffer = new byte[TCP_BUFFER_SIZE];
-                            int bytesRead;
-                            long currentBytes = 0;
-                            while ((bytesRead = bis.read(buffer)) != -1) {
-                                fos.write(buffer, 0, bytesRead);
-                                currentBytes += bytesRead;
-                            }
-                            fos.flush();
-                        }
+    /**
+     * Reassembles a chunked file by reading its chunks in manifest order.
+     */
+    private static class ManifestInputStream extends InputStream {
+        private final Manifest manifest;
+        private int index = 0;
+        private InputStream current;
+
+        private ManifestInputStream(Manifest manifest) {
+            this.manifest = manifest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            // Fill the request across chunk boundaries so callers see full reads, as with a plain file
+            int total = 0;
+            while (total < len) {
+                if (current == null) {
+                    if (index >= manifest.hashes.size()) {
+                        break;
                     }
+                    current = new FileInputStream(chunkStore.chunkFile(manifest.hashes.get(index++)));
+                }
+                int bytesRead = current.read(b, off + total, len - total);
+                if (bytesRead == -1) {
+                    current.close();
+                    current = null;
                 } else {
-                    // UDP mode
-                    DatagramSocket datagramSocket = new DatagramSocket();
-                    datagramSocket.setSoTimeout(TIMEOUT);
-                    datagramSocket.setReceiveBufferSize(UDP_RECV_BUFFER);
-    
-                    out.println("READY " + datagramSocket.getLocalPort() + " " + fileSize);
-                    out.flush();
-    
-                    // Start the PacketHandler thread
-                    FileOutputStream fos = new FileOutputStream(raf.getFD());
-                    PacketHandler handler = new PacketHandler(datagramSocket, fos, fileSize, TIMEOUT);
-                    handler.start();
-    
-                    // Wait for the handler to finish
-                    try {
-                        handler.join();
-                    } catch (InterruptedException e) {
-                        printAndLog("File transfer was interrupted: " + e.getMessage());
-                        Thread.currentThread().interrupt();
-                        return;
+                    total += bytesRead;
+                }
+            }
+            return total == 0 && len > 0 ? -1 : total;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (current == null && index < manifest.hashes.size() && skipped + manifest.lengths.get(index) <= n) {
+                skipped += manifest.lengths.get(index++);  // Whole chunks are stepped over without opening them
+            }
+            return skipped + super.skip(n - skipped);
+        }
+
+        /**
+         * Reads part of the file at an absolute position, used to resolve delta block references.
+         * @param position The position in the reassembled file.
+         * @param b The destination buffer.
+         * @param length The number of bytes to read.
+         * @throws IOException If a chunk cannot be read.
+         */
+        private void readAt(long position, byte[] b, int length) throws IOException {
+            int done = 0;
+            long chunkStart = 0;
+            for (int i = 0; i < manifest.hashes.size() && done < length; i++) {
+                int chunkLength = manifest.lengths.get(i);
+                long chunkEnd = chunkStart + chunkLength;
+                if (chunkEnd > position + done) {
+                    try (RandomAccessFile chunk = new RandomAccessFile(chunkStore.chunkFile(manifest.hashes.get(i)), "r")) {
+                        long offset = position + done - chunkStart;
+                        int count = (int) Math.min(length - done, chunkLength - offset);
+                        chunk.seek(offset);
+                        chunk.readFully(b, done, count);
+                        done += count;
                     }
-    
-                    printAndLog("File upload completed successfully from: " + clientAddress);
                 }
-            } catch (IOException e) {
-                out.println("ERROR: Could not lock file for writing: " + e.getMessage());
-                out.flush();
+                chunkStart = chunkEnd;
+            }
+            if (done < length) {
+                throw new EOFException("Unexpected end of chunked file");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
             }
-        } else {
-            out.println("ERROR: No file specified for PUT command.");
-            out.flush();
         }
     }
-}
+
+    /**
+     * Output stream that splits written data into content-defined chunks using a gear rolling hash.
+     * Chunk boundaries depend only on nearby content, so an insertion changes only the chunks around it.
+     * The client uses the same parameters, so its chunk hashes match the server's.
+     */
+    private static class ChunkingOutputStream extends OutputStream {
+        private final ChunkStore store;
+        private final Manifest manifest = new Manifest();
+        private final byte[] chunk = new byte[CHUNK_MAX_SIZE];
+        private final MessageDigest digest;
+        private int length = 0;
+        private long hash = 0;
+        private boolean closed = false;
+
+        private ChunkingOutputStream(ChunkStore store) throws IOException {
+            this.store = store;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            chunk[length++] = (byte) b;
+            hash = (hash << 1) + GEAR[b & 0xFF];
+            if ((length >= CHUNK_MIN_SIZE && (hash & CHUNK_MASK) == 0) || length == CHUNK_MAX_SIZE) {
+                emit();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        private void emit() throws IOException {
+            if (length == 0) {
+                return;
+            }
+            digest.update(chunk, 0, length);
+            String chunkHash = toHex(digest.digest());
+            store.putChunk(chunkHash, chunk, length);
+            manifest.add(chunkHash, length);
+            length = 0;
+            hash = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                emit();
+                closed = true;
+            }
+        }
+
+        /**
+         * Returns the manifest of everything written; only valid after the stream is closed.
+         */
+        private Manifest getManifest() {
+            return manifest;
+        }
+    }
+
+    /**
+     * Builds the gear table for content-defined chunking from a fixed seed (splitmix64), so every
+     * client and server derives the same chunk boundaries.
+     */
+    private static long[] gearTable() {
+        long[] table = new long[256];
+        long state = CHUNK_GEAR_SEED;
+        for (int i = 0; i < table.length; i++) {
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            table[i] = z ^ (z >>> 31);
+        }
+        return table;
+    }
+
+    /**
+     * Converts bytes to a lowercase hexadecimal string.
+     * @param bytes The bytes to convert.
+     * @return The hexadecimal representation.
+     */
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
 
     /**
      * Utility method to print messages to the console and log them.
@@ -0,0 +1,326 @@
+/* Author:  Jason Gardner (n01480000),
+ * Date: 23 October 2024
+ * Project: Project 2
+ * File: BenchCompare.java
+ * CNT6707 - Network Architecture and Client/Server Computing
+ * Description: Compares two benchmark runs from the FTPClient result store and flags significant regressions
+ *              Runs: chosen by run ID, or by label, in which case the latest run with that label is used
+ *              Test: Welch's t-test on every metric of every cell both runs measured, from the stored mean,
+ *                    standard deviation and sample count; a difference counts when it is significant at
+ *                    bench.alpha and larger than bench.threshold of the baseline mean
+ *              Environment: OS, Java, CPUs, memory, MTU and client settings that differ between the runs are listed,
+ *                           since a regression between unlike environments says little about the code
+ * Usage:       java [-Dbench.<option>=<value> ...] BenchCompare <store> <baseline run or label> <candidate run or label>
+ *              exits with 1 if any metric regressed, so a script can fail on it
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Regression check between two benchmark runs.
+ * Options (system properties):
+ * bench.alpha - significance level of the two-sided test
+ * bench.threshold - smallest relative change of a mean that is reported, e.g. 0.05 for 5%
+ */
+public class BenchCompare {
+    private static final double ALPHA = Double.parseDouble(System.getProperty("bench.alpha", "0.05"));  // Significance level
+    private static final double THRESHOLD = Double.parseDouble(System.getProperty("bench.threshold", "0.05"));  // Smallest relative change reported
+    private static final String[] CELL = {"file", "operation", "mode", "concurrency"};  // What identifies a cell within a run
+    private static final String[] ENVIRONMENT = {"os", "java", "cpus", "max_memory", "mtu", "interface_mtu", "udp_maxdatagram",
+            "tls", "stripes", "server", "warmup", "iterations"};
+    private static final String[] LOWER_IS_BETTER = {"handshake_ms", "ttfb_ms", "transfer_ms", "response_ms"};
+    private static final String[] HIGHER_IS_BETTER = {"throughput_Bps", "aggregate_throughput_Bps"};
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.out.println("Usage: java [-Dbench.alpha=0.05] [-Dbench.threshold=0.05] BenchCompare <store> <baseline run or label> <candidate run or label>");
+            System.exit(2);
+        }
+        List<Map<String, String>> lines = read(new File(args[0]));
+        List<Map<String, String>> baseline = select(lines, args[1]);
+        List<Map<String, String>> candidate = select(lines, args[2]);
+        if (baseline.isEmpty() || candidate.isEmpty()) {
+            System.out.println("No run or label " + (baseline.isEmpty() ? args[1] : args[2]) + " in " + args[0]);
+            System.exit(2);
+        }
+        System.out.println("Baseline:  " + describe(baseline.get(0)));
+        System.out.println("Candidate: " + describe(candidate.get(0)));
+        for (String key : ENVIRONMENT) {
+            String before = baseline.get(0).get(key);
+            String after = candidate.get(0).get(key);
+            if (before != null && after != null && !before.equals(after)) {
+                System.out.println("Environment differs: " + key + " " + before + " -> " + after);
+            }
+        }
+        System.out.printf(Locale.ROOT, "Welch's t-test, alpha %.3f, changes under %.1f%% ignored%n%n", ALPHA, THRESHOLD * 100);
+
+        int regressions = 0;
+        int improvements = 0;
+        int compared = 0;
+        for (Map<String, String> after : candidate) {
+            Map<String, String> before = find(baseline, after);
+            if (before == null) {
+                System.out.println(cell(after) + ": not in the baseline");
+                continue;
+            }
+            compared++;
+            for (String metric : LOWER_IS_BETTER) {
+                int verdict = compare(cell(after), metric, before, after, false);
+                regressions += verdict < 0 ? 1 : 0;
+                improvements += verdict > 0 ? 1 : 0;
+            }
+            for (String metric : HIGHER_IS_BETTER) {
+                int verdict = compare(cell(after), metric, before, after, true);
+                regressions += verdict < 0 ? 1 : 0;
+                improvements += verdict > 0 ? 1 : 0;
+            }
+        }
+        System.out.println("\n" + compared + " cells compared: " + regressions + " regressions, " + improvements + " improvements");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /**
+     * Tests one metric of a cell and prints the result.
+     * @param higherIsBetter Whether a larger mean is an improvement, as for throughput.
+     * @return -1 for a significant regression, 1 for a significant improvement, 0 otherwise.
+     */
+    private static int compare(String cell, String metric, Map<String, String> before, Map<String, String> after, boolean higherIsBetter) {
+        double mean1 = number(before, metric + "_mean");
+        double mean2 = number(after, metric + "_mean");
+        double sd1 = number(before, metric + "_stddev");
+        double sd2 = number(after, metric + "_stddev");
+        double n1 = number(before, metric + "_n");
+        double n2 = number(after, metric + "_n");
+        String line = String.format(Locale.ROOT, "%-40s %-26s %14.3f -> %14.3f", cell, metric, mean1, mean2);
+        if (Double.isNaN(mean1) || Double.isNaN(mean2) || Double.isNaN(sd1) || Double.isNaN(sd2) || n1 < 2 || n2 < 2) {
+            System.out.println(line + "  (too few samples)");
+            return 0;
+        }
+        double change = mean1 != 0 ? (mean2 - mean1) / Math.abs(mean1) : 0;
+        double p = welch(mean1, sd1, n1, mean2, sd2, n2);
+        int verdict = 0;
+        if (p < ALPHA && Math.abs(change) >= THRESHOLD) {
+            verdict = (change > 0) == higherIsBetter ? 1 : -1;
+        }
+        System.out.printf(Locale.ROOT, "%s %+8.1f%%  p=%.4f%s%n", line, change * 100, p,
+                verdict < 0 ? "  REGRESSION" : verdict > 0 ? "  improvement" : "");
+        return verdict;
+    }
+
+    /**
+     * Welch's unequal-variances t-test.
+     * @return The two-sided p-value of the difference between the means.
+     */
+    static double welch(double mean1, double sd1, double n1, double mean2, double sd2, double n2) {
+        double v1 = sd1 * sd1 / n1;
+        double v2 = sd2 * sd2 / n2;
+        if (v1 + v2 == 0) {
+            return mean1 == mean2 ? 1 : 0;  // No spread at all: any difference is certain
+        }
+        double t = (mean2 - mean1) / Math.sqrt(v1 + v2);
+        double df = (v1 + v2) * (v1 + v2) / (v1 * v1 / (n1 - 1) + v2 * v2 / (n2 - 1));  // Welch-Satterthwaite
+        return incompleteBeta(df / (df + t * t), df / 2, 0.5);
+    }
+
+    /**
+     * The regularized incomplete beta function I_x(a, b), by its continued fraction (modified Lentz).
+     */
+    private static double incompleteBeta(double x, double a, double b) {
+        if (x <= 0) {
+            return 0;
+        }
+        if (x >= 1) {
+            return 1;
+        }
+        if (x > (a + 1) / (a + b + 2)) {
+            return 1 - incompleteBeta(1 - x, b, a);  // The fraction converges quickly only below the mean
+        }
+        double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b) + a * Math.log(x) + b * Math.log(1 - x)) / a;
+        double tiny = 1e-300;
+        double c = 1;
+        double d = 1 - (a + b) * x / (a + 1);
+        d = 1 / (Math.abs(d) < tiny ? tiny : d);
+        double result = d;
+        for (int m = 1; m <= 300; m++) {
+            for (int step = 0; step < 2; step++) {
+                double numerator = step == 0
+                        ? m * (b - m) * x / ((a + 2 * m - 1) * (a + 2 * m))
+                        : -(a + m) * (a + b + m) * x / ((a + 2 * m) * (a + 2 * m + 1));
+                d = 1 + numerator * d;
+                d = 1 / (Math.abs(d) < tiny ? tiny : d);
+                c = 1 + numerator / c;
+                c = Math.abs(c) < tiny ? tiny : c;
+                result *= c * d;
+            }
+            if (Math.abs(c * d - 1) < 1e-12) {
+                break;
+            }
+        }
+        return front * result;
+    }
+
+    /**
+     * The natural logarithm of the gamma function (Lanczos approximation).
+     */
+    private static double logGamma(double x) {
+        double[] coefficients = {76.18009172947146, -86.50532032941677, 24.01409824083091,
+                -1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5};
+        double y = x;
+        double tmp = x + 5.5;
+        tmp -= (x + 0.5) * Math.log(tmp);
+        double series = 1.000000000190015;
+        for (double coefficient : coefficients) {
+            series += coefficient / ++y;
+        }
+        return -tmp + Math.log(2.5066282746310005 * series / x);
+    }
+
+    /**
+     * @return The lines of a run, by run ID or else the latest run with that label.
+     */
+    private static List<Map<String, String>> select(List<Map<String, String>> lines, String runOrLabel) {
+        String run = null;
+        for (Map<String, String> line : lines) {
+            if (runOrLabel.equals(line.get("run"))) {
+                run = runOrLabel;
+                break;
+            }
+            if (runOrLabel.equals(line.get("label"))) {
+                run = line.get("run");  // The store is append-only, so the last match is the latest run
+            }
+        }
+        List<Map<String, String>> selected = new ArrayList<>();
+        for (Map<String, String> line : lines) {
+            if (run != null && run.equals(line.get("run"))) {
+                selected.add(line);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @return The baseline's line for the same cell, or null.
+     */
+    private static Map<String, String> find(List<Map<String, String>> lines, Map<String, String> cell) {
+        Map<String, String> found = null;
+        for (Map<String, String> line : lines) {
+            boolean same = true;
+            for (String key : CELL) {
+                same &= String.valueOf(line.get(key)).equals(String.valueOf(cell.get(key)));
+            }
+            found = same ? line : found;  // A cell repeated within a run: its last line
+        }
+        return found;
+    }
+
+    private static String cell(Map<String, String> line) {
+        return line.get("operation") + " " + line.get("file") + " " + line.get("mode") + " x" + line.get("concurrency");
+    }
+
+    private static String describe(Map<String, String> line) {
+        return line.get("run") + " (" + line.get("label") + ") at " + line.get("time");
+    }
+
+    private static double number(Map<String, String> line, String key) {
+        String value = line.get(key);
+        try {
+            return value == null ? Double.NaN : Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;  // null in the store
+        }
+    }
+
+    /**
+     * Reads the result store. Each line is a flat JSON object of strings, numbers, booleans and nulls,
+     * which is all FTPClient writes; values are kept as their text.
+     */
+    private static List<Map<String, String>> read(File store) throws IOException {
+        List<Map<String, String>> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(store), StandardCharsets.UTF_8))) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    lines.add(parse(line));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Skipping line " + number + " of " + store + ": " + e.getMessage());  // e.g. cut short by a crash
+                }
+            }
+        }
+        return lines;
+    }
+
+    private static Map<String, String> parse(String line) {
+        Map<String, String> object = new LinkedHashMap<>();
+        int[] position = {skip(line, 0)};
+        expect(line, position, '{');
+        while (true) {
+            position[0] = skip(line, position[0]);
+            if (position[0] < line.length() && line.charAt(position[0]) == '}') {
+                return object;
+            }
+            String key = string(line, position);
+            expect(line, position, ':');
+            position[0] = skip(line, position[0]);
+            String value;
+            if (position[0] < line.length() && line.charAt(position[0]) == '"') {
+                value = string(line, position);
+            } else {
+                int start = position[0];
+                while (position[0] < line.length() && ",} ".indexOf(line.charAt(position[0])) < 0) {
+                    position[0]++;
+                }
+                value = line.substring(start, position[0]);
+            }
+            object.put(key, value);
+            position[0] = skip(line, position[0]);
+            if (position[0] < line.length() && line.charAt(position[0]) == ',') {
+                position[0]++;
+            } else {
+                expect(line, position, '}');
+                return object;
+            }
+        }
+    }
+
+    private static String string(String line, int[] position) {
+        expect(line, position, '"');
+        StringBuilder value = new StringBuilder();
+        while (position[0] < line.length()) {
+            char c = line.charAt(position[0]++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c == '\\' && position[0] < line.length()) {
+                c = line.charAt(position[0]++);
+            }
+            value.append(c);
+        }
+        throw new IllegalArgumentException("unterminated string");
+    }
+
+    private static void expect(String line, int[] position, char c) {
+        position[0] = skip(line, position[0]);
+        if (position[0] >= line.length() || line.charAt(position[0]) != c) {
+            throw new IllegalArgumentException("expected '" + c + "' at column " + (position[0] + 1));
+        }
+        position[0]++;
+    }
+
+    private static int skip(String line, int position) {
+        while (position < line.length() && Character.isWhitespace(line.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+}
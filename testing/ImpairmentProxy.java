@@ -0,0 +1,595 @@
+/* Author:  Jason Gardner (n01480000),
+ * Date: 23 October 2024
+ * Project: Project 2
+ * File: ImpairmentProxy.java
+ * CNT6707 - Network Architecture and Client/Server Computing
+ * Description: Relay between FTPClient and FTPServer that injects seeded network impairments
+ *              Control: relayed line by line; READY, PONG and CLIENT_READY ports are rewritten so that every
+ *                       data connection and datagram also passes through the proxy (one relay per UDP stripe,
+ *                       and one for the datagrams a PING echoes)
+ *              UDP data: packet loss, duplication, reordering, corruption, rate cap with a finite queue,
+ *                        latency and jitter, all drawn from a seeded random generator per direction
+ *              TCP data and control: latency, jitter (order preserved) and rate cap; loss on a TCP stream
+ *                                    shows up as delay, which the latency and rate settings model
+ * Usage:       java [-Dproxy.<option>=<value> ...] ImpairmentProxy <listen port> <server host> <server port>
+ *              then point FTPClient at localhost:<listen port>
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Network impairment proxy for reproducible loss/delay/reorder tests on one machine.
+ * Options (system properties):
+ * proxy.loss, proxy.dup, proxy.reorder, proxy.corrupt - per-datagram probabilities (0..1)
+ * proxy.delay, proxy.jitter - one-way latency and +/- jitter in ms, applied to every path
+ * proxy.reorderdelay - extra delay in ms of a reordered datagram, so later ones overtake it
+ * proxy.rate - bottleneck rate in bytes/s per direction (0 = unlimited)
+ * proxy.queue - bottleneck queue in bytes; datagrams arriving at a full queue are dropped
+ * proxy.seed - random seed; the same seed and traffic give the same impairments
+ * proxy.udpidle - ms without datagrams after which a UDP relay is closed
+ */
+public class ImpairmentProxy {
+    private static final double LOSS = doubleProperty("proxy.loss", 0);  // Probability a datagram is dropped
+    private static final double DUPLICATE = doubleProperty("proxy.dup", 0);  // Probability a datagram is sent twice
+    private static final double REORDER = doubleProperty("proxy.reorder", 0);  // Probability a datagram is held back
+    private static final double CORRUPT = doubleProperty("proxy.corrupt", 0);  // Probability one payload bit is flipped
+    private static final long DELAY = Long.getLong("proxy.delay", 0);  // One-way latency in ms
+    private static final long JITTER = Long.getLong("proxy.jitter", 0);  // Latency varies by up to +/- this many ms
+    private static final long REORDER_DELAY = Long.getLong("proxy.reorderdelay", 5);  // Extra delay of a reordered datagram in ms
+    private static final long RATE = Long.getLong("proxy.rate", 0);  // Bottleneck rate in bytes/s (0 = unlimited)
+    private static final long QUEUE = Long.getLong("proxy.queue", 1024 * 1024);  // Bottleneck queue in bytes
+    private static final long SEED = Long.getLong("proxy.seed", 1);  // Seed for all random impairments
+    private static final int UDP_IDLE = Integer.getInteger("proxy.udpidle", 30000);  // Idle time before a UDP relay closes, in ms
+    private static final int CHUNK_SIZE = 16 * 1024;  // Largest piece of a TCP stream delayed as one unit
+    private static final int MAX_DATAGRAM = 65535;  // Receive buffer for datagrams
+    private static final int HEADER = 13;  // Datagram header: version, session ID and sequence number
+    private static final AtomicInteger SESSIONS = new AtomicInteger();  // Numbers sessions, to seed each one differently
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.out.println("Usage: java [-Dproxy.<option>=<value> ...] ImpairmentProxy <listen port> <server host> <server port>");
+            System.exit(1);
+        }
+        int listenPort = Integer.parseInt(args[0]);
+        String serverHost = args[1];
+        int serverPort = Integer.parseInt(args[2]);
+
+        log(String.format("Relaying port %d to %s:%d with loss=%s dup=%s reorder=%s corrupt=%s delay=%dms jitter=%dms rate=%s queue=%d seed=%d",
+                listenPort, serverHost, serverPort, LOSS, DUPLICATE, REORDER, CORRUPT, DELAY, JITTER,
+                RATE > 0 ? RATE + "B/s" : "unlimited", QUEUE, SEED));
+        try (ServerSocket listener = new ServerSocket(listenPort)) {
+            while (true) {
+                Socket client = listener.accept();
+                Thread session = new Thread(new ControlSession(client, serverHost, serverPort, SESSIONS.incrementAndGet()), "control-session");
+                session.setDaemon(true);
+                session.start();
+            }
+        }
+    }
+
+    /**
+     * Relays one control connection. Commands are watched to know whether the next READY announces
+     * a TCP data port or a UDP one; either way, a relay is opened and the announced port is replaced
+     * with the relay's port.
+     */
+    private static class ControlSession implements Runnable {
+        private final Socket client;
+        private final String serverHost;
+        private final int serverPort;
+        private final int id;
+        private final AtomicInteger relays = new AtomicInteger();
+        private volatile boolean udpMode = false;  // Mirrors the server session's MODE toggle
+        private volatile String lastCommand = "";  // Last transfer command, to tell TCP-only DELTA/CPUT apart
+        private volatile List<UdpRelay> pendingUdp = List.of();  // UDP relays, one per stripe, waiting for the client's CLIENT_READY ports
+
+        ControlSession(Socket client, String serverHost, int serverPort, int id) {
+            this.client = client;
+            this.serverHost = serverHost;
+            this.serverPort = serverPort;
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            log("Session " + id + ": client " + client.getRemoteSocketAddress());
+            try (Socket clientSocket = client;
+                 Socket server = new Socket(serverHost, serverPort)) {
+                BufferedReader fromClient = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), StandardCharsets.UTF_8));
+                BufferedReader fromServer = new BufferedReader(new InputStreamReader(server.getInputStream(), StandardCharsets.UTF_8));
+                Link toServer = new Link(server, new Impairment(SEED, id, 0), "session " + id + " control up");
+                Link toClient = new Link(clientSocket, new Impairment(SEED, id, 1), "session " + id + " control down");
+
+                Thread upstream = new Thread(() -> {
+                    try {
+                        String line;
+                        while ((line = fromClient.readLine()) != null) {
+                            toServer.send((rewriteCommand(line) + "\n").getBytes(StandardCharsets.UTF_8));
+                        }
+                    } catch (IOException e) {
+                        // Connection closed
+                    } finally {
+                        toServer.close();
+                    }
+                }, "control-up");
+                upstream.setDaemon(true);
+                upstream.start();
+
+                String line;
+                while ((line = fromServer.readLine()) != null) {
+                    toClient.send((rewriteReply(line) + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                toClient.close();
+                upstream.join();
+            } catch (IOException e) {
+                log("Session " + id + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            pendingUdp.forEach(UdpRelay::close);
+            log("Session " + id + " closed");
+        }
+
+        /**
+         * Tracks client commands and points CLIENT_READY at the server-facing sides of the UDP relays.
+         */
+        private String rewriteCommand(String line) {
+            String[] command = line.split(" ");
+            switch (command[0].toUpperCase()) {
+                case "MODE":
+                    udpMode = !udpMode;
+                    break;
+                case "GET":
+                case "PUT":
+                case "DELTA":
+                case "CPUT":
+                    lastCommand = command[0].toUpperCase();
+                    break;
+                case "CLIENT_READY":
+                    List<UdpRelay> udp = pendingUdp;
+                    if (!udp.isEmpty() && command.length > 1) {
+                        String[] ports = command[1].split(",");
+                        StringBuilder relayPorts = new StringBuilder();
+                        for (int i = 0; i < Math.min(ports.length, udp.size()); i++) {
+                            udp.get(i).setClient(new InetSocketAddress(client.getInetAddress(), Integer.parseInt(ports[i])));
+                            relayPorts.append(i > 0 ? "," : "").append(udp.get(i).serverSidePort());
+                        }
+                        return "CLIENT_READY " + relayPorts;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            return line;
+        }
+
+        /**
+         * Replaces the data port in READY replies with a relay's port, or each stripe's port with its own UDP relay.
+         * The echo port in a PONG gets a UDP relay too, so the client's path probe sees the impairments.
+         */
+        private String rewriteReply(String line) {
+            boolean pong = line.startsWith("PONG ");
+            if (!line.startsWith("READY ") && !pong) {
+                return line;
+            }
+            String[] reply = line.split(" ", 3);
+            try {
+                String relayPorts;
+                if (pong || udpMode && (lastCommand.equals("GET") || lastCommand.equals("PUT"))) {
+                    pendingUdp.forEach(UdpRelay::close);
+                    List<UdpRelay> udp = new ArrayList<>();
+                    StringBuilder ports = new StringBuilder();
+                    for (String port : reply[1].split(",")) {
+                        UdpRelay relay = new UdpRelay(new InetSocketAddress(serverHost, Integer.parseInt(port)), id, relays.incrementAndGet());
+                        udp.add(relay);
+                        ports.append(ports.length() > 0 ? "," : "").append(relay.clientSidePort());
+                    }
+                    pendingUdp = udp;
+                    relayPorts = ports.toString();
+                } else {
+                    relayPorts = String.valueOf(TcpRelay.open(serverHost, Integer.parseInt(reply[1]), id, relays.incrementAndGet()));
+                }
+                return reply[0] + " " + relayPorts + (reply.length > 2 ? " " + reply[2] : "");
+            } catch (IOException e) {
+                log("Session " + id + ": cannot open relay: " + e.getMessage());
+                return line;
+            }
+        }
+    }
+
+    /**
+     * Relays one TCP data connection through delaying, rate-capped links in both directions.
+     */
+    private static class TcpRelay {
+        /**
+         * Listens for the client's data connection on an ephemeral port and relays it to the server.
+         * @return The port the client should connect to.
+         */
+        static int open(String serverHost, int serverPort, int session, int relay) throws IOException {
+            ServerSocket listener = new ServerSocket(0);
+            listener.setSoTimeout(60000);
+            Thread acceptor = new Thread(() -> {
+                try (ServerSocket socket = listener;
+                     Socket client = socket.accept();
+                     Socket server = new Socket(serverHost, serverPort)) {
+                    String name = "session " + session + " data " + relay;
+                    Thread up = pump(client, new Link(server, new Impairment(SEED, session, relay * 4 + 2), name + " up"));
+                    Thread down = pump(server, new Link(client, new Impairment(SEED, session, relay * 4 + 3), name + " down"));
+                    up.join();
+                    down.join();
+                } catch (IOException e) {
+                    log("TCP relay " + relay + " of session " + session + ": " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "tcp-relay");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            return listener.getLocalPort();
+        }
+
+        private static Thread pump(Socket from, Link to) {
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[CHUNK_SIZE];
+                try {
+                    InputStream in = from.getInputStream();
+                    int bytesRead;
+                    while ((bytesRead = in.read(buffer)) != -1) {
+                        byte[] chunk = new byte[bytesRead];
+                        System.arraycopy(buffer, 0, chunk, 0, bytesRead);
+                        to.send(chunk);
+                    }
+                } catch (IOException e) {
+                    // Connection closed or reset
+                } finally {
+                    to.close();
+                }
+            }, "tcp-pump");
+            thread.setDaemon(true);
+            thread.start();
+            return thread;
+        }
+    }
+
+    /**
+     * One direction of a byte stream. Data is delivered in order after the configured latency (jitter
+     * never reorders a stream) and no faster than the rate cap; a full queue blocks the reader, which
+     * pushes back on the sender like a real bottleneck does for TCP.
+     */
+    private static class Link {
+        private static final byte[] EOF = new byte[0];
+        private final Socket socket;
+        private final Impairment impairment;
+        private final BlockingQueue<Object[]> queue = new LinkedBlockingQueue<>(64);  // {data, deliver-at nanos}
+        private long lastDeliverAt;
+
+        Link(Socket socket, Impairment impairment, String name) {
+            this.socket = socket;
+            this.impairment = impairment;
+            Thread writer = new Thread(this::deliver, "link " + name);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        void send(byte[] data) {
+            long deliverAt = Math.max(lastDeliverAt, impairment.departure(data.length) + impairment.latency());
+            lastDeliverAt = deliverAt;
+            try {
+                queue.put(new Object[] {data, deliverAt});
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void close() {
+            try {
+                queue.put(new Object[] {EOF, lastDeliverAt});
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void deliver() {
+            try {
+                OutputStream out = socket.getOutputStream();
+                while (true) {
+                    Object[] item = queue.take();
+                    sleepUntil((Long) item[1]);
+                    byte[] data = (byte[]) item[0];
+                    if (data == EOF) {
+                        socket.shutdownOutput();
+                        return;
+                    }
+                    out.write(data);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Peer went away
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Relays the datagrams of one UDP transfer. The client talks to the client-side socket and the server
+     * to the server-side socket; each direction has its own impairments and delivery queue.
+     */
+    private static class UdpRelay {
+        private final DatagramSocket clientSide;
+        private final DatagramSocket serverSide;
+        private final InetSocketAddress server;
+        private volatile SocketAddress client;  // From CLIENT_READY, or the first datagram the client sends
+        private volatile long lastActivity = System.nanoTime();
+        private final String name;
+        private final Direction up;
+        private final Direction down;
+
+        UdpRelay(InetSocketAddress server, int session, int relay) throws IOException {
+            this.server = server;
+            this.clientSide = new DatagramSocket();
+            this.serverSide = new DatagramSocket();
+            this.name = "session " + session + " UDP " + relay;
+            for (DatagramSocket socket : new DatagramSocket[] {clientSide, serverSide}) {
+                socket.setReceiveBufferSize(8 * 1024 * 1024);
+                socket.setSendBufferSize(8 * 1024 * 1024);
+                socket.setSoTimeout(1000);
+            }
+            up = new Direction(clientSide, serverSide, true, new Impairment(SEED, session, relay * 4 + 2));
+            down = new Direction(serverSide, clientSide, false, new Impairment(SEED, session, relay * 4 + 3));
+        }
+
+        int clientSidePort() {
+            return clientSide.getLocalPort();
+        }
+
+        int serverSidePort() {
+            return serverSide.getLocalPort();
+        }
+
+        void setClient(SocketAddress address) {
+            client = address;
+        }
+
+        void close() {
+            if (!clientSide.isClosed()) {
+                clientSide.close();
+                serverSide.close();
+                log(name + " closed: up " + up.impairment.summary() + "; down " + down.impairment.summary());
+            }
+        }
+
+        /**
+         * A datagram waiting for its delivery time.
+         */
+        private static class Scheduled implements Delayed {
+            final DatagramPacket packet;
+            final long deliverAt;
+            final long order;
+
+            Scheduled(DatagramPacket packet, long deliverAt, long order) {
+                this.packet = packet;
+                this.deliverAt = deliverAt;
+                this.order = order;
+            }
+
+            @Override
+            public long getDelay(TimeUnit unit) {
+                return unit.convert(deliverAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            public int compareTo(Delayed other) {
+                Scheduled that = (Scheduled) other;
+                return deliverAt != that.deliverAt ? Long.compare(deliverAt, that.deliverAt) : Long.compare(order, that.order);
+            }
+        }
+
+        /**
+         * Receives on one socket, impairs, and sends from the other once each datagram is due.
+         */
+        private class Direction {
+            final Impairment impairment;
+            private final DelayQueue<Scheduled> queue = new DelayQueue<>();
+            private final DatagramSocket from;
+            private final DatagramSocket to;
+            private final boolean towardsServer;
+            private long order;
+
+            Direction(DatagramSocket from, DatagramSocket to, boolean towardsServer, Impairment impairment) {
+                this.from = from;
+                this.to = to;
+                this.towardsServer = towardsServer;
+                this.impairment = impairment;
+                Thread receiver = new Thread(this::receive, "udp-receive");
+                Thread sender = new Thread(this::sendDue, "udp-send");
+                receiver.setDaemon(true);
+                sender.setDaemon(true);
+                receiver.start();
+                sender.start();
+            }
+
+            private void receive() {
+                byte[] buffer = new byte[MAX_DATAGRAM];
+                while (!from.isClosed()) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    try {
+                        from.receive(packet);
+                    } catch (SocketTimeoutException e) {
+                        if (System.nanoTime() - lastActivity > UDP_IDLE * 1_000_000L) {
+                            close();
+                        }
+                        continue;
+                    } catch (IOException e) {
+                        return;  // Relay closed
+                    }
+                    lastActivity = System.nanoTime();
+                    if (towardsServer && client == null) {
+                        client = packet.getSocketAddress();
+                    }
+                    byte[] data = new byte[packet.getLength()];
+                    System.arraycopy(packet.getData(), packet.getOffset(), data, 0, data.length);
+                    SocketAddress target = towardsServer ? server : client;
+                    if (target == null) {
+                        continue;  // Nowhere to send it yet
+                    }
+                    for (byte[] copy : impairment.apply(data)) {
+                        long deliverAt = impairment.departureOrDrop(copy.length);
+                        if (deliverAt < 0) {
+                            continue;  // Queue full
+                        }
+                        deliverAt += impairment.latency() + impairment.reorderDelay();
+                        queue.put(new Scheduled(new DatagramPacket(copy, copy.length, target), deliverAt, order++));
+                    }
+                }
+            }
+
+            private void sendDue() {
+                while (!to.isClosed()) {
+                    try {
+                        Scheduled next = queue.poll(1, TimeUnit.SECONDS);
+                        if (next != null) {
+                            to.send(next.packet);
+                        }
+                    } catch (IOException e) {
+                        if (to.isClosed()) {
+                            return;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Seeded impairment decisions and counters for one direction of one path.
+     */
+    private static class Impairment {
+        private final Random random;
+        private long nextFree = System.nanoTime();  // When the bottleneck has sent everything queued so far
+        private final AtomicLong forwarded = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong queueDrops = new AtomicLong();
+        private final AtomicLong duplicated = new AtomicLong();
+        private final AtomicLong reordered = new AtomicLong();
+        private final AtomicLong corrupted = new AtomicLong();
+        private boolean reorderNext;
+
+        /**
+         * @param seed The configured seed.
+         * @param session The session number.
+         * @param path Distinguishes the paths and directions of a session.
+         */
+        Impairment(long seed, int session, int path) {
+            this.random = new Random(seed * 1_000_003L + session * 10_007L + path);
+        }
+
+        /**
+         * Decides the fate of a datagram: dropped (no copies), corrupted and/or duplicated.
+         * @return The copies to send.
+         */
+        byte[][] apply(byte[] data) {
+            if (random.nextDouble() < LOSS) {
+                dropped.incrementAndGet();
+                return new byte[0][];
+            }
+            if (random.nextDouble() < CORRUPT && data.length > 0) {
+                // Flip a bit in the payload, between the datagram header and the CRC when there is one
+                int index = data.length > HEADER + 4 ? HEADER + random.nextInt(data.length - HEADER - 4) : random.nextInt(data.length);
+                data[index] ^= (byte) (1 << random.nextInt(8));
+                corrupted.incrementAndGet();
+            }
+            reorderNext = random.nextDouble() < REORDER;
+            if (reorderNext) {
+                reordered.incrementAndGet();
+            }
+            forwarded.incrementAndGet();
+            if (random.nextDouble() < DUPLICATE) {
+                duplicated.incrementAndGet();
+                return new byte[][] {data, data.clone()};
+            }
+            return new byte[][] {data};
+        }
+
+        /**
+         * @return Extra delay in nanoseconds if the last datagram was picked for reordering.
+         */
+        long reorderDelay() {
+            return reorderNext ? REORDER_DELAY * 1_000_000L : 0;
+        }
+
+        /**
+         * @return A one-way delay in nanoseconds: the latency plus uniform jitter, never negative.
+         */
+        long latency() {
+            long jitter = JITTER > 0 ? (long) ((random.nextDouble() * 2 - 1) * JITTER * 1_000_000L) : 0;
+            return Math.max(0, DELAY * 1_000_000L + jitter);
+        }
+
+        /**
+         * Queues bytes at the bottleneck.
+         * @return When they have been sent, in System.nanoTime() terms.
+         */
+        synchronized long departure(int length) {
+            long now = System.nanoTime();
+            if (RATE <= 0) {
+                return now;
+            }
+            nextFree = Math.max(now, nextFree) + length * 1_000_000_000L / RATE;
+            return nextFree;
+        }
+
+        /**
+         * Queues a datagram at the bottleneck, dropping it if the queue is full.
+         * @return When it has been sent, or -1 if it was dropped.
+         */
+        synchronized long departureOrDrop(int length) {
+            long now = System.nanoTime();
+            if (RATE > 0 && (nextFree - now) * RATE / 1_000_000_000L > QUEUE) {
+                queueDrops.incrementAndGet();
+                return -1;
+            }
+            return departure(length);
+        }
+
+        String summary() {
+            return forwarded + " forwarded, " + dropped + " lost, " + queueDrops + " queue drops, " + duplicated + " duplicated, "
+                    + reordered + " reordered, " + corrupted + " corrupted";
+        }
+    }
+
+    /**
+     * Sleeps until a System.nanoTime() deadline.
+     */
+    private static void sleepUntil(long deadline) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    private static void log(String message) {
+        System.out.println(new SimpleDateFormat("MM/dd/yyyy@HH:mm:ss").format(new Date()) + " " + message);
+    }
+}